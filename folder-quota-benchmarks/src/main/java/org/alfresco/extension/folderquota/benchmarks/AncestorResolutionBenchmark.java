@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Benchmark of quota ancestor resolution at various depths
+ */
+package org.alfresco.extension.folderquota.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.QuotaAncestorResolver;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finds the quota folder of a document nested depth folders below it.  Cold lookups
+ * start from an empty resolver cache and walk every level; warm lookups are answered
+ * from the cache.  The stamped lookup goes through FolderUsageCalculator, which answers
+ * from the document's fq:managedFolder stamp.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AncestorResolutionBenchmark
+{
+	@Param({ "1", "4", "16", "64" })
+	public int depth;
+
+	private QuotaAncestorResolver resolver;
+	private FolderUsageCalculator usage;
+	private NodeRef document;
+	private NodeRef stampedDocument;
+
+	@Setup
+	public void setUp()
+	{
+		InMemoryRepository repository = new InMemoryRepository();
+		NodeRef root = repository.createRoot();
+		NodeRef quotaFolder = repository.createFolder(root);
+		repository.addQuota(quotaFolder, Long.MAX_VALUE);
+		NodeRef folder = quotaFolder;
+		for (int i = 0; i < depth; i++)
+		{
+			folder = repository.createFolder(folder);
+		}
+		document = repository.createDocument(folder, 1024L);
+		stampedDocument = repository.createDocument(folder, 1024L);
+		repository.stamp(stampedDocument, quotaFolder);
+
+		resolver = new QuotaAncestorResolver();
+		resolver.setNodeService(repository.getNodeService());
+		resolver.init();
+
+		usage = new FolderUsageCalculator();
+		usage.setServiceRegistry(repository.getServiceRegistry());
+		usage.setQuotaAncestorResolver(resolver);
+	}
+
+	/**
+	 * Empties the cache so cold lookups walk the whole chain
+	 */
+	@State(Scope.Thread)
+	public static class ColdCache
+	{
+		@Setup(Level.Invocation)
+		public void clear(AncestorResolutionBenchmark benchmark)
+		{
+			benchmark.resolver.invalidateAll();
+		}
+	}
+
+	@Benchmark
+	public NodeRef coldLookup(ColdCache cold)
+	{
+		return resolver.getQuotaAncestor(document);
+	}
+
+	@Benchmark
+	public NodeRef warmLookup()
+	{
+		return resolver.getQuotaAncestor(document);
+	}
+
+	@Benchmark
+	public NodeRef stampedLookup()
+	{
+		return usage.getParentFolderWithQuota(stampedDocument);
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Runs the quota benchmarks and writes the results as JSON
+ */
+package org.alfresco.extension.folderquota.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar.  Runs every benchmark in this package and writes the
+ * results to folder-quota-benchmarks.json, for comparing runs against each other.  The
+ * usual JMH command line options are passed through, so a subset can be run with e.g.
+ * <pre>
+ * java -jar benchmarks.jar UpdateQueueBenchmark -p impl=journal
+ * </pre>
+ */
+public class BenchmarkMain
+{
+	public static final String RESULT_FILE = "folder-quota-benchmarks.json";
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		if (commandLine.getIncludes().isEmpty())
+		{
+			builder.include(BenchmarkMain.class.getPackage().getName() + "\\..*Benchmark");
+		}
+		Options options = builder
+				.parent(commandLine)
+				.resultFormat(ResultFormatType.JSON)
+				.result(RESULT_FILE)
+				.build();
+		new Runner(options).run();
+	}
+}
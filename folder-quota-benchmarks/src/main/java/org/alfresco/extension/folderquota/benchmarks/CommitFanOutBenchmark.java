@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Benchmark of charging uploads and the afterCommit fan-out per transaction size
+ */
+package org.alfresco.extension.folderquota.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.extension.folderquota.FolderQuotaStamper;
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.QuotaAncestorResolver;
+import org.alfresco.extension.folderquota.QuotaReservationLedger;
+import org.alfresco.extension.folderquota.behaviour.FolderQuotaBehaviour;
+import org.alfresco.extension.folderquota.behaviour.FolderSizeWriteBehind;
+import org.alfresco.extension.folderquota.counter.LocalQuotaCounterStore;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One transaction that writes txnSize documents below nesting quota folders: every
+ * write goes through onContentPropertyUpdate (resolve, admit, record the change) and the
+ * commit runs the afterCommit fan-out.  Changes go to a write-behind stage that is never
+ * started, so the benchmark stops at the hand-off and does not include the folder writes.
+ * With the ledger on, each write is also reserved against the in-memory counters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommitFanOutBenchmark
+{
+	private static final ContentData CONTENT = InMemoryRepository.content(1024L);
+
+	@Param({ "1", "10", "100", "1000" })
+	public int txnSize;
+
+	@Param({ "1", "3" })
+	public int nesting;
+
+	@Param({ "false", "true" })
+	public boolean ledger;
+
+	private FolderQuotaBehaviour behaviour;
+	private NodeRef[] documents;
+
+	@Setup
+	public void setUp()
+	{
+		InMemoryRepository repository = new InMemoryRepository();
+		NodeRef folder = repository.createRoot();
+		for (int i = 0; i < nesting; i++)
+		{
+			folder = repository.createFolder(folder);
+			repository.addQuota(folder, Long.MAX_VALUE);
+		}
+		documents = new NodeRef[txnSize];
+		for (int i = 0; i < txnSize; i++)
+		{
+			documents[i] = repository.createDocument(folder, 0L);
+			repository.stamp(documents[i], folder);
+		}
+
+		QuotaAncestorResolver resolver = new QuotaAncestorResolver();
+		resolver.setNodeService(repository.getNodeService());
+		resolver.init();
+
+		FolderQuotaStamper stamper = new FolderQuotaStamper();
+		stamper.setNodeService(repository.getNodeService());
+		stamper.setFileFolderService(repository.getFileFolderService());
+		stamper.setAttributeService(repository.getAttributeService());
+		stamper.setTransactionService(repository.getTransactionService());
+		stamper.setJobLockService(repository.getJobLockService());
+		stamper.setQuotaAncestorResolver(resolver);
+		stamper.init();
+		// nothing is queued, so this records the stamps as current
+		stamper.processPending();
+
+		FolderUsageCalculator usage = new FolderUsageCalculator();
+		usage.setServiceRegistry(repository.getServiceRegistry());
+		usage.setQuotaAncestorResolver(resolver);
+		usage.setFolderQuotaStamper(stamper);
+
+		// not initialised, so it only accumulates
+		FolderSizeWriteBehind writeBehind = new FolderSizeWriteBehind();
+		writeBehind.setFolderUsageCalculator(usage);
+
+		behaviour = new FolderQuotaBehaviour();
+		behaviour.setServiceRegistry(repository.getServiceRegistry());
+		behaviour.setPolicyComponent(repository.getPolicyComponent());
+		behaviour.setFolderUsageCalculator(usage);
+		behaviour.setQuotaAncestorResolver(resolver);
+		behaviour.setFolderQuotaStamper(stamper);
+		behaviour.setWriteBehind(writeBehind);
+		behaviour.setUseWriteBehind(true);
+		if (ledger)
+		{
+			LocalQuotaCounterStore counterStore = new LocalQuotaCounterStore();
+			counterStore.setNodeService(repository.getNodeService());
+			counterStore.setTransactionService(repository.getTransactionService());
+			QuotaReservationLedger reservationLedger = new QuotaReservationLedger();
+			reservationLedger.setQuotaCounterStore(counterStore);
+			behaviour.setQuotaReservationLedger(reservationLedger);
+		}
+		behaviour.init();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		InMemoryRepository.rollback();
+	}
+
+	@Benchmark
+	public void transaction()
+	{
+		InMemoryRepository.begin();
+		try
+		{
+			for (NodeRef document : documents)
+			{
+				behaviour.onContentPropertyUpdate(document, ContentModel.PROP_CONTENT, null, CONTENT);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			InMemoryRepository.rollback();
+			throw e;
+		}
+		InMemoryRepository.commit();
+	}
+}
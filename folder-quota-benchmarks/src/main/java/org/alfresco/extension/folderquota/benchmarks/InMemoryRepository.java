@@ -0,0 +1,709 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * In-memory stand-ins for the repository services used by the benchmarks
+ */
+package org.alfresco.extension.folderquota.benchmarks;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.model.ContentModel;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.alfresco.util.Pair;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+/**
+ * A node tree, attribute store and transaction support held in memory, behind the
+ * service interfaces the quota classes use.  The services are dynamic proxies that
+ * implement only the methods the quota code calls; anything else throws, so a benchmark
+ * can never silently measure a method that does nothing.
+ * <p>
+ * Transactions are Spring transaction synchronizations with no resource behind them, so
+ * AlfrescoTransactionSupport resources and listeners work as they do in the repository:
+ * listeners run their afterCommit once {@link #commit()} is called.
+ */
+public class InMemoryRepository
+{
+	private static final StoreRef STORE = StoreRef.STORE_REF_WORKSPACE_SPACESSTORE;
+
+	/**
+	 * A node, its properties and its children
+	 */
+	private static class Node
+	{
+		final NodeRef nodeRef;
+		final Node parent;
+		final QName type;
+		final Set<QName> aspects = Collections.synchronizedSet(new HashSet<QName>());
+		final Map<QName, Serializable> properties = new ConcurrentHashMap<QName, Serializable>();
+		final List<Node> children = Collections.synchronizedList(new ArrayList<Node>());
+
+		Node(NodeRef nodeRef, Node parent, QName type)
+		{
+			this.nodeRef = nodeRef;
+			this.parent = parent;
+			this.type = type;
+		}
+
+		boolean isFolder()
+		{
+			return ContentModel.TYPE_FOLDER.equals(type);
+		}
+	}
+
+	/**
+	 * A stored attribute, ids are handed to attribute query callbacks
+	 */
+	private static class Attribute
+	{
+		final long id;
+		final Serializable value;
+
+		Attribute(long id, Serializable value)
+		{
+			this.id = id;
+			this.value = value;
+		}
+	}
+
+	private final Map<NodeRef, Node> nodes = new ConcurrentHashMap<NodeRef, Node>();
+	private final Map<Long, NodeRef> nodesById = new ConcurrentHashMap<Long, NodeRef>();
+	private final Map<List<Serializable>, Attribute> attributes = Collections.synchronizedMap(new HashMap<List<Serializable>, Attribute>());
+	private final AtomicLong ids = new AtomicLong();
+	private volatile long listLatency;
+
+	private final NodeService nodeService = proxy(NodeService.class, new NodeServiceHandler());
+	private final FileFolderService fileFolderService = proxy(FileFolderService.class, new FileFolderServiceHandler());
+	private final AttributeService attributeService = proxy(AttributeService.class, new AttributeServiceHandler());
+	private final RetryingTransactionHelper transactionHelper = new InMemoryTransactionHelper();
+	private final TransactionService transactionService = proxy(TransactionService.class, new InvocationHandler()
+	{
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			if (method.getName().equals("getRetryingTransactionHelper"))
+			{
+				return transactionHelper;
+			}
+			return unsupported(method);
+		}
+	});
+	private final JobLockService jobLockService = proxy(JobLockService.class, new JobLockServiceHandler());
+	private final PolicyComponent policyComponent = proxy(PolicyComponent.class, new InvocationHandler()
+	{
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			//behaviours are called directly by the benchmarks, binding them does nothing
+			return defaultValue(method.getReturnType());
+		}
+	});
+	private final ServiceRegistry serviceRegistry = proxy(ServiceRegistry.class, new InvocationHandler()
+	{
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			switch (method.getName())
+			{
+				case "getNodeService":
+					return nodeService;
+				case "getFileFolderService":
+					return fileFolderService;
+				case "getTransactionService":
+					return transactionService;
+				default:
+					return unsupported(method);
+			}
+		}
+	});
+
+	/**
+	 * @return a new folder with no parent
+	 */
+	public NodeRef createRoot()
+	{
+		return createNode(null, ContentModel.TYPE_FOLDER).nodeRef;
+	}
+
+	public NodeRef createFolder(NodeRef parent)
+	{
+		return createNode(getNode(parent), ContentModel.TYPE_FOLDER).nodeRef;
+	}
+
+	public NodeRef createDocument(NodeRef parent, long size)
+	{
+		Node document = createNode(getNode(parent), ContentModel.TYPE_CONTENT);
+		document.properties.put(ContentModel.PROP_CONTENT, content(size));
+		return document.nodeRef;
+	}
+
+	/**
+	 * Adds fq:quota to a folder
+	 *
+	 * @param folder
+	 * @param limit fq:sizeQuota
+	 */
+	public void addQuota(NodeRef folder, long limit)
+	{
+		Node node = getNode(folder);
+		node.aspects.add(FolderQuotaConstants.ASPECT_FQ_QUOTA);
+		node.properties.put(FolderQuotaConstants.PROP_FQ_SIZE_QUOTA, limit);
+		node.properties.put(FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, 0L);
+	}
+
+	/**
+	 * Stamps a node with its quota folder, as the stamper would have
+	 */
+	public void stamp(NodeRef nodeRef, NodeRef quotaFolder)
+	{
+		Node node = getNode(nodeRef);
+		node.aspects.add(FolderQuotaConstants.ASPECT_FQ_IN_QUOTA);
+		node.properties.put(FolderQuotaConstants.PROP_FQ_MANAGED_FOLDER, quotaFolder);
+	}
+
+	public static ContentData content(long size)
+	{
+		return new ContentData("store://benchmark/" + GUID.generate(), "application/octet-stream", size, "UTF-8");
+	}
+
+	private Node createNode(Node parent, QName type)
+	{
+		long id = ids.incrementAndGet();
+		Node node = new Node(new NodeRef(STORE, GUID.generate()), parent, type);
+		node.properties.put(ContentModel.PROP_NODE_DBID, id);
+		node.properties.put(ContentModel.PROP_NAME, "node-" + id);
+		nodes.put(node.nodeRef, node);
+		nodesById.put(id, node.nodeRef);
+		if (parent != null)
+		{
+			parent.children.add(node);
+		}
+		return node;
+	}
+
+	private Node getNode(NodeRef nodeRef)
+	{
+		Node node = nodes.get(nodeRef);
+		if (node == null)
+		{
+			throw new InvalidNodeRefException(nodeRef);
+		}
+		return node;
+	}
+
+	/**
+	 * Makes every folder listing wait, as a round trip to the database would.  Waiting
+	 * listings do not hold a CPU, so parallel listings overlap as they would there.
+	 *
+	 * @param micros
+	 */
+	public void setListLatency(long micros)
+	{
+		this.listLatency = micros;
+	}
+
+	private void awaitListing()
+	{
+		if (listLatency > 0L)
+		{
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(listLatency));
+		}
+	}
+
+	public NodeService getNodeService()
+	{
+		return nodeService;
+	}
+
+	public FileFolderService getFileFolderService()
+	{
+		return fileFolderService;
+	}
+
+	public AttributeService getAttributeService()
+	{
+		return attributeService;
+	}
+
+	public TransactionService getTransactionService()
+	{
+		return transactionService;
+	}
+
+	public JobLockService getJobLockService()
+	{
+		return jobLockService;
+	}
+
+	public PolicyComponent getPolicyComponent()
+	{
+		return policyComponent;
+	}
+
+	public ServiceRegistry getServiceRegistry()
+	{
+		return serviceRegistry;
+	}
+
+	/**
+	 * Starts a transaction on this thread
+	 */
+	public static void begin()
+	{
+		TransactionSynchronizationManager.initSynchronization();
+		TransactionSynchronizationManager.setActualTransactionActive(true);
+	}
+
+	/**
+	 * Commits the transaction on this thread, running the listeners' afterCommit
+	 */
+	public static void commit()
+	{
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		TransactionSynchronizationUtils.triggerBeforeCommit(false);
+		TransactionSynchronizationUtils.triggerBeforeCompletion();
+		end();
+		TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+		TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_COMMITTED);
+		clearResources();
+	}
+
+	/**
+	 * Rolls back the transaction on this thread, if there still is one
+	 */
+	public static void rollback()
+	{
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			clearResources();
+			return;
+		}
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		TransactionSynchronizationUtils.triggerBeforeCompletion();
+		end();
+		TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_ROLLED_BACK);
+		clearResources();
+	}
+
+	private static void end()
+	{
+		TransactionSynchronizationManager.clearSynchronization();
+		TransactionSynchronizationManager.setActualTransactionActive(false);
+	}
+
+	/**
+	 * Transaction resources are normally unbound by the synchronization, anything left
+	 * would make the next transaction on the thread fail to bind its own
+	 */
+	private static void clearResources()
+	{
+		for (Object key : new ArrayList<Object>(TransactionSynchronizationManager.getResourceMap().keySet()))
+		{
+			TransactionSynchronizationManager.unbindResourceIfPossible(key);
+		}
+	}
+
+	/**
+	 * Runs each callback in an in-memory transaction, joining one that is already active
+	 */
+	private static class InMemoryTransactionHelper extends RetryingTransactionHelper
+	{
+		@Override
+		public <R> R doInTransaction(RetryingTransactionCallback<R> cb, boolean readOnly, boolean requiresNew)
+		{
+			if (TransactionSynchronizationManager.isSynchronizationActive())
+			{
+				return execute(cb);
+			}
+			begin();
+			boolean committed = false;
+			try
+			{
+				R result = execute(cb);
+				commit();
+				committed = true;
+				return result;
+			}
+			finally
+			{
+				if (!committed)
+				{
+					rollback();
+				}
+			}
+		}
+
+		private static <R> R execute(RetryingTransactionCallback<R> cb)
+		{
+			try
+			{
+				return cb.execute();
+			}
+			catch (RuntimeException e)
+			{
+				throw e;
+			}
+			catch (Throwable e)
+			{
+				throw new AlfrescoRuntimeException("Transaction callback failed", e);
+			}
+		}
+	}
+
+	private class NodeServiceHandler implements InvocationHandler
+	{
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			switch (method.getName())
+			{
+				case "exists":
+					return args[0] instanceof NodeRef && nodes.containsKey(args[0]);
+				case "getProperty":
+					return getNode((NodeRef) args[0]).properties.get(args[1]);
+				case "getProperties":
+					return new HashMap<QName, Serializable>(getNode((NodeRef) args[0]).properties);
+				case "setProperty":
+					setProperty(getNode((NodeRef) args[0]), (QName) args[1], (Serializable) args[2]);
+					return null;
+				case "getType":
+					return getNode((NodeRef) args[0]).type;
+				case "hasAspect":
+					return getNode((NodeRef) args[0]).aspects.contains(args[1]);
+				case "getAspects":
+					return new HashSet<QName>(getNode((NodeRef) args[0]).aspects);
+				case "addAspect":
+				{
+					Node node = getNode((NodeRef) args[0]);
+					node.aspects.add((QName) args[1]);
+					if (args[2] != null)
+					{
+						for (Map.Entry<QName, Serializable> property : ((Map<QName, Serializable>) args[2]).entrySet())
+						{
+							setProperty(node, property.getKey(), property.getValue());
+						}
+					}
+					return null;
+				}
+				case "removeAspect":
+					getNode((NodeRef) args[0]).aspects.remove(args[1]);
+					return null;
+				case "getPrimaryParent":
+				{
+					Node node = getNode((NodeRef) args[0]);
+					if (node.parent == null)
+					{
+						return new ChildAssociationRef(null, null, null, node.nodeRef);
+					}
+					return new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, node.parent.nodeRef,
+							QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, node.nodeRef.getId()), node.nodeRef);
+				}
+				case "getNodeRef":
+					return nodesById.get(args[0]);
+				default:
+					return objectMethod(proxy, method, args);
+			}
+		}
+
+		private void setProperty(Node node, QName property, Serializable value)
+		{
+			if (value == null)
+			{
+				node.properties.remove(property);
+			}
+			else
+			{
+				node.properties.put(property, value);
+			}
+		}
+	}
+
+	private class FileFolderServiceHandler implements InvocationHandler
+	{
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			//list(NodeRef, boolean files, boolean folders, Set ignoreTypes, List sortProps, PagingRequest)
+			if (method.getName().equals("list") && args.length == 6 && args[5] instanceof PagingRequest)
+			{
+				awaitListing();
+				return list(getNode((NodeRef) args[0]), (Boolean) args[1], (Boolean) args[2], (PagingRequest) args[5]);
+			}
+			//list(NodeRef), every child at once
+			if (method.getName().equals("list") && args.length == 1)
+			{
+				awaitListing();
+				return list(getNode((NodeRef) args[0]));
+			}
+			return objectMethod(proxy, method, args);
+		}
+
+		private List<Object> list(Node folder)
+		{
+			List<Node> children;
+			synchronized (folder.children)
+			{
+				children = new ArrayList<Node>(folder.children);
+			}
+			List<Object> all = new ArrayList<Object>(children.size());
+			for (Node child : children)
+			{
+				all.add(fileInfo(child));
+			}
+			return all;
+		}
+
+		private Object list(Node folder, boolean files, boolean folders, PagingRequest paging)
+		{
+			List<Node> children;
+			synchronized (folder.children)
+			{
+				children = new ArrayList<Node>(folder.children);
+			}
+			List<Object> matching = new ArrayList<Object>(children.size());
+			for (Node child : children)
+			{
+				if (child.isFolder() ? folders : files)
+				{
+					matching.add(fileInfo(child));
+				}
+			}
+			int from = Math.min(paging.getSkipCount(), matching.size());
+			int to = Math.min(from + paging.getMaxItems(), matching.size());
+			final List<Object> page = matching.subList(from, to);
+			final boolean more = to < matching.size();
+			final int total = matching.size();
+			return proxy(PagingResults.class, new InvocationHandler()
+			{
+				public Object invoke(Object proxy, Method method, Object[] args)
+				{
+					switch (method.getName())
+					{
+						case "getPage":
+							return page;
+						case "hasMoreItems":
+							return more;
+						case "getTotalResultCount":
+							return new Pair<Integer, Integer>(total, total);
+						case "getQueryExecutionId":
+							return null;
+						default:
+							return objectMethod(proxy, method, args);
+					}
+				}
+			});
+		}
+
+		private Object fileInfo(final Node node)
+		{
+			return proxy(FileInfo.class, new InvocationHandler()
+			{
+				public Object invoke(Object proxy, Method method, Object[] args)
+				{
+					switch (method.getName())
+					{
+						case "getNodeRef":
+							return node.nodeRef;
+						case "isFolder":
+							return node.isFolder();
+						case "isLink":
+						case "isHidden":
+							return false;
+						case "getType":
+							return node.type;
+						case "getName":
+							return node.properties.get(ContentModel.PROP_NAME);
+						case "getContentData":
+							return node.properties.get(ContentModel.PROP_CONTENT);
+						case "getProperties":
+							return new HashMap<QName, Serializable>(node.properties);
+						default:
+							return objectMethod(proxy, method, args);
+					}
+				}
+			});
+		}
+	}
+
+	private class AttributeServiceHandler implements InvocationHandler
+	{
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			switch (method.getName())
+			{
+				case "createAttribute":
+				case "setAttribute":
+					attributes.put(key(args[1]), new Attribute(ids.incrementAndGet(), (Serializable) args[0]));
+					return null;
+				case "getAttribute":
+				{
+					Attribute attribute = attributes.get(key(args[0]));
+					return attribute == null ? null : attribute.value;
+				}
+				case "exists":
+					return attributes.containsKey(key(args[0]));
+				case "removeAttribute":
+					attributes.remove(key(args[0]));
+					return null;
+				case "getAttributes":
+					getAttributes((AttributeService.AttributeQueryCallback) args[0], key(args[1]));
+					return null;
+				default:
+					return objectMethod(proxy, method, args);
+			}
+		}
+
+		private List<Serializable> key(Object keys)
+		{
+			return Arrays.asList((Serializable[]) keys);
+		}
+
+		private void getAttributes(AttributeService.AttributeQueryCallback callback, List<Serializable> prefix)
+		{
+			List<Map.Entry<List<Serializable>, Attribute>> matching = new ArrayList<Map.Entry<List<Serializable>, Attribute>>();
+			synchronized (attributes)
+			{
+				for (Map.Entry<List<Serializable>, Attribute> entry : attributes.entrySet())
+				{
+					if (entry.getKey().size() >= prefix.size() && entry.getKey().subList(0, prefix.size()).equals(prefix))
+					{
+						matching.add(entry);
+					}
+				}
+			}
+			for (Map.Entry<List<Serializable>, Attribute> entry : matching)
+			{
+				List<Serializable> key = entry.getKey();
+				if (!callback.handleAttribute(entry.getValue().id, entry.getValue().value, key.toArray(new Serializable[key.size()])))
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * One lock holder at a time per lock name, locks never expire
+	 */
+	private class JobLockServiceHandler implements InvocationHandler
+	{
+		private final Map<QName, String> locks = new HashMap<QName, String>();
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args)
+		{
+			switch (method.getName())
+			{
+				case "getLock":
+				{
+					QName lock = (QName) args[0];
+					if (locks.containsKey(lock))
+					{
+						throw new LockAcquisitionException(lock, locks.get(lock));
+					}
+					String token = GUID.generate();
+					locks.put(lock, token);
+					return token;
+				}
+				case "refreshLock":
+					return defaultValue(method.getReturnType());
+				case "releaseLock":
+				{
+					boolean released = args[0].equals(locks.get(args[1]));
+					if (released)
+					{
+						locks.remove(args[1]);
+					}
+					return method.getReturnType() == boolean.class ? released : null;
+				}
+				default:
+					return objectMethod(proxy, method, args);
+			}
+		}
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler)
+	{
+		return type.cast(Proxy.newProxyInstance(InMemoryRepository.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	private static Object objectMethod(Object proxy, Method method, Object[] args)
+	{
+		switch (method.getName())
+		{
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return proxy.getClass().getInterfaces()[0].getSimpleName() + " stand-in";
+			default:
+				return unsupported(method);
+		}
+	}
+
+	private static Object unsupported(Method method)
+	{
+		throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName() + "." + method.getName() + " is not implemented by the in-memory repository");
+	}
+
+	private static Object defaultValue(Class<?> type)
+	{
+		if (type == boolean.class)
+		{
+			return false;
+		}
+		if (type == int.class || type == long.class)
+		{
+			return type == int.class ? (Object) 0 : (Object) 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Benchmark of the heap held per pending update queue event
+ */
+package org.alfresco.extension.folderquota.benchmarks;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.SizeChange;
+import org.alfresco.extension.folderquota.behaviour.FolderQuotaUpdateQueueInMemoryImpl;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap held per pending event by the in-memory update queue, with events keyed by
+ * NodeRef as they used to be and packed by node id as they are now.  "nodeRefQueue"
+ * rebuilds the former layout, a ConcurrentLinkedQueue of objects holding a NodeRef and
+ * a delta; "packed" fills FolderQuotaUpdateQueueInMemoryImpl.  The used heap is read
+ * after a full GC before and after the queue is filled, and the difference per event is
+ * reported as the bytesPerEvent counter; the time is of no interest.  Events share ten
+ * folder NodeRef instances, as they did when the behaviour enqueued them, so only the
+ * per-event overhead is counted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PendingEventFootprintBenchmark
+{
+	private static final int FOLDERS = 10;
+
+	@Param({ "nodeRefQueue", "packed" })
+	public String layout;
+
+	@Param({ "1000000" })
+	public int events;
+
+	/**
+	 * A queued event as it was before events were keyed by node id
+	 */
+	private static class NodeRefSizeChange
+	{
+		final NodeRef nodeRef;
+		final long sizeChange;
+
+		NodeRefSizeChange(NodeRef nodeRef, long sizeChange)
+		{
+			this.nodeRef = nodeRef;
+			this.sizeChange = sizeChange;
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint
+	{
+		public long bytesPerEvent;
+	}
+
+	private FolderQuotaUpdateQueueInMemoryImpl queue;
+	private NodeRef[] folders;
+	private long[] folderIds;
+
+	@Setup
+	public void setUp()
+	{
+		InMemoryRepository repository = new InMemoryRepository();
+		NodeRef root = repository.createRoot();
+		folders = new NodeRef[FOLDERS];
+		folderIds = new long[FOLDERS];
+		for (int i = 0; i < FOLDERS; i++)
+		{
+			folders[i] = repository.createFolder(root);
+			repository.addQuota(folders[i], Long.MAX_VALUE);
+			folderIds[i] = (Long) repository.getNodeService().getProperty(folders[i], ContentModel.PROP_NODE_DBID);
+		}
+
+		FolderUsageCalculator usage = new FolderUsageCalculator();
+		usage.setServiceRegistry(repository.getServiceRegistry());
+		queue = new FolderQuotaUpdateQueueInMemoryImpl();
+		queue.setFolderUsageCalculator(usage);
+		queue.setNodeService(repository.getNodeService());
+		queue.setTransactionService(repository.getTransactionService());
+	}
+
+	@Benchmark
+	public Object fill(Footprint footprint)
+	{
+		long before = usedHeap();
+		Object filled;
+		if ("nodeRefQueue".equals(layout))
+		{
+			Queue<NodeRefSizeChange> pending = new ConcurrentLinkedQueue<NodeRefSizeChange>();
+			for (int i = 0; i < events; i++)
+			{
+				pending.add(new NodeRefSizeChange(folders[i % FOLDERS], 1024L));
+			}
+			filled = pending;
+		}
+		else
+		{
+			for (int i = 0; i < events; i++)
+			{
+				queue.enqueueEvent(new SizeChange(folderIds[i % FOLDERS], 1024L));
+			}
+			filled = queue;
+		}
+		footprint.bytesPerEvent = (usedHeap() - before) / events;
+		if (filled == queue)
+		{
+			queue.processAllEvents();
+		}
+		return filled;
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Benchmark of subtree sizing for wide and deep trees
+ */
+package org.alfresco.extension.folderquota.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.ParallelFolderSizeCalculator;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sizes a subtree of about 10,000 documents with the original recursive implementation,
+ * the node walk and the parallel sizing engine.  A wide tree is 100 folders of 100
+ * documents under the root, a deep tree is a chain of 1,000 folders with 10 documents
+ * each and a balanced tree is three levels of 10 folders with 9 documents in each.
+ * <p>
+ * With listLatency 0 the stand-in listing costs no I/O, so this measures the sizing code
+ * itself.  Otherwise every listing waits that many microseconds, standing in for the
+ * database round trip that dominates sizing in a real repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubtreeSizingBenchmark
+{
+	@Param({ "wide", "deep", "balanced" })
+	public String shape;
+
+	@Param({ "100", "1000" })
+	public int pageSize;
+
+	@Param({ "0", "500" })
+	public long listLatency;
+
+	private static final QName TYPE_FOLDER = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "folder");
+
+	private NodeService nodeService;
+	private FileFolderService fileFolderService;
+	private FolderUsageCalculator usage;
+	private ParallelFolderSizeCalculator parallel;
+	private NodeRef root;
+
+	@Setup
+	public void setUp()
+	{
+		InMemoryRepository repository = new InMemoryRepository();
+		root = repository.createRoot();
+		if ("balanced".equals(shape))
+		{
+			createBalanced(repository, root, 3);
+		}
+		else if ("wide".equals(shape))
+		{
+			for (int i = 0; i < 100; i++)
+			{
+				NodeRef folder = repository.createFolder(root);
+				for (int j = 0; j < 100; j++)
+				{
+					repository.createDocument(folder, 1024L);
+				}
+			}
+		}
+		else
+		{
+			NodeRef folder = root;
+			for (int i = 0; i < 1000; i++)
+			{
+				folder = repository.createFolder(folder);
+				for (int j = 0; j < 10; j++)
+				{
+					repository.createDocument(folder, 1024L);
+				}
+			}
+		}
+
+		repository.setListLatency(listLatency);
+		nodeService = repository.getNodeService();
+		fileFolderService = repository.getFileFolderService();
+
+		usage = new FolderUsageCalculator();
+		usage.setServiceRegistry(repository.getServiceRegistry());
+		usage.setPageSize(pageSize);
+
+		parallel = new ParallelFolderSizeCalculator();
+		parallel.setTransactionService(repository.getTransactionService());
+		parallel.setFileFolderService(repository.getFileFolderService());
+		parallel.setParallelism(Runtime.getRuntime().availableProcessors());
+		parallel.setPageSize(pageSize);
+		parallel.init();
+	}
+
+	private static void createBalanced(InMemoryRepository repository, NodeRef parent, int depth)
+	{
+		for (int i = 0; i < 10; i++)
+		{
+			NodeRef folder = repository.createFolder(parent);
+			for (int j = 0; j < 9; j++)
+			{
+				repository.createDocument(folder, 1024L);
+			}
+			if (depth > 1)
+			{
+				createBalanced(repository, folder, depth - 1);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		parallel.destroy();
+	}
+
+	/**
+	 * calculateFolderSize as it was before the paged node walk: every child listed at
+	 * once, its type and content looked up one node at a time, one call per folder
+	 */
+	private Long sizeRecursively(NodeRef nodeRef)
+	{
+		Long size = 0L;
+		List<FileInfo> children = fileFolderService.list(nodeRef);
+		for (FileInfo fi : children)
+		{
+			QName nodeType = nodeService.getType(fi.getNodeRef());
+			if (nodeType.isMatch(TYPE_FOLDER))
+			{
+				size = size + sizeRecursively(fi.getNodeRef());
+			}
+			else
+			{
+				ContentData contentRef = (ContentData) nodeService.getProperty(fi.getNodeRef(), ContentModel.PROP_CONTENT);
+				size = size + contentRef.getSize();
+			}
+		}
+		return size;
+	}
+
+	@Benchmark
+	public Long recursive()
+	{
+		return sizeRecursively(root);
+	}
+
+	@Benchmark
+	public Long nodeWalk()
+	{
+		return usage.calculateFolderSize(root);
+	}
+
+	@Benchmark
+	public long parallelWalk()
+	{
+		return parallel.calculateFolderSize(root);
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Benchmark of enqueueing and draining each update queue implementation
+ */
+package org.alfresco.extension.folderquota.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.behaviour.FolderQuotaUpdateQueue;
+import org.alfresco.extension.folderquota.behaviour.FolderQuotaUpdateQueueInMemoryImpl;
+import org.alfresco.extension.folderquota.behaviour.FolderQuotaUpdateQueueJournalImpl;
+import org.alfresco.extension.folderquota.behaviour.FolderQuotaUpdateQueuePersistentImpl;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Enqueues a batch of size changes spread over ten quota folders, and optionally drains
+ * them again, for each FolderQuotaUpdateQueue implementation.  The persistent queue runs
+ * against the in-memory AttributeService, so it shows the queue's own overhead rather
+ * than the database's.  The journal writes to a temporary directory and commits every
+ * millisecond in the background instead of waiting for each fsync.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateQueueBenchmark
+{
+	private static final int FOLDERS = 10;
+
+	@Param({ "inMemory", "persistent", "journal" })
+	public String impl;
+
+	@Param({ "100", "1000" })
+	public int events;
+
+	private FolderQuotaUpdateQueue queue;
+	private FolderQuotaUpdateQueueJournalImpl journal;
+	private File journalDirectory;
+	private NodeRef[] folders;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		InMemoryRepository repository = new InMemoryRepository();
+		NodeRef root = repository.createRoot();
+		folders = new NodeRef[FOLDERS];
+		for (int i = 0; i < FOLDERS; i++)
+		{
+			folders[i] = repository.createFolder(root);
+			repository.addQuota(folders[i], Long.MAX_VALUE);
+		}
+
+		FolderUsageCalculator usage = new FolderUsageCalculator();
+		usage.setServiceRegistry(repository.getServiceRegistry());
+
+		if ("inMemory".equals(impl))
+		{
+			FolderQuotaUpdateQueueInMemoryImpl inMemory = new FolderQuotaUpdateQueueInMemoryImpl();
+			inMemory.setFolderUsageCalculator(usage);
+			inMemory.setNodeService(repository.getNodeService());
+			inMemory.setTransactionService(repository.getTransactionService());
+			queue = inMemory;
+		}
+		else if ("persistent".equals(impl))
+		{
+			FolderQuotaUpdateQueuePersistentImpl persistent = new FolderQuotaUpdateQueuePersistentImpl();
+			persistent.setAttributeService(repository.getAttributeService());
+			persistent.setTransactionService(repository.getTransactionService());
+			persistent.setJobLockService(repository.getJobLockService());
+			persistent.setFolderUsageCalculator(usage);
+			queue = persistent;
+		}
+		else
+		{
+			journalDirectory = Files.createTempDirectory("folder-quota-journal").toFile();
+			journal = new FolderQuotaUpdateQueueJournalImpl();
+			journal.setNodeService(repository.getNodeService());
+			journal.setTransactionService(repository.getTransactionService());
+			journal.setAttributeService(repository.getAttributeService());
+			journal.setFolderUsageCalculator(usage);
+			journal.setDirectory(journalDirectory.getAbsolutePath());
+			journal.setSyncCommit(false);
+			journal.setCommitInterval(1L);
+			journal.init();
+			queue = journal;
+		}
+	}
+
+	/**
+	 * Keeps the backlog from growing across iterations of the enqueue-only benchmark
+	 */
+	@TearDown(Level.Iteration)
+	public void drain()
+	{
+		queue.processAllEvents();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		if (journal != null)
+		{
+			journal.destroy();
+			delete(journalDirectory);
+		}
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void enqueueAll()
+	{
+		for (int i = 0; i < events; i++)
+		{
+			queue.enqueueEvent(folders[i % FOLDERS], 1024L);
+		}
+	}
+
+	@Benchmark
+	public void enqueue()
+	{
+		enqueueAll();
+	}
+
+	@Benchmark
+	public void enqueueAndDrain()
+	{
+		enqueueAll();
+		queue.processAllEvents();
+	}
+}
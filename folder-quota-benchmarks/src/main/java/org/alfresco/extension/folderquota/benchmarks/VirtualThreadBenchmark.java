@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Benchmark of size updates on virtual threads against the platform thread pool
+ */
+package org.alfresco.extension.folderquota.benchmarks;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.VirtualThreadExecutor;
+import org.alfresco.extension.folderquota.behaviour.FolderSizeUpdateExecutor;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A burst of committed transactions handed to the update executor, timed until every one
+ * has been written.  Each write waits writeLatency microseconds, as it would on the
+ * database.  Both modes let the same number of writes run at once, so the difference is
+ * the cost of the threads themselves.  Sampled, so the percentiles show the tail as well.
+ * On a JVM without virtual threads the virtual mode falls back to the platform pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VirtualThreadBenchmark
+{
+	private static final int CONCURRENCY = 20;
+
+	@Param({ "platform", "virtual" })
+	public String mode;
+
+	@Param({ "100", "1000" })
+	public int burst;
+
+	@Param({ "100", "1000" })
+	public int writeLatency;
+
+	private VirtualThreadExecutor virtualThreads;
+	private FolderSizeUpdateExecutor executor;
+	private LatencyUsageCalculator usage;
+	private Map<NodeRef, Long> changes;
+
+	/**
+	 * Stands in for the database, counting down the burst as it goes
+	 */
+	private static class LatencyUsageCalculator extends FolderUsageCalculator
+	{
+		private final long latencyNanos;
+		private volatile CountDownLatch written;
+
+		LatencyUsageCalculator(long latencyMicros)
+		{
+			this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+		}
+
+		@Override
+		public Map<NodeRef, Long> applySizeChanges(Map<NodeRef, Long> changes, int batchSize)
+		{
+			LockSupport.parkNanos(latencyNanos);
+			written.countDown();
+			return Collections.emptyMap();
+		}
+	}
+
+	@Setup
+	public void setUp()
+	{
+		// the writes never reach a repository, so the folder needs no node behind it
+		changes = Collections.singletonMap(new NodeRef("workspace://SpacesStore/quota-folder"), 1024L);
+
+		virtualThreads = new VirtualThreadExecutor();
+		virtualThreads.setEnabled("virtual".equals(mode));
+		virtualThreads.setMaxConcurrency(CONCURRENCY);
+		virtualThreads.init();
+
+		usage = new LatencyUsageCalculator(writeLatency);
+		executor = new FolderSizeUpdateExecutor();
+		executor.setFolderUsageCalculator(usage);
+		executor.setVirtualThreadExecutor(virtualThreads);
+		executor.setCorePoolSize(CONCURRENCY);
+		executor.setMaximumPoolSize(CONCURRENCY);
+		// room for the whole burst, so none of it is coalesced or run by the caller
+		executor.setQueueCapacity(burst);
+		executor.init();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		executor.destroy();
+		virtualThreads.destroy();
+	}
+
+	@Benchmark
+	public void writeBurst() throws InterruptedException
+	{
+		CountDownLatch written = new CountDownLatch(burst);
+		usage.written = written;
+		for (int i = 0; i < burst; i++)
+		{
+			executor.submit(changes);
+		}
+		written.await();
+	}
+}
@@ -0,0 +1,15 @@
+{
+    "nodeRef": "${nodeRef}",
+    "size": ${size?c},
+    "allowed": ${check.allowed?string("true", "false")},
+<#if check.quotaFolder??>
+    "quotaFolder": "${check.quotaFolder}",
+</#if>
+<#if check.sizeQuota??>
+    "sizeQuota": ${check.sizeQuota?c},
+    "sizeCurrent": ${check.sizeCurrent?c},
+    "remaining": ${check.remaining?c}
+<#else>
+    "remaining": null
+</#if>
+}
@@ -0,0 +1,5 @@
+{
+    "nodeRef": "${nodeRef}",
+    "sizeCurrent": ${sizeCurrent?c},
+    "duration": ${duration?c}
+}
@@ -0,0 +1,26 @@
+--
+-- Title:      Folder quota subtree sizes
+-- Database:   Oracle9
+-- Since:      folder-quota-repo 1.0
+--
+-- Subtree sizes of the folders under a quota, see FolderSubtreeSizeDAO
+--
+
+CREATE TABLE fq_subtree_size
+(
+    folder_id NUMBER(19,0) NOT NULL,
+    byte_count NUMBER(19,0) NOT NULL,
+    PRIMARY KEY (folder_id)
+);
+
+--
+-- Record script finish
+--
+DELETE FROM alf_applied_patch WHERE id = 'patch.db-folderquota-SubtreeSizeTable';
+INSERT INTO alf_applied_patch
+  (id, description, fixes_from_schema, fixes_to_schema, applied_to_schema, target_schema, applied_on_date, applied_to_server, was_executed, succeeded, report)
+  VALUES
+  (
+    'patch.db-folderquota-SubtreeSizeTable', 'Manually executed script upgrade folder quota: fq_subtree_size table',
+    0, 99999, -1, 100000, null, 'UNKNOWN', ${TRUE}, ${TRUE}, 'Script completed'
+  );
@@ -0,0 +1,27 @@
+--
+-- Title:      Folder quota usage counters
+-- Database:   SQLServer
+-- Since:      folder-quota-repo 1.0
+--
+-- Sharded usage counters of the quota folders, see FolderUsageCounterDAO
+--
+
+CREATE TABLE fq_usage_counter
+(
+    folder_id BIGINT NOT NULL,
+    shard INT NOT NULL,
+    byte_count BIGINT NOT NULL,
+    PRIMARY KEY (folder_id, shard)
+);
+
+--
+-- Record script finish
+--
+DELETE FROM alf_applied_patch WHERE id = 'patch.db-folderquota-UsageCounterTable';
+INSERT INTO alf_applied_patch
+  (id, description, fixes_from_schema, fixes_to_schema, applied_to_schema, target_schema, applied_on_date, applied_to_server, was_executed, succeeded, report)
+  VALUES
+  (
+    'patch.db-folderquota-UsageCounterTable', 'Manually executed script upgrade folder quota: fq_usage_counter table',
+    0, 99999, -1, 100000, null, 'UNKNOWN', ${TRUE}, ${TRUE}, 'Script completed'
+  );
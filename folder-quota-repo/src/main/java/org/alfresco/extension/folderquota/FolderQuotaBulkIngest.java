@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Bulk ingest mode, defers quota accounting of uploads to commit
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Switches uploads into bulk mode, for imports and migrations into quota folders.  In bulk
+ * mode the behaviour does no per-node quota work as content is written: it only adds the
+ * bytes to a tally per parent folder.  At commit the tally is resolved to quota folders,
+ * each quota folder gets one admission check against the transaction's total and one
+ * size change, and the nodes written are stamped with their quota folder.  If the total
+ * would take a quota over its limit, the whole transaction is rolled back.
+ * <p>
+ * Bulk mode is scoped either to a transaction, with {@link #begin()} or by binding
+ * {@link FolderQuotaConstants#TXN_KEY_BULK_INGEST} as a transaction resource, or to a
+ * quota folder and everything nested in it, with {@link #beginFolder(NodeRef)} and
+ * {@link #endFolder(NodeRef)}.  Folder scope applies to every transaction on this server
+ * until it is ended, so it should be ended in a finally block.
+ */
+public class FolderQuotaBulkIngest
+{
+	private final ConcurrentMap<NodeRef, AtomicInteger> bulkFolders = new ConcurrentHashMap<NodeRef, AtomicInteger>();
+
+	/**
+	 * Puts the current transaction in bulk mode, from now until it commits or
+	 * {@link #end()} is called
+	 */
+	public void begin()
+	{
+		AlfrescoTransactionSupport.bindResource(FolderQuotaConstants.TXN_KEY_BULK_INGEST, Boolean.TRUE);
+	}
+
+	/**
+	 * Takes the current transaction out of bulk mode.  Uploads already tallied are still
+	 * accounted at commit.
+	 */
+	public void end()
+	{
+		AlfrescoTransactionSupport.unbindResource(FolderQuotaConstants.TXN_KEY_BULK_INGEST);
+	}
+
+	/**
+	 * @return whether the current transaction is in bulk mode
+	 */
+	public boolean isTransactionBulk()
+	{
+		return Boolean.TRUE.equals(AlfrescoTransactionSupport.getResource(FolderQuotaConstants.TXN_KEY_BULK_INGEST));
+	}
+
+	/**
+	 * Puts a quota folder, and the quota folders nested in it, in bulk mode.  Calls nest,
+	 * so concurrent imports into the same folder each begin and end their own scope.
+	 *
+	 * @param quotaFolder
+	 */
+	public synchronized void beginFolder(NodeRef quotaFolder)
+	{
+		AtomicInteger count = bulkFolders.get(quotaFolder);
+		if (count == null)
+		{
+			count = new AtomicInteger();
+			bulkFolders.put(quotaFolder, count);
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Ends a scope started with {@link #beginFolder(NodeRef)}
+	 *
+	 * @param quotaFolder
+	 */
+	public synchronized void endFolder(NodeRef quotaFolder)
+	{
+		AtomicInteger count = bulkFolders.get(quotaFolder);
+		if (count != null && count.decrementAndGet() <= 0)
+		{
+			bulkFolders.remove(quotaFolder);
+		}
+	}
+
+	/**
+	 * @return whether any quota folder is in bulk mode
+	 */
+	public boolean hasBulkFolders()
+	{
+		return !bulkFolders.isEmpty();
+	}
+
+	/**
+	 * @param quotaFolder
+	 * @return whether the quota folder itself is in bulk mode
+	 */
+	public boolean isFolderBulk(NodeRef quotaFolder)
+	{
+		AtomicInteger count = bulkFolders.get(quotaFolder);
+		return count != null && count.get() > 0;
+	}
+}
@@ -36,7 +36,21 @@ public interface FolderQuotaConstants {
     public static final QName PROP_FQ_SIZE_QUOTA =       QName.createQName(FOLDER_QUOTA_MODEL_1_0_URI, "sizeQuota");
     public static final QName PROP_FQ_SIZE_CURRENT =     QName.createQName(FOLDER_QUOTA_MODEL_1_0_URI, "sizeCurrent");
 
-    public static final String QUOTA_JOB_MODE_RECALCULATE = "recalcultate";
+    public static final QName ASPECT_FQ_IN_QUOTA =       QName.createQName(FOLDER_QUOTA_MODEL_1_0_URI, "inQuota");
+
+    public static final QName PROP_FQ_MANAGED_FOLDER =   QName.createQName(FOLDER_QUOTA_MODEL_1_0_URI, "managedFolder");
+
+    public static final String QUOTA_JOB_MODE_RECALCULATE = "recalculate";
     public static final String QUOTA_JOB_MODE_INCREMENTAL = "incremental";
+    public static final String QUOTA_JOB_MODE_RESTAMP = "restamp";
+    public static final String QUOTA_JOB_MODE_RECONCILE = "reconcile";
+    public static final String QUOTA_JOB_MODE_SYNC_USAGE = "syncUsage";
+
+    // Transaction resource flag, bind Boolean.TRUE to account the transaction's uploads in bulk
+    public static final String TXN_KEY_BULK_INGEST = "org.alfresco.extension.folderquota.bulkIngest";
+
+    // Folder sizing strategies
+    public static final String SIZING_STRATEGY_NODE_WALK = "nodeWalk";
+    public static final String SIZING_STRATEGY_DB_AGGREGATE = "dbAggregate";
 
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Thrown when a content write would take a folder over its quota
+ */
+package org.alfresco.extension.folderquota;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Thrown from the content write that would take a quota folder over its limit.  It rolls
+ * back the writer's transaction and tells the client which quota refused the write.
+ */
+public class FolderQuotaExceededException extends AlfrescoRuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final String MSG_QUOTA_EXCEEDED = "fq_folderquota.error.quotaExceeded";
+
+	private final NodeRef quotaFolder;
+	private final long sizeQuota;
+	private final long sizeCurrent;
+	private final long attempted;
+
+	/**
+	 * @param quotaFolder the quota folder that refused the write
+	 * @param sizeQuota its limit in bytes
+	 * @param sizeCurrent its usage in bytes, including writes in flight
+	 * @param attempted bytes the write would have added
+	 */
+	public FolderQuotaExceededException(NodeRef quotaFolder, long sizeQuota, long sizeCurrent, long attempted)
+	{
+		super(MSG_QUOTA_EXCEEDED, new Object[] {attempted, quotaFolder, sizeCurrent, sizeQuota});
+		this.quotaFolder = quotaFolder;
+		this.sizeQuota = sizeQuota;
+		this.sizeCurrent = sizeCurrent;
+		this.attempted = attempted;
+	}
+
+	public NodeRef getQuotaFolder()
+	{
+		return quotaFolder;
+	}
+
+	public long getSizeQuota()
+	{
+		return sizeQuota;
+	}
+
+	public long getSizeCurrent()
+	{
+		return sizeCurrent;
+	}
+
+	public long getAttempted()
+	{
+		return attempted;
+	}
+}
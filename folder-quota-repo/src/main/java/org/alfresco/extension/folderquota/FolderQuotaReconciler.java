@@ -0,0 +1,677 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Scheduled reconciliation of quota folder usage
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.extension.folderquota.behaviour.FolderQuotaUpdateQueue;
+import org.alfresco.extension.folderquota.behaviour.FolderSizeUpdateExecutor;
+import org.alfresco.extension.folderquota.behaviour.FolderSizeWriteBehind;
+import org.alfresco.extension.folderquota.counter.QuotaCounterStore;
+import org.alfresco.extension.folderquota.metrics.FolderQuotaMetrics;
+import org.alfresco.extension.folderquota.metrics.FolderQuotaMetrics.Metric;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds quota folders whose fq:sizeCurrent has drifted from their real size and corrects
+ * them, without taking the repository offline.
+ * <p>
+ * Each run re-sizes a slice of the quota folders, carrying on after the last folder the
+ * previous run reached and wrapping round at the end, so every folder is checked in turn
+ * and no run has to size them all.  The position is kept in the AttributeService, so it
+ * survives restarts and is shared by the cluster; only one server runs at a time.  A run
+ * sizes up to parallelism folders at once and stops starting new ones once
+ * maxFoldersPerRun have been started or its time budget is spent.
+ * <p>
+ * A folder's drift is its real size less what it is expected to be: the stored usage
+ * plus the changes this server has not written yet, in the write-behind stage, the
+ * update executor and the update queue, plus those the other servers have published
+ * through the counter store, if it is shared by the cluster.  The expected usage is read
+ * before and after the folder is sized; if it moved, a change committed during the
+ * sizing and may or may not have been counted, so the folder is left for the next run.
+ * The other servers' changes are only as fresh as their last publish, and are not seen
+ * at all with a local counter store, so drift beyond the threshold is only corrected
+ * once the next check of the folder finds about the same drift again; it is kept in the
+ * AttributeService meanwhile.  The correction is the smaller of the two
+ * drifts and is applied as a delta, like any other size change, so changes written while
+ * it is made are kept.
+ */
+public class FolderQuotaReconciler
+{
+	private static Log logger = LogFactory.getLog(FolderQuotaReconciler.class);
+
+	private static final String RECONCILE_NAME_SPACE = "..FOLDER_QUOTA_RECONCILE..";
+	private static final String CURSOR_KEY = "cursor";
+	private static final String DRIFT_KEY = "drift";
+	private static final QName LOCK_QNAME = QName.createQName(FolderQuotaConstants.FOLDER_QUOTA_MODEL_1_0_URI, "reconcile");
+	private static final long LOCK_TTL = 60000L;
+
+	private NodeService nodeService;
+	private AttributeService attributeService;
+	private TransactionService transactionService;
+	private JobLockService jobLockService;
+	private FolderUsageCalculator usage;
+	private QuotaReservationLedger ledger;
+	private FolderSizeWriteBehind writeBehind;
+	private FolderSizeUpdateExecutor updateExecutor;
+	private FolderQuotaUpdateQueue queue;
+	private QuotaCounterStore counterStore;
+	private FolderQuotaMetrics metrics = new FolderQuotaMetrics();
+	private int maxFoldersPerRun = 100;
+	private long timeBudget = 60000L;
+	private int parallelism = 2;
+	private long driftThreshold = 1048576L;
+	private ExecutorService workers;
+
+	private final AtomicLong foldersChecked = new AtomicLong();
+	private final AtomicLong foldersCorrected = new AtomicLong();
+	private final AtomicLong foldersFailed = new AtomicLong();
+	private final AtomicLong correctedBytes = new AtomicLong();
+	private final AtomicLong maxDrift = new AtomicLong();
+	private volatile int lastRunChecked;
+	private volatile int lastRunCorrected;
+	private volatile long lastRunDuration;
+
+	/**
+	 * Keeps the job lock while the run is going, and tells the run if it is lost
+	 */
+	private static class LockCallback implements JobLockRefreshCallback
+	{
+		private volatile boolean running = true;
+
+		public boolean isActive()
+		{
+			return running;
+		}
+
+		public void lockReleased()
+		{
+			running = false;
+		}
+	}
+
+	public void init()
+	{
+		workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "FolderQuotaReconciler-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void destroy()
+	{
+		if (workers != null)
+		{
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Checks the next slice of quota folders and corrects those that have drifted
+	 *
+	 * @return the number of folders checked
+	 */
+	public int reconcile()
+	{
+		final String lockToken;
+		try
+		{
+			lockToken = jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+		}
+		catch (LockAcquisitionException e)
+		{
+			logger.debug("[FolderQuota] - Reconciliation already running elsewhere");
+			return 0;
+		}
+		final LockCallback lock = new LockCallback();
+		try
+		{
+			jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL, lock);
+			return AuthenticationUtil.runAs(new RunAsWork<Integer>()
+			{
+				public Integer doWork() throws Exception
+				{
+					return reconcileSlice(lock);
+				}
+			}, AuthenticationUtil.getSystemUserName());
+		}
+		finally
+		{
+			lock.running = false;
+			jobLockService.releaseLock(lockToken, LOCK_QNAME);
+		}
+	}
+
+	private int reconcileSlice(LockCallback lock) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		long deadline = start + timeBudget;
+
+		//changes still on the update queue would show up as drift
+		usage.incremental();
+
+		List<NodeRef> folders = usage.getQuotaFolders();
+		if (folders.isEmpty())
+		{
+			return 0;
+		}
+		Collections.sort(folders, new Comparator<NodeRef>()
+		{
+			public int compare(NodeRef a, NodeRef b)
+			{
+				return a.toString().compareTo(b.toString());
+			}
+		});
+		int first = firstAfter(folders, getCursor());
+		int slice = Math.min(maxFoldersPerRun, folders.size());
+
+		CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(workers);
+		int started = 0;
+		int running = 0;
+		int checked = 0;
+		int corrected = 0;
+		NodeRef last = null;
+		while (true)
+		{
+			if (running < parallelism && started < slice && lock.isActive() && System.currentTimeMillis() < deadline)
+			{
+				final NodeRef folder = folders.get((first + started) % folders.size());
+				completion.submit(new Callable<Boolean>()
+				{
+					public Boolean call() throws Exception
+					{
+						return AuthenticationUtil.runAs(new RunAsWork<Boolean>()
+						{
+							public Boolean doWork() throws Exception
+							{
+								return reconcileFolder(folder);
+							}
+						}, AuthenticationUtil.getSystemUserName());
+					}
+				});
+				last = folder;
+				started++;
+				running++;
+				continue;
+			}
+			if (running == 0)
+			{
+				break;
+			}
+			try
+			{
+				Boolean result = completion.take().get();
+				if (result != null)
+				{
+					checked++;
+					if (result)
+					{
+						corrected++;
+					}
+				}
+			}
+			catch (ExecutionException e)
+			{
+				foldersFailed.incrementAndGet();
+				logger.error("[FolderQuota] - Failed to reconcile a quota folder", e.getCause());
+			}
+			running--;
+		}
+		//folders in flight when the lock was lost were still finished, so the cursor is right
+		if (last != null)
+		{
+			setCursor(last.toString());
+		}
+
+		lastRunChecked = checked;
+		lastRunCorrected = corrected;
+		lastRunDuration = System.currentTimeMillis() - start;
+		logger.info(String.format("[FolderQuota] - Reconciled %s of %s quota folders in %sms, corrected %s",
+				checked, folders.size(), lastRunDuration, corrected));
+		return checked;
+	}
+
+	/**
+	 * @return index of the first folder after the cursor, 0 to start again from the top
+	 */
+	private static int firstAfter(List<NodeRef> folders, String cursor)
+	{
+		if (cursor == null)
+		{
+			return 0;
+		}
+		for (int i = 0; i < folders.size(); i++)
+		{
+			if (folders.get(i).toString().compareTo(cursor) > 0)
+			{
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Sizes one quota folder and corrects its usage if it has drifted too far on two
+	 * checks in a row
+	 *
+	 * @return whether it was corrected, null if the folder is gone or no longer has a quota
+	 */
+	private Boolean reconcileFolder(final NodeRef folder)
+	{
+		long start = metrics.start();
+		try
+		{
+			Long before = getExpectedUsage(folder);
+			if (before == null)
+			{
+				setDrift(folder, null);
+				return null;
+			}
+			long actual = usage.calculateSubtreeSize(folder);
+			Long expected = getExpectedUsage(folder);
+			if (expected == null)
+			{
+				setDrift(folder, null);
+				return null;
+			}
+			foldersChecked.incrementAndGet();
+			if (!expected.equals(before))
+			{
+				if (logger.isDebugEnabled())
+				{
+					logger.debug(String.format("[FolderQuota] - Usage of %s changed while it was sized, leaving it for the next run", folder));
+				}
+				return false;
+			}
+			long drift = actual - expected;
+
+			metrics.record(Metric.RECONCILE_DRIFT, Math.abs(drift));
+			updateMaxDrift(Math.abs(drift));
+			Long previous = getDrift(folder);
+			if (Math.abs(drift) <= driftThreshold)
+			{
+				if (previous != null)
+				{
+					setDrift(folder, null);
+				}
+				if (logger.isDebugEnabled())
+				{
+					logger.debug(String.format("[FolderQuota] - Usage of %s is within the drift threshold: %s expected, %s actual", folder, expected, actual));
+				}
+				return false;
+			}
+			if (previous == null || Long.signum(previous) != Long.signum(drift) || Math.abs(drift - previous) > driftThreshold)
+			{
+				setDrift(folder, drift);
+				if (logger.isDebugEnabled())
+				{
+					logger.debug(String.format("[FolderQuota] - Usage of %s is %s bytes off, correcting if the next run agrees: %s expected, %s actual", folder, drift, expected, actual));
+				}
+				return false;
+			}
+			final long correction = Math.abs(previous) < Math.abs(drift) ? previous : drift;
+
+			if (ledger != null)
+			{
+				ledger.addCommitted(folder, correction);
+			}
+			Map<NodeRef, Long> failed = usage.applySizeChanges(Collections.singletonMap(folder, correction), 1);
+			if (!failed.isEmpty())
+			{
+				if (ledger != null)
+				{
+					ledger.invalidate(folder);
+				}
+				throw new IllegalStateException("Could not correct the usage of quota folder " + folder);
+			}
+			setDrift(folder, null);
+			foldersCorrected.incrementAndGet();
+			correctedBytes.addAndGet(Math.abs(correction));
+			logger.info(String.format("[FolderQuota] - Corrected usage of %s by %s bytes: %s expected, %s actual, %s on the previous run", folder, correction, expected, actual, previous));
+			return true;
+		}
+		catch (InvalidNodeRefException e)
+		{
+			logger.debug("[FolderQuota] - Quota folder " + folder + " was deleted while being reconciled");
+			return null;
+		}
+		finally
+		{
+			metrics.stop(Metric.RECONCILE_FOLDER, start);
+		}
+	}
+
+	/**
+	 * @return stored usage plus the changes not written yet on this server and, as far as
+	 * they are known, on the others; null if the folder is gone or no longer has a quota
+	 */
+	private Long getExpectedUsage(final NodeRef folder)
+	{
+		Long stored = transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>()
+		{
+			public Long execute() throws Throwable
+			{
+				if (!nodeService.exists(folder) || !nodeService.hasAspect(folder, FolderQuotaConstants.ASPECT_FQ_QUOTA))
+				{
+					return null;
+				}
+				return usage.getStoredUsage(folder);
+			}
+		}, true, true);
+		if (stored == null)
+		{
+			return null;
+		}
+		long expected = stored;
+		if (writeBehind != null)
+		{
+			expected += writeBehind.getPendingDelta(folder);
+		}
+		if (updateExecutor != null)
+		{
+			expected += updateExecutor.getPendingDelta(folder);
+		}
+		if (queue != null)
+		{
+			expected += queue.getPendingDelta(folder);
+		}
+		if (counterStore != null)
+		{
+			expected += counterStore.getOtherServersDelta(folder);
+		}
+		return expected;
+	}
+
+	/**
+	 * @return drift found by the previous check of the folder and not corrected yet
+	 */
+	private Long getDrift(final NodeRef folder)
+	{
+		return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>()
+		{
+			public Long execute() throws Throwable
+			{
+				return (Long) attributeService.getAttribute(RECONCILE_NAME_SPACE, DRIFT_KEY, folder.toString());
+			}
+		}, true, true);
+	}
+
+	private void setDrift(final NodeRef folder, final Long drift)
+	{
+		transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+		{
+			public Void execute() throws Throwable
+			{
+				if (drift == null)
+				{
+					attributeService.removeAttribute(RECONCILE_NAME_SPACE, DRIFT_KEY, folder.toString());
+				}
+				else
+				{
+					attributeService.setAttribute(drift, RECONCILE_NAME_SPACE, DRIFT_KEY, folder.toString());
+				}
+				return null;
+			}
+		}, false, true);
+	}
+
+	private void updateMaxDrift(long drift)
+	{
+		long current;
+		do
+		{
+			current = maxDrift.get();
+		}
+		while (drift > current && !maxDrift.compareAndSet(current, drift));
+	}
+
+	private String getCursor()
+	{
+		return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<String>()
+		{
+			public String execute() throws Throwable
+			{
+				return (String) attributeService.getAttribute(RECONCILE_NAME_SPACE, CURSOR_KEY);
+			}
+		}, true, true);
+	}
+
+	private void setCursor(final String cursor)
+	{
+		transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+		{
+			public Void execute() throws Throwable
+			{
+				attributeService.setAttribute(cursor, RECONCILE_NAME_SPACE, CURSOR_KEY);
+				return null;
+			}
+		}, false, true);
+	}
+
+	/**
+	 * @return quota folders checked since startup
+	 */
+	public long getFoldersChecked()
+	{
+		return foldersChecked.get();
+	}
+
+	/**
+	 * @return quota folders whose usage was corrected since startup
+	 */
+	public long getFoldersCorrected()
+	{
+		return foldersCorrected.get();
+	}
+
+	/**
+	 * @return quota folders that could not be sized or corrected since startup
+	 */
+	public long getFoldersFailed()
+	{
+		return foldersFailed.get();
+	}
+
+	/**
+	 * @return total drift corrected since startup, in bytes either way
+	 */
+	public long getCorrectedBytes()
+	{
+		return correctedBytes.get();
+	}
+
+	/**
+	 * @return largest drift seen since startup, corrected or not
+	 */
+	public long getMaxDrift()
+	{
+		return maxDrift.get();
+	}
+
+	public int getLastRunChecked()
+	{
+		return lastRunChecked;
+	}
+
+	public int getLastRunCorrected()
+	{
+		return lastRunCorrected;
+	}
+
+	public long getLastRunDuration()
+	{
+		return lastRunDuration;
+	}
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setAttributeService(AttributeService attributeService)
+	{
+		this.attributeService = attributeService;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	public void setJobLockService(JobLockService jobLockService)
+	{
+		this.jobLockService = jobLockService;
+	}
+
+	public void setFolderUsageCalculator(FolderUsageCalculator usage)
+	{
+		this.usage = usage;
+	}
+
+	/**
+	 * Sets the reservation ledger, told about corrections so uploads are admitted against
+	 * the corrected usage
+	 *
+	 * @param ledger
+	 */
+	public void setQuotaReservationLedger(QuotaReservationLedger ledger)
+	{
+		this.ledger = ledger;
+	}
+
+	/**
+	 * Sets the write-behind stage, whose unflushed changes are not drift
+	 *
+	 * @param writeBehind
+	 */
+	public void setWriteBehind(FolderSizeWriteBehind writeBehind)
+	{
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * Sets the update executor, whose unwritten changes are not drift
+	 *
+	 * @param updateExecutor
+	 */
+	public void setUpdateExecutor(FolderSizeUpdateExecutor updateExecutor)
+	{
+		this.updateExecutor = updateExecutor;
+	}
+
+	/**
+	 * Sets the update queue, whose unapplied changes are not drift
+	 *
+	 * @param queue
+	 */
+	public void setFolderQuotaUpdateQueue(FolderQuotaUpdateQueue queue)
+	{
+		this.queue = queue;
+	}
+
+	/**
+	 * Sets the counter store, whose record of other servers' unwritten changes is not drift
+	 *
+	 * @param counterStore
+	 */
+	public void setQuotaCounterStore(QuotaCounterStore counterStore)
+	{
+		this.counterStore = counterStore;
+	}
+
+	public void setFolderQuotaMetrics(FolderQuotaMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Maximum number of quota folders checked per run
+	 *
+	 * @param maxFoldersPerRun
+	 */
+	public void setMaxFoldersPerRun(int maxFoldersPerRun)
+	{
+		this.maxFoldersPerRun = maxFoldersPerRun;
+	}
+
+	/**
+	 * Milliseconds after which a run starts no more folders; folders already being sized
+	 * are finished
+	 *
+	 * @param timeBudget
+	 */
+	public void setTimeBudget(long timeBudget)
+	{
+		this.timeBudget = timeBudget;
+	}
+
+	/**
+	 * Number of quota folders sized at once
+	 *
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Drift in bytes, either way, above which a folder's usage is corrected.  Two checks
+	 * in a row must find drifts this far out that are within this of each other.
+	 *
+	 * @param driftThreshold
+	 */
+	public void setDriftThreshold(long driftThreshold)
+	{
+		this.driftThreshold = driftThreshold;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Answers whether an upload of a given size would fit in a folder's quotas
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.List;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+
+/**
+ * Checks a declared upload size against every quota the target folder is nested in,
+ * before any content is sent.  Quota folders and limits come from the resolver's cache
+ * and usage from the reservation ledger (the stored usage without one), so a check costs
+ * no tree walk.  For a new version of a document only the change in size counts, since
+ * the old content's size is already in the usage.  The answer is advisory: the upload is
+ * still admitted for real when its content is written.
+ */
+public class FolderQuotaService
+{
+	private NodeService nodeService;
+	private FolderUsageCalculator usage;
+	private QuotaAncestorResolver resolver;
+	private QuotaReservationLedger ledger;
+
+	/**
+	 * Result of a check.  When the target is not under any quota only allowed is set.
+	 */
+	public static class QuotaCheck
+	{
+		private final boolean allowed;
+		private final NodeRef quotaFolder;
+		private final Long sizeQuota;
+		private final Long sizeCurrent;
+
+		QuotaCheck(boolean allowed, NodeRef quotaFolder, Long sizeQuota, Long sizeCurrent)
+		{
+			this.allowed = allowed;
+			this.quotaFolder = quotaFolder;
+			this.sizeQuota = sizeQuota;
+			this.sizeCurrent = sizeCurrent;
+		}
+
+		public boolean isAllowed()
+		{
+			return allowed;
+		}
+
+		/**
+		 * @return the quota folder with the least space left, or null if no quota applies
+		 */
+		public NodeRef getQuotaFolder()
+		{
+			return quotaFolder;
+		}
+
+		public Long getSizeQuota()
+		{
+			return sizeQuota;
+		}
+
+		public Long getSizeCurrent()
+		{
+			return sizeCurrent;
+		}
+
+		/**
+		 * @return bytes left in the quota folder with the least space, or null if unlimited
+		 */
+		public Long getRemaining()
+		{
+			return sizeQuota == null ? null : Math.max(0L, sizeQuota - sizeCurrent);
+		}
+	}
+
+	/**
+	 * Must be called in a transaction
+	 *
+	 * @param target the folder (or document, for a new version) being uploaded to
+	 * @param size declared size of the upload in bytes
+	 * @return whether the upload fits, and the quota folder with the least space left
+	 */
+	public QuotaCheck check(NodeRef target, long size)
+	{
+		NodeRef quotaFolder = usage.getParentFolderWithQuota(target);
+		if (quotaFolder == null)
+		{
+			return new QuotaCheck(true, null, null, null);
+		}
+		long change = getSizeChange(target, size);
+
+		NodeRef tightest = null;
+		Long tightestQuota = null;
+		Long tightestUsage = null;
+		List<NodeRef> chain = resolver.getQuotaChain(quotaFolder);
+		for (NodeRef level : chain)
+		{
+			Long limit = resolver.getQuotaLimit(level);
+			if (limit == null)
+			{
+				continue;
+			}
+			long used = getUsage(level);
+			if (tightest == null || limit - used < tightestQuota - tightestUsage)
+			{
+				tightest = level;
+				tightestQuota = limit;
+				tightestUsage = used;
+			}
+		}
+		if (tightest == null)
+		{
+			return new QuotaCheck(true, quotaFolder, null, null);
+		}
+		return new QuotaCheck(change <= 0L || tightestUsage + change <= tightestQuota, tightest, tightestQuota, tightestUsage);
+	}
+
+	/**
+	 * @return the declared size, less the current content size if the target is a document
+	 */
+	private long getSizeChange(NodeRef target, long size)
+	{
+		ContentData content = (ContentData) nodeService.getProperty(target, ContentModel.PROP_CONTENT);
+		return content == null ? size : size - content.getSize();
+	}
+
+	private long getUsage(NodeRef quotaFolder)
+	{
+		if (ledger != null)
+		{
+			return ledger.getUsage(quotaFolder);
+		}
+		return usage.getStoredUsage(quotaFolder);
+	}
+
+	/**
+	 * Should be the non-permission-checked node service
+	 *
+	 * @param nodeService
+	 */
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setFolderUsageCalculator(FolderUsageCalculator usage)
+	{
+		this.usage = usage;
+	}
+
+	public void setQuotaAncestorResolver(QuotaAncestorResolver resolver)
+	{
+		this.resolver = resolver;
+	}
+
+	public void setQuotaReservationLedger(QuotaReservationLedger ledger)
+	{
+		this.ledger = ledger;
+	}
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Maintains the fq:inQuota aspect (fq:managedFolder) on nodes inside quota folders
+ */
+package org.alfresco.extension.folderquota;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.cache.DefaultSimpleCache;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stamps fq:managedFolder on the nodes below a quota folder, so the quota folder of a
+ * node is a single property read.
+ * <p>
+ * Single nodes are stamped inline as content enters a quota tree.  Whole subtrees (when
+ * fq:quota is added or removed, or a folder is moved) are restamped in the background:
+ * the folders still to do are kept in the AttributeService, and each page of children is
+ * stamped in its own transaction.  A folder is only taken off the list once all of its
+ * children are done and its subfolders are on the list, so the work picks up where it
+ * left off after a restart and never holds a large subtree in one transaction.
+ * <p>
+ * Every change that makes stamps stale also starts a new generation of the quota layout
+ * (see {@link QuotaAncestorResolver}).  When a run finds the list empty it records the
+ * generation it has caught up with, and stamps are only trusted while that is still the
+ * current generation.  The recorded generation is cached in the same cluster-invalidated
+ * cache as the current one.
+ */
+public class FolderQuotaStamper
+{
+	private static Log logger = LogFactory.getLog(FolderQuotaStamper.class);
+
+	private static final String RESTAMP_NAME_SPACE = "..FOLDER_QUOTA_RESTAMP..";
+	private static final String RESTAMPED_NAME_SPACE = "..FOLDER_QUOTA_RESTAMPED..";
+	private static final String RESTAMPED_KEY = "restamped";
+	/** Never a layout generation, so stamps are not trusted before the first complete run */
+	private static final String NOT_RESTAMPED = "-";
+	private static final QName LOCK_QNAME = QName.createQName(FolderQuotaConstants.FOLDER_QUOTA_MODEL_1_0_URI, "restamp");
+	private static final long LOCK_TTL = 60000L;
+
+	private NodeService nodeService;
+	private FileFolderService fileFolderService;
+	private AttributeService attributeService;
+	private TransactionService transactionService;
+	private BehaviourFilter behaviourFilter;
+	private JobLockService jobLockService;
+	private QuotaAncestorResolver resolver;
+	private SimpleCache<String, String> generations;
+	private int pageSize = 500;
+	private int maxFoldersPerRun = 1000;
+
+	private final TransactionListenerAdapter restampedAfterCommit = new TransactionListenerAdapter()
+	{
+		@Override
+		public void afterCommit()
+		{
+			generations.remove(RESTAMPED_KEY);
+		}
+	};
+
+	/**
+	 * Creates a local generation cache if none has been set
+	 */
+	public void init()
+	{
+		if (generations == null)
+		{
+			generations = new DefaultSimpleCache<String, String>(1, "folderQuotaRestampedGenerationCache");
+		}
+	}
+
+	/**
+	 * Must be called in a transaction
+	 *
+	 * @return whether the stamps have caught up with the current quota layout, so a
+	 * node's fq:managedFolder can be used instead of looking its quota folder up
+	 */
+	public boolean isRestampDone()
+	{
+		String generation = resolver.getGeneration();
+		if (generation == null)
+		{
+			return false;
+		}
+		String restamped = generations.get(RESTAMPED_KEY);
+		if (restamped == null)
+		{
+			restamped = (String) attributeService.getAttribute(RESTAMPED_NAME_SPACE, RESTAMPED_KEY);
+			if (restamped == null)
+			{
+				restamped = NOT_RESTAMPED;
+			}
+			generations.put(RESTAMPED_KEY, restamped);
+		}
+		return generation.equals(restamped);
+	}
+
+	/**
+	 * Stamps a single node with the quota folder it is charged to, or removes the stamp
+	 * if it is no longer in a quota tree.  Does nothing if the stamp is already right.
+	 * Must be called in a read-write transaction.
+	 *
+	 * @param nodeRef
+	 * @param quotaFolder the quota folder, or null
+	 */
+	public void stamp(NodeRef nodeRef, NodeRef quotaFolder)
+	{
+		NodeRef current = (NodeRef) nodeService.getProperty(nodeRef, FolderQuotaConstants.PROP_FQ_MANAGED_FOLDER);
+		stamp(nodeRef, current, quotaFolder);
+	}
+
+	private void stamp(NodeRef nodeRef, NodeRef current, NodeRef quotaFolder)
+	{
+		if (quotaFolder == null ? current == null : quotaFolder.equals(current))
+		{
+			return;
+		}
+		behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+		try
+		{
+			if (quotaFolder == null)
+			{
+				nodeService.removeAspect(nodeRef, FolderQuotaConstants.ASPECT_FQ_IN_QUOTA);
+			}
+			else
+			{
+				Map<QName, Serializable> props = new HashMap<QName, Serializable>(1);
+				props.put(FolderQuotaConstants.PROP_FQ_MANAGED_FOLDER, quotaFolder);
+				nodeService.addAspect(nodeRef, FolderQuotaConstants.ASPECT_FQ_IN_QUOTA, props);
+			}
+		}
+		finally
+		{
+			behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+		}
+	}
+
+	/**
+	 * Puts a folder on the list to have its subtree restamped.  Called in the same
+	 * transaction as the change that made the stamps stale, so the two commit together.
+	 *
+	 * @param folder
+	 */
+	public void enqueueSubtree(NodeRef folder)
+	{
+		attributeService.setAttribute(Boolean.TRUE, RESTAMP_NAME_SPACE, folder.toString());
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("[FolderQuota] - Queued subtree of " + folder + " for restamping");
+		}
+	}
+
+	/**
+	 * Works through the pending folders, at most maxFoldersPerRun of them.  Only one
+	 * server in a cluster does this at a time.
+	 *
+	 * @return the number of folders completed
+	 */
+	public int processPending()
+	{
+		final String lockToken;
+		try
+		{
+			lockToken = jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+		}
+		catch (LockAcquisitionException e)
+		{
+			logger.debug("[FolderQuota] - Restamp already running elsewhere");
+			return 0;
+		}
+		try
+		{
+			return AuthenticationUtil.runAs(new RunAsWork<Integer>()
+			{
+				public Integer doWork() throws Exception
+				{
+					int done = 0;
+					while (done < maxFoldersPerRun)
+					{
+						List<String> folders = nextFolders(Math.min(pageSize, maxFoldersPerRun - done));
+						if (folders.isEmpty())
+						{
+							break;
+						}
+						for (String folder : folders)
+						{
+							restampFolder(new NodeRef(folder));
+							jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+							done++;
+						}
+					}
+					if (done > 0)
+					{
+						logger.info(String.format("[FolderQuota] - Restamped %s folders", done));
+					}
+					if (done < maxFoldersPerRun)
+					{
+						markRestamped();
+					}
+					return done;
+				}
+			}, AuthenticationUtil.getSystemUserName());
+		}
+		finally
+		{
+			jobLockService.releaseLock(lockToken, LOCK_QNAME);
+		}
+	}
+
+	/**
+	 * Records the current layout generation as restamped if nothing is left to do.  The
+	 * generation is read before the list, so a change committing in between leaves the
+	 * older generation recorded, which is simply not trusted.
+	 */
+	private void markRestamped()
+	{
+		transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+		{
+			public Void execute() throws Throwable
+			{
+				String generation = resolver.getGeneration();
+				if (generation == null || !nextFolders(1).isEmpty() || generation.equals(attributeService.getAttribute(RESTAMPED_NAME_SPACE, RESTAMPED_KEY)))
+				{
+					return null;
+				}
+				attributeService.setAttribute(generation, RESTAMPED_NAME_SPACE, RESTAMPED_KEY);
+				AlfrescoTransactionSupport.bindListener(restampedAfterCommit);
+				logger.debug("[FolderQuota] - Stamps have caught up with quota layout generation " + generation);
+				return null;
+			}
+		}, false, true);
+	}
+
+	private List<String> nextFolders(final int max)
+	{
+		return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<List<String>>()
+		{
+			public List<String> execute() throws Throwable
+			{
+				final List<String> folders = new ArrayList<String>(max);
+				attributeService.getAttributes(new AttributeService.AttributeQueryCallback()
+				{
+					public boolean handleAttribute(Long id, Serializable value, Serializable[] keys)
+					{
+						folders.add((String) keys[1]);
+						return folders.size() < max;
+					}
+				}, RESTAMP_NAME_SPACE);
+				return folders;
+			}
+		}, true, false);
+	}
+
+	/**
+	 * Stamps the children of one folder, a page per transaction, queueing subfolders as
+	 * it goes.  Subtrees of nested quota folders are left alone, they are stamped against
+	 * their own quota folder.
+	 */
+	private void restampFolder(final NodeRef folder)
+	{
+		RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+		final boolean[] exists = new boolean[1];
+		final NodeRef quotaFolder = txnHelper.doInTransaction(new RetryingTransactionCallback<NodeRef>()
+		{
+			public NodeRef execute() throws Throwable
+			{
+				exists[0] = nodeService.exists(folder);
+				return exists[0] ? resolver.getQuotaAncestor(folder) : null;
+			}
+		}, true, false);
+
+		int skip = 0;
+		boolean more = exists[0];
+		try
+		{
+			while (more)
+			{
+				final int pageStart = skip;
+				more = txnHelper.doInTransaction(new RetryingTransactionCallback<Boolean>()
+				{
+					public Boolean execute() throws Throwable
+					{
+						PagingResults<FileInfo> page = fileFolderService.list(folder, true, true, null, null, new PagingRequest(pageStart, pageSize));
+						for (FileInfo child : page.getPage())
+						{
+							NodeRef childRef = child.getNodeRef();
+							if (child.isFolder() && nodeService.hasAspect(childRef, FolderQuotaConstants.ASPECT_FQ_QUOTA))
+							{
+								continue;
+							}
+							stamp(childRef, (NodeRef) child.getProperties().get(FolderQuotaConstants.PROP_FQ_MANAGED_FOLDER), quotaFolder);
+							if (child.isFolder())
+							{
+								enqueueSubtree(childRef);
+							}
+						}
+						return page.hasMoreItems();
+					}
+				}, false, true);
+				skip += pageSize;
+			}
+		}
+		catch (InvalidNodeRefException e)
+		{
+			logger.debug("[FolderQuota] - Folder " + folder + " was deleted while being restamped");
+		}
+
+		txnHelper.doInTransaction(new RetryingTransactionCallback<Void>()
+		{
+			public Void execute() throws Throwable
+			{
+				attributeService.removeAttribute(RESTAMP_NAME_SPACE, folder.toString());
+				return null;
+			}
+		}, false, true);
+	}
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setFileFolderService(FileFolderService fileFolderService)
+	{
+		this.fileFolderService = fileFolderService;
+	}
+
+	public void setAttributeService(AttributeService attributeService)
+	{
+		this.attributeService = attributeService;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	public void setBehaviourFilter(BehaviourFilter behaviourFilter)
+	{
+		this.behaviourFilter = behaviourFilter;
+	}
+
+	public void setJobLockService(JobLockService jobLockService)
+	{
+		this.jobLockService = jobLockService;
+	}
+
+	public void setQuotaAncestorResolver(QuotaAncestorResolver resolver)
+	{
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Sets the cache of the restamped generation; the quota layout generation cache,
+	 * invalidated across the cluster
+	 *
+	 * @param generations
+	 */
+	public void setGenerationCache(SimpleCache<String, String> generations)
+	{
+		this.generations = generations;
+	}
+
+	/**
+	 * Number of children stamped per transaction
+	 *
+	 * @param pageSize
+	 */
+	public void setPageSize(int pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Maximum number of folders restamped per job run
+	 *
+	 * @param maxFoldersPerRun
+	 */
+	public void setMaxFoldersPerRun(int maxFoldersPerRun)
+	{
+		this.maxFoldersPerRun = maxFoldersPerRun;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Materialized subtree sizes of the folders under a quota
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.extension.folderquota.behaviour.FolderSizeWriteBehind;
+import org.alfresco.extension.folderquota.db.FolderSubtreeSizeDAO;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+
+/**
+ * Keeps the total content size below each folder under a quota, so deleting or moving a
+ * folder costs one lookup instead of a walk of its subtree.  Sizes are kept in the
+ * fq_subtree_size table, one row per folder, rather than as node properties, so keeping
+ * them up to date does not touch the folder nodes, and a change is added by the database
+ * in one update, so concurrent writers do not lose each other's changes.
+ * <p>
+ * An entry is created whenever the parallel sizing engine sizes a subtree (for every
+ * folder in it), so recalculation and reconciliation also create and refresh the entries.
+ * Changes reach the entries through the same pipeline as fq:sizeCurrent: the behaviour
+ * records a delta for every folder between a changed node and its outermost quota
+ * folder, and the delta is added to the folder's entry when the change is written.
+ * Deltas for folders without an entry, e.g. folders created since the last sizing, are
+ * dropped; such folders are walked when they are deleted or moved.
+ */
+public class FolderSubtreeSizeStore
+{
+	private FolderSubtreeSizeDAO subtreeSizeDAO;
+	private TransactionService transactionService;
+	private FolderSizeWriteBehind writeBehind;
+	private boolean enabled = false;
+	private int batchSize = 500;
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Must be called in a transaction
+	 *
+	 * @param folder
+	 * @return the folder's subtree size including changes not yet written, or null if it
+	 * is not known
+	 */
+	public Long getSize(NodeRef folder)
+	{
+		Long size = subtreeSizeDAO.getSize(folder);
+		if (size == null)
+		{
+			return null;
+		}
+		return writeBehind == null ? size : size + writeBehind.getPendingDelta(folder);
+	}
+
+	/**
+	 * Must be called in a read-write transaction
+	 *
+	 * @param folder
+	 * @param size
+	 */
+	public void setSize(NodeRef folder, long size)
+	{
+		subtreeSizeDAO.set(folder, size);
+	}
+
+	/**
+	 * Adds a delta to a folder's entry, if it has one.  Must be called in a read-write
+	 * transaction.
+	 *
+	 * @param folder
+	 * @param delta
+	 * @return whether the folder has an entry
+	 */
+	public boolean add(NodeRef folder, long delta)
+	{
+		return subtreeSizeDAO.add(folder, delta);
+	}
+
+	/**
+	 * Forgets a folder, e.g. when it is deleted.  Must be called in a read-write
+	 * transaction.
+	 *
+	 * @param folder
+	 */
+	public void remove(NodeRef folder)
+	{
+		subtreeSizeDAO.remove(folder);
+	}
+
+	/**
+	 * Stores freshly calculated sizes, batchSize folders per transaction
+	 *
+	 * @param sizes subtree size per folder
+	 */
+	public void setSizes(Map<NodeRef, Long> sizes)
+	{
+		final List<Map.Entry<NodeRef, Long>> entries = new ArrayList<Map.Entry<NodeRef, Long>>(sizes.entrySet());
+		for (int start = 0; start < entries.size(); start += batchSize)
+		{
+			final List<Map.Entry<NodeRef, Long>> batch = entries.subList(start, Math.min(start + batchSize, entries.size()));
+			transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+			{
+				public Void execute() throws Throwable
+				{
+					for (Map.Entry<NodeRef, Long> entry : batch)
+					{
+						setSize(entry.getKey(), entry.getValue());
+					}
+					return null;
+				}
+			}, false, true);
+		}
+	}
+
+	public void setFolderSubtreeSizeDAO(FolderSubtreeSizeDAO subtreeSizeDAO)
+	{
+		this.subtreeSizeDAO = subtreeSizeDAO;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * Sets the write-behind stage, whose unflushed changes are added to the stored sizes
+	 *
+	 * @param writeBehind
+	 */
+	public void setWriteBehind(FolderSizeWriteBehind writeBehind)
+	{
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * When disabled no entries are kept or read, and folders are walked when deleted or
+	 * moved
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Number of entries stored per transaction after a subtree has been sized
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+}
@@ -23,18 +23,35 @@
  */
 package org.alfresco.extension.folderquota;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-
-import javax.transaction.UserTransaction;
+import java.util.Map;
 
 import org.alfresco.extension.folderquota.behaviour.FolderQuotaUpdateQueue;
+import org.alfresco.extension.folderquota.counter.QuotaCounterStore;
+import org.alfresco.extension.folderquota.db.FolderSizeQueryDAO;
+import org.alfresco.extension.folderquota.db.FolderUsageCounterDAO;
+import org.alfresco.extension.folderquota.metrics.FolderQuotaMetrics;
+import org.alfresco.extension.folderquota.metrics.FolderQuotaMetrics.Metric;
 import org.alfresco.model.ContentModel;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.model.FileFolderService;
 import org.alfresco.service.cmr.model.FileInfo;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
@@ -42,9 +59,9 @@ import org.alfresco.service.cmr.search.ResultSet;
 import org.alfresco.service.cmr.search.ResultSetRow;
 import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchService;
-import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -56,6 +73,39 @@ public class FolderUsageCalculator {
 	
 	private ServiceRegistry serviceRegistry;
 	private FolderQuotaUpdateQueue queue;
+	private QuotaAncestorResolver resolver;
+	private FolderQuotaStamper stamper;
+	private QuotaReservationLedger ledger;
+	private QuotaCounterStore counterStore;
+	private ParallelFolderSizeCalculator parallelCalculator;
+	private FolderSizeQueryDAO folderSizeQueryDAO;
+	private FolderUsageCounterDAO usageCounters;
+	private NodeDAO nodeDAO;
+	private FolderSubtreeSizeStore subtreeSizes;
+	private FolderQuotaMetrics metrics = new FolderQuotaMetrics();
+	private String sizingStrategy = FolderQuotaConstants.SIZING_STRATEGY_NODE_WALK;
+	private int pageSize = 1000;
+	private int maxIncrementalEvents = 10000;
+	private volatile int lastIncrementalDrained;
+	
+	private static final String KEY_CHECKPOINTS = FolderUsageCalculator.class.getName() + ".checkpoints";
+	
+	/**
+	 * Tells the counter store which changes reached the stored usage, once they have committed
+	 */
+	private final TransactionListenerAdapter checkpointListener = new TransactionListenerAdapter()
+	{
+		@Override
+		public void afterCommit()
+		{
+			@SuppressWarnings("unchecked")
+			Map<NodeRef, Long> checkpoints = (Map<NodeRef, Long>) AlfrescoTransactionSupport.getResource(KEY_CHECKPOINTS);
+			for (Map.Entry<NodeRef, Long> entry : checkpoints.entrySet())
+			{
+				counterStore.checkpointed(entry.getKey(), entry.getValue());
+			}
+		}
+	};
 	
 	public void setServiceRegistry(ServiceRegistry serviceRegistry)
 	{
@@ -64,94 +114,329 @@ public class FolderUsageCalculator {
 	
 	public void recalculate()
 	{
-		
+		//for each folder, calculate the usage
+		for (NodeRef quotaFolder : getQuotaFolders())
+		{
+			recalculate(quotaFolder);
+		}
+	}
+	
+	/**
+	 * @return every folder with a quota applied, as found by the search index
+	 */
+	public List<NodeRef> getQuotaFolders()
+	{
 		/*
 		 * fq:quota aspect is used to identify folders that have a quota applied
 		 * fq:currentSize is the current size
 		 * fq:quotaSize
 		 */
 		SearchService search = serviceRegistry.getSearchService();
-		NodeService nodeService = serviceRegistry.getNodeService();
 		SearchParameters params = new SearchParameters();
 		params.setLanguage(SearchService.LANGUAGE_LUCENE);
+		params.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
 		params.setQuery(query);
 		
+		List<NodeRef> quotaFolders = new ArrayList<NodeRef>();
 		ResultSet rs = search.query(params);
-		//for each folder, calculate the usage
-		Iterator<ResultSetRow> it = rs.iterator();
-		while(it.hasNext())
+		try
+		{
+			Iterator<ResultSetRow> it = rs.iterator();
+			while(it.hasNext())
+			{
+				ResultSetRow row = it.next();
+				quotaFolders.add(row.getNodeRef());
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+		return quotaFolders;
+	}
+	
+	/**
+	 * Recalculates the usage of a single quota folder from scratch and stores it.
+	 * @param quotaFolder
+	 * @return the new usage
+	 */
+	public long recalculate(NodeRef quotaFolder)
+	{
+		long size = calculateSubtreeSize(quotaFolder);
+		serviceRegistry.getNodeService().setProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, size);
+		if (isUsageCountersEnabled())
 		{
-			ResultSetRow row = it.next();
-			long size = calculateFolderSize(row.getNodeRef());
-			nodeService.setProperty(row.getNodeRef(), FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, size);
+			usageCounters.set(quotaFolder, size);
+		}
+		if (ledger != null)
+		{
+			ledger.reset(quotaFolder, size);
+		}
+		logger.info(String.format("[FolderQuota] - Recalculated usage of %s: %s bytes", quotaFolder, size));
+		return size;
+	}
+	
+	/**
+	 * Stored usage of a quota folder, from the usage counters when they are enabled,
+	 * otherwise from fq:sizeCurrent.  Does not include committed changes that have not
+	 * been written yet.  Must be called in a transaction.
+	 * @param quotaFolder
+	 * @return
+	 */
+	public long getStoredUsage(NodeRef quotaFolder)
+	{
+		if (isUsageCountersEnabled())
+		{
+			return usageCounters.getUsage(quotaFolder);
+		}
+		Long current = (Long) serviceRegistry.getNodeService().getProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
+		return current == null ? 0L : current;
+	}
+	
+	private boolean isUsageCountersEnabled()
+	{
+		return usageCounters != null && usageCounters.isEnabled();
+	}
+	
+	/**
+	 * Copies the usage counter totals into fq:sizeCurrent, a page of folders per
+	 * transaction, so the property stays close enough for display and search.  Only
+	 * folders whose total changed are written.  Counters of folders that are gone or have
+	 * lost their quota are dropped.
+	 */
+	public void syncUsage()
+	{
+		if (!isUsageCountersEnabled())
+		{
+			return;
+		}
+		final NodeService nodeService = serviceRegistry.getNodeService();
+		RetryingTransactionHelper txnHelper = serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+		long start = System.currentTimeMillis();
+		long afterNodeId = 0L;
+		int updated = 0;
+		while (true)
+		{
+			final long after = afterNodeId;
+			Pair<Long, Integer> page = txnHelper.doInTransaction(new RetryingTransactionCallback<Pair<Long, Integer>>()
+			{
+				public Pair<Long, Integer> execute() throws Throwable
+				{
+					long last = after;
+					int written = 0;
+					List<Map<String, Object>> totals = usageCounters.getTotals(after, pageSize);
+					for (Map<String, Object> row : totals)
+					{
+						last = ((Number) row.get("folderId")).longValue();
+						long total = ((Number) row.get("total")).longValue();
+						Pair<Long, NodeRef> node = nodeDAO.getNodePair(last);
+						if (node == null || !nodeService.exists(node.getSecond())
+								|| !nodeService.hasAspect(node.getSecond(), FolderQuotaConstants.ASPECT_FQ_QUOTA))
+						{
+							usageCounters.remove(last);
+							continue;
+						}
+						Long current = (Long) nodeService.getProperty(node.getSecond(), FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
+						if (current == null || current != total)
+						{
+							nodeService.setProperty(node.getSecond(), FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, total);
+							written++;
+						}
+					}
+					return new Pair<Long, Integer>(totals.size() < pageSize ? null : last, written);
+				}
+			}, false, true);
+			updated += page.getSecond();
+			if (page.getFirst() == null)
+			{
+				break;
+			}
+			afterNodeId = page.getFirst();
+		}
+		if (updated > 0)
+		{
+			logger.info(String.format("[FolderQuota] - Copied usage counters to fq:sizeCurrent for %s folders in %sms", updated, System.currentTimeMillis() - start));
 		}
 	}
 	
 	/**
-	 * Calculate the size of all of the children of the provided NodeRef.  This is probably
-	 * not the fastest way to do this, a search-based approach might be faster.  Will need
-	 * additional performance tuning here.
+	 * Calculates the full size of a subtree with the configured sizing strategy.  The
+	 * dbAggregate strategy runs one aggregate query in a transaction of its own, so a
+	 * failed query does not abort the caller's transaction; if the database has no query,
+	 * or the query fails, the subtree is walked (on the parallel sizing engine when one is
+	 * configured).
+	 * @param folder
+	 * @return
+	 */
+	public long calculateSubtreeSize(final NodeRef folder)
+	{
+		if (isAggregateSizing())
+		{
+			try
+			{
+				return serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>()
+				{
+					public Long execute() throws Throwable
+					{
+						return folderSizeQueryDAO.getSubtreeContentSize(folder);
+					}
+				}, true, true);
+			}
+			catch (RuntimeException e)
+			{
+				logger.warn("[FolderQuota] - Aggregate size query failed for " + folder + ", falling back to the node walk", e);
+			}
+		}
+		return parallelCalculator != null ? parallelCalculator.calculateFolderSize(folder) : calculateFolderSize(folder);
+	}
+	
+	private boolean isAggregateSizing()
+	{
+		return FolderQuotaConstants.SIZING_STRATEGY_DB_AGGREGATE.equals(sizingStrategy) && folderSizeQueryDAO != null && folderSizeQueryDAO.isSupported();
+	}
+	
+	/**
+	 * Calculates the full size of a subtree in the background on the sizing pool.  Only
+	 * available when the parallel sizing engine is configured.
+	 * @param folder
+	 * @param callback
+	 */
+	public void calculateSubtreeSizeAsync(final NodeRef folder, final ParallelFolderSizeCalculator.Callback callback)
+	{
+		if (!isAggregateSizing())
+		{
+			parallelCalculator.calculateFolderSizeAsync(folder, callback);
+			return;
+		}
+		parallelCalculator.execute(new Runnable()
+		{
+			public void run()
+			{
+				long size;
+				try
+				{
+					callback.onStart(folder);
+					size = AuthenticationUtil.runAs(new RunAsWork<Long>()
+					{
+						public Long doWork() throws Exception
+						{
+							return calculateSubtreeSize(folder);
+						}
+					}, AuthenticationUtil.getSystemUserName());
+				}
+				catch (Throwable e)
+				{
+					callback.onFailure(folder, e);
+					return;
+				}
+				callback.onSize(folder, size);
+			}
+		});
+	}
+	
+	/**
+	 * Calculate the size of all of the children of the provided NodeRef.  The subtree is
+	 * walked with an explicit stack of folders still to visit rather than recursion, and
+	 * each folder's children are listed a page at a time, so memory use does not grow with
+	 * the number of documents in a folder and deep trees cannot overflow the stack.  Sizes
+	 * come from the content data already loaded with each listed child.
 	 * @param nodeRef
 	 * @return
 	 */
 	public Long calculateFolderSize(NodeRef nodeRef)
 	{
-		Long size = 0L;
+		long start = metrics.start();
+		long nodes = 0L;
+		long size = 0L;
 		FileFolderService fileFolderService = serviceRegistry.getFileFolderService();
-		List<FileInfo> children = fileFolderService.list(nodeRef);
-		Iterator<FileInfo> it = children.iterator();
-		while(it.hasNext())
+		Deque<NodeRef> folders = new ArrayDeque<NodeRef>();
+		folders.push(nodeRef);
+		while(!folders.isEmpty())
 		{
-			FileInfo fi = it.next();
-			
-			QName nodeType = serviceRegistry.getNodeService().getType(fi.getNodeRef());
-			if(nodeType.isMatch(QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "folder")))
-			{
-				size = size + calculateFolderSize(fi.getNodeRef());
-			}
-			else
+			NodeRef folder = folders.pop();
+			int skip = 0;
+			PagingResults<FileInfo> page;
+			do
 			{
-				ContentData contentRef = (ContentData)serviceRegistry.getNodeService().getProperty(fi.getNodeRef(), ContentModel.PROP_CONTENT);
-				size = size + contentRef.getSize();
+				page = fileFolderService.list(folder, true, true, null, null, new PagingRequest(skip, pageSize));
+				for (FileInfo fi : page.getPage())
+				{
+					nodes++;
+					if(fi.isFolder())
+					{
+						folders.push(fi.getNodeRef());
+					}
+					else
+					{
+						ContentData contentRef = fi.getContentData();
+						if(contentRef != null)
+						{
+							size += contentRef.getSize();
+						}
+					}
+				}
+				skip += pageSize;
 			}
+			while(page.hasMoreItems());
 		}
 		
+		metrics.stop(Metric.CALCULATE_FOLDER_SIZE, start);
+		metrics.record(Metric.CALCULATE_FOLDER_SIZE_NODES, nodes);
 		return size;
 	}
 	
     /**
-     * Searches up the parent-child chain, looking for a folder with the quota aspect
-     * applied.  If one is found, it is returned.  If one is not found, return null
+     * Returns the quota folder a node is charged to, or null if it is not in a quota folder.
+     * A quota folder is its own.  Other nodes stamped with fq:managedFolder are answered
+     * with that single property read, but only while the stamper has caught up with the
+     * current quota layout; after a quota is added or removed or a folder moves to another
+     * quota folder, stamps are ignored until the queued subtrees have been restamped.  Anything else falls back to searching up
+     * the parent-child chain through the cached {@link QuotaAncestorResolver}.
      * @param nodeRef
      * @return
      */
     public NodeRef getParentFolderWithQuota(NodeRef nodeRef)
     {
-    	
-    	NodeService nodeService = serviceRegistry.getNodeService();
-    	
-    	if (nodeRef == null || !nodeService.exists(nodeRef)) {
-    		logger.debug("[FolderQuota] - Found Null or non-existent nodeRef, returning null");
+    	if (nodeRef == null)
+    	{
     		return null;
     	}
-    	
-    	// Do I have the Aspect?
-	    if (nodeService.hasAspect(nodeRef, FolderQuotaConstants.ASPECT_FQ_QUOTA)) {
-	    	if (logger.isDebugEnabled()) {
-	    		logger.debug("[FolderQuota] - Returning folder with aspect " + nodeRef);
-	    	}
-	    	return nodeRef;
-	    }
-    	
-    	// Am I the top of the Node Tree?
-    	ChildAssociationRef parentFolderRef = nodeService.getPrimaryParent(nodeRef);
-    	if (parentFolderRef == null) {
-    		logger.debug("[FolderQuota] - Returning Parent Null");
+    	long start = metrics.start();
+    	try
+    	{
+    		return findParentFolderWithQuota(nodeRef);
+    	}
+    	finally
+    	{
+    		metrics.stop(Metric.PARENT_LOOKUP, start);
+    	}
+    }
+    
+    private NodeRef findParentFolderWithQuota(NodeRef nodeRef)
+    {
+    	try
+    	{
+    		if (stamper != null && stamper.isRestampDone())
+    		{
+    			//a quota folder answers for itself, even if it still carries a stamp from
+    			//before it had fq:quota
+    			if (serviceRegistry.getNodeService().hasAspect(nodeRef, FolderQuotaConstants.ASPECT_FQ_QUOTA))
+    			{
+    				return nodeRef;
+    			}
+    			NodeRef managedFolder = (NodeRef) serviceRegistry.getNodeService().getProperty(nodeRef, FolderQuotaConstants.PROP_FQ_MANAGED_FOLDER);
+    			if (managedFolder != null)
+    			{
+    				return managedFolder;
+    			}
+    		}
+    	}
+    	catch (InvalidNodeRefException e)
+    	{
+    		logger.debug("[FolderQuota] - Found non-existent nodeRef, returning null");
     		return null;
     	}
-    	
-    	logger.debug("[FolderQuota] - Looking at the parent");
-    	return getParentFolderWithQuota(parentFolderRef.getParentRef());
+    	return resolver.getQuotaAncestor(nodeRef);
     }
     
 	/**
@@ -172,10 +457,11 @@ public class FolderUsageCalculator {
 		//if this is a folder delete, go through and tally up the size of the
 		//children.  By the time the children are being deleted, the parent is gone
 		QName nodeType = serviceRegistry.getNodeService().getType(changed);
-		//TODO - also need to check for subtypes of folder
-		if(nodeType.isMatch(QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "folder")))
+		if(serviceRegistry.getDictionaryService().isSubClass(nodeType, ContentModel.TYPE_FOLDER))
 		{
-			change = calculateFolderSize(changed);
+			//the stored subtree size saves walking the folder, if there is one
+			Long subtreeSize = subtreeSizes != null && subtreeSizes.isEnabled() ? subtreeSizes.getSize(changed) : null;
+			change = subtreeSize != null ? subtreeSize : calculateFolderSize(changed);
 		}
 		else
 		{
@@ -191,21 +477,401 @@ public class FolderUsageCalculator {
     		}
     		else
     		{
-    			logger.warn("A node was deleted from a quota folder and was not available for size calculations, folder usage reporting may be inaccurate");
+    			logger.warn("A node was deleted from a quota folder and was not available for size calculations, folder usage reporting may be inaccurate until it is next reconciled");
     		}
 		}
 		
 		return change;
 	}
 	
-	//on an incremental update, process all of the events in the update queue
+	/**
+	 * Applies a set of folder size deltas to fq:sizeCurrent.  Folders are written in
+	 * batches, each batch in its own retrying transaction, so a large set of changes does
+	 * not hold locks on every folder at once.  Folders that no longer exist are skipped.
+	 * A batch that fails is rolled back as a whole and handed back to the caller, the
+	 * batches already applied stay applied.
+	 * 
+	 * @param changes net size delta per quota folder
+	 * @param batchSize maximum number of folders written per transaction
+	 * @return the changes that could not be applied, empty if all were
+	 */
+	public Map<NodeRef, Long> applySizeChanges(Map<NodeRef, Long> changes, int batchSize)
+	{
+		final List<Map.Entry<NodeRef, Long>> entries = new ArrayList<Map.Entry<NodeRef, Long>>(changes.entrySet());
+		final RetryingTransactionHelper txnHelper = serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+		Map<NodeRef, Long> failed = new HashMap<NodeRef, Long>();
+		int updated = 0;
+		for (int start = 0; start < entries.size(); start += batchSize)
+		{
+			final SizeChangeBatch batch = new SizeChangeBatch(entries.subList(start, Math.min(start + batchSize, entries.size())));
+			long started = metrics.start();
+			try
+			{
+				updated += AuthenticationUtil.runAs(new RunAsWork<Integer>()
+				{
+					public Integer doWork() throws Exception
+					{
+						return txnHelper.doInTransaction(batch, false, true);
+					}
+				}, AuthenticationUtil.getSystemUserName());
+			}
+			catch (RuntimeException e)
+			{
+				logger.error("[FolderQuota] - Failed to update folder sizes for a batch of " + batch.changes.size() + " folders", e);
+				for (Map.Entry<NodeRef, Long> entry : batch.changes)
+				{
+					failed.put(entry.getKey(), entry.getValue());
+				}
+			}
+			finally
+			{
+				metrics.stop(Metric.SIZE_UPDATE, started);
+				metrics.record(Metric.SIZE_UPDATE_RETRIES, Math.max(0, batch.attempts - 1));
+			}
+		}
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("[FolderQuota] - Applied size changes to %s folders, %s failed", updated, failed.size()));
+		}
+		return failed;
+	}
+	
+	/**
+	 * Applies size deltas keyed by node id, see {@link #applySizeChanges(Map, int)}.  This
+	 * is where node ids are turned back into NodeRefs, in one read-only transaction for
+	 * the folders that were not added with theirs.  Folders that no longer exist are
+	 * dropped.
+	 * 
+	 * @param changes net size delta per quota folder node id
+	 * @param batchSize maximum number of folders written per transaction
+	 * @return the changes that could not be applied, empty if all were
+	 */
+	public NodeIdDeltaMap applySizeChanges(NodeIdDeltaMap changes, int batchSize)
+	{
+		final Map<NodeRef, Long> byNodeRef = new HashMap<NodeRef, Long>(changes.size() * 2);
+		final Map<NodeRef, Long> nodeIds = new HashMap<NodeRef, Long>(changes.size() * 2);
+		final NodeIdDeltaMap unresolved = new NodeIdDeltaMap();
+		for (int slot = changes.next(-1); slot >= 0; slot = changes.next(slot))
+		{
+			if (changes.deltaAt(slot) == 0L)
+			{
+				continue;
+			}
+			NodeRef folder = changes.nodeRefAt(slot);
+			if (folder == null)
+			{
+				unresolved.add(changes.nodeIdAt(slot), changes.deltaAt(slot));
+				continue;
+			}
+			byNodeRef.put(folder, changes.deltaAt(slot));
+			nodeIds.put(folder, changes.nodeIdAt(slot));
+		}
+		if (!unresolved.isEmpty())
+		{
+			final Map<NodeRef, Long> resolved = new HashMap<NodeRef, Long>(unresolved.size() * 2);
+			AuthenticationUtil.runAs(new RunAsWork<Object>()
+			{
+				public Object doWork() throws Exception
+				{
+					return serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Object>()
+					{
+						public Object execute() throws Throwable
+						{
+							resolved.clear();
+							for (int slot = unresolved.next(-1); slot >= 0; slot = unresolved.next(slot))
+							{
+								NodeRef folder = getNodeRef(unresolved.nodeIdAt(slot));
+								if (folder == null)
+								{
+									logger.debug(String.format("[FolderQuota] - Folder with node id %s no longer exists, dropping size change %s", unresolved.nodeIdAt(slot), unresolved.deltaAt(slot)));
+									continue;
+								}
+								resolved.put(folder, unresolved.nodeIdAt(slot));
+							}
+							return null;
+						}
+					}, true, true);
+				}
+			}, AuthenticationUtil.getSystemUserName());
+			for (Map.Entry<NodeRef, Long> entry : resolved.entrySet())
+			{
+				byNodeRef.put(entry.getKey(), unresolved.get(entry.getValue()));
+				nodeIds.put(entry.getKey(), entry.getValue());
+			}
+		}
+		Map<NodeRef, Long> failed = applySizeChanges(byNodeRef, batchSize);
+		NodeIdDeltaMap failedChanges = new NodeIdDeltaMap(failed.size());
+		for (Map.Entry<NodeRef, Long> entry : failed.entrySet())
+		{
+			failedChanges.add(nodeIds.get(entry.getKey()), entry.getKey(), entry.getValue());
+		}
+		return failedChanges;
+	}
+	
+	/**
+	 * Database node id of a folder, the key of the id-based change sets.  Must be called
+	 * in a transaction.
+	 * @param folder
+	 * @return
+	 */
+	public long getNodeId(NodeRef folder)
+	{
+		return (Long) serviceRegistry.getNodeService().getProperty(folder, ContentModel.PROP_NODE_DBID);
+	}
+	
+	/**
+	 * Folder behind a node id.  Must be called in a transaction.
+	 * @param nodeId
+	 * @return null if the folder no longer exists
+	 */
+	public NodeRef getNodeRef(long nodeId)
+	{
+		return serviceRegistry.getNodeService().getNodeRef(nodeId);
+	}
+	
+	/**
+	 * One batch of size changes, counting its attempts so retries can be measured
+	 */
+	private class SizeChangeBatch implements RetryingTransactionCallback<Integer>
+	{
+		private final List<Map.Entry<NodeRef, Long>> changes;
+		private int attempts;
+		
+		private SizeChangeBatch(List<Map.Entry<NodeRef, Long>> changes)
+		{
+			this.changes = changes;
+		}
+		
+		public Integer execute() throws Throwable
+		{
+			attempts++;
+			return applySizeChangesInTransaction(changes);
+		}
+	}
+	
+	/**
+	 * Applies folder size deltas to fq:sizeCurrent, or the usage counters when they are
+	 * enabled, in the current transaction, and to the stored subtree sizes.  Deltas for folders without a quota only go to the subtree
+	 * sizes.  Folders that no longer exist are skipped.
+	 * 
+	 * @param changes net size delta per quota folder
+	 * @return the number of folders updated
+	 */
+	public int applySizeChangesInTransaction(Iterable<Map.Entry<NodeRef, Long>> changes)
+	{
+		NodeService nodeService = serviceRegistry.getNodeService();
+		int count = 0;
+		for (Map.Entry<NodeRef, Long> entry : changes)
+		{
+			NodeRef quotaFolder = entry.getKey();
+			if (entry.getValue() == 0L || !nodeService.exists(quotaFolder))
+			{
+				continue;
+			}
+			if (subtreeSizes != null && subtreeSizes.isEnabled())
+			{
+				boolean hasSubtreeSize = subtreeSizes.add(quotaFolder, entry.getValue());
+				if (!nodeService.hasAspect(quotaFolder, FolderQuotaConstants.ASPECT_FQ_QUOTA))
+				{
+					if (hasSubtreeSize)
+					{
+						count++;
+					}
+					continue;
+				}
+			}
+			if (isUsageCountersEnabled())
+			{
+				usageCounters.add(quotaFolder, entry.getValue());
+			}
+			else
+			{
+				Long currentSize = (Long) nodeService.getProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
+				if (currentSize == null)
+				{
+					currentSize = 0L;
+				}
+				nodeService.setProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, currentSize + entry.getValue());
+			}
+			if (counterStore != null)
+			{
+				recordCheckpoint(quotaFolder, entry.getValue());
+			}
+			count++;
+		}
+		return count;
+	}
+	
+	private void recordCheckpoint(NodeRef quotaFolder, long delta)
+	{
+		@SuppressWarnings("unchecked")
+		Map<NodeRef, Long> checkpoints = (Map<NodeRef, Long>) AlfrescoTransactionSupport.getResource(KEY_CHECKPOINTS);
+		if (checkpoints == null)
+		{
+			checkpoints = new HashMap<NodeRef, Long>();
+			AlfrescoTransactionSupport.bindResource(KEY_CHECKPOINTS, checkpoints);
+			AlfrescoTransactionSupport.bindListener(checkpointListener);
+		}
+		Long total = checkpoints.get(quotaFolder);
+		checkpoints.put(quotaFolder, total == null ? delta : total + delta);
+	}
+	
+	//restamp the subtrees queued after quota or move changes
+	public void restamp()
+	{
+		stamper.processPending();
+	}
+	
+	/**
+	 * On an incremental update, drain up to maxEvents events from the update queue.  The
+	 * queue groups them by folder and writes them in batched transactions.
+	 */
 	public void incremental()
 	{
-		//queue.processAllEvents();
+		if (queue == null)
+		{
+			logger.warn("[FolderQuota] - Incremental update requested, but no update queue is configured");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		lastIncrementalDrained = queue.processEvents(maxIncrementalEvents);
+		long backlog = queue.getBacklog();
+		if (lastIncrementalDrained > 0 || backlog > 0)
+		{
+			logger.info(String.format("[FolderQuota] - Incremental update drained %s events in %sms, %s events still queued",
+					lastIncrementalDrained, System.currentTimeMillis() - start, backlog));
+		}
+	}
+	
+	/**
+	 * @return the number of events drained by the last incremental update
+	 */
+	public int getLastIncrementalDrained()
+	{
+		return lastIncrementalDrained;
 	}
 	
     public void setFolderQuotaUpdateQueue(FolderQuotaUpdateQueue queue)
     {
     	this.queue = queue;
     }
+    
+    public void setQuotaAncestorResolver(QuotaAncestorResolver resolver)
+    {
+    	this.resolver = resolver;
+    }
+    
+    public void setFolderQuotaStamper(FolderQuotaStamper stamper)
+    {
+    	this.stamper = stamper;
+    }
+    
+    /**
+     * Sets the reservation ledger, told about recalculated usage so it admits uploads
+     * against the new value
+     * @param ledger
+     */
+    public void setQuotaReservationLedger(QuotaReservationLedger ledger)
+    {
+    	this.ledger = ledger;
+    }
+    
+    /**
+     * Times lookups, sizing and size updates
+     * @param metrics
+     */
+    public void setFolderQuotaMetrics(FolderQuotaMetrics metrics)
+    {
+    	this.metrics = metrics;
+    }
+    
+    /**
+     * Sets the counter store, told when size changes have been written to fq:sizeCurrent
+     * @param counterStore
+     */
+    public void setQuotaCounterStore(QuotaCounterStore counterStore)
+    {
+    	this.counterStore = counterStore;
+    }
+    
+    /**
+     * Sets the parallel sizing engine used for full recalculations.  If not set, folders
+     * are sized on the calling thread.
+     * @param parallelCalculator
+     */
+    public void setParallelFolderSizeCalculator(ParallelFolderSizeCalculator parallelCalculator)
+    {
+    	this.parallelCalculator = parallelCalculator;
+    }
+    
+    public ParallelFolderSizeCalculator getParallelFolderSizeCalculator()
+    {
+    	return parallelCalculator;
+    }
+    
+    /**
+     * Sets the store of folder subtree sizes, used to size folders that are deleted or
+     * moved without walking them
+     * @param subtreeSizes
+     */
+    public void setFolderSubtreeSizeStore(FolderSubtreeSizeStore subtreeSizes)
+    {
+    	this.subtreeSizes = subtreeSizes;
+    }
+    
+    /**
+     * Sets the DAO used by the dbAggregate sizing strategy
+     * @param folderSizeQueryDAO
+     */
+    public void setFolderSizeQueryDAO(FolderSizeQueryDAO folderSizeQueryDAO)
+    {
+    	this.folderSizeQueryDAO = folderSizeQueryDAO;
+    }
+    
+    /**
+     * Sets the sharded usage counters, which take size updates instead of fq:sizeCurrent
+     * when enabled
+     * @param usageCounters
+     */
+    public void setFolderUsageCounterDAO(FolderUsageCounterDAO usageCounters)
+    {
+    	this.usageCounters = usageCounters;
+    }
+    
+    /**
+     * Used to find the folders behind the usage counters' node ids
+     * @param nodeDAO
+     */
+    public void setNodeDAO(NodeDAO nodeDAO)
+    {
+    	this.nodeDAO = nodeDAO;
+    }
+    
+    /**
+     * How full subtree sizes are calculated for recalculation and initial sizing,
+     * nodeWalk (the default) or dbAggregate
+     * @param sizingStrategy
+     */
+    public void setSizingStrategy(String sizingStrategy)
+    {
+    	this.sizingStrategy = sizingStrategy;
+    }
+    
+    /**
+     * Maximum number of queued events drained by one incremental update
+     * @param maxIncrementalEvents
+     */
+    public void setMaxIncrementalEvents(int maxIncrementalEvents)
+    {
+    	this.maxIncrementalEvents = maxIncrementalEvents;
+    }
+    
+    /**
+     * Number of children listed at a time when calculating folder sizes
+     * @param pageSize
+     */
+    public void setPageSize(int pageSize)
+    {
+    	this.pageSize = pageSize;
+    }
 }
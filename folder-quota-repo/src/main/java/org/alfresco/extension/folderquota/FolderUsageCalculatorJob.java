@@ -49,7 +49,7 @@ public class FolderUsageCalculatorJob implements Job {
 		JobDataMap jobData = context.getJobDetail().getJobDataMap();
 		
 		Object jobObj = jobData.get("folderUsageCalculator");
-		//two modes are supported for this job, recalculate and incremental
+		//five modes are supported for this job, recalculate, incremental, restamp, reconcile and syncUsage
 		Object modeObj = jobData.get("mode");
 		
 		//if the mode is null, assume full recalculate
@@ -66,6 +66,15 @@ public class FolderUsageCalculatorJob implements Job {
 		final FolderUsageCalculator folderUsage = (FolderUsageCalculator) jobObj;
 		final String mode = modeObj.toString();
 		
+		//reconcile mode also needs the reconciler
+		Object reconcilerObj = jobData.get("folderQuotaReconciler");
+		if (mode.equalsIgnoreCase(FolderQuotaConstants.QUOTA_JOB_MODE_RECONCILE) && !(reconcilerObj instanceof FolderQuotaReconciler))
+		{
+			throw new AlfrescoRuntimeException(
+					"FolderQuotaReconciler object must be valid reference");
+		}
+		final FolderQuotaReconciler reconciler = reconcilerObj instanceof FolderQuotaReconciler ? (FolderQuotaReconciler) reconcilerObj : null;
+		
 		AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
 		{
 
@@ -79,6 +88,18 @@ public class FolderUsageCalculatorJob implements Job {
 				{
 					folderUsage.incremental();
 				}
+				else if (mode.equalsIgnoreCase(FolderQuotaConstants.QUOTA_JOB_MODE_RESTAMP))
+				{
+					folderUsage.restamp();
+				}
+				else if (mode.equalsIgnoreCase(FolderQuotaConstants.QUOTA_JOB_MODE_RECONCILE))
+				{
+					reconciler.reconcile();
+				}
+				else if (mode.equalsIgnoreCase(FolderQuotaConstants.QUOTA_JOB_MODE_SYNC_USAGE))
+				{
+					folderUsage.syncUsage();
+				}
 				return null;
 			}
 		}, AuthenticationUtil.getAdminUserName());
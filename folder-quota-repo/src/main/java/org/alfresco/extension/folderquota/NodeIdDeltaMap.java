@@ -0,0 +1,247 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Primitive map of size deltas keyed by node id
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Sums size deltas per folder, keyed by the folder's database node id, in two packed
+ * long arrays with open addressing, so adding a delta allocates nothing once the map
+ * has grown.  Where the caller already holds the folder's NodeRef it can be kept
+ * alongside, so a consumer that needs NodeRefs has no lookup to do; otherwise only ids
+ * are stored and NodeRefs are resolved when the changes are written.
+ * <p>
+ * Entries are visited by slot:
+ * <pre>
+ * for (int slot = map.next(-1); slot >= 0; slot = map.next(slot))
+ * {
+ *     long nodeId = map.nodeIdAt(slot);
+ *     long delta = map.deltaAt(slot);
+ * }
+ * </pre>
+ * Not thread safe.
+ */
+public class NodeIdDeltaMap
+{
+	//node ids start at 1, so 0 marks a free slot
+	private static final long FREE = 0L;
+
+	private long[] nodeIds;
+	private long[] deltas;
+	private NodeRef[] nodeRefs;
+	private int size;
+
+	public NodeIdDeltaMap()
+	{
+		this(16);
+	}
+
+	/**
+	 * @param expected number of folders expected, the map grows past it if needed
+	 */
+	public NodeIdDeltaMap(int expected)
+	{
+		int capacity = 8;
+		while (capacity < expected * 2)
+		{
+			capacity <<= 1;
+		}
+		nodeIds = new long[capacity];
+		deltas = new long[capacity];
+	}
+
+	/**
+	 * Adds a delta to a folder's total
+	 *
+	 * @param nodeId
+	 * @param delta
+	 */
+	public void add(long nodeId, long delta)
+	{
+		add(nodeId, null, delta);
+	}
+
+	/**
+	 * Adds a delta to a folder's total, keeping its NodeRef as well
+	 *
+	 * @param nodeId
+	 * @param nodeRef may be null if the caller does not have it
+	 * @param delta
+	 */
+	public void add(long nodeId, NodeRef nodeRef, long delta)
+	{
+		if (nodeId == FREE)
+		{
+			throw new IllegalArgumentException("Not a node id: " + nodeId);
+		}
+		int slot = find(nodeIds, nodeId);
+		if (nodeIds[slot] == FREE)
+		{
+			if ((size + 1) * 2 > nodeIds.length)
+			{
+				grow();
+				slot = find(nodeIds, nodeId);
+			}
+			nodeIds[slot] = nodeId;
+			size++;
+		}
+		deltas[slot] += delta;
+		if (nodeRef != null)
+		{
+			if (nodeRefs == null)
+			{
+				nodeRefs = new NodeRef[nodeIds.length];
+			}
+			nodeRefs[slot] = nodeRef;
+		}
+	}
+
+	/**
+	 * @param nodeId
+	 * @return the folder's total, 0 if it has none
+	 */
+	public long get(long nodeId)
+	{
+		int slot = find(nodeIds, nodeId);
+		return nodeIds[slot] == FREE ? 0L : deltas[slot];
+	}
+
+	/**
+	 * @return number of folders
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * @param slot the previous slot, -1 to start
+	 * @return the next occupied slot, -1 when there are no more
+	 */
+	public int next(int slot)
+	{
+		for (int i = slot + 1; i < nodeIds.length; i++)
+		{
+			if (nodeIds[i] != FREE)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public long nodeIdAt(int slot)
+	{
+		return nodeIds[slot];
+	}
+
+	public long deltaAt(int slot)
+	{
+		return deltas[slot];
+	}
+
+	/**
+	 * @return the folder's NodeRef if it was added with one, otherwise null
+	 */
+	public NodeRef nodeRefAt(int slot)
+	{
+		return nodeRefs == null ? null : nodeRefs[slot];
+	}
+
+	/**
+	 * The non-zero totals by NodeRef, for folders that were added with one.  Deltas that
+	 * cancel out need no write and are left out.
+	 *
+	 * @return
+	 */
+	public Map<NodeRef, Long> toNodeRefMap()
+	{
+		Map<NodeRef, Long> changes = new HashMap<NodeRef, Long>(size * 2);
+		for (int slot = next(-1); slot >= 0; slot = next(slot))
+		{
+			NodeRef nodeRef = nodeRefAt(slot);
+			if (nodeRef != null && deltas[slot] != 0L)
+			{
+				changes.put(nodeRef, deltas[slot]);
+			}
+		}
+		return changes;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(nodeIds, FREE);
+		Arrays.fill(deltas, 0L);
+		if (nodeRefs != null)
+		{
+			Arrays.fill(nodeRefs, null);
+		}
+		size = 0;
+	}
+
+	private void grow()
+	{
+		long[] oldIds = nodeIds;
+		long[] oldDeltas = deltas;
+		NodeRef[] oldRefs = nodeRefs;
+		nodeIds = new long[oldIds.length * 2];
+		deltas = new long[nodeIds.length];
+		nodeRefs = oldRefs == null ? null : new NodeRef[nodeIds.length];
+		for (int i = 0; i < oldIds.length; i++)
+		{
+			if (oldIds[i] != FREE)
+			{
+				int slot = find(nodeIds, oldIds[i]);
+				nodeIds[slot] = oldIds[i];
+				deltas[slot] = oldDeltas[i];
+				if (oldRefs != null)
+				{
+					nodeRefs[slot] = oldRefs[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Linear probing from a mixed hash of the id, node ids being mostly sequential
+	 *
+	 * @return the slot holding the id, or the free slot it would go in
+	 */
+	private static int find(long[] ids, long nodeId)
+	{
+		int mask = ids.length - 1;
+		long mixed = nodeId * 0x9E3779B97F4A7C15L;
+		int slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+		while (ids[slot] != FREE && ids[slot] != nodeId)
+		{
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+}
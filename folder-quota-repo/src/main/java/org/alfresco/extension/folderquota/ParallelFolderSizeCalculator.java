@@ -0,0 +1,506 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Parallel subtree sizing on a fork-join pool
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sizes a folder subtree in parallel.  Each folder is a fork-join task that lists its
+ * children (a page at a time, in its own read-only transaction as the system user), adds
+ * up the documents and forks a task per subfolder.  Work stealing keeps all threads busy
+ * however unbalanced the tree is.
+ * <p>
+ * With a {@link VirtualThreadExecutor} available each folder is listed on its own
+ * virtual thread instead, holding one of its permits only for the listing transaction,
+ * so the number of folders listed at once follows the permits rather than parallelism.
+ * <p>
+ * Only the running total of each folder is held while it is sized.  With a
+ * {@link FolderSubtreeSizeStore} configured, the size of each folder is also stored as
+ * soon as it is known, a batch at a time, so a large subtree is never held in memory.
+ */
+public class ParallelFolderSizeCalculator
+{
+	private static Log logger = LogFactory.getLog(ParallelFolderSizeCalculator.class);
+
+	private TransactionService transactionService;
+	private FileFolderService fileFolderService;
+	private int parallelism = 4;
+	private int pageSize = 1000;
+	private long shutdownTimeout = 30000L;
+	private ForkJoinPool pool;
+	private VirtualThreadExecutor virtualThreads;
+	private FolderSubtreeSizeStore subtreeSizes;
+
+	/**
+	 * Called with the result of an asynchronous calculation
+	 */
+	public interface Callback
+	{
+		/**
+		 * Called on the sizing thread just before the subtree is walked, e.g. to take a
+		 * high-water mark of the changes already counted
+		 */
+		void onStart(NodeRef folder);
+
+		void onSize(NodeRef folder, long size);
+
+		void onFailure(NodeRef folder, Throwable e);
+	}
+
+	public void init()
+	{
+		pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory()
+		{
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+			{
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("FolderQuotaSizing-" + thread.getPoolIndex());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}, null, false);
+		logger.info(String.format("[FolderQuota] - Parallel folder sizing started with parallelism %s", parallelism));
+	}
+
+	/**
+	 * Lets sizing already under way finish, for up to shutdownTimeout milliseconds, so a
+	 * folder is not left without its initial size by a clean shutdown
+	 */
+	public void destroy()
+	{
+		if (pool != null)
+		{
+			pool.shutdown();
+			try
+			{
+				if (!pool.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS))
+				{
+					logger.warn(String.format("[FolderQuota] - Folder sizing still running after %sms, stopping it", shutdownTimeout));
+					pool.shutdownNow();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Calculates the size of all of the children of a folder, waiting for the result
+	 *
+	 * @param folder
+	 * @return total content size in bytes
+	 */
+	public long calculateFolderSize(NodeRef folder)
+	{
+		long start = System.currentTimeMillis();
+		SubtreeSizes sizes = newSubtreeSizes();
+		long size = isVirtual() ? sizeOnVirtualThreads(folder, sizes) : pool.invoke(new FolderSizeTask(folder, sizes));
+		storeSubtreeSizes(sizes);
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("[FolderQuota] - Sized %s in %sms: %s bytes", folder, System.currentTimeMillis() - start, size));
+		}
+		return size;
+	}
+
+	/**
+	 * Calculates the size of all of the children of a folder in the background
+	 *
+	 * @param folder
+	 * @param callback receives the size (or failure) on a pool thread
+	 */
+	public void calculateFolderSizeAsync(final NodeRef folder, final Callback callback)
+	{
+		if (isVirtual())
+		{
+			virtualThreads.execute(new Runnable()
+			{
+				public void run()
+				{
+					long size;
+					try
+					{
+						callback.onStart(folder);
+						SubtreeSizes sizes = newSubtreeSizes();
+						size = sizeOnVirtualThreads(folder, sizes);
+						storeSubtreeSizes(sizes);
+					}
+					catch (Throwable e)
+					{
+						callback.onFailure(folder, e);
+						return;
+					}
+					callback.onSize(folder, size);
+				}
+			});
+			return;
+		}
+		pool.execute(new RecursiveAction()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute()
+			{
+				long size;
+				try
+				{
+					callback.onStart(folder);
+					SubtreeSizes sizes = newSubtreeSizes();
+					size = new FolderSizeTask(folder, sizes).invoke();
+					storeSubtreeSizes(sizes);
+				}
+				catch (Throwable e)
+				{
+					callback.onFailure(folder, e);
+					return;
+				}
+				callback.onSize(folder, size);
+			}
+		});
+	}
+
+	/**
+	 * Runs other sizing work (e.g. a database aggregate) on the sizing pool, or on a
+	 * virtual thread.  The work may size folders itself, so it is given no permit.
+	 *
+	 * @param work
+	 */
+	public void execute(Runnable work)
+	{
+		if (isVirtual())
+		{
+			virtualThreads.execute(work);
+			return;
+		}
+		pool.execute(work);
+	}
+
+	private boolean isVirtual()
+	{
+		return virtualThreads != null && virtualThreads.isAvailable();
+	}
+
+	/**
+	 * Collects the sizes of the folders in a subtree as they are sized and stores them a
+	 * batch at a time
+	 */
+	private class SubtreeSizes
+	{
+		private Map<NodeRef, Long> batch = new HashMap<NodeRef, Long>();
+
+		void put(NodeRef folder, long size)
+		{
+			Map<NodeRef, Long> full = null;
+			synchronized (this)
+			{
+				batch.put(folder, size);
+				if (batch.size() >= pageSize)
+				{
+					full = batch;
+					batch = new HashMap<NodeRef, Long>();
+				}
+			}
+			if (full != null)
+			{
+				store(full);
+			}
+		}
+
+		void flush()
+		{
+			Map<NodeRef, Long> rest;
+			synchronized (this)
+			{
+				rest = batch;
+				batch = new HashMap<NodeRef, Long>();
+			}
+			if (!rest.isEmpty())
+			{
+				store(rest);
+			}
+		}
+
+		private void store(Map<NodeRef, Long> sizes)
+		{
+			try
+			{
+				subtreeSizes.setSizes(sizes);
+			}
+			catch (RuntimeException e)
+			{
+				logger.warn("[FolderQuota] - Failed to store the subtree sizes of " + sizes.size() + " folders", e);
+			}
+		}
+	}
+
+	/**
+	 * @return somewhere to put the size of each folder, or null if they are not kept
+	 */
+	private SubtreeSizes newSubtreeSizes()
+	{
+		return subtreeSizes != null && subtreeSizes.isEnabled() ? new SubtreeSizes() : null;
+	}
+
+	private void storeSubtreeSizes(SubtreeSizes sizes)
+	{
+		if (sizes != null)
+		{
+			sizes.flush();
+		}
+	}
+
+	/**
+	 * Lists a folder holding a permit, then sizes each subfolder on a virtual thread of
+	 * its own and waits for them.  Waiting holds no permit, so a deep tree cannot use
+	 * them all up waiting on itself.
+	 */
+	private long sizeOnVirtualThreads(NodeRef folder, final SubtreeSizes sizes)
+	{
+		List<NodeRef> subFolders = new ArrayList<NodeRef>();
+		long size;
+		virtualThreads.acquire();
+		try
+		{
+			size = listFolder(folder, subFolders);
+		}
+		finally
+		{
+			virtualThreads.release();
+		}
+		List<FutureTask<Long>> tasks = new ArrayList<FutureTask<Long>>(subFolders.size());
+		for (final NodeRef subFolder : subFolders)
+		{
+			FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>()
+			{
+				public Long call() throws Exception
+				{
+					return sizeOnVirtualThreads(subFolder, sizes);
+				}
+			});
+			tasks.add(task);
+			virtualThreads.execute(task);
+		}
+		for (FutureTask<Long> task : tasks)
+		{
+			try
+			{
+				size += task.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while sizing " + folder, e);
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof RuntimeException)
+				{
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException("Failed to size a subfolder of " + folder, e.getCause());
+			}
+		}
+		if (sizes != null)
+		{
+			sizes.put(folder, size);
+		}
+		return size;
+	}
+
+	/**
+	 * Adds up the documents directly in a folder, in a read-only transaction as the
+	 * system user, a page at a time
+	 *
+	 * @param folder
+	 * @param subFolders receives the subfolders
+	 * @return total content size of the documents in bytes
+	 */
+	private long listFolder(final NodeRef folder, final List<NodeRef> subFolders)
+	{
+		return AuthenticationUtil.runAs(new RunAsWork<Long>()
+		{
+			public Long doWork() throws Exception
+			{
+				return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>()
+				{
+					public Long execute() throws Throwable
+					{
+						subFolders.clear();
+						long size = 0L;
+						int skip = 0;
+						PagingResults<FileInfo> page;
+						do
+						{
+							page = fileFolderService.list(folder, true, true, null, null, new PagingRequest(skip, pageSize));
+							for (FileInfo fi : page.getPage())
+							{
+								if (fi.isFolder())
+								{
+									subFolders.add(fi.getNodeRef());
+								}
+								else
+								{
+									ContentData contentRef = fi.getContentData();
+									if (contentRef != null)
+									{
+										size += contentRef.getSize();
+									}
+								}
+							}
+							skip += pageSize;
+						}
+						while (page.hasMoreItems());
+						return size;
+					}
+				}, true, true);
+			}
+		}, AuthenticationUtil.getSystemUserName());
+	}
+
+	/**
+	 * Sizes the documents directly in one folder and forks a task for each subfolder
+	 */
+	private class FolderSizeTask extends RecursiveTask<Long>
+	{
+		private static final long serialVersionUID = 1L;
+		private final NodeRef folder;
+		private final SubtreeSizes sizes;
+
+		private FolderSizeTask(NodeRef folder, SubtreeSizes sizes)
+		{
+			this.folder = folder;
+			this.sizes = sizes;
+		}
+
+		@Override
+		protected Long compute()
+		{
+			List<NodeRef> subFolders = new ArrayList<NodeRef>();
+			long size = listFolder(folder, subFolders);
+
+			if (!subFolders.isEmpty())
+			{
+				List<FolderSizeTask> tasks = new ArrayList<FolderSizeTask>(subFolders.size());
+				for (NodeRef subFolder : subFolders)
+				{
+					tasks.add(new FolderSizeTask(subFolder, sizes));
+				}
+				invokeAll(tasks);
+				for (FolderSizeTask task : tasks)
+				{
+					size += task.join();
+				}
+			}
+			if (sizes != null)
+			{
+				sizes.put(folder, size);
+			}
+			return size;
+		}
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	public void setFileFolderService(FileFolderService fileFolderService)
+	{
+		this.fileFolderService = fileFolderService;
+	}
+
+	/**
+	 * Sizes on virtual threads when they are enabled and supported
+	 *
+	 * @param virtualThreads
+	 */
+	public void setVirtualThreadExecutor(VirtualThreadExecutor virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets the store that keeps the subtree size of each folder sized
+	 *
+	 * @param subtreeSizes
+	 */
+	public void setFolderSubtreeSizeStore(FolderSubtreeSizeStore subtreeSizes)
+	{
+		this.subtreeSizes = subtreeSizes;
+	}
+
+	/**
+	 * Number of threads sizing folders at once
+	 *
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Number of children listed per page, also the number of folder sizes stored at once
+	 *
+	 * @param pageSize
+	 */
+	public void setPageSize(int pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Milliseconds to wait on shutdown for sizing under way to finish
+	 *
+	 * @param shutdownTimeout
+	 */
+	public void setShutdownTimeout(long shutdownTimeout)
+	{
+		this.shutdownTimeout = shutdownTimeout;
+	}
+}
@@ -0,0 +1,663 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Resolves the nearest quota folder above a node, with a bounded cache
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.extension.folderquota.metrics.FolderQuotaMetrics;
+import org.alfresco.extension.folderquota.metrics.FolderQuotaMetrics.Metric;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.DefaultSimpleCache;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds the nearest ancestor (or self) with the fq:quota aspect.  Every node visited on
+ * the way up is cached against the answer, including a negative entry when there is no
+ * quota ancestor at all, so the next lookup in the same part of the tree stops at the
+ * first cached parent instead of walking to the root.
+ * <p>
+ * Quota folders can be nested.  For each quota folder the next quota folder out and its
+ * fq:sizeQuota are cached as well, so the whole chain of quotas above a node, with their
+ * limits, comes from memory once it has been resolved.
+ * <p>
+ * Every cached answer is tagged with the generation of the quota layout it was worked
+ * out under, and only answers of the current generation are used.  Adding or removing
+ * fq:quota or moving a folder into a different quota folder starts a new generation: it is written to the AttributeService in the transaction
+ * making the change, so it commits with it on every server, and the cached copy of it is
+ * removed after commit from the generation cache, which is invalidated across the
+ * cluster.  A lookup reads the generation before it walks, so an answer worked out from
+ * the old layout while the change commits is tagged with the old generation and never
+ * used.  The generation is read in a transaction of its own, so a long-running
+ * transaction cannot put back a generation that has already been replaced.  The transaction making the change does not use the cache at all.  Moving a
+ * folder within its quota folder, renaming, and moving or deleting a document only drop
+ * that node's own entry, since everything below a folder keeps the same nearest quota
+ * folder and every quota folder below it the same next one out.
+ * <p>
+ * Quota limits are tagged with a generation of their own, which changing a limit starts
+ * anew in the same way.  A limit change does not move anything to a different quota
+ * folder, so it leaves the layout generation, and with it the fq:managedFolder stamps
+ * that are kept up to date against it, alone.
+ * <p>
+ * When folder trees are cached, the primary parent of each folder is cached too, for
+ * listing the folders between a folder and its quota folder.  Those entries are tagged
+ * with a second generation, of the folder tree, which any folder moving to a different
+ * parent starts anew in the same way.
+ * <p>
+ * The answers themselves are kept in bounded local caches, so looking them up takes no
+ * lock and no cluster traffic.
+ */
+public class QuotaAncestorResolver
+{
+	private static Log logger = LogFactory.getLog(QuotaAncestorResolver.class);
+
+	/** Cached value for "no quota ancestor", NodeRef has no null-safe sentinel of its own */
+	private static final NodeRef NO_QUOTA = new NodeRef("none://none/none");
+
+	private static final String LAYOUT_NAME_SPACE = "..FOLDER_QUOTA_LAYOUT..";
+	private static final String GENERATION_KEY = "generation";
+	private static final String TREE_GENERATION_KEY = "tree";
+	private static final String LIMIT_GENERATION_KEY = "limits";
+	private static final String KEY_LAYOUT_CHANGED = QuotaAncestorResolver.class.getName() + ".layoutChanged";
+	private static final String KEY_TREE_CHANGED = QuotaAncestorResolver.class.getName() + ".treeChanged";
+	private static final String KEY_LIMITS_CHANGED = QuotaAncestorResolver.class.getName() + ".limitsChanged";
+
+	private NodeService nodeService;
+	private DictionaryService dictionaryService;
+	private AttributeService attributeService;
+	private TransactionService transactionService;
+	private int cacheSize = 10000;
+	private boolean folderTreeCached = false;
+	private FolderQuotaMetrics metrics = new FolderQuotaMetrics();
+	private SimpleCache<NodeRef, CachedAncestor> cache;
+	private SimpleCache<NodeRef, QuotaFolderInfo> quotaFolders;
+	private SimpleCache<NodeRef, CachedParent> parents;
+	private SimpleCache<String, String> generations;
+
+	/**
+	 * The nearest quota folder of a node, NO_QUOTA if it has none
+	 */
+	private static class CachedAncestor
+	{
+		final NodeRef quotaFolder;
+		final String generation;
+
+		CachedAncestor(NodeRef quotaFolder, String generation)
+		{
+			this.quotaFolder = quotaFolder;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * The next quota folder out from a quota folder, and the folder's own limit, each
+	 * tagged with the generation it was read under
+	 */
+	private static class QuotaFolderInfo
+	{
+		final NodeRef outer;
+		final Long limit;
+		final String generation;
+		final String limitGeneration;
+
+		QuotaFolderInfo(NodeRef outer, Long limit, String generation, String limitGeneration)
+		{
+			this.outer = outer;
+			this.limit = limit;
+			this.generation = generation;
+			this.limitGeneration = limitGeneration;
+		}
+	}
+
+	/**
+	 * The primary parent of a folder, null for the root
+	 */
+	private static class CachedParent
+	{
+		final NodeRef parent;
+		final String generation;
+
+		CachedParent(NodeRef parent, String generation)
+		{
+			this.parent = parent;
+			this.generation = generation;
+		}
+	}
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final ConcurrentMap<String, String> localGenerations = new ConcurrentHashMap<String, String>();
+
+	private final TransactionListenerAdapter newGenerationAfterCommit = new NewGenerationAfterCommit(GENERATION_KEY, KEY_LAYOUT_CHANGED);
+	private final TransactionListenerAdapter newTreeGenerationAfterCommit = new NewGenerationAfterCommit(TREE_GENERATION_KEY, KEY_TREE_CHANGED);
+	private final TransactionListenerAdapter newLimitGenerationAfterCommit = new NewGenerationAfterCommit(LIMIT_GENERATION_KEY, KEY_LIMITS_CHANGED);
+
+	/**
+	 * Drops the cached copy of a generation once the transaction changing it has committed,
+	 * and publishes the new one if it is only known to this server
+	 */
+	private class NewGenerationAfterCommit extends TransactionListenerAdapter
+	{
+		private final String key;
+		private final String changedKey;
+
+		NewGenerationAfterCommit(String key, String changedKey)
+		{
+			this.key = key;
+			this.changedKey = changedKey;
+		}
+
+		@Override
+		public void afterCommit()
+		{
+			if (attributeService == null)
+			{
+				localGenerations.put(key, (String) AlfrescoTransactionSupport.getResource(changedKey));
+			}
+			generations.remove(key);
+		}
+	}
+
+	/**
+	 * Creates the caches of answers, and a local generation cache if none has been set
+	 */
+	public void init()
+	{
+		cache = new DefaultSimpleCache<NodeRef, CachedAncestor>(cacheSize, "folderQuotaAncestorCache");
+		quotaFolders = new DefaultSimpleCache<NodeRef, QuotaFolderInfo>(cacheSize, "folderQuotaFolderCache");
+		parents = new DefaultSimpleCache<NodeRef, CachedParent>(cacheSize, "folderQuotaParentCache");
+		if (generations == null)
+		{
+			generations = new DefaultSimpleCache<String, String>(10, "folderQuotaLayoutGenerationCache");
+		}
+	}
+
+	/**
+	 * Searches up the parent-child chain, looking for a folder with the quota aspect
+	 * applied.  If one is found, it is returned.  If one is not found, return null
+	 *
+	 * @param nodeRef
+	 * @return
+	 */
+	public NodeRef getQuotaAncestor(NodeRef nodeRef)
+	{
+		if (nodeRef == null)
+		{
+			return null;
+		}
+		String generation = getGeneration();
+		NodeRef cached = get(nodeRef, generation);
+		if (cached != null)
+		{
+			hits.incrementAndGet();
+			metrics.record(Metric.PARENT_LOOKUP_DEPTH, 0L);
+			return NO_QUOTA.equals(cached) ? null : cached;
+		}
+		//one miss per lookup, however many levels it walks
+		misses.incrementAndGet();
+		if (!nodeService.exists(nodeRef))
+		{
+			logger.debug("[FolderQuota] - Found non-existent nodeRef, returning null");
+			return null;
+		}
+
+		List<NodeRef> visited = new ArrayList<NodeRef>();
+		NodeRef current = nodeRef;
+		NodeRef result = null;
+		while (current != null)
+		{
+			if (current != nodeRef)
+			{
+				cached = get(current, generation);
+				if (cached != null)
+				{
+					result = NO_QUOTA.equals(cached) ? null : cached;
+					break;
+				}
+			}
+			visited.add(current);
+			if (nodeService.hasAspect(current, FolderQuotaConstants.ASPECT_FQ_QUOTA))
+			{
+				result = current;
+				break;
+			}
+			ChildAssociationRef parentAssoc = nodeService.getPrimaryParent(current);
+			current = parentAssoc == null ? null : parentAssoc.getParentRef();
+		}
+
+		if (generation != null)
+		{
+			CachedAncestor value = new CachedAncestor(result == null ? NO_QUOTA : result, generation);
+			for (NodeRef node : visited)
+			{
+				put(cache, node, value);
+			}
+		}
+		metrics.record(Metric.PARENT_LOOKUP_DEPTH, visited.size());
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("[FolderQuota] - Resolved quota folder %s for %s, walked %s levels", result, nodeRef, visited.size()));
+		}
+		return result;
+	}
+
+	/**
+	 * Lists a quota folder and every quota folder it is nested in, nearest first
+	 *
+	 * @param quotaFolder
+	 * @return the chain of quota folders, starting with quotaFolder
+	 */
+	public List<NodeRef> getQuotaChain(NodeRef quotaFolder)
+	{
+		List<NodeRef> chain = new ArrayList<NodeRef>(2);
+		NodeRef current = quotaFolder;
+		while (current != null)
+		{
+			chain.add(current);
+			current = getQuotaFolderInfo(current, false).outer;
+		}
+		return chain;
+	}
+
+	/**
+	 * @param quotaFolder
+	 * @return the folder's fq:sizeQuota, or null if no limit has been set
+	 */
+	public Long getQuotaLimit(NodeRef quotaFolder)
+	{
+		return getQuotaFolderInfo(quotaFolder, true).limit;
+	}
+
+	/**
+	 * Lists a folder and the folders above it, nearest first, up to but not including one
+	 * of its ancestors.  Parents come from the cache when folder trees are cached.
+	 *
+	 * @param folder
+	 * @param ancestor
+	 * @return the folders in between, or null if ancestor is not above folder
+	 */
+	public List<NodeRef> getFoldersBelow(NodeRef folder, NodeRef ancestor)
+	{
+		String generation = folderTreeCached ? getGeneration(TREE_GENERATION_KEY, KEY_TREE_CHANGED) : null;
+		List<NodeRef> folders = new ArrayList<NodeRef>();
+		NodeRef current = folder;
+		while (current != null && !current.equals(ancestor))
+		{
+			folders.add(current);
+			current = getParent(current, generation);
+		}
+		return current == null ? null : folders;
+	}
+
+	private NodeRef getParent(NodeRef folder, String generation)
+	{
+		if (generation != null)
+		{
+			CachedParent cached = parents.get(folder);
+			if (cached != null && cached.generation.equals(generation))
+			{
+				return cached.parent;
+			}
+		}
+		ChildAssociationRef parentAssoc = nodeService.getPrimaryParent(folder);
+		NodeRef parent = parentAssoc == null ? null : parentAssoc.getParentRef();
+		if (generation != null)
+		{
+			put(parents, folder, new CachedParent(parent, generation));
+		}
+		return parent;
+	}
+
+	/**
+	 * @param quotaFolder
+	 * @param withLimit whether the limit is needed, or only the next quota folder out
+	 */
+	private QuotaFolderInfo getQuotaFolderInfo(NodeRef quotaFolder, boolean withLimit)
+	{
+		String generation = getGeneration();
+		String limitGeneration = getGeneration(LIMIT_GENERATION_KEY, KEY_LIMITS_CHANGED);
+		QuotaFolderInfo cached = generation == null ? null : quotaFolders.get(quotaFolder);
+		if (cached != null && !cached.generation.equals(generation))
+		{
+			cached = null;
+		}
+		boolean limitCurrent = cached != null && limitGeneration != null && cached.limitGeneration.equals(limitGeneration);
+		if (cached != null && (limitCurrent || !withLimit))
+		{
+			return cached;
+		}
+
+		NodeRef outer;
+		if (cached == null)
+		{
+			ChildAssociationRef parentAssoc = nodeService.getPrimaryParent(quotaFolder);
+			NodeRef parent = parentAssoc == null ? null : parentAssoc.getParentRef();
+			outer = parent == null ? null : getQuotaAncestor(parent);
+		}
+		else
+		{
+			//only the limit has changed
+			outer = cached.outer;
+		}
+		Long limit = (Long) nodeService.getProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_QUOTA);
+		QuotaFolderInfo info = new QuotaFolderInfo(outer, limit, generation, limitGeneration);
+		if (generation != null && limitGeneration != null)
+		{
+			put(quotaFolders, quotaFolder, info);
+		}
+		return info;
+	}
+
+	private NodeRef get(NodeRef nodeRef, String generation)
+	{
+		CachedAncestor cached = generation == null ? null : cache.get(nodeRef);
+		if (cached == null || !cached.generation.equals(generation))
+		{
+			return null;
+		}
+		return cached.quotaFolder;
+	}
+
+	/**
+	 * Puts an entry in one of the bounded caches, counting an eviction when a new entry
+	 * leaves the cache no bigger than it was.  Concurrent puts can blur the count a little.
+	 */
+	private <V> void put(SimpleCache<NodeRef, V> target, NodeRef key, V value)
+	{
+		boolean added = !target.contains(key);
+		int before = target.getKeys().size();
+		target.put(key, value);
+		if (added && target.getKeys().size() <= before)
+		{
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Must be called in a transaction
+	 *
+	 * @return the current generation of the quota layout, or null if this transaction
+	 * has changed it and must not use anything cached
+	 */
+	public String getGeneration()
+	{
+		return getGeneration(GENERATION_KEY, KEY_LAYOUT_CHANGED);
+	}
+
+	private String getGeneration(String key, String changedKey)
+	{
+		if (AlfrescoTransactionSupport.getResource(changedKey) != null)
+		{
+			return null;
+		}
+		String generation = generations.get(key);
+		if (generation == null)
+		{
+			generation = attributeService == null ? localGenerations.get(key) : readGeneration(key);
+			if (generation == null)
+			{
+				//no change has been made yet
+				generation = "";
+			}
+			generations.put(key, generation);
+		}
+		return generation;
+	}
+
+	/**
+	 * Reads the committed generation in a new transaction: the caller's may have started
+	 * before the latest change committed, and whatever is read here goes into the shared
+	 * generation cache
+	 */
+	private String readGeneration(final String key)
+	{
+		if (transactionService == null)
+		{
+			return (String) attributeService.getAttribute(LAYOUT_NAME_SPACE, key);
+		}
+		return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<String>()
+		{
+			public String execute() throws Throwable
+			{
+				return (String) attributeService.getAttribute(LAYOUT_NAME_SPACE, key);
+			}
+		}, true, true);
+	}
+
+	/**
+	 * Starts a new generation once the transaction commits; until then the transaction
+	 * itself bypasses the entries tagged with it
+	 */
+	private void newGeneration(String key, String changedKey, TransactionListenerAdapter afterCommit)
+	{
+		String generation = GUID.generate();
+		AlfrescoTransactionSupport.bindResource(changedKey, generation);
+		if (attributeService != null)
+		{
+			attributeService.setAttribute(generation, LAYOUT_NAME_SPACE, key);
+		}
+		AlfrescoTransactionSupport.bindListener(afterCommit);
+	}
+
+	/**
+	 * Called when a node is moved to a different parent, after the move.  Only a folder
+	 * moved into a different quota folder changes the answer for anything but itself; that
+	 * starts a new generation like a quota change.  Otherwise only the moved node's entry is
+	 * dropped.  A moved folder also starts a new generation of the folder tree, if it is
+	 * cached.
+	 *
+	 * @param nodeRef the moved node
+	 * @param parentBefore its parent before the move
+	 * @param parentAfter its parent after the move
+	 */
+	public void invalidateMoved(NodeRef nodeRef, NodeRef parentBefore, NodeRef parentAfter)
+	{
+		invalidate(nodeRef);
+		if (!nodeService.exists(nodeRef) || !dictionaryService.isSubClass(nodeService.getType(nodeRef), ContentModel.TYPE_FOLDER))
+		{
+			return;
+		}
+		if (folderTreeCached)
+		{
+			newGeneration(TREE_GENERATION_KEY, KEY_TREE_CHANGED, newTreeGenerationAfterCommit);
+		}
+		//neither parent is below the moved folder, so their cached answers still hold
+		NodeRef quotaBefore = getQuotaAncestor(parentBefore);
+		NodeRef quotaAfter = getQuotaAncestor(parentAfter);
+		if (quotaBefore == null ? quotaAfter != null : !quotaBefore.equals(quotaAfter))
+		{
+			invalidateQuotaChange();
+		}
+	}
+
+	/**
+	 * Called when fq:quota is added or removed inside the transaction making the change.  Starts a new generation of the quota layout once the
+	 * transaction commits; until then the transaction itself bypasses the cache.
+	 */
+	public void invalidateQuotaChange()
+	{
+		newGeneration(GENERATION_KEY, KEY_LAYOUT_CHANGED, newGenerationAfterCommit);
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Called when a quota limit changes, inside the transaction making the change.  Starts
+	 * a new generation of the quota limits once the transaction commits; the layout
+	 * generation, and so the fq:managedFolder stamps, are unaffected.
+	 */
+	public void invalidateLimitChange()
+	{
+		newGeneration(LIMIT_GENERATION_KEY, KEY_LIMITS_CHANGED, newLimitGenerationAfterCommit);
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Drops the entry for a single node, e.g. when it is deleted
+	 *
+	 * @param nodeRef
+	 */
+	public void invalidate(NodeRef nodeRef)
+	{
+		cache.remove(nodeRef);
+		quotaFolders.remove(nodeRef);
+		parents.remove(nodeRef);
+	}
+
+	/**
+	 * Empties this server's caches
+	 */
+	public void invalidateAll()
+	{
+		cache.clear();
+		quotaFolders.clear();
+		parents.clear();
+		generations.clear();
+	}
+
+	/**
+	 * @return number of lookups answered straight from the cache
+	 */
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups that walked up the tree, whether or not the walk ended at
+	 * a cached ancestor
+	 */
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return number of entries pushed out of the caches by newer ones
+	 */
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of quota layout and quota limit changes made on this server since startup
+	 */
+	public long getInvalidationCount()
+	{
+		return invalidations.get();
+	}
+
+	public int getCacheSize()
+	{
+		return cache.getKeys().size();
+	}
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setDictionaryService(DictionaryService dictionaryService)
+	{
+		this.dictionaryService = dictionaryService;
+	}
+
+	/**
+	 * Sets the AttributeService holding the quota layout generation.  Without it the
+	 * generation is only known to this server, which is enough for a single server.
+	 *
+	 * @param attributeService
+	 */
+	public void setAttributeService(AttributeService attributeService)
+	{
+		this.attributeService = attributeService;
+	}
+
+	/**
+	 * Sets the TransactionService the generation is read with.  Without it the generation
+	 * is read in the caller's transaction.
+	 *
+	 * @param transactionService
+	 */
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * Sets the cache holding the current quota layout generation.  In a cluster it must be
+	 * invalidated across the servers; a local cache is created when none is set.
+	 *
+	 * @param generations
+	 */
+	public void setGenerationCache(SimpleCache<String, String> generations)
+	{
+		this.generations = generations;
+	}
+
+	/**
+	 * Maximum number of nodes kept in the caches created when none are set
+	 *
+	 * @param cacheSize
+	 */
+	public void setCacheSize(int cacheSize)
+	{
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Whether to cache the parent of each folder for getFoldersBelow, which also makes
+	 * every folder move write a new generation of the folder tree.  Only needed for the
+	 * subtree sizes.
+	 *
+	 * @param folderTreeCached
+	 */
+	public void setFolderTreeCached(boolean folderTreeCached)
+	{
+		this.folderTreeCached = folderTreeCached;
+	}
+
+	/**
+	 * Records how many levels each lookup walked, 0 for a cache hit
+	 *
+	 * @param metrics
+	 */
+	public void setFolderQuotaMetrics(FolderQuotaMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+}
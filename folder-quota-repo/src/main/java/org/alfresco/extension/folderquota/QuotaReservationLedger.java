@@ -0,0 +1,317 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * In-memory usage ledger used to admit uploads against a folder quota
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.extension.folderquota.counter.QuotaCounterStore;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Admits uploads against a folder quota before fq:sizeCurrent has caught up with earlier
+ * commits.  The committed usage of each folder comes from a {@link QuotaCounterStore},
+ * which includes changes not yet written to fq:sizeCurrent (and, with the clustered
+ * store, those made on other servers).  Uploads still in flight on this server are held
+ * here as reservations.
+ * <p>
+ * An upload reserves its bytes with a compare-and-set on the folder's reservations
+ * against the limit, so concurrent uploads can never reserve more than the quota between
+ * them and none of them waits on a database row.  When the transaction commits the
+ * reservation moves into the counter store; when it rolls back it is given back.  Other
+ * changes (deletes, moves, initial sizing) need no admission and go to the counter store
+ * once their transaction has committed.
+ */
+public class QuotaReservationLedger
+{
+	private static Log logger = LogFactory.getLog(QuotaReservationLedger.class);
+
+	private static final String KEY_PENDING = QuotaReservationLedger.class.getName() + ".pending";
+
+	private QuotaCounterStore counterStore;
+
+	private final ConcurrentMap<NodeRef, AtomicLong> reserved = new ConcurrentHashMap<NodeRef, AtomicLong>();
+
+	private final AtomicLong reservations = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private final AtomicLong releases = new AtomicLong();
+
+	/**
+	 * Changes made by one transaction
+	 */
+	private static class PendingChanges
+	{
+		final Map<NodeRef, Long> reserved = new HashMap<NodeRef, Long>();
+		final Map<NodeRef, Long> onCommit = new HashMap<NodeRef, Long>();
+		final Map<NodeRef, Long> resets = new HashMap<NodeRef, Long>();
+	}
+
+	private final TransactionListenerAdapter transactionListener = new TransactionListenerAdapter()
+	{
+		@Override
+		public void afterCommit()
+		{
+			PendingChanges pending = (PendingChanges) AlfrescoTransactionSupport.getResource(KEY_PENDING);
+			for (Map.Entry<NodeRef, Long> entry : pending.resets.entrySet())
+			{
+				counterStore.reset(entry.getKey(), entry.getValue());
+			}
+			//committed usage goes up before the reservation comes off, never the other way round
+			for (Map.Entry<NodeRef, Long> entry : pending.reserved.entrySet())
+			{
+				counterStore.add(entry.getKey(), entry.getValue());
+				getReservedCounter(entry.getKey()).addAndGet(-entry.getValue());
+			}
+			for (Map.Entry<NodeRef, Long> entry : pending.onCommit.entrySet())
+			{
+				counterStore.add(entry.getKey(), entry.getValue());
+			}
+		}
+
+		@Override
+		public void afterRollback()
+		{
+			PendingChanges pending = (PendingChanges) AlfrescoTransactionSupport.getResource(KEY_PENDING);
+			for (Map.Entry<NodeRef, Long> entry : pending.reserved.entrySet())
+			{
+				getReservedCounter(entry.getKey()).addAndGet(-entry.getValue());
+				releases.incrementAndGet();
+			}
+		}
+	};
+
+	/**
+	 * Reserves space in a quota folder for the current transaction.  Must be called in
+	 * a transaction.
+	 *
+	 * @param quotaFolder
+	 * @param bytes size of the upload
+	 * @param limit the folder's quota
+	 * @return false, reserving nothing, if the upload would take the folder over its quota
+	 */
+	public boolean reserve(NodeRef quotaFolder, long bytes, long limit)
+	{
+		AtomicLong inFlight = getReservedCounter(quotaFolder);
+		long committed;
+		long current;
+		do
+		{
+			//reservations are read before the committed usage: a commit in between is then
+			//counted twice rather than not at all, and moves the counter so the CAS retries
+			current = inFlight.get();
+			committed = counterStore.getUsage(quotaFolder);
+			if (committed + current + bytes > limit)
+			{
+				rejections.incrementAndGet();
+				if (logger.isDebugEnabled())
+				{
+					logger.debug(String.format("[FolderQuota] - Refused %s bytes in %s, %s committed and %s reserved of %s", bytes, quotaFolder, committed, current, limit));
+				}
+				return false;
+			}
+		}
+		while (!inFlight.compareAndSet(current, current + bytes));
+		add(getPendingChanges().reserved, quotaFolder, bytes);
+		reservations.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Reserves space at every level of a chain of nested quota folders, or at none of
+	 * them.  Levels without a limit are not checked but still count the upload once the
+	 * transaction commits.
+	 *
+	 * @param quotaFolders the quota folders, nearest first
+	 * @param bytes size of the upload
+	 * @param limits the quota of each folder, null for no limit
+	 * @return null if reserved, otherwise the first quota folder the upload would take
+	 * over its quota (nothing is reserved)
+	 */
+	public NodeRef reserve(List<NodeRef> quotaFolders, long bytes, List<Long> limits)
+	{
+		for (int i = 0; i < quotaFolders.size(); i++)
+		{
+			Long limit = limits.get(i);
+			if (limit != null && !reserve(quotaFolders.get(i), bytes, limit))
+			{
+				//give back the levels already reserved
+				for (int j = 0; j < i; j++)
+				{
+					if (limits.get(j) != null)
+					{
+						getReservedCounter(quotaFolders.get(j)).addAndGet(-bytes);
+						add(getPendingChanges().reserved, quotaFolders.get(j), -bytes);
+					}
+				}
+				return quotaFolders.get(i);
+			}
+		}
+		for (int i = 0; i < quotaFolders.size(); i++)
+		{
+			if (limits.get(i) == null)
+			{
+				adjust(quotaFolders.get(i), bytes);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records a change that needs no admission, applied when the current transaction
+	 * commits.  Must be called in a transaction.
+	 *
+	 * @param quotaFolder
+	 * @param delta
+	 */
+	public void adjust(NodeRef quotaFolder, long delta)
+	{
+		if (delta != 0L)
+		{
+			add(getPendingChanges().onCommit, quotaFolder, delta);
+		}
+	}
+
+	/**
+	 * Applies an already committed change, e.g. the initial size of a new quota folder
+	 * calculated in the background.  Call once the change has been handed on to be written,
+	 * or before if the hand-off cannot fail.
+	 *
+	 * @param quotaFolder
+	 * @param delta
+	 */
+	public void addCommitted(NodeRef quotaFolder, long delta)
+	{
+		counterStore.add(quotaFolder, delta);
+	}
+
+	/**
+	 * Sets the usage of a folder once the current transaction commits, e.g. after it has
+	 * been recalculated from scratch
+	 *
+	 * @param quotaFolder
+	 * @param size
+	 */
+	public void reset(NodeRef quotaFolder, long size)
+	{
+		getPendingChanges().resets.put(quotaFolder, size);
+	}
+
+	/**
+	 * Forgets a folder's committed usage, it is loaded again next time it is needed
+	 *
+	 * @param quotaFolder
+	 */
+	public void invalidate(NodeRef quotaFolder)
+	{
+		counterStore.invalidate(quotaFolder);
+	}
+
+	/**
+	 * Must be called in a transaction
+	 *
+	 * @param quotaFolder
+	 * @return committed usage of the folder plus uploads still in flight on this server
+	 */
+	public long getUsage(NodeRef quotaFolder)
+	{
+		return counterStore.getUsage(quotaFolder) + getReserved(quotaFolder);
+	}
+
+	/**
+	 * @param quotaFolder
+	 * @return bytes reserved by uploads to the folder still in flight on this server
+	 */
+	public long getReserved(NodeRef quotaFolder)
+	{
+		AtomicLong inFlight = reserved.get(quotaFolder);
+		return inFlight == null ? 0L : inFlight.get();
+	}
+
+	private AtomicLong getReservedCounter(NodeRef quotaFolder)
+	{
+		AtomicLong inFlight = reserved.get(quotaFolder);
+		if (inFlight == null)
+		{
+			AtomicLong created = new AtomicLong();
+			inFlight = reserved.putIfAbsent(quotaFolder, created);
+			if (inFlight == null)
+			{
+				inFlight = created;
+			}
+		}
+		return inFlight;
+	}
+
+	private PendingChanges getPendingChanges()
+	{
+		PendingChanges pending = (PendingChanges) AlfrescoTransactionSupport.getResource(KEY_PENDING);
+		if (pending == null)
+		{
+			pending = new PendingChanges();
+			AlfrescoTransactionSupport.bindResource(KEY_PENDING, pending);
+			AlfrescoTransactionSupport.bindListener(transactionListener);
+		}
+		return pending;
+	}
+
+	private static void add(Map<NodeRef, Long> changes, NodeRef quotaFolder, long delta)
+	{
+		Long total = changes.get(quotaFolder);
+		changes.put(quotaFolder, total == null ? delta : total + delta);
+	}
+
+	public long getReservationCount()
+	{
+		return reservations.get();
+	}
+
+	public long getRejectionCount()
+	{
+		return rejections.get();
+	}
+
+	public long getReleaseCount()
+	{
+		return releases.get();
+	}
+
+	public int getFolderCount()
+	{
+		return reserved.size();
+	}
+
+	/**
+	 * Holds the committed usage of each folder
+	 *
+	 * @param counterStore
+	 */
+	public void setQuotaCounterStore(QuotaCounterStore counterStore)
+	{
+		this.counterStore = counterStore;
+	}
+}
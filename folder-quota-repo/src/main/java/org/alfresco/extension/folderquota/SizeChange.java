@@ -1,15 +1,23 @@
 package org.alfresco.extension.folderquota;
 
-import org.alfresco.service.cmr.repository.NodeRef;
-
 /**
- * Tiny class that encapsulates the size change (quota folder ref and size delta)
+ * Tiny class that encapsulates the size change (quota folder node id and size delta).
+ * The folder is held by its database node id rather than its NodeRef, so a change costs
+ * two longs; the NodeRef is looked up when the change is written.
  */
 public class SizeChange {
-	public NodeRef nodeRef;
+	public long nodeId;
 	public long sizeChange;
-	public SizeChange(NodeRef nodeRef,long sizeChange) {
-		this.nodeRef = nodeRef;
+	public SizeChange(long nodeId,long sizeChange) {
+		this.nodeId = nodeId;
 		this.sizeChange = sizeChange;
 	}
+	
+	/**
+	 * Folds another delta for the same quota folder into this one, so a transaction
+	 * touching many files only carries a single change per folder
+	 */
+	public void add(long delta) {
+		this.sizeChange += delta;
+	}
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Optional virtual thread executor for database-bound quota work
+ */
+package org.alfresco.extension.folderquota;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs quota work that spends most of its time waiting on the database (size updates,
+ * subtree listing) on virtual threads, one per task, when the JVM supports them.  The
+ * number of threads is then no limit on throughput; what is limited is the number of
+ * tasks inside a transaction at once, by a semaphore that should be sized to leave room
+ * in the repository's connection pool (db.pool.max) for everything else.
+ * <p>
+ * Off by default.  The module is built for older runtimes, so virtual threads are looked
+ * up by reflection; when they are not there {@link #isAvailable()} is false and the
+ * users of this class keep their platform thread pools.
+ */
+public class VirtualThreadExecutor
+{
+	private static Log logger = LogFactory.getLog(VirtualThreadExecutor.class);
+
+	private boolean enabled = false;
+	private int maxConcurrency = 20;
+	private ExecutorService executor;
+	private Semaphore permits;
+
+	public void init()
+	{
+		permits = new Semaphore(maxConcurrency, true);
+		if (!enabled)
+		{
+			return;
+		}
+		executor = createExecutor("FolderQuotaVirtual-");
+		if (executor == null)
+		{
+			logger.warn("[FolderQuota] - Virtual threads are enabled but not supported by this JVM, using the platform thread pools");
+		}
+		else
+		{
+			logger.info(String.format("[FolderQuota] - Virtual thread executor started, at most %s tasks in the database at once", maxConcurrency));
+		}
+	}
+
+	public void destroy()
+	{
+		if (executor != null)
+		{
+			executor.shutdown();
+			try
+			{
+				executor.awaitTermination(30, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Thread.ofVirtual().name(prefix, 0).factory() passed to
+	 * Executors.newThreadPerTaskExecutor, or null before Java 21
+	 */
+	private static ExecutorService createExecutor(String prefix)
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newExecutor.invoke(null, factory);
+		}
+		catch (Exception e)
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("[FolderQuota] - Virtual threads not available", e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if virtual threads are enabled and supported, otherwise callers should
+	 * use their own thread pools
+	 */
+	public boolean isAvailable()
+	{
+		return executor != null;
+	}
+
+	/**
+	 * Starts a task on a new virtual thread.  The task should hold a permit only while it
+	 * is in a transaction.
+	 *
+	 * @param task
+	 */
+	public void execute(Runnable task)
+	{
+		executor.execute(task);
+	}
+
+	/**
+	 * Waits for a permit to open a transaction
+	 */
+	public void acquire()
+	{
+		permits.acquireUninterruptibly();
+	}
+
+	public void release()
+	{
+		permits.release();
+	}
+
+	public int getMaxConcurrency()
+	{
+		return maxConcurrency;
+	}
+
+	/**
+	 * @return number of tasks in a transaction now
+	 */
+	public int getActiveCount()
+	{
+		return maxConcurrency - permits.availablePermits();
+	}
+
+	/**
+	 * @return number of tasks waiting for a permit
+	 */
+	public int getWaitingCount()
+	{
+		return permits.getQueueLength();
+	}
+
+	/**
+	 * Use virtual threads if the JVM supports them
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Maximum number of tasks in a transaction at once, keep it well under db.pool.max
+	 *
+	 * @param maxConcurrency
+	 */
+	public void setMaxConcurrency(int maxConcurrency)
+	{
+		this.maxConcurrency = maxConcurrency;
+	}
+}
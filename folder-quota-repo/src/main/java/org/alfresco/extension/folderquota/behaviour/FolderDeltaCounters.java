@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Concurrent per-folder size deltas that only hold folders with a change pending
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Net size delta per folder, safe for concurrent use without a lock.  A folder's entry
+ * is removed as soon as its delta is back to zero, so the map only ever holds the
+ * folders with a change pending, however many folders have been changed since startup.
+ * <p>
+ * A counter that has reached zero is never changed again: a delta for its folder
+ * replaces it with a new counter instead.  That makes it safe to remove a zero counter
+ * at any time, since nothing can be added to it after it has been seen at zero.
+ */
+class FolderDeltaCounters
+{
+    private final ConcurrentMap<NodeRef, AtomicLong> counters = new ConcurrentHashMap<NodeRef, AtomicLong>();
+
+    /**
+     * @param folder
+     * @param delta
+     */
+    void add(NodeRef folder, long delta)
+    {
+        if (delta == 0L)
+        {
+            return;
+        }
+        while (true)
+        {
+            AtomicLong counter = counters.get(folder);
+            if (counter == null)
+            {
+                counter = counters.putIfAbsent(folder, new AtomicLong(delta));
+                if (counter == null)
+                {
+                    return;
+                }
+            }
+            if (add(folder, counter, delta))
+            {
+                return;
+            }
+            //the counter was at zero and has been replaced or removed, start again
+        }
+    }
+
+    private boolean add(NodeRef folder, AtomicLong counter, long delta)
+    {
+        while (true)
+        {
+            long value = counter.get();
+            if (value == 0L)
+            {
+                return counters.replace(folder, counter, new AtomicLong(delta));
+            }
+            if (counter.compareAndSet(value, value + delta))
+            {
+                if (value + delta == 0L)
+                {
+                    counters.remove(folder, counter);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds every change in a map
+     *
+     * @param changes
+     * @param sign 1 to add the changes, -1 to take them off
+     */
+    void addAll(Map<NodeRef, Long> changes, long sign)
+    {
+        for (Map.Entry<NodeRef, Long> change : changes.entrySet())
+        {
+            add(change.getKey(), sign * change.getValue());
+        }
+    }
+
+    /**
+     * Takes the delta of every folder and removes their entries.  Deltas added meanwhile
+     * are either taken or kept for the next call, never lost.
+     *
+     * @return net delta per folder
+     */
+    Map<NodeRef, Long> takeAll()
+    {
+        Map<NodeRef, Long> changes = new HashMap<NodeRef, Long>();
+        for (Map.Entry<NodeRef, AtomicLong> entry : counters.entrySet())
+        {
+            long delta = entry.getValue().getAndSet(0L);
+            counters.remove(entry.getKey(), entry.getValue());
+            if (delta != 0L)
+            {
+                //a folder removed and added again meanwhile can come round twice
+                Long taken = changes.get(entry.getKey());
+                changes.put(entry.getKey(), taken == null ? delta : taken + delta);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @param folder
+     * @return the folder's net delta
+     */
+    long get(NodeRef folder)
+    {
+        AtomicLong counter = counters.get(folder);
+        return counter == null ? 0L : counter.get();
+    }
+
+    /**
+     * @return number of entries held, including any on their way out
+     */
+    int size()
+    {
+        return counters.size();
+    }
+
+    /**
+     * @return number of folders with a non-zero delta
+     */
+    int getFolderCount()
+    {
+        int count = 0;
+        for (AtomicLong counter : counters.values())
+        {
+            if (counter.get() != 0L)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of the absolute deltas
+     */
+    long getAbsoluteTotal()
+    {
+        long total = 0L;
+        for (AtomicLong counter : counters.values())
+        {
+            total += Math.abs(counter.get());
+        }
+        return total;
+    }
+}
@@ -23,16 +23,31 @@
  */
 package org.alfresco.extension.folderquota.behaviour;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ThreadPoolExecutor;
-
-import javax.transaction.SystemException;
-import javax.transaction.UserTransaction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.alfresco.extension.folderquota.FolderQuotaBulkIngest;
 import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.extension.folderquota.FolderQuotaExceededException;
+import org.alfresco.extension.folderquota.FolderQuotaStamper;
+import org.alfresco.extension.folderquota.FolderSubtreeSizeStore;
 import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.NodeIdDeltaMap;
+import org.alfresco.extension.folderquota.ParallelFolderSizeCalculator;
+import org.alfresco.extension.folderquota.QuotaAncestorResolver;
+import org.alfresco.extension.folderquota.QuotaReservationLedger;
 import org.alfresco.extension.folderquota.SizeChange;
+import org.alfresco.extension.folderquota.metrics.FolderQuotaMetrics;
+import org.alfresco.extension.folderquota.metrics.FolderQuotaMetrics.Metric;
+import org.alfresco.model.ContentModel;
 import org.alfresco.repo.content.ContentServicePolicies;
 import org.alfresco.repo.node.NodeServicePolicies;
 import org.alfresco.repo.policy.Behaviour;
@@ -41,14 +56,12 @@ import org.alfresco.repo.policy.PolicyComponent;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
 import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
-import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.repo.transaction.TransactionListener;
 import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentData;
-import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.namespace.NamespaceService;
@@ -57,7 +70,8 @@ import org.apache.log4j.Logger;
 
 public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPropertyUpdatePolicy,
 	NodeServicePolicies.BeforeDeleteNodePolicy, NodeServicePolicies.OnMoveNodePolicy, 
-	NodeServicePolicies.OnAddAspectPolicy
+	NodeServicePolicies.OnAddAspectPolicy, NodeServicePolicies.OnRemoveAspectPolicy,
+	NodeServicePolicies.OnUpdatePropertiesPolicy
 {
 
     private static Logger logger = Logger.getLogger(FolderQuotaBehaviour.class.getName());
@@ -67,24 +81,48 @@ public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPro
     private Behaviour beforeDeleteNode;
     private Behaviour onMoveNode;
     private Behaviour onAddAspect;
+    private Behaviour onRemoveAspect;
+    private Behaviour onUpdateProperties;
     private FolderQuotaUpdateQueue queue;
     private FolderUsageCalculator usage;
+    private QuotaAncestorResolver resolver;
+    private FolderQuotaStamper stamper;
+    private QuotaReservationLedger ledger;
+    private FolderQuotaBulkIngest bulkIngest;
+    private FolderSubtreeSizeStore subtreeSizes;
+    private FolderQuotaMetrics metrics = new FolderQuotaMetrics();
     private boolean updateOnAddAspect = true;
     private boolean useJobQueue = false;
+    private boolean useWriteBehind = true;
     
     private static final String KEY_FOLDER_SIZE_CHANGE = FolderQuotaBehaviour.class.getName() + ".sizeUpdate";
-    private ThreadPoolExecutor threadPoolExecutor;
+    private static final String KEY_FOLDERS_TO_SIZE = FolderQuotaBehaviour.class.getName() + ".foldersToSize";
+    private static final String KEY_BULK_TALLY = FolderQuotaBehaviour.class.getName() + ".bulkTally";
+    private FolderSizeUpdateExecutor updateExecutor;
+    private FolderSizeWriteBehind writeBehind;
     private TransactionListener transactionListener;
+    private TransactionListener bulkIngestListener;
+    
+    /**
+     * What a bulk transaction has written to one folder
+     */
+    private static class BulkTally
+    {
+    	long bytes;
+    	final Set<NodeRef> nodes = new HashSet<NodeRef>();
+    }
     
     /**
      * Initialize this behaviour component, binding class behaviour.
      */
     public void init() {
     	
-        this.onContentPropertyUpdate = new JavaBehaviour(this, "onContentPropertyUpdate", Behaviour.NotificationFrequency.TRANSACTION_COMMIT);
+        this.onContentPropertyUpdate = new JavaBehaviour(this, "onContentPropertyUpdate", Behaviour.NotificationFrequency.EVERY_EVENT);
         this.beforeDeleteNode = new JavaBehaviour(this, "beforeDeleteNode", Behaviour.NotificationFrequency.FIRST_EVENT);
         this.onMoveNode = new JavaBehaviour(this, "onMoveNode", Behaviour.NotificationFrequency.TRANSACTION_COMMIT);
         this.onAddAspect = new JavaBehaviour(this, "onAddAspect", Behaviour.NotificationFrequency.TRANSACTION_COMMIT);
+        this.onRemoveAspect = new JavaBehaviour(this, "onRemoveAspect", Behaviour.NotificationFrequency.TRANSACTION_COMMIT);
+        this.onUpdateProperties = new JavaBehaviour(this, "onUpdateProperties", Behaviour.NotificationFrequency.EVERY_EVENT);
         
         this.policyComponent.bindClassBehaviour(
                 ContentServicePolicies.OnContentPropertyUpdatePolicy.QNAME,
@@ -112,22 +150,43 @@ public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPro
                 FolderQuotaConstants.ASPECT_FQ_QUOTA,
                 this.onAddAspect);
         
+        this.policyComponent.bindClassBehaviour(
+                NodeServicePolicies.OnRemoveAspectPolicy.QNAME,
+                FolderQuotaConstants.ASPECT_FQ_QUOTA,
+                this.onRemoveAspect);
+        
+        this.policyComponent.bindClassBehaviour(
+                NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME,
+                FolderQuotaConstants.ASPECT_FQ_QUOTA,
+                this.onUpdateProperties);
+        
         //set up transaction listener to run code after transaction
         this.transactionListener = new FolderSizeTransactionListener();
+        this.bulkIngestListener = new BulkIngestTransactionListener();
         
         logger.info("[FolderQuota] - Bound FolderQuotaBehaviour");
 
     }
 
     /**
-     * ContentPropertyUpdate fails on actual updates.  When an update (upload new version)
-     * comes through, the parent node quota check fails.
+     * Charges a content write to the quota folders above the node.  Runs as soon as the
+     * content property is set rather than at commit, so a write over quota fails with a
+     * FolderQuotaExceededException before the rest of the transaction's work is done; that
+     * exception rolls back the writer's own transaction.  Clients that want to avoid
+     * sending the content at all should ask the folder-quota/check webscript first.
      * 
      */
     public void onContentPropertyUpdate(final NodeRef nodeRef, QName propertyQName, final ContentData beforeValue, final ContentData afterValue) {
-		//if the change size will push the folder over quota, roll back the current transaction
-		final UserTransaction tx = serviceRegistry.getTransactionService().getUserTransaction();
+		long start = metrics.start();
+		try {
+			chargeContentWrite(nodeRef, beforeValue, afterValue);
+		}
+		finally {
+			metrics.stop(Metric.ON_CONTENT_PROPERTY_UPDATE, start);
+		}
+    }
 
+    private void chargeContentWrite(final NodeRef nodeRef, final ContentData beforeValue, final ContentData afterValue) {
 		AuthenticationUtil.runAsSystem(new RunAsWork<Object>() {
 			@Override
 			public Object doWork() throws Exception {
@@ -138,38 +197,40 @@ public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPro
 				if(beforeValue == null) change = afterValue.getSize();
 				else change = afterValue.getSize() - beforeValue.getSize();
 
+				//in bulk mode the bytes are only tallied, and accounted at commit
+				if(deferContentWrite(nodeRef, change)) return null;
+
 				NodeRef quotaParent = usage.getParentFolderWithQuota(nodeRef);
+				if(quotaParent != null)
+				{
+					//remember the quota folder on the node, next lookup is a property read
+					stamper.stamp(nodeRef, quotaParent);
+				}
 
 				if(change > 0) {
 					if(quotaParent != null)
 					{
-						NodeService nodeService = serviceRegistry.getNodeService();
-						Long quotaSize = (Long) nodeService.getProperty(quotaParent, FolderQuotaConstants.PROP_FQ_SIZE_QUOTA);
-						Long currentSize = (Long) nodeService.getProperty(quotaParent, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
-						//quotaSize can be null if the aspect has been added but the quota has not yet been set
-						if(quotaSize != null) {
-							if(currentSize + change > quotaSize)
-							{
-								try
-								{
-									tx.rollback();
-								}
-								catch(SystemException ex)
-								{
-									logger.warn(String.format("[FolderQuota] - An upload to folder %s failed due to quota", quotaParent));
-								}
-							}
-							else
-							{
-								//queue.enqueueEvent(quotaParent, change);
-								updateSize(quotaParent, change);
-								logger.debug(String.format("[FolderQuota] - Added nodeRef %s to the queue; size change %s", nodeRef, change));
-							}
+						//every quota the node is nested in, with its limit, from the resolver's cache
+						List<NodeRef> chain = resolver.getQuotaChain(quotaParent);
+						List<Long> limits = new ArrayList<Long>(chain.size());
+						for(NodeRef quotaFolder : chain)
+						{
+							limits.add(resolver.getQuotaLimit(quotaFolder));
 						}
-						else
+						//the limit can be null if the aspect has been added but the quota has not yet been set
+						if(limits.get(0) == null)
 						{
 							logger.warn(String.format("[FolderQuota] - Folder %s has the quota aspect added but no quota set", quotaParent));
 						}
+						//throws if the change will push any of the folders over quota
+						admit(chain, change, limits);
+						//queue.enqueueEvent(quotaParent, change);
+						for(NodeRef quotaFolder : chain)
+						{
+							recordSizeChange(quotaFolder, change);
+						}
+						recordSubtreeChange(getParent(nodeRef), quotaParent, change);
+						logger.debug(String.format("[FolderQuota] - Added nodeRef %s to the queue; size change %s", nodeRef, change));
 					}
 				}
 				return null;
@@ -177,40 +238,278 @@ public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPro
 		});
     }
 
+    /**
+     * Checks an upload against every quota it is nested in.  With the reservation ledger
+     * the bytes are reserved atomically at all levels, so concurrent uploads cannot
+     * overshoot any quota between them; without it the check is against the last stored
+     * fq:sizeCurrent of each level.
+     * 
+     * @throws FolderQuotaExceededException if the change would take any level over quota
+     */
+    private void admit(List<NodeRef> chain, long change, List<Long> limits)
+    {
+    	if(ledger != null)
+    	{
+    		NodeRef refusedBy = ledger.reserve(chain, change, limits);
+    		if(refusedBy != null)
+    		{
+    			throw quotaExceeded(refusedBy, resolver.getQuotaLimit(refusedBy), ledger.getUsage(refusedBy), change);
+    		}
+    		return;
+    	}
+    	for(int i = 0; i < chain.size(); i++)
+    	{
+    		Long quotaSize = limits.get(i);
+    		if(quotaSize != null)
+    		{
+    			long used = usage.getStoredUsage(chain.get(i));
+    			if(used + change > quotaSize)
+    			{
+    				throw quotaExceeded(chain.get(i), quotaSize, used, change);
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Adds an upload to the transaction's bulk tally, by parent folder, if the
+     * transaction or the quota folder is in bulk mode.  In transaction scope this costs a
+     * parent lookup and a map update, with no ancestor walk, admission check or stamping.
+     * 
+     * @return true if the upload was deferred
+     */
+    private boolean deferContentWrite(NodeRef nodeRef, long change)
+    {
+    	if(bulkIngest == null)
+    	{
+    		return false;
+    	}
+    	boolean transactionBulk = bulkIngest.isTransactionBulk();
+    	if(!transactionBulk && !bulkIngest.hasBulkFolders())
+    	{
+    		return false;
+    	}
+    	NodeRef parent = serviceRegistry.getNodeService().getPrimaryParent(nodeRef).getParentRef();
+    	if(!transactionBulk && !isInBulkFolder(parent))
+    	{
+    		return false;
+    	}
+    	if(change > 0)
+    	{
+    		@SuppressWarnings("unchecked")
+    		Map<NodeRef, BulkTally> tally = (Map<NodeRef, BulkTally>) AlfrescoTransactionSupport.getResource(KEY_BULK_TALLY);
+    		if(tally == null)
+    		{
+    			tally = new HashMap<NodeRef, BulkTally>();
+    			AlfrescoTransactionSupport.bindResource(KEY_BULK_TALLY, tally);
+    			AlfrescoTransactionSupport.bindListener(bulkIngestListener);
+    			AlfrescoTransactionSupport.bindListener(transactionListener);
+    		}
+    		BulkTally written = tally.get(parent);
+    		if(written == null)
+    		{
+    			written = new BulkTally();
+    			tally.put(parent, written);
+    		}
+    		written.bytes += change;
+    		written.nodes.add(nodeRef);
+    	}
+    	return true;
+    }
+    
+    private boolean isInBulkFolder(NodeRef folder)
+    {
+    	NodeRef quotaFolder = resolver.getQuotaAncestor(folder);
+    	if(quotaFolder != null)
+    	{
+    		for(NodeRef outer : resolver.getQuotaChain(quotaFolder))
+    		{
+    			if(bulkIngest.isFolderBulk(outer))
+    			{
+    				return true;
+    			}
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Accounts a transaction's bulk tally: one admission check and one size change per
+     * chain of quota folders for the whole transaction.  The nodes written are stamped
+     * once admitted, with the quota folder looked up once per parent folder.
+     * 
+     * @throws FolderQuotaExceededException if the total would take any quota over its
+     * limit, which rolls back the whole transaction
+     */
+    private void applyBulkTally(Map<NodeRef, BulkTally> tally)
+    {
+    	//total per nearest quota folder, each admitted against its whole chain at once
+    	Map<NodeRef, Long> totals = new HashMap<NodeRef, Long>();
+    	Map<NodeRef, NodeRef> quotaFolders = new HashMap<NodeRef, NodeRef>();
+    	for(Map.Entry<NodeRef, BulkTally> entry : tally.entrySet())
+    	{
+    		NodeRef quotaFolder = resolver.getQuotaAncestor(entry.getKey());
+    		if(quotaFolder == null)
+    		{
+    			continue;
+    		}
+    		quotaFolders.put(entry.getKey(), quotaFolder);
+    		recordSubtreeChange(entry.getKey(), quotaFolder, entry.getValue().bytes);
+    		Long total = totals.get(quotaFolder);
+    		totals.put(quotaFolder, total == null ? entry.getValue().bytes : total + entry.getValue().bytes);
+    	}
+    	//without the ledger nothing is reserved, so a quota folder shared by several chains
+    	//is checked against what the chains before it have already taken
+    	Map<NodeRef, Long> admitted = new HashMap<NodeRef, Long>();
+    	Map<NodeRef, List<NodeRef>> chains = new HashMap<NodeRef, List<NodeRef>>();
+    	for(Map.Entry<NodeRef, Long> total : totals.entrySet())
+    	{
+    		List<NodeRef> chain = resolver.getQuotaChain(total.getKey());
+    		List<Long> limits = new ArrayList<Long>(chain.size());
+    		for(NodeRef quotaFolder : chain)
+    		{
+    			Long limit = resolver.getQuotaLimit(quotaFolder);
+    			Long taken = admitted.get(quotaFolder);
+    			limits.add(limit == null || taken == null || ledger != null ? limit : limit - taken);
+    		}
+    		admit(chain, total.getValue(), limits);
+    		for(NodeRef quotaFolder : chain)
+    		{
+    			Long taken = admitted.get(quotaFolder);
+    			admitted.put(quotaFolder, taken == null ? total.getValue() : taken + total.getValue());
+    		}
+    		chains.put(total.getKey(), chain);
+    	}
+    	for(Map.Entry<NodeRef, Long> total : totals.entrySet())
+    	{
+    		for(NodeRef quotaFolder : chains.get(total.getKey()))
+    		{
+    			recordSizeChange(quotaFolder, total.getValue());
+    		}
+    	}
+    	//only the nodes this transaction wrote, so a migration in many batches never goes
+    	//over the same folder twice.  Nodes deleted or moved since were dealt with then.
+    	NodeService nodeService = serviceRegistry.getNodeService();
+    	for(Map.Entry<NodeRef, NodeRef> parent : quotaFolders.entrySet())
+    	{
+    		for(NodeRef nodeRef : tally.get(parent.getKey()).nodes)
+    		{
+    			if(nodeService.exists(nodeRef) && parent.getKey().equals(nodeService.getPrimaryParent(nodeRef).getParentRef()))
+    			{
+    				stamper.stamp(nodeRef, parent.getValue());
+    			}
+    		}
+    	}
+    	logger.debug(String.format("[FolderQuota] - Accounted bulk ingest of %s folders against %s quota chains", tally.size(), totals.size()));
+    }
+    
+    private FolderQuotaExceededException quotaExceeded(NodeRef quotaFolder, long quotaSize, long used, long change)
+    {
+    	logger.warn(String.format("[FolderQuota] - An upload to folder %s failed due to quota", quotaFolder));
+    	metrics.rejected(quotaFolder);
+    	return new FolderQuotaExceededException(quotaFolder, quotaSize, used, change);
+    }
+
     /**
      * Handles updating the various folder sizes when a node is moved.  Old folder gets
      * its size decremented, new one gets incremented (only if quotas are applied).
+     * Renames and moves within the same quota folder change no quota usage and return
+     * before any size is calculated.
      */
 	public void onMoveNode(ChildAssociationRef before, ChildAssociationRef after) {
+		long start = metrics.start();
+		try {
+			moveNode(before, after);
+		}
+		finally {
+			metrics.stop(Metric.ON_MOVE_NODE, start);
+		}
+	}
+
+	private void moveNode(ChildAssociationRef before, ChildAssociationRef after) {
         logger.debug("[FolderQuota] - onMoveNode");
+        //a rename keeps the node where it is, so no size changes anywhere
+        if(before.getParentRef().equals(after.getParentRef()))
+        {
+        	return;
+        }
+        resolver.invalidateMoved(after.getChildRef(), before.getParentRef(), after.getParentRef());
         NodeRef quotaParentBefore = usage.getParentFolderWithQuota(before.getParentRef());
         NodeRef quotaParentAfter = usage.getParentFolderWithQuota(after.getParentRef());
-        long change = 0L;
+        if(quotaParentBefore == null && quotaParentAfter == null)
+        {
+        	return;
+        }
         
-        //only calculate the change size once, if either the before or after parent have a quota.
-        if(quotaParentBefore != null || quotaParentAfter != null)
+        //a move within the same quota folder nets to zero for every quota folder above it,
+        //only the subtree sizes of the folders in between change
+        if(quotaParentBefore != null && quotaParentBefore.equals(quotaParentAfter))
         {
-        	change = usage.getChangeSize(before.getChildRef());
+        	if(isSubtreeSizesEnabled())
+        	{
+        		long change = usage.getChangeSize(after.getChildRef());
+        		recordSubtreeChange(before.getParentRef(), quotaParentBefore, change * -1);
+        		recordSubtreeChange(after.getParentRef(), quotaParentAfter, change);
+        	}
+            logger.debug(String.format("[FolderQuota] - Node %s moved within quota folder %s, no size change", after.getChildRef(), quotaParentAfter));
+        	return;
         }
         
+        //only calculate the change size once, and transfer it between the quota folders the
+        //node left and entered; quota folders that contain both places keep it
+        long change = usage.getChangeSize(before.getChildRef());
+        List<NodeRef> chainBefore = quotaParentBefore == null ? Collections.<NodeRef>emptyList() : resolver.getQuotaChain(quotaParentBefore);
+        List<NodeRef> chainAfter = quotaParentAfter == null ? Collections.<NodeRef>emptyList() : resolver.getQuotaChain(quotaParentAfter);
+        for(NodeRef level : chainBefore)
+        {
+        	if(!chainAfter.contains(level))
+        	{
+        		updateFolderSize(level, change * -1);
+        	}
+        }
+        for(NodeRef level : chainAfter)
+        {
+        	if(!chainBefore.contains(level))
+        	{
+        		updateFolderSize(level, change);
+        	}
+        }
     	if(quotaParentBefore != null)
     	{
-    		//queue.enqueueEvent(quotaParentBefore, change * -1);
-    		updateSize(quotaParentBefore, change * -1);
+    		recordSubtreeChange(before.getParentRef(), quotaParentBefore, change * -1);
             logger.debug(String.format("[FolderQuota] - Node %s moved from a quota folder, added to the queue; size %s", quotaParentBefore, change * -1));
     	}
     	if(quotaParentAfter != null)
     	{
-    		//queue.enqueueEvent(quotaParentAfter, change);
-    		updateSize(quotaParentAfter, change);
-    		logger.debug(String.format("[FolderQuota] - Node %s moved to a quota folder, added to the queue; size %s", quotaParentBefore, change));
+    		recordSubtreeChange(after.getParentRef(), quotaParentAfter, change);
+    		logger.debug(String.format("[FolderQuota] - Node %s moved to a quota folder, added to the queue; size %s", quotaParentAfter, change));
     	}
+    	
+    	//restamp the moved node, and its subtree if it is a folder
+		NodeRef moved = after.getChildRef();
+		//a quota folder is charged to itself and carries no stamp of the quota folder it is in
+		boolean movedHasQuota = serviceRegistry.getNodeService().hasAspect(moved, FolderQuotaConstants.ASPECT_FQ_QUOTA);
+		stamper.stamp(moved, movedHasQuota ? null : quotaParentAfter);
+		if(serviceRegistry.getDictionaryService().isSubClass(serviceRegistry.getNodeService().getType(moved), ContentModel.TYPE_FOLDER))
+		{
+			stamper.enqueueSubtree(moved);
+		}
 	}
 
 	/**
 	 * Called before the node is deleted, decrements the parent quota folder size
 	 */
 	public void beforeDeleteNode(NodeRef deleted) {
+		long start = metrics.start();
+		try {
+			deleteNode(deleted);
+		}
+		finally {
+			metrics.stop(Metric.BEFORE_DELETE_NODE, start);
+		}
+	}
+
+	private void deleteNode(NodeRef deleted) {
 		
         logger.debug("[FolderQuota] - beforeDeleteNode");
         
@@ -221,57 +520,224 @@ public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPro
     		Long size = usage.getChangeSize(deleted);
     		updateSize(quotaParent, size * -1);
 			//queue.enqueueEvent(quotaParent, size * -1);
+    		recordSubtreeChange(getParent(deleted), quotaParent, size * -1);
+    		if(isSubtreeSizesEnabled() && serviceRegistry.getDictionaryService().isSubClass(serviceRegistry.getNodeService().getType(deleted), ContentModel.TYPE_FOLDER))
+    		{
+    			subtreeSizes.remove(deleted);
+    		}
     	}	
+    	resolver.invalidate(deleted);
 	}
 	
 	/**
 	 * When the folder quota aspect is added, should we go ahead and calculate current usage?
-	 * I think so, but this could be an expensive operation.
+	 * I think so, but this could be an expensive operation.  With the parallel sizing engine
+	 * configured the calculation runs in the background once the aspect is committed.
 	 */
 	public void onAddAspect(NodeRef nodeRef, QName aspectTypeQName) 
+	{
+		long start = metrics.start();
+		try
+		{
+			addQuota(nodeRef);
+		}
+		finally
+		{
+			metrics.stop(Metric.ON_ADD_ASPECT, start);
+		}
+	}
+
+	private void addQuota(NodeRef nodeRef)
 	{
 		logger.debug("[FolderQuota] - onAddAspect");
+		resolver.invalidateQuotaChange();
+		stamper.enqueueSubtree(nodeRef);
+		if (ledger != null)
+		{
+			ledger.invalidate(nodeRef);
+		}
+		boolean hasQuota = serviceRegistry.getNodeService().hasAspect(nodeRef, FolderQuotaConstants.ASPECT_FQ_QUOTA);
+		if (hasQuota)
+		{
+			//a folder nested in another quota folder was stamped with the outer one, but is
+			//now charged to itself; the restamp skips quota folders, so the stamp goes here
+			stamper.stamp(nodeRef, null);
+		}
 		//check the aspect and calculate the usage if configured to do so
-		if (serviceRegistry.getNodeService().hasAspect(nodeRef, FolderQuotaConstants.ASPECT_FQ_QUOTA) && updateOnAddAspect) 
+		if (hasQuota && updateOnAddAspect) 
 		{
-			Long size = usage.calculateFolderSize(nodeRef);
-			updateSize(nodeRef, size);
-			//queue.enqueueEvent(nodeRef, size);
+			if (usage.getParallelFolderSizeCalculator() != null)
+			{
+				//size the folder on the sizing pool after commit, so adding the aspect returns at once
+				AlfrescoTransactionSupport.bindListener(transactionListener);
+				@SuppressWarnings("unchecked")
+				Set<NodeRef> foldersToSize = (Set<NodeRef>) AlfrescoTransactionSupport.getResource(KEY_FOLDERS_TO_SIZE);
+				if (foldersToSize == null)
+				{
+					foldersToSize = new HashSet<NodeRef>(1);
+					AlfrescoTransactionSupport.bindResource(KEY_FOLDERS_TO_SIZE, foldersToSize);
+				}
+				foldersToSize.add(nodeRef);
+			}
+			else
+			{
+				//outer quotas already count this content, only the new quota folder needs it
+				Long size = usage.calculateSubtreeSize(nodeRef);
+				updateFolderSize(nodeRef, size);
+				//queue.enqueueEvent(nodeRef, size);
+			}
 		}
 	}
 
 	/**
+	 * When the folder quota aspect is removed, any cached quota lookups below the folder
+	 * are out of date, and the nodes below need restamping with the next quota folder up.
+	 */
+	public void onRemoveAspect(NodeRef nodeRef, QName aspectTypeQName)
+	{
+		logger.debug("[FolderQuota] - onRemoveAspect");
+		long start = metrics.start();
+		try
+		{
+			resolver.invalidateQuotaChange();
+			stamper.enqueueSubtree(nodeRef);
+			if (ledger != null)
+			{
+				ledger.invalidate(nodeRef);
+			}
+		}
+		finally
+		{
+			metrics.stop(Metric.ON_REMOVE_ASPECT, start);
+		}
+	}
+
+	/**
+	 * The resolver caches quota limits, so a change to fq:sizeQuota clears it
+	 */
+	public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after)
+	{
+		long start = metrics.start();
+		Serializable quotaBefore = before.get(FolderQuotaConstants.PROP_FQ_SIZE_QUOTA);
+		Serializable quotaAfter = after.get(FolderQuotaConstants.PROP_FQ_SIZE_QUOTA);
+		if(quotaBefore == null ? quotaAfter != null : !quotaBefore.equals(quotaAfter))
+		{
+			logger.debug("[FolderQuota] - Quota limit changed on " + nodeRef);
+			//nothing moves to a different quota folder, so the stamps stay current
+			resolver.invalidateLimitChange();
+		}
+		metrics.stop(Metric.ON_UPDATE_PROPERTIES, start);
+	}
+
+	private boolean isSubtreeSizesEnabled()
+	{
+		return subtreeSizes != null && subtreeSizes.isEnabled();
+	}
+	
+	/**
+	 * Records a size change for the subtree size of a folder and every folder above it,
+	 * up to its outermost quota folder.  The quota folders themselves already have the
+	 * change.  The folders in between come from the resolver's cache of folder parents.
+	 * Nothing is recorded if the outermost quota folder is not above the folder, e.g. when
+	 * that is the node being deleted.
 	 * 
-	 * @param quotaFolder
+	 * @param folder the folder the change was made in
+	 * @param quotaFolder the nearest quota folder of the change
+	 * @param sizeChange
+	 */
+	private void recordSubtreeChange(final NodeRef folder, NodeRef quotaFolder, final long sizeChange)
+	{
+		if(!isSubtreeSizesEnabled() || folder == null || sizeChange == 0L)
+		{
+			return;
+		}
+		final List<NodeRef> chain = resolver.getQuotaChain(quotaFolder);
+		AuthenticationUtil.runAsSystem(new RunAsWork<Object>() {
+			@Override
+			public Object doWork() throws Exception {
+				List<NodeRef> folders = resolver.getFoldersBelow(folder, chain.get(chain.size() - 1));
+				if(folders != null)
+				{
+					for(NodeRef above : folders)
+					{
+						if(!chain.contains(above))
+						{
+							recordSizeChange(above, sizeChange);
+						}
+					}
+				}
+				return null;
+			}
+		});
+	}
+	
+	private NodeRef getParent(NodeRef nodeRef)
+	{
+		if(!isSubtreeSizesEnabled())
+		{
+			return null;
+		}
+		ChildAssociationRef parent = serviceRegistry.getNodeService().getPrimaryParent(nodeRef);
+		return parent == null ? null : parent.getParentRef();
+	}
+	
+	/**
+	 * Records a size change that was not admitted against the quota (deletes and moves)
+	 * for the quota folder and every quota folder it is nested in
+	 * 
+	 * @param quotaFolder the nearest quota folder
 	 * @param sizeChange
 	 */
 	private void updateSize(NodeRef quotaFolder, Long sizeChange)
 	{
 		logger.debug("[FolderQuota] - updateSize");
+		for(NodeRef level : resolver.getQuotaChain(quotaFolder))
+		{
+			updateFolderSize(level, sizeChange);
+		}
+	}
+	
+	/**
+	 * Records a size change for a single quota folder, applying it to the reservation
+	 * ledger on commit as well
+	 * 
+	 * @param quotaFolder
+	 * @param sizeChange
+	 */
+	private void updateFolderSize(NodeRef quotaFolder, Long sizeChange)
+	{
+		if(ledger != null)
+		{
+			ledger.adjust(quotaFolder, sizeChange);
+		}
+		recordSizeChange(quotaFolder, sizeChange);
+	}
+	
+	/**
+	 * Records a size change for the quota folder against the current transaction.  Changes
+	 * for the same folder are summed, so the folder gets a single update after commit no
+	 * matter how many files the transaction touched.  They are summed by node id in a
+	 * primitive map, with the folder's NodeRef kept for the write-behind and executor.
+	 * 
+	 * @param quotaFolder
+	 * @param sizeChange
+	 */
+	private void recordSizeChange(NodeRef quotaFolder, Long sizeChange)
+	{
+		if(useJobQueue && queue != null && queue.isTransactional())
+		{
+			//durable queues take the change now, so it commits or rolls back with the transaction
+			queue.enqueueEvent(quotaFolder, sizeChange);
+			return;
+		}
 		AlfrescoTransactionSupport.bindListener(transactionListener);
-        Set<SizeChange> sizeChanges = (Set<SizeChange>) AlfrescoTransactionSupport.getResource(KEY_FOLDER_SIZE_CHANGE);
+        NodeIdDeltaMap sizeChanges = (NodeIdDeltaMap) AlfrescoTransactionSupport.getResource(KEY_FOLDER_SIZE_CHANGE);
         if (sizeChanges == null)
         {
-        	sizeChanges = new HashSet<SizeChange>(10);
+        	sizeChanges = new NodeIdDeltaMap(10);
             AlfrescoTransactionSupport.bindResource(KEY_FOLDER_SIZE_CHANGE, sizeChanges);
         }
-        SizeChange change = new SizeChange(quotaFolder, sizeChange);
-        if(useJobQueue)
-        {
-        	if(queue != null)
-        	{
-        		queue.enqueueEvent(change);
-        	}
-        	else
-        	{
-        		logger.warn("Job queue is enabled in Spring config, but queue object is null");
-        	}
-        }
-        else 
-        {
-        	sizeChanges.add(new SizeChange(quotaFolder, sizeChange));
-        }
-        
+        sizeChanges.add(usage.getNodeId(quotaFolder), quotaFolder, sizeChange);
 	}
 	
 	/**
@@ -307,6 +773,68 @@ public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPro
 		this.usage = usage;
 	}
 	
+	/**
+	 * The resolver caches quota folder lookups, the behaviour keeps it up to date as
+	 * quotas are added and removed and nodes are moved.
+	 * 
+	 * @param resolver
+	 */
+	public void setQuotaAncestorResolver(QuotaAncestorResolver resolver)
+	{
+		this.resolver = resolver;
+	}
+	
+	/**
+	 * The stamper maintains fq:managedFolder on nodes in quota folders
+	 * 
+	 * @param stamper
+	 */
+	public void setFolderQuotaStamper(FolderQuotaStamper stamper)
+	{
+		this.stamper = stamper;
+	}
+	
+	/**
+	 * The reservation ledger admits uploads against the quota.  Without it uploads are
+	 * checked against the stored fq:sizeCurrent, which lags behind concurrent uploads.
+	 * 
+	 * @param ledger
+	 */
+	public void setQuotaReservationLedger(QuotaReservationLedger ledger)
+	{
+		this.ledger = ledger;
+	}
+	
+	/**
+	 * Sets the bulk ingest switch.  If not set, every upload is accounted as it is written.
+	 * 
+	 * @param bulkIngest
+	 */
+	public void setBulkIngest(FolderQuotaBulkIngest bulkIngest)
+	{
+		this.bulkIngest = bulkIngest;
+	}
+	
+	/**
+	 * Sets the store of folder subtree sizes, kept up to date with every size change
+	 * 
+	 * @param subtreeSizes
+	 */
+	public void setFolderSubtreeSizeStore(FolderSubtreeSizeStore subtreeSizes)
+	{
+		this.subtreeSizes = subtreeSizes;
+	}
+	
+	/**
+	 * Times each callback and counts quota rejections
+	 * 
+	 * @param metrics
+	 */
+	public void setFolderQuotaMetrics(FolderQuotaMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
 	/**
 	 * Should the folder usage be automatically updated when the quota aspect
 	 * is added?
@@ -330,16 +858,62 @@ public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPro
 	}
 	
 	/**
-	 * Sets the thread pool executor, this is built by 
-	 * org.alfresco.util.ThreadPoolExecutorFactoryBean, see Spring config for details
+	 * Sets the bounded executor that writes committed size changes when neither the job
+	 * queue nor the write-behind stage is used
 	 * 
-	 * @param threadPoolExecutor
+	 * @param updateExecutor
 	 */
-	public void setThreadPoolExecutor(ThreadPoolExecutor threadPoolExecutor)
+	public void setUpdateExecutor(FolderSizeUpdateExecutor updateExecutor)
 	{
-		this.threadPoolExecutor = threadPoolExecutor;
+		this.updateExecutor = updateExecutor;
 	}
 	
+	/**
+	 * Sets the write-behind stage.  When set, committed size changes are handed to it
+	 * instead of each being written by its own update executor task.
+	 * 
+	 * @param writeBehind
+	 */
+	public void setWriteBehind(FolderSizeWriteBehind writeBehind)
+	{
+		this.writeBehind = writeBehind;
+	}
+	
+	/**
+	 * Should committed size changes go through the write-behind stage, or straight to
+	 * the update executor?
+	 * 
+	 * @param useWriteBehind
+	 */
+	public void setUseWriteBehind(boolean useWriteBehind)
+	{
+		this.useWriteBehind = useWriteBehind;
+	}
+	
+    /**
+     * Accounts the bulk tally before commit, while a quota refusal can still roll the
+     * transaction back
+     */
+    private class BulkIngestTransactionListener extends TransactionListenerAdapter
+    {
+        @Override
+        public void beforeCommit(boolean readOnly)
+        {
+            @SuppressWarnings("unchecked")
+            final Map<NodeRef, BulkTally> tally = (Map<NodeRef, BulkTally>) AlfrescoTransactionSupport.getResource(KEY_BULK_TALLY);
+            if (tally != null && !tally.isEmpty())
+            {
+            	AuthenticationUtil.runAsSystem(new RunAsWork<Object>() {
+            		@Override
+            		public Object doWork() throws Exception {
+            			applyBulkTally(tally);
+            			return null;
+            		}
+            	});
+            }
+        }
+    }
+    
 	/*
 	 * Updating the folder size inside the transaction causes multiple uploads to fail.  Shamelessly
 	 * borrowing the approach used in this JIRA attachment:
@@ -348,92 +922,230 @@ public class FolderQuotaBehaviour implements ContentServicePolicies.OnContentPro
 	 */
 	
 	/**
-	 *Transaction listener, fires off the new thread after transaction commit.
+	 *Transaction listener, hands the size changes to the write-behind stage (or fires off
+	 *the new thread) after transaction commit.
 	 */
     private class FolderSizeTransactionListener extends TransactionListenerAdapter
     {
         @Override
         public void afterCommit()
         {
-            @SuppressWarnings("unchecked")
-            Set<SizeChange> sizeChanges = (Set<SizeChange>) AlfrescoTransactionSupport.getResource(KEY_FOLDER_SIZE_CHANGE);
+            NodeIdDeltaMap sizeChanges = (NodeIdDeltaMap) AlfrescoTransactionSupport.getResource(KEY_FOLDER_SIZE_CHANGE);
             if (sizeChanges != null)
             {
-                for (SizeChange change : sizeChanges)
-                {
-                    Runnable runnable = new FolderSizeUpdater(change.nodeRef, change.sizeChange);
-                    threadPoolExecutor.execute(runnable);
-                }
+            	//deltas that cancel out within the transaction need no write, e.g. a move
+            	//between two folders inside the same outer quota
+            	if (useJobQueue && queue != null)
+            	{
+            		//the queue takes node ids as they are
+            		for (int slot = sizeChanges.next(-1); slot >= 0; slot = sizeChanges.next(slot))
+            		{
+            			if (sizeChanges.deltaAt(slot) != 0L)
+            			{
+            				queue.enqueueEvent(new SizeChange(sizeChanges.nodeIdAt(slot), sizeChanges.deltaAt(slot)));
+            			}
+            		}
+            	}
+            	else
+            	{
+            		Map<NodeRef, Long> changes = sizeChanges.toNodeRefMap();
+            		if (!changes.isEmpty())
+            		{
+            			submitSizeChanges(changes);
+            		}
+            	}
+            }
+            
+            @SuppressWarnings("unchecked")
+            Set<NodeRef> foldersToSize = (Set<NodeRef>) AlfrescoTransactionSupport.getResource(KEY_FOLDERS_TO_SIZE);
+            if (foldersToSize != null)
+            {
+            	for (NodeRef folder : foldersToSize)
+            	{
+            		usage.calculateSubtreeSizeAsync(folder, sizingCallback);
+            	}
             }
         }
     }
     
     /**
-     * Updates the folder's size, runs as system user
+     * Applies the committed size changes of one transaction, through the job queue or the
+     * write-behind stage if either is enabled, otherwise in a single transaction on the
+     * update executor.  Called after commit or from the sizing pool, so a transactional
+     * queue is written in a transaction of its own, which throws if it fails.
      */
-    private class FolderSizeUpdater implements Runnable
+    private void submitSizeChanges(final Map<NodeRef, Long> changes)
     {
-        private NodeRef quotaFolder;
-        private Long sizeChange;
-        private FolderSizeUpdater(NodeRef quotaFolder, Long sizeChange)
-        {
-            this.quotaFolder = quotaFolder;
-            this.sizeChange = sizeChange;
-        }
-        /**
-         * Increments the read count on the node
-         */
-        public void run()
-        {
-        	AuthenticationUtil.runAs(new RunAsWork<String>()
-        	{
-        		public String doWork() throws Exception
-        		{
-        			RetryingTransactionCallback<Long> callback = new RetryingTransactionCallback<Long>()
-        			{
-        				public Long execute() throws Throwable
-        				{
-        					Long currentSize = (Long) serviceRegistry.getNodeService().getProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
-        					if (currentSize == null)  {
-        						currentSize=0L;
-        					}
-        					Long newSize = currentSize + sizeChange;
-        					serviceRegistry.getNodeService().setProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, newSize);
-        					logger.debug(String.format("Property %s set to %s",FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, newSize));
-        					return newSize;
-        				}
-        			};
-        			try
-        			{
-        				RetryingTransactionHelper txnHelper = serviceRegistry.getTransactionService().getRetryingTransactionHelper();
-        				Long newSize = txnHelper.doInTransaction(callback, false, true);
-
-        				if (logger.isDebugEnabled())
-        				{
-        					logger.debug(
-        							"Incremented folder size on quota folder node: \n" +
-        									"   Node:      " + quotaFolder + "\n" +
-        									"   New Size: " + newSize);
-        				}
-        			}
-        			catch (InvalidNodeRefException e)
-        			{
-        				if (logger.isDebugEnabled())
-        				{
-        					logger.debug("Unable to update folder size on quota folder node: " + quotaFolder);
-        				}
-        			}
-        			catch (Throwable e)
-        			{
-        				if (logger.isDebugEnabled())
-        				{
-        					logger.debug(e);
-        				}
-        				logger.error("Failed to update folder size on quota folder node: " + quotaFolder);
-        			}
-        			return "";
-        		}
-        	}, AuthenticationUtil.getSystemUserName());
-        }
+    	if (useJobQueue)
+    	{
+    		if (queue != null && queue.isTransactional())
+    		{
+    			AuthenticationUtil.runAs(new RunAsWork<Void>()
+    			{
+    				public Void doWork() throws Exception
+    				{
+    					return serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+    					{
+    						public Void execute() throws Throwable
+    						{
+    							enqueue(changes);
+    							return null;
+    						}
+    					}, false, true);
+    				}
+    			}, AuthenticationUtil.getSystemUserName());
+    		}
+    		else if (queue != null)
+    		{
+    			enqueue(changes);
+    		}
+    		else
+    		{
+    			logger.warn("Job queue is enabled in Spring config, but queue object is null");
+    		}
+    	}
+    	else if (useWriteBehind && writeBehind != null)
+    	{
+    		for (Map.Entry<NodeRef, Long> change : changes.entrySet())
+    		{
+    			writeBehind.add(change.getKey(), change.getValue());
+    		}
+    	}
+    	else
+    	{
+    		updateExecutor.submit(changes);
+    	}
+    }
+    
+    private void enqueue(Map<NodeRef, Long> changes)
+    {
+    	for (Map.Entry<NodeRef, Long> change : changes.entrySet())
+    	{
+    		queue.enqueueEvent(change.getKey(), change.getValue());
+    	}
+    }
+    
+    /**
+     * Usage recorded for each folder being sized in the background, taken just before
+     * its subtree is walked
+     */
+    private final ConcurrentMap<NodeRef, Long> sizingMarks = new ConcurrentHashMap<NodeRef, Long>();
+    
+    /**
+     * Receives the initial size of a folder the quota aspect was added to.  Changes
+     * committed once the aspect was added have been counted as they happened, and the
+     * walk sees them too, so only the difference between the walked size and the usage
+     * recorded before the walk is added.  Changes committed during the walk may still be
+     * counted twice or not at all; the reconciler corrects that.
+     */
+    private final ParallelFolderSizeCalculator.Callback sizingCallback = new ParallelFolderSizeCalculator.Callback()
+    {
+    	public void onStart(NodeRef folder)
+    	{
+    		Long mark = getRecordedUsage(folder);
+    		if (mark != null)
+    		{
+    			sizingMarks.put(folder, mark);
+    		}
+    	}
+    	
+    	public void onSize(NodeRef folder, long size)
+    	{
+    		Long mark = sizingMarks.remove(folder);
+    		if (mark == null)
+    		{
+    			logger.debug("[FolderQuota] - Quota folder " + folder + " was removed while being sized");
+    			return;
+    		}
+    		long change = size - mark;
+    		if (change != 0L)
+    		{
+    			Map<NodeRef, Long> changes = Collections.singletonMap(folder, change);
+    			if (useJobQueue && queue != null && queue.isTransactional())
+    			{
+    				//the change is only committed once the queue has it, so the ledger waits for that
+    				try
+    				{
+    					submitSizeChanges(changes);
+    				}
+    				catch (RuntimeException e)
+    				{
+    					logger.error(String.format("[FolderQuota] - Failed to queue the initial size %s of quota folder %s, the reconciler will correct it", change, folder), e);
+    					return;
+    				}
+    				if (ledger != null)
+    				{
+    					ledger.addCommitted(folder, change);
+    				}
+    			}
+    			else
+    			{
+    				if (ledger != null)
+    				{
+    					ledger.addCommitted(folder, change);
+    				}
+    				submitSizeChanges(changes);
+    			}
+    		}
+    		if (logger.isDebugEnabled())
+    		{
+    			Long recorded = getRecordedUsage(folder);
+    			if (recorded != null && !recorded.equals(mark))
+    			{
+    				logger.debug(String.format("[FolderQuota] - Usage of %s changed by %s while it was sized", folder, recorded - mark));
+    			}
+    			logger.debug(String.format("[FolderQuota] - Initial size of quota folder %s is %s", folder, size));
+    		}
+    	}
+    	
+    	public void onFailure(NodeRef folder, Throwable e)
+    	{
+    		sizingMarks.remove(folder);
+    		logger.error("[FolderQuota] - Failed to calculate the initial size of quota folder " + folder, e);
+    	}
+    };
+    
+    /**
+     * @return stored usage of a quota folder plus the committed changes not written yet on
+     * this server, null if the folder is gone or no longer has a quota
+     */
+    private Long getRecordedUsage(final NodeRef folder)
+    {
+    	Long stored = AuthenticationUtil.runAs(new RunAsWork<Long>()
+    	{
+    		public Long doWork() throws Exception
+    		{
+    			return serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>()
+    			{
+    				public Long execute() throws Throwable
+    				{
+    					NodeService nodeService = serviceRegistry.getNodeService();
+    					if (!nodeService.exists(folder) || !nodeService.hasAspect(folder, FolderQuotaConstants.ASPECT_FQ_QUOTA))
+    					{
+    						return null;
+    					}
+    					return usage.getStoredUsage(folder);
+    				}
+    			}, true, true);
+    		}
+    	}, AuthenticationUtil.getSystemUserName());
+    	if (stored == null)
+    	{
+    		return null;
+    	}
+    	long recorded = stored;
+    	if (writeBehind != null)
+    	{
+    		recorded += writeBehind.getPendingDelta(folder);
+    	}
+    	if (updateExecutor != null)
+    	{
+    		recorded += updateExecutor.getPendingDelta(folder);
+    	}
+    	if (queue != null)
+    	{
+    		recorded += queue.getPendingDelta(folder);
+    	}
+    	return recorded;
     }
 }
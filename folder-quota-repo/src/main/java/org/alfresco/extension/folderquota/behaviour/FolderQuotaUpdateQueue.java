@@ -28,6 +28,24 @@ import org.alfresco.service.cmr.repository.NodeRef;
 
 public interface FolderQuotaUpdateQueue {
 	void processAllEvents();
+	/**
+	 * Drains at most maxEvents events, sums them per folder and applies the totals in
+	 * batched transactions.  Returns the number of events drained.
+	 */
+	int processEvents(int maxEvents);
+	/**
+	 * Number of events waiting to be processed
+	 */
+	long getBacklog();
+	/**
+	 * Net size change queued for one quota folder and not yet applied to it
+	 */
+	long getPendingDelta(NodeRef nodeWithQuota);
+	/**
+	 * True if events must be enqueued inside the transaction that made the change (so they
+	 * commit with it), false if they are enqueued after that transaction commits
+	 */
+	boolean isTransactional();
 	void enqueueEvent(NodeRef nodeWithQuota,long sizeChange);
 	void enqueueEvent(SizeChange change);
 }
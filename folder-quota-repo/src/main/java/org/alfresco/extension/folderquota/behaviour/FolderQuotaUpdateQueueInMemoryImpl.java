@@ -24,44 +24,187 @@
  */
 package org.alfresco.extension.folderquota.behaviour;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.NodeIdDeltaMap;
 import org.alfresco.extension.folderquota.SizeChange;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
 import org.apache.log4j.Logger;
 
+/**
+ * Events are kept as (node id, delta) pairs packed into one ring buffer of longs, 16
+ * bytes per pending event with no object per event, and summed per folder in a
+ * primitive map when drained.  NodeRefs are only looked up again when the totals are
+ * written.  A running total per folder is kept alongside, so the pending delta of a
+ * folder is a single lookup rather than a scan of the whole buffer under the lock.
+ */
 public class FolderQuotaUpdateQueueInMemoryImpl implements FolderQuotaUpdateQueue {
     private static Logger logger = Logger.getLogger(FolderQuotaBehaviour.class.getName());
+    private static final int INITIAL_CAPACITY = 2048;
+    private static final int MAX_CACHED_FOLDER_IDS = 10000;
+	private FolderUsageCalculator usage;
 	private NodeService nodeService;
+	private TransactionService transactionService;
+	private int batchSize = 50;
+
+	//pending events, node id at even and delta at odd positions, from head on
+	private static final Object lock = new Object();
+	private static long[] events = new long[INITIAL_CAPACITY];
+	private static int head;
+	private static int backlog;
+	//net delta of the pending events per folder, emptied whenever the buffer is
+	private static NodeIdDeltaMap pendingTotals = new NodeIdDeltaMap();
 
-	private static Queue<SizeChange> queue = new ConcurrentLinkedQueue<SizeChange> ();
+	private final ConcurrentMap<NodeRef, Long> folderIds = new ConcurrentHashMap<NodeRef, Long>();
 
 	public void enqueueEvent(NodeRef nodeWithQuota, long sizeChange) {
-		queue.add(new SizeChange(nodeWithQuota,sizeChange));
+		Long folderId = getFolderId(nodeWithQuota);
+		if(folderId == null) {
+			logger.debug(String.format("[FolderQuota] - Quota folder %s no longer exists, dropping size change %s", nodeWithQuota, sizeChange));
+			return;
+		}
+		append(folderId, sizeChange);
+	}
+
+	public void enqueueEvent(SizeChange change) {
+		append(change.nodeId, change.sizeChange);
 	}
 
 	public void processAllEvents() {
-		//TODO: set a limit
-		SizeChange qi = null;
-		while((qi = queue.poll()) != null) {
-			Long currentSize = (Long) nodeService.getProperty(qi.nodeRef, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
-            if (currentSize == null)  {
-                currentSize=0L;
-            }
-            Long newSize = currentSize+qi.sizeChange;
-			nodeService.setProperty(qi.nodeRef, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, newSize);
-            logger.debug(String.format("Property %s set to %s",FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, newSize));
+		while(processEvents(Integer.MAX_VALUE) > 0) {
+			// keep going until the queue is empty
+		}
+	}
+
+	public int processEvents(int maxEvents) {
+		NodeIdDeltaMap changes = new NodeIdDeltaMap();
+		int drained = drain(maxEvents, changes);
+		if(!changes.isEmpty()) {
+			NodeIdDeltaMap failed = usage.applySizeChanges(changes, batchSize);
+			//put failed batches back on the queue, one event per folder
+			for(int slot = failed.next(-1); slot >= 0; slot = failed.next(slot)) {
+				append(failed.nodeIdAt(slot), failed.deltaAt(slot));
+			}
+            logger.debug(String.format("Drained %s events for %s folders", drained, changes.size()));
+		}
+		return drained;
+	}
+
+	public long getBacklog() {
+		synchronized(lock) {
+			return backlog;
+		}
+	}
+
+	public long getPendingDelta(NodeRef nodeWithQuota) {
+		Long folderId = getFolderId(nodeWithQuota);
+		if(folderId == null) {
+			return 0L;
+		}
+		synchronized(lock) {
+			return pendingTotals.get(folderId);
+		}
+	}
+
+	public boolean isTransactional() {
+		return false;
+	}
+
+	private static void append(long nodeId, long sizeChange) {
+		synchronized(lock) {
+			if(backlog * 2 == events.length) {
+				//full, unroll into a buffer twice the size
+				long[] grown = new long[events.length * 2];
+				int first = events.length - head;
+				System.arraycopy(events, head, grown, 0, first);
+				System.arraycopy(events, 0, grown, first, head);
+				events = grown;
+				head = 0;
+			}
+			int tail = (head + backlog * 2) & (events.length - 1);
+			events[tail] = nodeId;
+			events[tail + 1] = sizeChange;
+			backlog++;
+			pendingTotals.add(nodeId, sizeChange);
 		}
 	}
+
+	private static int drain(int maxEvents, NodeIdDeltaMap changes) {
+		synchronized(lock) {
+			int drained = Math.min(maxEvents, backlog);
+			for(int i = 0; i < drained; i++) {
+				changes.add(events[head], events[head + 1]);
+				pendingTotals.add(events[head], -events[head + 1]);
+				head = (head + 2) & (events.length - 1);
+			}
+			backlog -= drained;
+			if(backlog == 0 && !pendingTotals.isEmpty()) {
+				//folders that had events keep a zero total until the queue empties
+				pendingTotals = new NodeIdDeltaMap();
+			}
+			if(backlog == 0 && events.length > INITIAL_CAPACITY) {
+				//give back the memory of a large backlog once it is gone
+				events = new long[INITIAL_CAPACITY];
+				head = 0;
+			}
+			return drained;
+		}
+	}
+
+	/**
+	 * Node id of a quota folder.  There are only as many as there are quota folders, so
+	 * they are kept once looked up.
+	 */
+	private Long getFolderId(final NodeRef folder) {
+		Long folderId = folderIds.get(folder);
+		if(folderId != null) {
+			return folderId;
+		}
+		folderId = AuthenticationUtil.runAs(new RunAsWork<Long>() {
+			public Long doWork() throws Exception {
+				return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>() {
+					public Long execute() throws Throwable {
+						return nodeService.exists(folder) ? (Long) nodeService.getProperty(folder, ContentModel.PROP_NODE_DBID) : null;
+					}
+				}, true, true);
+			}
+		}, AuthenticationUtil.getSystemUserName());
+		if(folderId != null) {
+			if(folderIds.size() >= MAX_CACHED_FOLDER_IDS) {
+				folderIds.clear();
+			}
+			folderIds.put(folder, folderId);
+		}
+		return folderId;
+	}
+
+	public void setFolderUsageCalculator(FolderUsageCalculator usage) {
+		this.usage = usage;
+	}
+
+	/**
+	 * Should be the non-permission-checked node service, used to look up folder node ids
+	 */
 	public void setNodeService(NodeService nodeService) {
-		logger.debug("Setting Node Service");
 		this.nodeService = nodeService;
 	}
 
-	public void enqueueEvent(SizeChange change) {
-		queue.add(change);
+	public void setTransactionService(TransactionService transactionService) {
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * Maximum number of folders written per transaction
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
 	}
 }
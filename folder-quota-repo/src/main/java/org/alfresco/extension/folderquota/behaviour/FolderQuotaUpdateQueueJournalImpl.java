@@ -0,0 +1,768 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Journal queue.  Size changes are appended to memory-mapped files on local disk, so they
+ * survive a crash without a database write per event.
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.SizeChange;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of committed size changes.  Each change is a fixed-width record of
+ * (sequence number, quota folder node id, delta, check value) written into a
+ * memory-mapped segment file, so enqueueing is a few memory writes.  A committer thread
+ * forces the active segment to disk every commitInterval milliseconds and wakes every
+ * caller whose record is now durable, so one fsync covers all the commits in that
+ * interval.  A full segment is forced and a new one started.
+ * <p>
+ * The incremental job drains the journal in pages.  Each page is applied to fq:sizeCurrent
+ * in one transaction that also stores the last applied sequence number in the
+ * AttributeService, under an id kept in the journal directory, so a crash can neither
+ * lose a change nor apply it twice.  On startup the segments are scanned (a torn or
+ * zeroed record ends a segment) and anything after the stored sequence number is drained
+ * again.  Segments whose records have all been applied are deleted.
+ * <p>
+ * The journal is local to one server; in a cluster every server has its own directory
+ * and drains its own journal.
+ */
+public class FolderQuotaUpdateQueueJournalImpl implements FolderQuotaUpdateQueue
+{
+    private static Logger logger = Logger.getLogger(FolderQuotaUpdateQueueJournalImpl.class.getName());
+
+    private static final String JOURNAL_NAME_SPACE = "..FOLDER_QUOTA_JOURNAL..";
+    private static final String ID_FILE = "journal.id";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_SIZE = 32;
+    private static final long CHECK_SALT = 0x46514A524E4CL;
+    private static final int MAX_CACHED_FOLDER_IDS = 10000;
+
+    private NodeService nodeService;
+    private TransactionService transactionService;
+    private AttributeService attributeService;
+    private FolderUsageCalculator usage;
+    private String directory;
+    private int segmentSize = 64 * 1024 * 1024;
+    private long commitInterval = 10L;
+    private boolean syncCommit = true;
+    private int pageSize = 1000;
+
+    private File dir;
+    private String journalId;
+    private ScheduledExecutorService committer;
+
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment active;
+    private long nextSeq;
+    private volatile long writtenSeq;
+
+    // guarded by durableLock
+    private final Object durableLock = new Object();
+    private long durableSeq;
+
+    // guarded by drainLock
+    private final Object drainLock = new Object();
+    private Segment readSegment;
+    private int readOffset;
+    private final AtomicLong appliedSeq = new AtomicLong();
+
+    private final ConcurrentMap<NodeRef, Long> folderIds = new ConcurrentHashMap<NodeRef, Long>();
+
+    /**
+     * One journal file, mapped in full
+     */
+    private static class Segment
+    {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int limit;
+        long lastSeq;
+
+        Segment(File file, int size) throws IOException
+        {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size > 0 ? size : channel.size());
+        }
+
+        void close()
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("[FolderQuota] - Could not close journal segment " + file, e);
+            }
+        }
+    }
+
+    private final Runnable commitTask = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                commit();
+            }
+            catch (Throwable e)
+            {
+                logger.error("[FolderQuota] - Journal commit failed", e);
+            }
+        }
+    };
+
+    /**
+     * Opens the journal, replays what is on disk and starts the committer thread
+     */
+    public void init()
+    {
+        dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new AlfrescoRuntimeException("Could not create folder quota journal directory " + dir);
+        }
+        try
+        {
+            journalId = readJournalId();
+            long checkpoint = readCheckpoint();
+            long lastSeq = replay(checkpoint);
+
+            nextSeq = Math.max(lastSeq, checkpoint) + 1;
+            writtenSeq = nextSeq - 1;
+            durableSeq = writtenSeq;
+            appliedSeq.set(checkpoint);
+            readSegment = segments.isEmpty() ? null : segments.get(0);
+            readOffset = 0;
+
+            active = openSegment(nextSeq);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Could not open folder quota journal in " + dir, e);
+        }
+
+        committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "FolderQuotaJournal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        committer.scheduleWithFixedDelay(commitTask, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        logger.info(String.format("[FolderQuota] - Journal %s opened in %s, %s events to replay", journalId, dir, getBacklog()));
+    }
+
+    /**
+     * Forces what has been written and closes the segments.  Undrained events are left in
+     * the journal and replayed on the next start.
+     */
+    public void destroy()
+    {
+        if (committer != null)
+        {
+            committer.shutdown();
+            try
+            {
+                committer.awaitTermination(commitInterval * 10, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        commit();
+        synchronized (this)
+        {
+            for (Segment segment : segments)
+            {
+                segment.close();
+            }
+        }
+    }
+
+    private String readJournalId() throws IOException
+    {
+        File idFile = new File(dir, ID_FILE);
+        Charset utf8 = Charset.forName("UTF-8");
+        if (idFile.exists())
+        {
+            return new String(Files.readAllBytes(idFile.toPath()), utf8).trim();
+        }
+        String id = GUID.generate();
+        Files.write(idFile.toPath(), id.getBytes(utf8));
+        return id;
+    }
+
+    private long readCheckpoint()
+    {
+        return AuthenticationUtil.runAs(new RunAsWork<Long>()
+        {
+            public Long doWork() throws Exception
+            {
+                return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>()
+                {
+                    public Long execute() throws Throwable
+                    {
+                        Long checkpoint = (Long) attributeService.getAttribute(JOURNAL_NAME_SPACE, journalId);
+                        return checkpoint == null ? 0L : checkpoint;
+                    }
+                }, true, true);
+            }
+        }, AuthenticationUtil.getSystemUserName());
+    }
+
+    /**
+     * Scans the existing segments, deleting those already applied
+     *
+     * @return the highest sequence number found
+     */
+    private long replay(long checkpoint) throws IOException
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return 0L;
+        }
+        Arrays.sort(files);
+        long lastSeq = 0L;
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+            {
+                continue;
+            }
+            Segment segment = new Segment(file, 0);
+            int offset = 0;
+            while (offset + RECORD_SIZE <= segment.buffer.capacity())
+            {
+                long seq = segment.buffer.getLong(offset);
+                long folderId = segment.buffer.getLong(offset + 8);
+                long delta = segment.buffer.getLong(offset + 16);
+                if (seq <= lastSeq || segment.buffer.getLong(offset + 24) != check(seq, folderId, delta))
+                {
+                    break;
+                }
+                lastSeq = seq;
+                offset += RECORD_SIZE;
+            }
+            segment.limit = offset;
+            segment.lastSeq = lastSeq;
+            if (offset == 0 || lastSeq <= checkpoint)
+            {
+                segment.close();
+                deleteSegment(segment);
+            }
+            else
+            {
+                segments.add(segment);
+            }
+        }
+        return lastSeq;
+    }
+
+    private Segment openSegment(long firstSeq) throws IOException
+    {
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    private static long check(long seq, long folderId, long delta)
+    {
+        return Long.rotateLeft(seq, 17) ^ Long.rotateLeft(folderId, 31) ^ delta ^ CHECK_SALT;
+    }
+
+    public void enqueueEvent(NodeRef nodeWithQuota, long sizeChange)
+    {
+        if (sizeChange == 0L)
+        {
+            return;
+        }
+        Long folderId = getFolderId(nodeWithQuota);
+        if (folderId == null)
+        {
+            logger.debug(String.format("[FolderQuota] - Quota folder %s no longer exists, dropping size change %s", nodeWithQuota, sizeChange));
+            return;
+        }
+        long seq = append(folderId, sizeChange);
+        if (syncCommit)
+        {
+            awaitDurable(seq);
+        }
+    }
+
+    public void enqueueEvent(SizeChange change)
+    {
+        //already keyed by node id, as the journal records are
+        if (change.sizeChange == 0L)
+        {
+            return;
+        }
+        long seq = append(change.nodeId, change.sizeChange);
+        if (syncCommit)
+        {
+            awaitDurable(seq);
+        }
+    }
+
+    /**
+     * Node id of a quota folder.  There are only as many as there are quota folders, so
+     * they are kept once looked up.
+     */
+    private Long getFolderId(final NodeRef folder)
+    {
+        Long folderId = folderIds.get(folder);
+        if (folderId != null)
+        {
+            return folderId;
+        }
+        folderId = AuthenticationUtil.runAs(new RunAsWork<Long>()
+        {
+            public Long doWork() throws Exception
+            {
+                return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>()
+                {
+                    public Long execute() throws Throwable
+                    {
+                        return nodeService.exists(folder) ? (Long) nodeService.getProperty(folder, ContentModel.PROP_NODE_DBID) : null;
+                    }
+                }, true, true);
+            }
+        }, AuthenticationUtil.getSystemUserName());
+        if (folderId != null)
+        {
+            if (folderIds.size() >= MAX_CACHED_FOLDER_IDS)
+            {
+                folderIds.clear();
+            }
+            folderIds.put(folder, folderId);
+        }
+        return folderId;
+    }
+
+    private synchronized long append(long folderId, long delta)
+    {
+        if (active.limit + RECORD_SIZE > active.buffer.capacity())
+        {
+            rollover();
+        }
+        long seq = nextSeq++;
+        int offset = active.limit;
+        active.buffer.putLong(offset + 8, folderId);
+        active.buffer.putLong(offset + 16, delta);
+        active.buffer.putLong(offset + 24, check(seq, folderId, delta));
+        active.buffer.putLong(offset, seq);
+        active.limit = offset + RECORD_SIZE;
+        active.lastSeq = seq;
+        writtenSeq = seq;
+        return seq;
+    }
+
+    private void rollover()
+    {
+        active.buffer.force();
+        markDurable(active.lastSeq);
+        try
+        {
+            active = openSegment(nextSeq);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Could not start a new folder quota journal segment in " + dir, e);
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("[FolderQuota] - Journal rolled over to " + active.file.getName());
+        }
+    }
+
+    /**
+     * Forces the active segment to disk.  Full segments were forced when they rolled over.
+     */
+    private void commit()
+    {
+        Segment segment;
+        long seq;
+        synchronized (this)
+        {
+            segment = active;
+            seq = writtenSeq;
+        }
+        synchronized (durableLock)
+        {
+            if (seq <= durableSeq)
+            {
+                return;
+            }
+        }
+        segment.buffer.force();
+        markDurable(seq);
+    }
+
+    private void markDurable(long seq)
+    {
+        synchronized (durableLock)
+        {
+            if (seq > durableSeq)
+            {
+                durableSeq = seq;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void awaitDurable(long seq)
+    {
+        synchronized (durableLock)
+        {
+            while (durableSeq < seq)
+            {
+                try
+                {
+                    durableLock.wait(commitInterval);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void processAllEvents()
+    {
+        while (processEvents(Integer.MAX_VALUE) > 0)
+        {
+            // keep going until the journal is drained
+        }
+    }
+
+    public int processEvents(int maxEvents)
+    {
+        synchronized (drainLock)
+        {
+            int drained = 0;
+            try
+            {
+                while (drained < maxEvents)
+                {
+                    int page = drainPage(Math.min(pageSize, maxEvents - drained));
+                    if (page == 0)
+                    {
+                        break;
+                    }
+                    drained += page;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("[FolderQuota] - Failed to apply journalled size changes, they will be retried on the next run", e);
+            }
+            compact();
+            if (drained > 0)
+            {
+                logger.debug(String.format("[FolderQuota] - Drained %s journal events, %s left", drained, getBacklog()));
+            }
+            return drained;
+        }
+    }
+
+    /**
+     * Reads up to max unapplied records from the read position and applies them in one
+     * transaction together with the new checkpoint.  The read position only moves once
+     * that transaction has committed.
+     */
+    private int drainPage(int max)
+    {
+        List<Segment> snapshot;
+        int[] limits;
+        synchronized (this)
+        {
+            snapshot = new ArrayList<Segment>(segments);
+            limits = new int[snapshot.size()];
+            for (int i = 0; i < limits.length; i++)
+            {
+                limits[i] = snapshot.get(i).limit;
+            }
+        }
+
+        final Map<Long, Long> changes = new HashMap<Long, Long>();
+        long applied = appliedSeq.get();
+        long lastSeq = applied;
+        int count = 0;
+        int index = Math.max(0, snapshot.indexOf(readSegment));
+        int offset = snapshot.indexOf(readSegment) < 0 ? 0 : readOffset;
+        while (index < snapshot.size() && count < max)
+        {
+            ByteBuffer buffer = snapshot.get(index).buffer;
+            if (offset + RECORD_SIZE > limits[index])
+            {
+                if (index == snapshot.size() - 1)
+                {
+                    break;
+                }
+                index++;
+                offset = 0;
+                continue;
+            }
+            long seq = buffer.getLong(offset);
+            if (seq > applied)
+            {
+                long folderId = buffer.getLong(offset + 8);
+                Long total = changes.get(folderId);
+                long delta = buffer.getLong(offset + 16);
+                changes.put(folderId, total == null ? delta : total + delta);
+                lastSeq = seq;
+                count++;
+            }
+            offset += RECORD_SIZE;
+        }
+        Segment endSegment = index < snapshot.size() ? snapshot.get(index) : null;
+
+        if (count > 0)
+        {
+            final long checkpoint = lastSeq;
+            AuthenticationUtil.runAs(new RunAsWork<Void>()
+            {
+                public Void doWork() throws Exception
+                {
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+                    {
+                        public Void execute() throws Throwable
+                        {
+                            Map<NodeRef, Long> folderChanges = new HashMap<NodeRef, Long>(changes.size());
+                            for (Map.Entry<Long, Long> entry : changes.entrySet())
+                            {
+                                NodeRef folder = nodeService.getNodeRef(entry.getKey());
+                                if (folder != null)
+                                {
+                                    folderChanges.put(folder, entry.getValue());
+                                }
+                            }
+                            usage.applySizeChangesInTransaction(folderChanges.entrySet());
+                            attributeService.setAttribute(checkpoint, JOURNAL_NAME_SPACE, journalId);
+                            return null;
+                        }
+                    }, false, true);
+                }
+            }, AuthenticationUtil.getSystemUserName());
+            appliedSeq.set(checkpoint);
+        }
+        readSegment = endSegment;
+        readOffset = offset;
+        return count;
+    }
+
+    /**
+     * Deletes full segments whose records have all been applied
+     */
+    private void compact()
+    {
+        List<Segment> removed = new ArrayList<Segment>();
+        synchronized (this)
+        {
+            Iterator<Segment> it = segments.iterator();
+            while (it.hasNext())
+            {
+                Segment segment = it.next();
+                if (segment != active && segment.lastSeq <= appliedSeq.get())
+                {
+                    it.remove();
+                    removed.add(segment);
+                }
+            }
+        }
+        for (Segment segment : removed)
+        {
+            if (segment == readSegment)
+            {
+                readSegment = null;
+                readOffset = 0;
+            }
+            segment.close();
+            deleteSegment(segment);
+        }
+    }
+
+    private void deleteSegment(Segment segment)
+    {
+        if (!segment.file.delete())
+        {
+            logger.warn("[FolderQuota] - Could not delete applied journal segment " + segment.file);
+        }
+        else if (logger.isDebugEnabled())
+        {
+            logger.debug("[FolderQuota] - Deleted applied journal segment " + segment.file.getName());
+        }
+    }
+
+    public long getBacklog()
+    {
+        return writtenSeq - appliedSeq.get();
+    }
+
+    /**
+     * Sums the unapplied records of one folder.  This reads the whole backlog, so it is
+     * meant for the reconciler rather than the upload path.
+     */
+    public long getPendingDelta(NodeRef nodeWithQuota)
+    {
+        Long folderId = getFolderId(nodeWithQuota);
+        if (folderId == null)
+        {
+            return 0L;
+        }
+        synchronized (drainLock)
+        {
+            List<Segment> snapshot;
+            int[] limits;
+            synchronized (this)
+            {
+                snapshot = new ArrayList<Segment>(segments);
+                limits = new int[snapshot.size()];
+                for (int i = 0; i < limits.length; i++)
+                {
+                    limits[i] = snapshot.get(i).limit;
+                }
+            }
+            long applied = appliedSeq.get();
+            long total = 0L;
+            for (int i = 0; i < snapshot.size(); i++)
+            {
+                ByteBuffer buffer = snapshot.get(i).buffer;
+                for (int offset = 0; offset + RECORD_SIZE <= limits[i]; offset += RECORD_SIZE)
+                {
+                    if (buffer.getLong(offset) > applied && buffer.getLong(offset + 8) == folderId)
+                    {
+                        total += buffer.getLong(offset + 16);
+                    }
+                }
+            }
+            return total;
+        }
+    }
+
+    public boolean isTransactional()
+    {
+        return false;
+    }
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    public void setAttributeService(AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    public void setFolderUsageCalculator(FolderUsageCalculator usage)
+    {
+        this.usage = usage;
+    }
+
+    /**
+     * Local directory holding the journal segments
+     */
+    public void setDirectory(String directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Size in bytes of each segment file
+     */
+    public void setSegmentSize(int segmentSize)
+    {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Milliseconds between forces of the active segment
+     */
+    public void setCommitInterval(long commitInterval)
+    {
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * If true, enqueueing waits until the record has been forced to disk
+     */
+    public void setSyncCommit(boolean syncCommit)
+    {
+        this.syncCommit = syncCommit;
+    }
+
+    /**
+     * Maximum number of events applied per transaction
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+}
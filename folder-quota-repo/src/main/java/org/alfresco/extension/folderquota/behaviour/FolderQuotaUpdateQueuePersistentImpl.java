@@ -24,56 +24,400 @@
 package org.alfresco.extension.folderquota.behaviour;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
 import org.alfresco.extension.folderquota.SizeChange;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.attributes.AttributeService;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.apache.log4j.Logger;
 
-public class FolderQuotaUpdateQueuePersistentImpl implements FolderQuotaUpdateQueue, AttributeService.AttributeQueryCallback {
-	private NodeService nodeService;
-	private AttributeService attributeService;
+/**
+ * Queue backed by the AttributeService, so queued changes survive a restart.  Each event
+ * is one attribute keyed by (slot, quota folder, GUID) holding the size delta as a Long;
+ * the GUID keeps keys unique across restarts and cluster members.
+ * <p>
+ * The slot is the time the event was queued, in slots of slotLength milliseconds, and is
+ * part of the first key, so each slot can be read on its own.  The AttributeService
+ * reads every attribute matching the keys it is given, whether or not the callback wants
+ * more, so a queue kept under one key would be read in full for every page.  Draining
+ * reads each slot from the oldest one not yet known to be empty up to the current one
+ * once per run, and applies what it read in pages; a slot holding more than scanSize
+ * events is read again for each scanSize drained from it.  A slot is only known to be
+ * empty once it is older than maxTransactionAge, as a transaction that is still open may
+ * yet commit events into it.  Events queued before slots were introduced are kept under
+ * the bare namespace and drained the same way.
+ * <p>
+ * Events are written in the transaction that made the change, so they commit or roll back
+ * with it.  Draining takes a cluster-wide job lock; each page of events is applied to the
+ * quota folders and removed from the queue in one transaction.  The drainer records the
+ * oldest slot still to read and how many events it left queued, so neither has to be
+ * worked out by whoever asks.
+ */
+public class FolderQuotaUpdateQueuePersistentImpl implements FolderQuotaUpdateQueue {
+    private static Logger logger = Logger.getLogger(FolderQuotaUpdateQueuePersistentImpl.class.getName());
 	private final static String FOLDER_QUOTA_UPDATE_NAME_SPACE  = "..FOLDER_QUOTA_UPDATE..";
-	
-	static class IndexItem {
-		long startTime;
+	private final static String FOLDER_QUOTA_UPDATE_STATE_NAME_SPACE  = "..FOLDER_QUOTA_UPDATE_STATE..";
+	private static final String FIRST_SLOT_KEY = "firstSlot";
+	private static final String BACKLOG_KEY = "backlog";
+	private static final QName LOCK_QNAME = QName.createQName(FolderQuotaConstants.FOLDER_QUOTA_MODEL_1_0_URI, "updateQueue");
+	private static final long LOCK_TTL = 60000L;
+
+	private AttributeService attributeService;
+	private TransactionService transactionService;
+	private JobLockService jobLockService;
+	private FolderUsageCalculator usage;
+	private int pageSize = 500;
+	private int scanSize = 10000;
+	private long slotLength = 300000L;
+	private long maxTransactionAge = 3600000L;
+
+	// events from before slots were introduced, only looked for until they have been drained
+	private volatile boolean unslottedDrained = false;
+	private volatile boolean firstSlotSaved = false;
+
+	/**
+	 * Events read from one slot, up to the number wanted, and how many the slot holds
+	 */
+	private static class SlotScan {
+		final List<Serializable[]> keys = new ArrayList<Serializable[]>();
+		final List<Long> deltas = new ArrayList<Long>();
 		long count;
-		IndexItem() {
-			startTime = java.util.Calendar.getInstance().getTimeInMillis();
-			count = 0;
-		}
-		synchronized long getNext() {
-			return ++count;
-		}
 	}
 
-	private static IndexItem indexItem = new IndexItem();
+	/**
+	 * Events drained from one bucket and left in it
+	 */
+	private static class BucketDrain {
+		int drained;
+		long left;
+	}
 
 	public void enqueueEvent(NodeRef nodeWithQuota, long sizeChange) {
-		//This will throw an error if we have an unlikely duplicate key
-		attributeService.createAttribute(nodeWithQuota, FOLDER_QUOTA_UPDATE_NAME_SPACE,indexItem.getNext());
+		if(!firstSlotSaved) {
+			saveFirstSlot();
+		}
+		attributeService.createAttribute(sizeChange, getBucket(currentSlot()), nodeWithQuota.toString(), GUID.generate());
+	}
+
+	public void enqueueEvent(SizeChange change) {
+		//events stay keyed by NodeRef, so the queue reads back the same after an upgrade
+		NodeRef folder = usage.getNodeRef(change.nodeId);
+		if(folder != null) {
+			enqueueEvent(folder, change.sizeChange);
+		}
 	}
-	
+
+	public boolean isTransactional() {
+		return true;
+	}
+
 	public void processAllEvents() {
-		//TODO: set a limit
-		attributeService.getAttributes(this, FOLDER_QUOTA_UPDATE_NAME_SPACE);
+		while(processEvents(Integer.MAX_VALUE) > 0) {
+			// keep going until the queue is empty
+		}
 	}
-	public void setNodeService(NodeService nodeService) {
-		this.nodeService = nodeService;
+
+	public int processEvents(final int maxEvents) {
+		final String lockToken;
+		try {
+			lockToken = jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+		}
+		catch(LockAcquisitionException e) {
+			logger.debug("Update queue is being drained elsewhere");
+			return 0;
+		}
+		try {
+			return AuthenticationUtil.runAs(new RunAsWork<Integer>() {
+				public Integer doWork() throws Exception {
+					return drain(maxEvents, lockToken);
+				}
+			}, AuthenticationUtil.getSystemUserName());
+		}
+		finally {
+			jobLockService.releaseLock(lockToken, LOCK_QNAME);
+		}
 	}
 
-	public boolean handleAttribute(Long id, Serializable value,	Serializable[] keys) {
-		SizeChange qi = (SizeChange) value;
-		long currentSize = (Long) nodeService.getProperty(qi.nodeRef, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
-		nodeService.setProperty(qi.nodeRef, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT, currentSize+qi.sizeChange);
-		attributeService.removeAttribute(id);
-		return true;
+	/**
+	 * Reads every slot that may hold events once, drains up to maxEvents of them, and
+	 * records the first slot still to read and the number of events left
+	 */
+	private int drain(int maxEvents, String lockToken) {
+		final long currentSlot = currentSlot();
+		long firstSlot = transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>() {
+			public Long execute() throws Throwable {
+				return getFirstSlot(currentSlot);
+			}
+		}, true, true);
+		long nextFirstSlot = firstSlot;
+		boolean emptySoFar = true;
+		int drained = 0;
+		long left = 0L;
+
+		if(!unslottedDrained) {
+			BucketDrain unslotted = drainBucket(FOLDER_QUOTA_UPDATE_NAME_SPACE, maxEvents, lockToken);
+			drained += unslotted.drained;
+			left += unslotted.left;
+			unslottedDrained = unslotted.left == 0L;
+		}
+		for(long slot = firstSlot; slot <= currentSlot; slot++) {
+			BucketDrain bucket = drainBucket(getBucket(slot), maxEvents - drained, lockToken);
+			drained += bucket.drained;
+			left += bucket.left;
+			//a slot can only be skipped from now on once it is empty and too old for a
+			//transaction still to commit events into it
+			emptySoFar = emptySoFar && bucket.left == 0L && (slot + 1) * slotLength + maxTransactionAge < System.currentTimeMillis();
+			if(emptySoFar) {
+				nextFirstSlot = slot + 1;
+			}
+		}
+		saveState(firstSlot, nextFirstSlot, left);
+		return drained;
 	}
 
-	public void enqueueEvent(SizeChange change) {
-		enqueueEvent(change.nodeRef, change.sizeChange);
+	/**
+	 * Reads a bucket and drains up to max of its events in pages.  The bucket is read
+	 * again after scanSize events, so memory stays bounded whatever it holds.
+	 *
+	 * @return the events drained, and those left as of the last read
+	 */
+	private BucketDrain drainBucket(final String bucket, int max, String lockToken) {
+		BucketDrain result = new BucketDrain();
+		while(true) {
+			SlotScan scan = scan(bucket, Math.min(scanSize, max - result.drained));
+			for(int start = 0; start < scan.keys.size(); start += pageSize) {
+				int end = Math.min(start + pageSize, scan.keys.size());
+				applyPage(scan.keys.subList(start, end), scan.deltas.subList(start, end));
+				result.drained += end - start;
+				jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+			}
+			result.left = scan.count - scan.keys.size();
+			if(scan.keys.isEmpty() || result.left == 0L || result.drained >= max) {
+				return result;
+			}
+		}
+	}
+
+	private SlotScan scan(final String bucket, final int max) {
+		return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<SlotScan>() {
+			public SlotScan execute() throws Throwable {
+				final SlotScan scan = new SlotScan();
+				attributeService.getAttributes(new AttributeService.AttributeQueryCallback() {
+					public boolean handleAttribute(Long id, Serializable value, Serializable[] key) {
+						scan.count++;
+						if(scan.keys.size() < max) {
+							scan.keys.add(key);
+							scan.deltas.add(value instanceof Long ? (Long) value : 0L);
+						}
+						return true;
+					}
+				}, bucket);
+				return scan;
+			}
+		}, true, true);
 	}
 
+	/**
+	 * Applies a page of events grouped by folder and removes them, in one transaction
+	 */
+	private void applyPage(final List<Serializable[]> keys, final List<Long> deltas) {
+		transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+			public Void execute() throws Throwable {
+				Map<NodeRef, Long> changes = new HashMap<NodeRef, Long>();
+				for(int i = 0; i < keys.size(); i++) {
+					NodeRef quotaFolder = new NodeRef((String) keys.get(i)[1]);
+					Long total = changes.get(quotaFolder);
+					changes.put(quotaFolder, total == null ? deltas.get(i) : total + deltas.get(i));
+				}
+				usage.applySizeChangesInTransaction(changes.entrySet());
+				for(Serializable[] key : keys) {
+					attributeService.removeAttribute(key);
+				}
+				if(logger.isDebugEnabled()) {
+					logger.debug(String.format("Drained %s events for %s folders", keys.size(), changes.size()));
+				}
+				return null;
+			}
+		}, false, true);
+	}
 
+	/**
+	 * Records the first slot to read before this server queues anything, in a transaction
+	 * of its own, so events queued long before the first drain are not skipped
+	 */
+	private void saveFirstSlot() {
+		final long firstSlot = currentSlot() - 1;
+		try {
+			AuthenticationUtil.runAs(new RunAsWork<Void>() {
+				public Void doWork() throws Exception {
+					return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+						public Void execute() throws Throwable {
+							if(attributeService.getAttribute(FOLDER_QUOTA_UPDATE_STATE_NAME_SPACE, FIRST_SLOT_KEY) == null) {
+								attributeService.createAttribute(firstSlot, FOLDER_QUOTA_UPDATE_STATE_NAME_SPACE, FIRST_SLOT_KEY);
+							}
+							return null;
+						}
+					}, false, true);
+				}
+			}, AuthenticationUtil.getSystemUserName());
+			firstSlotSaved = true;
+		}
+		catch(RuntimeException e) {
+			//another server got there first, or it is tried again on the next event
+			logger.debug("Could not record the first update queue slot", e);
+		}
+	}
+
+	private void saveState(final long firstSlot, final long nextFirstSlot, final long backlog) {
+		transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+			public Void execute() throws Throwable {
+				if(nextFirstSlot != firstSlot) {
+					attributeService.setAttribute(nextFirstSlot, FOLDER_QUOTA_UPDATE_STATE_NAME_SPACE, FIRST_SLOT_KEY);
+				}
+				attributeService.setAttribute(backlog, FOLDER_QUOTA_UPDATE_STATE_NAME_SPACE, BACKLOG_KEY);
+				return null;
+			}
+		}, false, true);
+	}
+
+	/**
+	 * @return the number of events left queued by the last drain, or counted now if
+	 * nothing has been drained yet
+	 */
+	public long getBacklog() {
+		return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>() {
+			public Long execute() throws Throwable {
+				Serializable backlog = attributeService.getAttribute(FOLDER_QUOTA_UPDATE_STATE_NAME_SPACE, BACKLOG_KEY);
+				if(backlog instanceof Long) {
+					return (Long) backlog;
+				}
+				final long[] count = new long[1];
+				AttributeService.AttributeQueryCallback counter = new AttributeService.AttributeQueryCallback() {
+					public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+						count[0]++;
+						return true;
+					}
+				};
+				for(String bucket : getBuckets()) {
+					attributeService.getAttributes(counter, bucket);
+				}
+				return count[0];
+			}
+		}, true, false);
+	}
+
+	public long getPendingDelta(final NodeRef nodeWithQuota) {
+		return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>() {
+			public Long execute() throws Throwable {
+				final long[] total = new long[1];
+				AttributeService.AttributeQueryCallback adder = new AttributeService.AttributeQueryCallback() {
+					public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+						total[0] += value instanceof Long ? (Long) value : 0L;
+						return true;
+					}
+				};
+				for(String bucket : getBuckets()) {
+					attributeService.getAttributes(adder, bucket, nodeWithQuota.toString());
+				}
+				return total[0];
+			}
+		}, true, false);
+	}
+
+	/**
+	 * Must be called in a transaction
+	 *
+	 * @return the buckets that may hold events, oldest first
+	 */
+	private List<String> getBuckets() {
+		List<String> buckets = new ArrayList<String>();
+		if(!unslottedDrained) {
+			buckets.add(FOLDER_QUOTA_UPDATE_NAME_SPACE);
+		}
+		long currentSlot = currentSlot();
+		for(long slot = getFirstSlot(currentSlot); slot <= currentSlot; slot++) {
+			buckets.add(getBucket(slot));
+		}
+		return buckets;
+	}
+
+	/**
+	 * Must be called in a transaction
+	 */
+	private long getFirstSlot(long currentSlot) {
+		Serializable firstSlot = attributeService.getAttribute(FOLDER_QUOTA_UPDATE_STATE_NAME_SPACE, FIRST_SLOT_KEY);
+		if(firstSlot instanceof Long) {
+			return (Long) firstSlot;
+		}
+		//nothing has been queued yet
+		return currentSlot - 1;
+	}
+
+	private long currentSlot() {
+		return System.currentTimeMillis() / slotLength;
+	}
+
+	private static String getBucket(long slot) {
+		return FOLDER_QUOTA_UPDATE_NAME_SPACE + slot;
+	}
+
+	public void setAttributeService(AttributeService attributeService) {
+		this.attributeService = attributeService;
+	}
+
+	public void setTransactionService(TransactionService transactionService) {
+		this.transactionService = transactionService;
+	}
+
+	public void setJobLockService(JobLockService jobLockService) {
+		this.jobLockService = jobLockService;
+	}
+
+	public void setFolderUsageCalculator(FolderUsageCalculator usage) {
+		this.usage = usage;
+	}
+
+	/**
+	 * Maximum number of events applied and removed per transaction
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Maximum number of events held in memory from one read of a slot
+	 */
+	public void setScanSize(int scanSize) {
+		this.scanSize = scanSize;
+	}
+
+	/**
+	 * Milliseconds of events kept under one key.  Every slot from the oldest one not yet
+	 * drained is read on each run, so slots should not be much shorter than the time
+	 * between runs.
+	 */
+	public void setSlotLength(long slotLength) {
+		this.slotLength = slotLength;
+	}
+
+	/**
+	 * Milliseconds a slot is still read after its end, in case a transaction that queued
+	 * events in it has not committed yet
+	 */
+	public void setMaxTransactionAge(long maxTransactionAge) {
+		this.maxTransactionAge = maxTransactionAge;
+	}
 }
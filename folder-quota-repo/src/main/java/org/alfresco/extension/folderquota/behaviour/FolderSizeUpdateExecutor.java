@@ -0,0 +1,629 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Bounded executor for folder size updates, with a choice of what to do when it is full
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.VirtualThreadExecutor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the committed size changes of a transaction to fq:sizeCurrent on a pool of
+ * worker threads, one transaction per task.  The work queue is bounded, so a flood of
+ * commits (e.g. a migration) cannot grow it until memory runs out.  When the queue is
+ * full the saturation policy decides what happens to the changes, none of them drop a
+ * delta:
+ * <ul>
+ * <li>callerRuns - the committing thread writes the changes itself, which slows the
+ * producers down to the speed the database can take</li>
+ * <li>coalesce - the changes are added to a net delta per quota folder, which the next
+ * worker to finish a task writes in one transaction</li>
+ * <li>spill - the changes go to the update queue and are written by the incremental
+ * job.  With the persistent queue they survive a restart.</li>
+ * </ul>
+ * Whatever the policy, changes that fail to be written are spilled to the update queue
+ * for the incremental job to retry.  If there is no queue, or spilling fails too, they
+ * are coalesced and retried by the next task to finish.
+ * With a {@link VirtualThreadExecutor} available each task runs on its own virtual
+ * thread instead of the pool.  The virtual executor's permits then limit how many tasks
+ * write at once, and up to queueCapacity more may wait for a permit before the
+ * saturation policy applies.
+ */
+public class FolderSizeUpdateExecutor
+{
+    private static Logger logger = Logger.getLogger(FolderSizeUpdateExecutor.class.getName());
+
+    public static final String POLICY_CALLER_RUNS = "callerRuns";
+    public static final String POLICY_COALESCE = "coalesce";
+    public static final String POLICY_SPILL = "spill";
+
+    private FolderUsageCalculator usage;
+    private FolderQuotaUpdateQueue queue;
+    private TransactionService transactionService;
+    private int corePoolSize = 4;
+    private int maximumPoolSize = 8;
+    private int queueCapacity = 1000;
+    private long keepAliveTime = 60000L;
+    private String saturationPolicy = POLICY_COALESCE;
+
+    private VirtualThreadExecutor virtualThreads;
+
+    private ThreadPoolExecutor executor;
+    private boolean virtual;
+    private volatile boolean shutdown;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final FolderDeltaCounters coalesced = new FolderDeltaCounters();
+    private final FolderDeltaCounters unwritten = new FolderDeltaCounters();
+    private final AtomicBoolean coalescePending = new AtomicBoolean();
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong callerRunsCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private volatile long lastLatency;
+    private volatile long maxLatency;
+
+    /**
+     * Writes the changes of one transaction, and afterwards whatever has been coalesced
+     */
+    private class UpdateTask implements Runnable
+    {
+        private final Map<NodeRef, Long> changes;
+        private final long submitted;
+
+        private UpdateTask(Map<NodeRef, Long> changes)
+        {
+            this.changes = changes;
+            this.submitted = System.currentTimeMillis();
+        }
+
+        public void run()
+        {
+            try
+            {
+                if (changes != null)
+                {
+                    apply(changes);
+                    recordLatency(System.currentTimeMillis() - submitted);
+                }
+                if (coalescePending.get())
+                {
+                    flushCoalesced();
+                }
+            }
+            catch (Throwable e)
+            {
+                logger.error("[FolderQuota] - Folder size update task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Starts the worker pool
+     */
+    public void init()
+    {
+        if (!POLICY_CALLER_RUNS.equals(saturationPolicy) && !POLICY_COALESCE.equals(saturationPolicy) && !POLICY_SPILL.equals(saturationPolicy))
+        {
+            throw new IllegalStateException("Unknown folder size update saturation policy: " + saturationPolicy);
+        }
+        if (POLICY_SPILL.equals(saturationPolicy) && queue == null)
+        {
+            throw new IllegalStateException("The spill saturation policy needs an update queue");
+        }
+        if (virtualThreads != null && virtualThreads.isAvailable())
+        {
+            virtual = true;
+            logger.info(String.format("[FolderQuota] - Folder size update executor started on virtual threads, %s writing at once, %s waiting, %s when full",
+                    virtualThreads.getMaxConcurrency(), queueCapacity, saturationPolicy));
+            return;
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveTime, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "FolderQuotaUpdater-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+        logger.info(String.format("[FolderQuota] - Folder size update executor started, %s-%s threads, queue of %s, %s when full",
+                corePoolSize, maximumPoolSize, queueCapacity, saturationPolicy));
+    }
+
+    /**
+     * Lets queued tasks finish, then writes out whatever has been coalesced
+     */
+    public void destroy()
+    {
+        shutdown = true;
+        if (virtual)
+        {
+            long deadline = System.currentTimeMillis() + keepAliveTime;
+            while (inFlight.get() > 0 && System.currentTimeMillis() < deadline)
+            {
+                try
+                {
+                    Thread.sleep(50L);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        else if (executor != null)
+        {
+            executor.shutdown();
+            try
+            {
+                executor.awaitTermination(keepAliveTime, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushCoalesced();
+        if (getCoalescedFolderCount() > 0)
+        {
+            logger.warn(String.format("[FolderQuota] - Shut down with unwritten size changes for %s folders, folder usage may be inaccurate", getCoalescedFolderCount()));
+        }
+    }
+
+    /**
+     * Hands over the committed size changes of one transaction.  Only blocks on the
+     * database when the queue is full and the policy is callerRuns.
+     *
+     * @param changes net size delta per quota folder
+     */
+    public void submit(Map<NodeRef, Long> changes)
+    {
+        submittedCount.incrementAndGet();
+        unwritten.addAll(changes, 1L);
+        try
+        {
+            dispatch(new UpdateTask(changes));
+        }
+        catch (RejectedExecutionException e)
+        {
+            rejectedCount.incrementAndGet();
+            saturated(changes);
+        }
+    }
+
+    private void saturated(Map<NodeRef, Long> changes)
+    {
+        if (POLICY_SPILL.equals(saturationPolicy))
+        {
+            unwritten.addAll(changes, -1L);
+            if (!spill(changes))
+            {
+                retryLater(changes);
+            }
+        }
+        else if (POLICY_COALESCE.equals(saturationPolicy) && !isShutdown())
+        {
+            coalesce(changes);
+        }
+        else
+        {
+            //callerRuns, or the pool has been shut down
+            callerRunsCount.incrementAndGet();
+            new UpdateTask(changes).run();
+        }
+    }
+
+    /**
+     * Runs a task on the pool, or on a virtual thread holding a permit while it writes
+     *
+     * @throws RejectedExecutionException if the queue is full or the executor is shut down
+     */
+    private void dispatch(final Runnable task)
+    {
+        if (!virtual)
+        {
+            executor.execute(task);
+            return;
+        }
+        if (shutdown || inFlight.incrementAndGet() > virtualThreads.getMaxConcurrency() + queueCapacity)
+        {
+            if (!shutdown)
+            {
+                inFlight.decrementAndGet();
+            }
+            throw new RejectedExecutionException();
+        }
+        try
+        {
+            virtualThreads.execute(new Runnable()
+            {
+                public void run()
+                {
+                    virtualThreads.acquire();
+                    running.incrementAndGet();
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        running.decrementAndGet();
+                        virtualThreads.release();
+                        inFlight.decrementAndGet();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isShutdown()
+    {
+        return virtual ? shutdown : executor.isShutdown();
+    }
+
+    /**
+     * Writes the changes in a single transaction.  Changes that fail are spilled to the
+     * update queue, or kept for a retry when they cannot be.
+     */
+    private void apply(Map<NodeRef, Long> changes)
+    {
+        Map<NodeRef, Long> failed = usage.applySizeChanges(changes, Math.max(1, changes.size()));
+        unwritten.addAll(changes, -1L);
+        if (failed.isEmpty())
+        {
+            completedCount.incrementAndGet();
+            return;
+        }
+        failedCount.incrementAndGet();
+        logger.warn("[FolderQuota] - Failed to update folder size on quota folder nodes, spilling the changes for a retry: " + failed.keySet());
+        if (queue == null || !spill(failed))
+        {
+            retryLater(failed);
+        }
+    }
+
+    /**
+     * Keeps changes that could be neither written nor spilled with the coalesced ones.
+     * No task is started for them, so a database that keeps failing is retried at the
+     * pace of the tasks that are submitted anyway.
+     */
+    private void retryLater(Map<NodeRef, Long> changes)
+    {
+        unwritten.addAll(changes, 1L);
+        coalesced.addAll(changes, 1L);
+        coalescePending.set(true);
+    }
+
+    private void coalesce(Map<NodeRef, Long> changes)
+    {
+        coalesced.addAll(changes, 1L);
+        coalescedCount.incrementAndGet();
+        coalescePending.set(true);
+        //the queue may have drained while the changes were added, make sure someone flushes them
+        if (getQueueDepth() == 0)
+        {
+            try
+            {
+                dispatch(new UpdateTask(null));
+            }
+            catch (RejectedExecutionException e)
+            {
+                //full again, the next task to finish flushes them
+            }
+        }
+    }
+
+    /**
+     * Writes the net coalesced delta of every folder in one transaction.  Changes
+     * coalesced meanwhile are kept for the next flush.
+     */
+    private synchronized void flushCoalesced()
+    {
+        coalescePending.set(false);
+        Map<NodeRef, Long> changes = coalesced.takeAll();
+        if (!changes.isEmpty())
+        {
+            apply(changes);
+        }
+    }
+
+    /**
+     * Hands changes to the update queue.  Never throws, as it runs in the committing
+     * thread's afterCommit as well as on the workers.
+     *
+     * @return true if the queue took the changes
+     */
+    private boolean spill(final Map<NodeRef, Long> changes)
+    {
+        try
+        {
+            if (!queue.isTransactional())
+            {
+                enqueue(changes);
+            }
+            else
+            {
+                AuthenticationUtil.runAs(new RunAsWork<Void>()
+                {
+                    public Void doWork() throws Exception
+                    {
+                        return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+                        {
+                            public Void execute() throws Throwable
+                            {
+                                enqueue(changes);
+                                return null;
+                            }
+                        }, false, true);
+                    }
+                }, AuthenticationUtil.getSystemUserName());
+            }
+            spilledCount.incrementAndGet();
+            return true;
+        }
+        catch (Throwable e)
+        {
+            logger.error("[FolderQuota] - Failed to spill size changes to the update queue, keeping them for a retry: " + changes.keySet(), e);
+            return false;
+        }
+    }
+
+    private void enqueue(Map<NodeRef, Long> changes)
+    {
+        for (Map.Entry<NodeRef, Long> change : changes.entrySet())
+        {
+            queue.enqueueEvent(change.getKey(), change.getValue());
+        }
+    }
+
+    private void recordLatency(long latency)
+    {
+        lastLatency = latency;
+        if (latency > maxLatency)
+        {
+            maxLatency = latency;
+        }
+        totalLatency.addAndGet(latency);
+    }
+
+    /**
+     * @return number of tasks waiting for a worker
+     */
+    public int getQueueDepth()
+    {
+        if (virtual)
+        {
+            return Math.max(0, inFlight.get() - running.get());
+        }
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    /**
+     * @return number of workers currently writing
+     */
+    public int getActiveCount()
+    {
+        if (virtual)
+        {
+            return running.get();
+        }
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    public int getPoolSize()
+    {
+        if (virtual)
+        {
+            return running.get();
+        }
+        return executor == null ? 0 : executor.getPoolSize();
+    }
+
+    /**
+     * @return true if tasks run on virtual threads rather than the pool
+     */
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    public long getSubmittedCount()
+    {
+        return submittedCount.get();
+    }
+
+    public long getCompletedCount()
+    {
+        return completedCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return failedCount.get();
+    }
+
+    /**
+     * @return number of submissions turned away by a full queue, whatever the policy did with them
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+
+    public long getCallerRunsCount()
+    {
+        return callerRunsCount.get();
+    }
+
+    public long getCoalescedCount()
+    {
+        return coalescedCount.get();
+    }
+
+    public long getSpilledCount()
+    {
+        return spilledCount.get();
+    }
+
+    /**
+     * @return net delta of one folder handed over but not written or spilled yet, whether
+     * it is waiting for a worker, coalesced or being written
+     */
+    public long getPendingDelta(NodeRef quotaFolder)
+    {
+        return unwritten.get(quotaFolder);
+    }
+
+    /**
+     * @return number of folders with a coalesced, unwritten, non-zero delta
+     */
+    public int getCoalescedFolderCount()
+    {
+        return coalesced.getFolderCount();
+    }
+
+    /**
+     * @return milliseconds from submit to written for the last task
+     */
+    public long getLastLatency()
+    {
+        return lastLatency;
+    }
+
+    public long getMaxLatency()
+    {
+        return maxLatency;
+    }
+
+    public long getAverageLatency()
+    {
+        long completed = completedCount.get();
+        return completed == 0L ? 0L : totalLatency.get() / completed;
+    }
+
+    /**
+     * The folder usage calculator performs the actual fq:sizeCurrent writes
+     *
+     * @param usage
+     */
+    public void setFolderUsageCalculator(FolderUsageCalculator usage)
+    {
+        this.usage = usage;
+    }
+
+    /**
+     * Queue the changes are spilled to, only needed for the spill policy
+     *
+     * @param queue
+     */
+    public void setFolderQuotaUpdateQueue(FolderQuotaUpdateQueue queue)
+    {
+        this.queue = queue;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * Runs tasks on virtual threads when they are enabled and supported
+     *
+     * @param virtualThreads
+     */
+    public void setVirtualThreadExecutor(VirtualThreadExecutor virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setCorePoolSize(int corePoolSize)
+    {
+        this.corePoolSize = corePoolSize;
+    }
+
+    public void setMaximumPoolSize(int maximumPoolSize)
+    {
+        this.maximumPoolSize = maximumPoolSize;
+    }
+
+    /**
+     * Number of tasks that can wait for a worker before the saturation policy applies
+     *
+     * @param queueCapacity
+     */
+    public void setQueueCapacity(int queueCapacity)
+    {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Milliseconds an idle worker above the core size is kept
+     *
+     * @param keepAliveTime
+     */
+    public void setKeepAliveTime(long keepAliveTime)
+    {
+        this.keepAliveTime = keepAliveTime;
+    }
+
+    /**
+     * What to do with changes when the queue is full: callerRuns, coalesce or spill
+     *
+     * @param saturationPolicy
+     */
+    public void setSaturationPolicy(String saturationPolicy)
+    {
+        this.saturationPolicy = saturationPolicy;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Write-behind stage for folder size updates.  Deltas from committed transactions are
+ * gathered per quota folder and a single flusher thread applies the net change.
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.log4j.Logger;
+
+/**
+ * Collects folder size deltas from all committed transactions into one counter per
+ * folder, updated without a lock.  A single flusher thread periodically (or once the
+ * pending delta passes a threshold) takes the net delta of each folder and writes it to
+ * fq:sizeCurrent in batched transactions.  This replaces one retrying transaction per
+ * commit with one write per folder per flush.
+ * <p>
+ * The folders include every folder with a subtree size, not just quota folders, so a
+ * folder's counter is removed once its delta has been taken by a flush: only folders
+ * changed since the last flush are held.
+ */
+public class FolderSizeWriteBehind
+{
+    private static Logger logger = Logger.getLogger(FolderSizeWriteBehind.class.getName());
+
+    private FolderUsageCalculator usage;
+    private long flushInterval = 5000L;
+    private long deltaThreshold = 100000000L;
+    private int batchSize = 50;
+
+    private final FolderDeltaCounters pending = new FolderDeltaCounters();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private ScheduledExecutorService flusher;
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong failedFlushCount = new AtomicLong();
+    private final AtomicLong foldersWritten = new AtomicLong();
+    private volatile long lastFlushDuration;
+    private volatile long maxFlushDuration;
+    private volatile long lastFlushTime;
+
+    private final Runnable flushTask = new Runnable()
+    {
+        public void run()
+        {
+            flushRequested.set(false);
+            try
+            {
+                flush();
+            }
+            catch (Throwable e)
+            {
+                logger.error("[FolderQuota] - Scheduled folder size flush failed", e);
+            }
+        }
+    };
+
+    /**
+     * Starts the flusher thread
+     */
+    public void init()
+    {
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "FolderQuotaWriteBehind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(flushTask, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        logger.info(String.format("[FolderQuota] - Write-behind started, flush every %sms or at %s bytes pending", flushInterval, deltaThreshold));
+    }
+
+    /**
+     * Stops the flusher and writes out whatever is still pending, so a clean shutdown
+     * does not lose any committed deltas
+     */
+    public void destroy()
+    {
+        if (flusher != null)
+        {
+            flusher.shutdown();
+            try
+            {
+                flusher.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        if (getPendingFolderCount() > 0)
+        {
+            logger.warn(String.format("[FolderQuota] - Shut down with unflushed size changes for %s folders, folder usage may be inaccurate", getPendingFolderCount()));
+        }
+    }
+
+    /**
+     * Adds a committed size change for a quota folder.  Never blocks on the database.
+     *
+     * @param quotaFolder
+     * @param sizeChange
+     */
+    public void add(NodeRef quotaFolder, long sizeChange)
+    {
+        if (sizeChange == 0L)
+        {
+            return;
+        }
+        pending.add(quotaFolder, sizeChange);
+
+        if (pendingBytes.addAndGet(Math.abs(sizeChange)) >= deltaThreshold && flusher != null
+                && flushRequested.compareAndSet(false, true))
+        {
+            flusher.execute(flushTask);
+        }
+    }
+
+    /**
+     * Takes the net delta of every folder and applies it.  Changes added while the flush
+     * runs are kept for the next one.  Batches that fail to write are put back.
+     */
+    public synchronized void flush()
+    {
+        long start = System.currentTimeMillis();
+        pendingBytes.set(0L);
+        Map<NodeRef, Long> changes = pending.takeAll();
+        if (changes.isEmpty())
+        {
+            return;
+        }
+
+        // each batch is its own transaction, a batch that fails was rolled back as a whole
+        // and can simply be put back for the next flush
+        Map<NodeRef, Long> failed = usage.applySizeChanges(changes, batchSize);
+        foldersWritten.addAndGet(changes.size() - failed.size());
+        if (!failed.isEmpty())
+        {
+            failedFlushCount.incrementAndGet();
+            logger.error("[FolderQuota] - Failed to update folder sizes for " + failed.size() + " folders, will retry on next flush");
+            for (Map.Entry<NodeRef, Long> entry : failed.entrySet())
+            {
+                add(entry.getKey(), entry.getValue());
+            }
+        }
+
+        long duration = System.currentTimeMillis() - start;
+        lastFlushDuration = duration;
+        if (duration > maxFlushDuration)
+        {
+            maxFlushDuration = duration;
+        }
+        lastFlushTime = start;
+        flushCount.incrementAndGet();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(String.format("[FolderQuota] - Flushed size changes for %s folders in %sms", changes.size(), duration));
+        }
+    }
+
+    /**
+     * @return number of folders with an unflushed, non-zero delta
+     */
+    public int getPendingFolderCount()
+    {
+        return pending.getFolderCount();
+    }
+
+    /**
+     * @return sum of the absolute unflushed deltas, in bytes
+     */
+    public long getPendingDelta()
+    {
+        return pending.getAbsoluteTotal();
+    }
+
+    /**
+     * @return the unflushed delta for one folder
+     */
+    public long getPendingDelta(NodeRef quotaFolder)
+    {
+        return pending.get(quotaFolder);
+    }
+
+    public long getFlushCount()
+    {
+        return flushCount.get();
+    }
+
+    public long getFailedFlushCount()
+    {
+        return failedFlushCount.get();
+    }
+
+    public long getFoldersWritten()
+    {
+        return foldersWritten.get();
+    }
+
+    public long getLastFlushDuration()
+    {
+        return lastFlushDuration;
+    }
+
+    public long getMaxFlushDuration()
+    {
+        return maxFlushDuration;
+    }
+
+    public long getLastFlushTime()
+    {
+        return lastFlushTime;
+    }
+
+    /**
+     * The folder usage calculator performs the actual fq:sizeCurrent writes
+     *
+     * @param usage
+     */
+    public void setFolderUsageCalculator(FolderUsageCalculator usage)
+    {
+        this.usage = usage;
+    }
+
+    /**
+     * How often pending deltas are flushed, in milliseconds
+     *
+     * @param flushInterval
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Total bytes of pending change (in either direction) that triggers a flush before
+     * the interval is up
+     *
+     * @param deltaThreshold
+     */
+    public void setDeltaThreshold(long deltaThreshold)
+    {
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    /**
+     * Maximum number of folders written in one transaction
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+}
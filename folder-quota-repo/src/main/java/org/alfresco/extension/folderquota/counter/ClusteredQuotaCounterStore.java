@@ -0,0 +1,388 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Counter store shared by all servers in a cluster
+ */
+package org.alfresco.extension.folderquota.counter;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.extension.folderquota.db.FolderUsageCounterDAO;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Shares usage counters between the servers of a cluster through a clustered SimpleCache.
+ * <p>
+ * Usage is fq:sizeCurrent plus the changes each server has committed but not yet written
+ * to it.  Every server keeps its own unwritten changes per folder and every
+ * publishInterval milliseconds puts all of them in the cache as a single entry under its
+ * server id, replacing the last one; it is the only writer of that entry, so no
+ * cluster-wide locking or compare-and-set is needed.  On the same pass it reads the
+ * entries of the other servers into a local copy, which lookups add to this server's own
+ * changes as they stand.  Lookups therefore lag the other servers by at most twice
+ * publishInterval and never leave this server.
+ * <p>
+ * Each entry carries a sequence number that goes up on every publish.  A server whose
+ * number has not moved for serverTimeout milliseconds is taken to have stopped: its
+ * changes are no longer counted and its entry is removed.  A server that restarts under
+ * the same id replaces its entry with an empty one as it starts.  Either way changes that
+ * were committed but never written are lost from the counters until the reconciler puts
+ * them back, which errs on the side of admitting an upload.
+ * <p>
+ * Once a change has been written to fq:sizeCurrent, whichever server wrote it takes it
+ * off its own total.  A server's total can therefore go negative, only the sum over all
+ * servers is meaningful.  Between the write committing and the total being reduced the
+ * change is counted twice, which errs on the side of refusing an upload.  Totals that
+ * come back to zero are dropped, so a server only holds the folders it has changes in
+ * flight for.
+ */
+public class ClusteredQuotaCounterStore implements QuotaCounterStore
+{
+	private static Log logger = LogFactory.getLog(ClusteredQuotaCounterStore.class);
+
+	private static final String SERVERS_KEY = "..servers..";
+	private static final String SERVER_KEY_PREFIX = "..server..|";
+
+	private NodeService nodeService;
+	private FolderUsageCounterDAO usageCounters;
+	private SimpleCache<Serializable, Serializable> cache;
+	private String serverId;
+	private long publishInterval = 1000L;
+	private long serverTimeout = 30000L;
+
+	private final ConcurrentMap<NodeRef, Long> unwritten = new ConcurrentHashMap<NodeRef, Long>();
+	private volatile Map<NodeRef, Long> otherServers = Collections.emptyMap();
+	private final Map<String, long[]> lastSeen = new HashMap<String, long[]>();
+	private long sequence;
+	private ScheduledExecutorService publisher;
+
+	/**
+	 * One server's unwritten changes as published to the cache
+	 */
+	static class ServerCounters implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final long sequence;
+		final HashMap<NodeRef, Long> unwritten;
+
+		ServerCounters(long sequence, HashMap<NodeRef, Long> unwritten)
+		{
+			this.sequence = sequence;
+			this.unwritten = unwritten;
+		}
+	}
+
+	private final Runnable publishTask = new Runnable()
+	{
+		public void run()
+		{
+			try
+			{
+				publish();
+			}
+			catch (Throwable e)
+			{
+				logger.error("[FolderQuota] - Failed to publish quota counters", e);
+			}
+		}
+	};
+
+	public void init()
+	{
+		if (serverId == null || serverId.length() == 0)
+		{
+			try
+			{
+				serverId = InetAddress.getLocalHost().getHostName();
+			}
+			catch (UnknownHostException e)
+			{
+				throw new IllegalStateException("Could not determine the host name, set folderquota.counter.serverId", e);
+			}
+		}
+		//replaces anything left from before a restart
+		publish();
+		publisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "FolderQuotaCounterPublisher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		publisher.scheduleWithFixedDelay(publishTask, publishInterval, publishInterval, TimeUnit.MILLISECONDS);
+		logger.info(String.format("[FolderQuota] - Clustered quota counters started for server %s, publishing every %sms", serverId, publishInterval));
+	}
+
+	public void destroy()
+	{
+		if (publisher != null)
+		{
+			publisher.shutdown();
+		}
+		publish();
+	}
+
+	public long getUsage(NodeRef quotaFolder)
+	{
+		long usage;
+		if (usageCounters != null)
+		{
+			usage = usageCounters.getUsage(quotaFolder);
+		}
+		else
+		{
+			Long current = (Long) nodeService.getProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
+			usage = current == null ? 0L : current;
+		}
+		Long own = unwritten.get(quotaFolder);
+		if (own != null)
+		{
+			usage += own;
+		}
+		return usage + getOtherServersDelta(quotaFolder);
+	}
+
+	public void add(NodeRef quotaFolder, long delta)
+	{
+		if (delta == 0L)
+		{
+			return;
+		}
+		while (true)
+		{
+			Long current = unwritten.get(quotaFolder);
+			if (current == null)
+			{
+				if (unwritten.putIfAbsent(quotaFolder, delta) == null)
+				{
+					return;
+				}
+			}
+			else
+			{
+				long total = current + delta;
+				if (total == 0L ? unwritten.remove(quotaFolder, current) : unwritten.replace(quotaFolder, current, total))
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	public void checkpointed(NodeRef quotaFolder, long delta)
+	{
+		add(quotaFolder, -delta);
+	}
+
+	/**
+	 * fq:sizeCurrent now includes this server's changes so far, they are dropped.  Those
+	 * still to be written are taken off when they are, as with the local store, so the
+	 * usage stays at the recalculated size.  Other servers' changes are theirs to drop.
+	 */
+	public void reset(NodeRef quotaFolder, long size)
+	{
+		unwritten.remove(quotaFolder);
+	}
+
+	public void invalidate(NodeRef quotaFolder)
+	{
+		unwritten.remove(quotaFolder);
+	}
+
+	/**
+	 * The other servers' totals as read on the last publish, so up to twice
+	 * publishInterval behind
+	 */
+	public long getOtherServersDelta(NodeRef quotaFolder)
+	{
+		Long other = otherServers.get(quotaFolder);
+		return other == null ? 0L : other;
+	}
+
+	/**
+	 * Replaces this server's entry in the cache and reads those of the other servers,
+	 * dropping the ones that have stopped publishing
+	 */
+	synchronized void publish()
+	{
+		cache.put(SERVER_KEY_PREFIX + serverId, new ServerCounters(++sequence, new HashMap<NodeRef, Long>(unwritten)));
+		Set<String> servers = getServers();
+		if (!servers.contains(serverId))
+		{
+			register(serverId, true);
+		}
+
+		long now = System.currentTimeMillis();
+		Map<NodeRef, Long> others = new HashMap<NodeRef, Long>();
+		for (String server : servers)
+		{
+			if (server.equals(serverId))
+			{
+				continue;
+			}
+			ServerCounters counters = (ServerCounters) cache.get(SERVER_KEY_PREFIX + server);
+			if (counters == null)
+			{
+				continue;
+			}
+			long[] seen = lastSeen.get(server);
+			if (seen == null || seen[0] != counters.sequence)
+			{
+				lastSeen.put(server, new long[] { counters.sequence, now });
+			}
+			else if (now - seen[1] > serverTimeout)
+			{
+				logger.warn(String.format("[FolderQuota] - Server %s has not published its quota counters for %sms, dropping its unwritten changes", server, now - seen[1]));
+				cache.remove(SERVER_KEY_PREFIX + server);
+				register(server, false);
+				lastSeen.remove(server);
+				continue;
+			}
+			for (Map.Entry<NodeRef, Long> entry : counters.unwritten.entrySet())
+			{
+				Long total = others.get(entry.getKey());
+				others.put(entry.getKey(), total == null ? entry.getValue() : total + entry.getValue());
+			}
+		}
+		for (Iterator<String> it = lastSeen.keySet().iterator(); it.hasNext();)
+		{
+			if (!servers.contains(it.next()))
+			{
+				it.remove();
+			}
+		}
+		otherServers = others;
+	}
+
+	/**
+	 * Adds a server to, or removes it from, the list of servers publishing counters.  Two
+	 * servers changing the list at once can overwrite each other; a server left off puts
+	 * itself back on its next publish.
+	 */
+	private void register(String server, boolean add)
+	{
+		Set<String> servers = new HashSet<String>(getServers());
+		if (add)
+		{
+			servers.add(server);
+		}
+		else
+		{
+			servers.remove(server);
+		}
+		cache.put(SERVERS_KEY, (Serializable) servers);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Set<String> getServers()
+	{
+		Set<String> servers = (Set<String>) cache.get(SERVERS_KEY);
+		return servers == null ? new HashSet<String>() : servers;
+	}
+
+	/**
+	 * @return number of folders this server has unwritten changes for
+	 */
+	public int getFolderCount()
+	{
+		return unwritten.size();
+	}
+
+	/**
+	 * Should be the non-permission-checked node service
+	 *
+	 * @param nodeService
+	 */
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * A cache shared by all servers in the cluster
+	 *
+	 * @param cache
+	 */
+	public void setCache(SimpleCache<Serializable, Serializable> cache)
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 * Name this server publishes its counters under, must be unique in the cluster and
+	 * stay the same across restarts.  Defaults to the host name.
+	 *
+	 * @param serverId
+	 */
+	public void setServerId(String serverId)
+	{
+		this.serverId = serverId;
+	}
+
+	/**
+	 * Milliseconds between publishes of this server's counters
+	 *
+	 * @param publishInterval
+	 */
+	public void setPublishInterval(long publishInterval)
+	{
+		this.publishInterval = publishInterval;
+	}
+
+	/**
+	 * Milliseconds another server may go without publishing before its changes are
+	 * dropped, should be several times publishInterval
+	 *
+	 * @param serverTimeout
+	 */
+	public void setServerTimeout(long serverTimeout)
+	{
+		this.serverTimeout = serverTimeout;
+	}
+
+	/**
+	 * Usage counters to read the stored usage from instead of fq:sizeCurrent, optional
+	 *
+	 * @param usageCounters
+	 */
+	public void setFolderUsageCounterDAO(FolderUsageCounterDAO usageCounters)
+	{
+		this.usageCounters = usageCounters;
+	}
+}
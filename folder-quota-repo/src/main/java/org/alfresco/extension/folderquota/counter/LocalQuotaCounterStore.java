@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Counter store for a single server
+ */
+package org.alfresco.extension.folderquota.counter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.extension.folderquota.db.FolderUsageCounterDAO;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
+
+/**
+ * Keeps each folder's usage in an AtomicLong, loaded from fq:sizeCurrent the first time
+ * the folder is seen and kept up to date from then on.  Only changes made on this server
+ * are seen, so it is only correct when the repository runs on one server.
+ */
+public class LocalQuotaCounterStore implements QuotaCounterStore
+{
+	private NodeService nodeService;
+	private TransactionService transactionService;
+	private FolderUsageCounterDAO usageCounters;
+
+	private final ConcurrentMap<NodeRef, AtomicLong> usage = new ConcurrentHashMap<NodeRef, AtomicLong>();
+
+	public long getUsage(NodeRef quotaFolder)
+	{
+		return getCounter(quotaFolder).get();
+	}
+
+	public void add(final NodeRef quotaFolder, long delta)
+	{
+		AtomicLong used = usage.get(quotaFolder);
+		if (used == null)
+		{
+			//not loaded yet, load it before the change reaches fq:sizeCurrent
+			used = AuthenticationUtil.runAs(new RunAsWork<AtomicLong>()
+			{
+				public AtomicLong doWork() throws Exception
+				{
+					return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<AtomicLong>()
+					{
+						public AtomicLong execute() throws Throwable
+						{
+							return getCounter(quotaFolder);
+						}
+					}, true, true);
+				}
+			}, AuthenticationUtil.getSystemUserName());
+		}
+		used.addAndGet(delta);
+	}
+
+	public void checkpointed(NodeRef quotaFolder, long delta)
+	{
+		//the counter already includes the change
+	}
+
+	public void reset(NodeRef quotaFolder, long size)
+	{
+		usage.put(quotaFolder, new AtomicLong(size));
+	}
+
+	public void invalidate(NodeRef quotaFolder)
+	{
+		usage.remove(quotaFolder);
+	}
+
+	public long getOtherServersDelta(NodeRef quotaFolder)
+	{
+		return 0L;
+	}
+
+	private AtomicLong getCounter(NodeRef quotaFolder)
+	{
+		AtomicLong used = usage.get(quotaFolder);
+		if (used == null)
+		{
+			AtomicLong loaded = new AtomicLong(getStoredUsage(quotaFolder));
+			used = usage.putIfAbsent(quotaFolder, loaded);
+			if (used == null)
+			{
+				used = loaded;
+			}
+		}
+		return used;
+	}
+
+	private long getStoredUsage(NodeRef quotaFolder)
+	{
+		if (usageCounters != null)
+		{
+			return usageCounters.getUsage(quotaFolder);
+		}
+		Long current = (Long) nodeService.getProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
+		return current == null ? 0L : current;
+	}
+
+	/**
+	 * Should be the non-permission-checked node service
+	 *
+	 * @param nodeService
+	 */
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * Usage counters to read the stored usage from instead of fq:sizeCurrent, optional
+	 *
+	 * @param usageCounters
+	 */
+	public void setFolderUsageCounterDAO(FolderUsageCounterDAO usageCounters)
+	{
+		this.usageCounters = usageCounters;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Counter store interface, local and clustered implementations available
+ */
+package org.alfresco.extension.folderquota.counter;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Holds the committed usage of each quota folder, including changes that have not yet
+ * been written to fq:sizeCurrent.  Uploads are admitted against this value.  When the
+ * usage counters are enabled, fq:sizeCurrent here stands for the counter table, which
+ * takes the writes instead.
+ */
+public interface QuotaCounterStore
+{
+	/**
+	 * Committed usage of a quota folder.  Must be called in a transaction.
+	 */
+	long getUsage(NodeRef quotaFolder);
+
+	/**
+	 * Adds a committed change that has not yet been written to fq:sizeCurrent
+	 */
+	void add(NodeRef quotaFolder, long delta);
+
+	/**
+	 * Called once a change has been written to fq:sizeCurrent and committed
+	 */
+	void checkpointed(NodeRef quotaFolder, long delta);
+
+	/**
+	 * Called once fq:sizeCurrent has been set to a recalculated value and committed
+	 */
+	void reset(NodeRef quotaFolder, long size);
+
+	/**
+	 * Forgets a folder, e.g. when its quota is removed
+	 */
+	void invalidate(NodeRef quotaFolder);
+
+	/**
+	 * Changes other servers have committed to a quota folder and not yet written to
+	 * fq:sizeCurrent, as far as this server knows; 0 if the store only sees this server
+	 */
+	long getOtherServersDelta(NodeRef quotaFolder);
+}
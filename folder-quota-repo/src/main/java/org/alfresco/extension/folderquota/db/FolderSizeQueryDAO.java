@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Database side folder size aggregation
+ */
+package org.alfresco.extension.folderquota.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Sums the content size of a whole subtree with a single aggregate query over the node,
+ * child association and content tables, instead of visiting every node through the
+ * NodeService.  The query is only there for databases with recursive common table
+ * expressions, see isSupported().  Must be called inside a transaction.
+ */
+public class FolderSizeQueryDAO
+{
+    private static final String SELECT_SUBTREE_CONTENT_SIZE = "alfresco.folderquota.select_SubtreeContentSize";
+
+    private SqlSessionTemplate template;
+    private QNameDAO qnameDAO;
+    private NodeService nodeService;
+
+    /**
+     * @return whether the aggregate query has been written for the database in use
+     */
+    public boolean isSupported()
+    {
+        return template.getConfiguration().hasStatement(SELECT_SUBTREE_CONTENT_SIZE);
+    }
+
+    /**
+     * @param folder
+     * @return total content size in bytes of all documents below the folder
+     */
+    public long getSubtreeContentSize(NodeRef folder)
+    {
+        Long nodeId = (Long) nodeService.getProperty(folder, ContentModel.PROP_NODE_DBID);
+        Long contentQNameId = getQNameId(ContentModel.PROP_CONTENT);
+        Long containsQNameId = getQNameId(ContentModel.ASSOC_CONTAINS);
+        if (contentQNameId == null || containsQNameId == null)
+        {
+            // nothing has ever been stored with these qnames
+            return 0L;
+        }
+
+        Map<String, Object> params = new HashMap<String, Object>(5);
+        params.put("nodeId", nodeId);
+        params.put("contentQNameId", contentQNameId);
+        params.put("containsQNameId", containsQNameId);
+        params.put("primary", Boolean.TRUE);
+        Long size = (Long) template.selectOne(SELECT_SUBTREE_CONTENT_SIZE, params);
+        return size == null ? 0L : size;
+    }
+
+    private Long getQNameId(QName qname)
+    {
+        Pair<Long, QName> pair = qnameDAO.getQName(qname);
+        return pair == null ? null : pair.getFirst();
+    }
+
+    public void setSqlSessionTemplate(SqlSessionTemplate template)
+    {
+        this.template = template;
+    }
+
+    public void setQnameDAO(QNameDAO qnameDAO)
+    {
+        this.qnameDAO = qnameDAO;
+    }
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+}
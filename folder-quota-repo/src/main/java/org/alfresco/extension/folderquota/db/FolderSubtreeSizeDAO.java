@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Stored subtree sizes of the folders under a quota
+ */
+package org.alfresco.extension.folderquota.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Keeps the subtree size of a folder in the fq_subtree_size table, one row per folder
+ * keyed by its node id.  A change is added by the database in a single update, so
+ * writers applying changes to the same folder at once do not lose each other's.  Must be
+ * called inside a transaction.
+ */
+public class FolderSubtreeSizeDAO
+{
+    private static final String SELECT_SIZE = "alfresco.folderquota.select_SubtreeSize";
+    private static final String ADD_TO_SIZE = "alfresco.folderquota.update_SubtreeSizeDelta";
+    private static final String UPDATE_SIZE = "alfresco.folderquota.update_SubtreeSize";
+    private static final String INSERT_SIZE = "alfresco.folderquota.insert_SubtreeSize";
+    private static final String DELETE_SIZE = "alfresco.folderquota.delete_SubtreeSize";
+
+    private SqlSessionTemplate template;
+    private NodeService nodeService;
+
+    /**
+     * @param folder
+     * @return the folder's stored subtree size, or null if it has none
+     */
+    public Long getSize(NodeRef folder)
+    {
+        return (Long) template.selectOne(SELECT_SIZE, params(getNodeId(folder)));
+    }
+
+    /**
+     * Adds a change to the folder's stored size, if it has one
+     *
+     * @param folder
+     * @param delta
+     * @return whether the folder has a stored size
+     */
+    public boolean add(NodeRef folder, long delta)
+    {
+        Map<String, Object> params = params(getNodeId(folder));
+        params.put("delta", delta);
+        return template.update(ADD_TO_SIZE, params) > 0;
+    }
+
+    /**
+     * Stores a calculated size, replacing any stored one.  Two writers storing the first
+     * size of a folder at once collide on the primary key and the loser's transaction is
+     * retried.
+     *
+     * @param folder
+     * @param size
+     */
+    public void set(NodeRef folder, long size)
+    {
+        Map<String, Object> params = params(getNodeId(folder));
+        params.put("byteCount", size);
+        if (template.update(UPDATE_SIZE, params) == 0)
+        {
+            template.insert(INSERT_SIZE, params);
+        }
+    }
+
+    /**
+     * @param folder
+     */
+    public void remove(NodeRef folder)
+    {
+        template.delete(DELETE_SIZE, params(getNodeId(folder)));
+    }
+
+    private Long getNodeId(NodeRef folder)
+    {
+        return (Long) nodeService.getProperty(folder, ContentModel.PROP_NODE_DBID);
+    }
+
+    private static Map<String, Object> params(Long nodeId)
+    {
+        Map<String, Object> params = new HashMap<String, Object>(5);
+        params.put("folderId", nodeId);
+        return params;
+    }
+
+    public void setSqlSessionTemplate(SqlSessionTemplate template)
+    {
+        this.template = template;
+    }
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Sharded usage counters for quota folders
+ */
+package org.alfresco.extension.folderquota.db;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.apache.ibatis.session.RowBounds;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Keeps the usage of each quota folder in the fq_usage_counter table rather than in
+ * fq:sizeCurrent, so a size update does not bump the folder node's version, lock its
+ * row or queue it for reindexing.
+ * <p>
+ * Each folder has shardCount rows, keyed by its node id.  A writer adds its change to a
+ * random shard, so concurrent updates of the same folder rarely wait on each other's row
+ * lock; a reader sums the shards.  The rows of a folder are created the first time it
+ * changes, seeded with fq:sizeCurrent.  fq:sizeCurrent is brought up to date from the
+ * totals now and then for display and search, see
+ * FolderUsageCalculator.syncUsage().  Must be called inside a transaction.
+ */
+public class FolderUsageCounterDAO
+{
+    private static final String UPDATE_SHARD = "alfresco.folderquota.update_UsageCounterShard";
+    private static final String INSERT_SHARD = "alfresco.folderquota.insert_UsageCounterShard";
+    private static final String DELETE_SHARDS = "alfresco.folderquota.delete_UsageCounterShards";
+    private static final String SELECT_USAGE = "alfresco.folderquota.select_UsageCounterTotal";
+    private static final String SELECT_TOTALS = "alfresco.folderquota.select_UsageCounterTotals";
+
+    private SqlSessionTemplate template;
+    private NodeService nodeService;
+    private boolean enabled = false;
+    private int shardCount = 8;
+
+    /**
+     * @param quotaFolder
+     * @return the folder's usage from its counters, or fq:sizeCurrent if it has none yet
+     */
+    public long getUsage(NodeRef quotaFolder)
+    {
+        if (enabled)
+        {
+            Long usage = (Long) template.selectOne(SELECT_USAGE, params(getNodeId(quotaFolder)));
+            if (usage != null)
+            {
+                return usage;
+            }
+        }
+        Long current = (Long) nodeService.getProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
+        return current == null ? 0L : current;
+    }
+
+    /**
+     * Adds a change to a random shard of the folder's counters, creating them first if the
+     * folder has none
+     *
+     * @param quotaFolder
+     * @param delta
+     */
+    public void add(NodeRef quotaFolder, long delta)
+    {
+        Long nodeId = getNodeId(quotaFolder);
+        int shard = ThreadLocalRandom.current().nextInt(shardCount);
+        if (addToShard(nodeId, shard, delta))
+        {
+            return;
+        }
+        if (template.selectOne(SELECT_USAGE, params(nodeId)) != null)
+        {
+            //shardCount was raised after the folder was seeded
+            insertShard(nodeId, shard, delta);
+            return;
+        }
+        //first change to this folder, two writers seeding at once collide on the primary
+        //key and the loser's transaction is retried
+        Long current = (Long) nodeService.getProperty(quotaFolder, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT);
+        insertShards(nodeId, (current == null ? 0L : current) + delta);
+    }
+
+    /**
+     * Replaces the folder's counters with a recalculated size
+     *
+     * @param quotaFolder
+     * @param size
+     */
+    public void set(NodeRef quotaFolder, long size)
+    {
+        Long nodeId = getNodeId(quotaFolder);
+        template.delete(DELETE_SHARDS, params(nodeId));
+        insertShards(nodeId, size);
+    }
+
+    /**
+     * Drops the counters of a folder, e.g. once it is deleted or loses its quota
+     *
+     * @param nodeId
+     */
+    public void remove(Long nodeId)
+    {
+        template.delete(DELETE_SHARDS, params(nodeId));
+    }
+
+    /**
+     * A page of folder totals, in node id order
+     *
+     * @param afterNodeId only folders with a larger node id, 0 to start from the first
+     * @param pageSize
+     * @return maps with "folderId" and "total"
+     */
+    public List<Map<String, Object>> getTotals(long afterNodeId, int pageSize)
+    {
+        return template.selectList(SELECT_TOTALS, params(afterNodeId), new RowBounds(0, pageSize));
+    }
+
+    private boolean addToShard(Long nodeId, int shard, long delta)
+    {
+        Map<String, Object> params = params(nodeId);
+        params.put("shard", shard);
+        params.put("delta", delta);
+        return template.update(UPDATE_SHARD, params) > 0;
+    }
+
+    private void insertShards(Long nodeId, long size)
+    {
+        for (int shard = 0; shard < shardCount; shard++)
+        {
+            insertShard(nodeId, shard, shard == 0 ? size : 0L);
+        }
+    }
+
+    private void insertShard(Long nodeId, int shard, long byteCount)
+    {
+        Map<String, Object> params = params(nodeId);
+        params.put("shard", shard);
+        params.put("byteCount", byteCount);
+        template.insert(INSERT_SHARD, params);
+    }
+
+    private Long getNodeId(NodeRef quotaFolder)
+    {
+        return (Long) nodeService.getProperty(quotaFolder, ContentModel.PROP_NODE_DBID);
+    }
+
+    private static Map<String, Object> params(Long nodeId)
+    {
+        Map<String, Object> params = new HashMap<String, Object>(5);
+        params.put("folderId", nodeId);
+        return params;
+    }
+
+    /**
+     * When false, usage stays in fq:sizeCurrent and the table is not used
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Rows per folder.  More shards let more writers update a folder at once, at the cost
+     * of a larger sum on every read.  Shards left over from a higher setting are still
+     * summed, they just stop receiving changes.
+     *
+     * @param shardCount
+     */
+    public void setShardCount(int shardCount)
+    {
+        this.shardCount = Math.max(1, shardCount);
+    }
+
+    public void setSqlSessionTemplate(SqlSessionTemplate template)
+    {
+        this.template = template;
+    }
+
+    /**
+     * Should be the non-permission-checked node service
+     *
+     * @param nodeService
+     */
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Timers, counters and gauges for the quota module
+ */
+package org.alfresco.extension.folderquota.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.alfresco.extension.folderquota.FolderQuotaReconciler;
+import org.alfresco.extension.folderquota.QuotaAncestorResolver;
+import org.alfresco.extension.folderquota.behaviour.FolderQuotaUpdateQueue;
+import org.alfresco.extension.folderquota.behaviour.FolderSizeUpdateExecutor;
+import org.alfresco.extension.folderquota.behaviour.FolderSizeWriteBehind;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Collects metrics from the behaviour, the usage calculator and the update pipeline, and
+ * exposes them over JMX and to any configured {@link MetricsSink}s.
+ * <p>
+ * Callers time a piece of work with
+ * <pre>
+ * long start = metrics.start();
+ * ...
+ * metrics.stop(Metric.ON_MOVE_NODE, start);
+ * </pre>
+ * When disabled, start() returns 0 without reading the clock and every record method
+ * returns at once, so instrumented code allocates nothing.  Measurements are kept as a
+ * count, total and maximum per metric, in striped counters that concurrent callers do
+ * not contend on.
+ */
+public class FolderQuotaMetrics implements FolderQuotaMetricsMXBean
+{
+	/**
+	 * Everything measured.  Timers are in nanoseconds, the rest are plain values.
+	 */
+	public enum Metric
+	{
+		ON_CONTENT_PROPERTY_UPDATE("folderquota.behaviour.onContentPropertyUpdate", true),
+		BEFORE_DELETE_NODE("folderquota.behaviour.beforeDeleteNode", true),
+		ON_MOVE_NODE("folderquota.behaviour.onMoveNode", true),
+		ON_ADD_ASPECT("folderquota.behaviour.onAddAspect", true),
+		ON_REMOVE_ASPECT("folderquota.behaviour.onRemoveAspect", true),
+		ON_UPDATE_PROPERTIES("folderquota.behaviour.onUpdateProperties", true),
+		PARENT_LOOKUP("folderquota.parentLookup", true),
+		PARENT_LOOKUP_DEPTH("folderquota.parentLookup.depth", false),
+		CALCULATE_FOLDER_SIZE("folderquota.calculateFolderSize", true),
+		CALCULATE_FOLDER_SIZE_NODES("folderquota.calculateFolderSize.nodes", false),
+		SIZE_UPDATE("folderquota.sizeUpdate", true),
+		SIZE_UPDATE_RETRIES("folderquota.sizeUpdate.retries", false),
+		RECONCILE_FOLDER("folderquota.reconcile.folder", true),
+		RECONCILE_DRIFT("folderquota.reconcile.drift", false);
+
+		private final String metricName;
+		private final boolean timer;
+
+		private Metric(String metricName, boolean timer)
+		{
+			this.metricName = metricName;
+			this.timer = timer;
+		}
+
+		public String getMetricName()
+		{
+			return metricName;
+		}
+
+		public boolean isTimer()
+		{
+			return timer;
+		}
+	}
+
+	/**
+	 * Count, total and maximum of one metric
+	 */
+	private static class Stat
+	{
+		final LongAdder count = new LongAdder();
+		final LongAdder total = new LongAdder();
+		final AtomicLong max = new AtomicLong();
+
+		void record(long value)
+		{
+			count.increment();
+			total.add(value);
+			long current;
+			do
+			{
+				current = max.get();
+			}
+			while (value > current && !max.compareAndSet(current, value));
+		}
+
+		void reset()
+		{
+			count.reset();
+			total.reset();
+			max.set(0L);
+		}
+	}
+
+	private static final MetricsSink[] NO_SINKS = new MetricsSink[0];
+
+	private volatile boolean enabled = false;
+	private MetricsSink[] sinks = NO_SINKS;
+	private FolderQuotaUpdateQueue queue;
+	private FolderSizeUpdateExecutor updateExecutor;
+	private FolderSizeWriteBehind writeBehind;
+	private FolderQuotaReconciler reconciler;
+	private QuotaAncestorResolver resolver;
+
+	private final Stat[] stats;
+	private final LongAdder rejections = new LongAdder();
+	private final ConcurrentMap<NodeRef, LongAdder> rejectionsByFolder = new ConcurrentHashMap<NodeRef, LongAdder>();
+
+	public FolderQuotaMetrics()
+	{
+		Metric[] metrics = Metric.values();
+		stats = new Stat[metrics.length];
+		for (int i = 0; i < metrics.length; i++)
+		{
+			stats[i] = new Stat();
+		}
+	}
+
+	/**
+	 * @return the time to pass to {@link #stop(Metric, long)}, 0 when disabled
+	 */
+	public long start()
+	{
+		return enabled ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Records the time since start
+	 *
+	 * @param metric a timer
+	 * @param start from {@link #start()}
+	 */
+	public void stop(Metric metric, long start)
+	{
+		if (!enabled || start == 0L)
+		{
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		stats[metric.ordinal()].record(nanos);
+		for (MetricsSink sink : sinks)
+		{
+			sink.recordTimer(metric.metricName, nanos);
+		}
+	}
+
+	/**
+	 * Records a value such as a depth or a count
+	 *
+	 * @param metric
+	 * @param value
+	 */
+	public void record(Metric metric, long value)
+	{
+		if (!enabled)
+		{
+			return;
+		}
+		stats[metric.ordinal()].record(value);
+		for (MetricsSink sink : sinks)
+		{
+			sink.recordValue(metric.metricName, value);
+		}
+	}
+
+	/**
+	 * Counts an upload refused by a quota folder
+	 *
+	 * @param quotaFolder
+	 */
+	public void rejected(NodeRef quotaFolder)
+	{
+		if (!enabled)
+		{
+			return;
+		}
+		rejections.increment();
+		LongAdder counter = rejectionsByFolder.get(quotaFolder);
+		if (counter == null)
+		{
+			LongAdder created = new LongAdder();
+			counter = rejectionsByFolder.putIfAbsent(quotaFolder, created);
+			if (counter == null)
+			{
+				counter = created;
+			}
+		}
+		counter.increment();
+		for (MetricsSink sink : sinks)
+		{
+			sink.recordRejection(quotaFolder);
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Can be switched at runtime, e.g. from a JMX console
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	public Map<String, Long> getCounts()
+	{
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Metric metric : Metric.values())
+		{
+			counts.put(metric.metricName, stats[metric.ordinal()].count.sum());
+		}
+		return counts;
+	}
+
+	public Map<String, Double> getMeans()
+	{
+		Map<String, Double> means = new TreeMap<String, Double>();
+		for (Metric metric : Metric.values())
+		{
+			Stat stat = stats[metric.ordinal()];
+			long count = stat.count.sum();
+			means.put(metric.metricName, count == 0L ? 0.0d : scale(metric, stat.total.sum()) / count);
+		}
+		return means;
+	}
+
+	public Map<String, Double> getMaxima()
+	{
+		Map<String, Double> maxima = new TreeMap<String, Double>();
+		for (Metric metric : Metric.values())
+		{
+			maxima.put(metric.metricName, scale(metric, stats[metric.ordinal()].max.get()));
+		}
+		return maxima;
+	}
+
+	/**
+	 * Timers are shown in milliseconds
+	 */
+	private static double scale(Metric metric, long value)
+	{
+		return metric.timer ? value / 1000000.0d : value;
+	}
+
+	/**
+	 * @param metric
+	 * @return number of measurements of one metric
+	 */
+	public long getCount(Metric metric)
+	{
+		return stats[metric.ordinal()].count.sum();
+	}
+
+	public long getRejectionCount()
+	{
+		return rejections.sum();
+	}
+
+	public Map<String, Long> getRejectionsByFolder()
+	{
+		Map<String, Long> byFolder = new TreeMap<String, Long>();
+		for (Map.Entry<NodeRef, LongAdder> entry : rejectionsByFolder.entrySet())
+		{
+			byFolder.put(entry.getKey().toString(), entry.getValue().sum());
+		}
+		return byFolder;
+	}
+
+	public long getUpdateQueueBacklog()
+	{
+		return queue == null ? 0L : queue.getBacklog();
+	}
+
+	public int getUpdateExecutorQueueDepth()
+	{
+		return updateExecutor == null ? 0 : updateExecutor.getQueueDepth();
+	}
+
+	public int getUpdateExecutorActiveCount()
+	{
+		return updateExecutor == null ? 0 : updateExecutor.getActiveCount();
+	}
+
+	public double getUpdateExecutorSaturation()
+	{
+		if (updateExecutor == null || updateExecutor.getQueueCapacity() == 0)
+		{
+			return 0.0d;
+		}
+		return (double) updateExecutor.getQueueDepth() / updateExecutor.getQueueCapacity();
+	}
+
+	public long getUpdateExecutorRejectedCount()
+	{
+		return updateExecutor == null ? 0L : updateExecutor.getRejectedCount();
+	}
+
+	public int getWriteBehindPendingFolderCount()
+	{
+		return writeBehind == null ? 0 : writeBehind.getPendingFolderCount();
+	}
+
+	public long getAncestorCacheHitCount()
+	{
+		return resolver == null ? 0L : resolver.getHitCount();
+	}
+
+	public long getAncestorCacheMissCount()
+	{
+		return resolver == null ? 0L : resolver.getMissCount();
+	}
+
+	public long getAncestorCacheEvictionCount()
+	{
+		return resolver == null ? 0L : resolver.getEvictionCount();
+	}
+
+	public long getReconcileFoldersChecked()
+	{
+		return reconciler == null ? 0L : reconciler.getFoldersChecked();
+	}
+
+	public long getReconcileFoldersCorrected()
+	{
+		return reconciler == null ? 0L : reconciler.getFoldersCorrected();
+	}
+
+	public long getReconcileCorrectedBytes()
+	{
+		return reconciler == null ? 0L : reconciler.getCorrectedBytes();
+	}
+
+	public long getReconcileMaxDrift()
+	{
+		return reconciler == null ? 0L : reconciler.getMaxDrift();
+	}
+
+	public void reset()
+	{
+		for (Stat stat : stats)
+		{
+			stat.reset();
+		}
+		rejections.reset();
+		rejectionsByFolder.clear();
+	}
+
+	/**
+	 * Sinks that receive every measurement as it is recorded
+	 *
+	 * @param sinks
+	 */
+	public void setSinks(List<MetricsSink> sinks)
+	{
+		this.sinks = sinks == null ? NO_SINKS : sinks.toArray(new MetricsSink[sinks.size()]);
+	}
+
+	public void setFolderQuotaUpdateQueue(FolderQuotaUpdateQueue queue)
+	{
+		this.queue = queue;
+	}
+
+	public void setUpdateExecutor(FolderSizeUpdateExecutor updateExecutor)
+	{
+		this.updateExecutor = updateExecutor;
+	}
+
+	public void setWriteBehind(FolderSizeWriteBehind writeBehind)
+	{
+		this.writeBehind = writeBehind;
+	}
+
+	public void setReconciler(FolderQuotaReconciler reconciler)
+	{
+		this.reconciler = reconciler;
+	}
+
+	public void setQuotaAncestorResolver(QuotaAncestorResolver resolver)
+	{
+		this.resolver = resolver;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * JMX view of the quota metrics
+ */
+package org.alfresco.extension.folderquota.metrics;
+
+import java.util.Map;
+
+/**
+ * Attributes are read on demand, maps are keyed by metric name (or quota folder for
+ * rejections) and show up as tables in a JMX console
+ */
+public interface FolderQuotaMetricsMXBean
+{
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	/**
+	 * @return number of measurements per metric
+	 */
+	Map<String, Long> getCounts();
+
+	/**
+	 * @return mean per metric, milliseconds for timers
+	 */
+	Map<String, Double> getMeans();
+
+	/**
+	 * @return largest measurement per metric, milliseconds for timers
+	 */
+	Map<String, Double> getMaxima();
+
+	long getRejectionCount();
+
+	Map<String, Long> getRejectionsByFolder();
+
+	long getUpdateQueueBacklog();
+
+	int getUpdateExecutorQueueDepth();
+
+	int getUpdateExecutorActiveCount();
+
+	/**
+	 * @return fraction of the update executor's queue in use, 1.0 when it is full
+	 */
+	double getUpdateExecutorSaturation();
+
+	long getUpdateExecutorRejectedCount();
+
+	int getWriteBehindPendingFolderCount();
+
+	/**
+	 * @return quota folder lookups answered from the ancestor cache
+	 */
+	long getAncestorCacheHitCount();
+
+	/**
+	 * @return quota folder lookups that walked up the tree, one per lookup
+	 */
+	long getAncestorCacheMissCount();
+
+	/**
+	 * @return entries pushed out of the ancestor caches because they were full
+	 */
+	long getAncestorCacheEvictionCount();
+
+	long getReconcileFoldersChecked();
+
+	long getReconcileFoldersCorrected();
+
+	/**
+	 * @return total drift corrected by the reconciliation job, in bytes either way
+	 */
+	long getReconcileCorrectedBytes();
+
+	/**
+	 * @return largest drift the reconciliation job has seen, corrected or not
+	 */
+	long getReconcileMaxDrift();
+
+	/**
+	 * Clears all measurements
+	 */
+	void reset();
+}
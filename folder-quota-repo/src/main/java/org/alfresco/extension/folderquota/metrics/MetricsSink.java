@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Metrics sink interface, for forwarding quota metrics to a metrics registry
+ */
+package org.alfresco.extension.folderquota.metrics;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Receives every measurement {@link FolderQuotaMetrics} records, e.g. to forward it to a
+ * Micrometer or Dropwizard registry.  Called on the thread doing the work, so must not
+ * block.  Gauges are not pushed; a sink that needs them reads them from
+ * FolderQuotaMetrics.
+ */
+public interface MetricsSink
+{
+	/**
+	 * @param name metric name, one of the {@link FolderQuotaMetrics.Metric} names
+	 * @param nanos duration in nanoseconds
+	 */
+	void recordTimer(String name, long nanos);
+
+	/**
+	 * @param name metric name, one of the {@link FolderQuotaMetrics.Metric} names
+	 * @param value e.g. a depth or a count
+	 */
+	void recordValue(String name, long value);
+
+	/**
+	 * An upload was refused because it would take a folder over its quota
+	 */
+	void recordRejection(NodeRef quotaFolder);
+}
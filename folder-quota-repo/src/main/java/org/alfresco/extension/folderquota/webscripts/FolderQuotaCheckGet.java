@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Webscript to check an upload against folder quotas before it is sent
+ */
+package org.alfresco.extension.folderquota.webscripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.extension.folderquota.FolderQuotaService;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * GET /folder-quota/check?nodeRef={nodeRef}&amp;size={size}
+ * <p>
+ * Answers whether an upload of the given size to the folder would fit in its quotas,
+ * and how many bytes are left, so a client can refuse a large upload before sending it.
+ * For a new version the nodeRef is the document, and only the change in size counts.
+ */
+public class FolderQuotaCheckGet extends DeclarativeWebScript
+{
+    private NodeService nodeService;
+    private PermissionService permissionService;
+    private FolderQuotaService folderQuotaService;
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
+    {
+        String nodeRefParam = req.getParameter("nodeRef");
+        if (nodeRefParam == null || !NodeRef.isNodeRef(nodeRefParam))
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "A valid nodeRef argument is required");
+        }
+        final long size;
+        try
+        {
+            size = Long.parseLong(req.getParameter("size"));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "A numeric size argument is required");
+        }
+        if (size < 0L)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "The size argument cannot be negative");
+        }
+        final NodeRef nodeRef = new NodeRef(nodeRefParam);
+        if (!nodeService.exists(nodeRef))
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Node " + nodeRef + " does not exist");
+        }
+        if (permissionService.hasPermission(nodeRef, PermissionService.READ) != AccessStatus.ALLOWED)
+        {
+            throw new WebScriptException(Status.STATUS_FORBIDDEN, "Node " + nodeRef + " cannot be read");
+        }
+
+        //the quota folders above may not be readable by the uploader
+        FolderQuotaService.QuotaCheck check = AuthenticationUtil.runAs(new RunAsWork<FolderQuotaService.QuotaCheck>()
+        {
+            public FolderQuotaService.QuotaCheck doWork() throws Exception
+            {
+                return folderQuotaService.check(nodeRef, size);
+            }
+        }, AuthenticationUtil.getSystemUserName());
+
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("nodeRef", nodeRef.toString());
+        model.put("size", size);
+        model.put("check", check);
+        return model;
+    }
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    public void setPermissionService(PermissionService permissionService)
+    {
+        this.permissionService = permissionService;
+    }
+
+    public void setFolderQuotaService(FolderQuotaService folderQuotaService)
+    {
+        this.folderQuotaService = folderQuotaService;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Admin webscript to recalculate the usage of a quota folder
+ */
+package org.alfresco.extension.folderquota.webscripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * POST /folder-quota/recalculate?nodeRef={nodeRef}
+ * <p>
+ * Sizes the quota folder from scratch (on the parallel sizing engine when configured)
+ * and stores the result in fq:sizeCurrent.
+ */
+public class FolderQuotaRecalculatePost extends DeclarativeWebScript
+{
+    private NodeService nodeService;
+    private FolderUsageCalculator usage;
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
+    {
+        NodeRef quotaFolder = getQuotaFolder(req, nodeService);
+
+        long start = System.currentTimeMillis();
+        long size = usage.recalculate(quotaFolder);
+
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("nodeRef", quotaFolder.toString());
+        model.put("sizeCurrent", size);
+        model.put("duration", System.currentTimeMillis() - start);
+        return model;
+    }
+
+    /**
+     * Reads the nodeRef argument and checks it is a quota folder
+     */
+    static NodeRef getQuotaFolder(WebScriptRequest req, NodeService nodeService)
+    {
+        String nodeRefParam = req.getParameter("nodeRef");
+        if (nodeRefParam == null || !NodeRef.isNodeRef(nodeRefParam))
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "A valid nodeRef argument is required");
+        }
+        NodeRef nodeRef = new NodeRef(nodeRefParam);
+        if (!nodeService.exists(nodeRef))
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Node " + nodeRef + " does not exist");
+        }
+        if (!nodeService.hasAspect(nodeRef, FolderQuotaConstants.ASPECT_FQ_QUOTA))
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Node " + nodeRef + " is not a quota folder");
+        }
+        return nodeRef;
+    }
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    public void setFolderUsageCalculator(FolderUsageCalculator usage)
+    {
+        this.usage = usage;
+    }
+}
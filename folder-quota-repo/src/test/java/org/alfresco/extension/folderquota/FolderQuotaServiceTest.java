@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the pre-upload quota check
+ */
+package org.alfresco.extension.folderquota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FolderQuotaServiceTest
+{
+	private static final NodeRef OUTER = new NodeRef("workspace://SpacesStore/outer");
+	private static final NodeRef QUOTA_FOLDER = new NodeRef("workspace://SpacesStore/quota");
+	private static final NodeRef FOLDER = new NodeRef("workspace://SpacesStore/folder");
+	private static final NodeRef DOCUMENT = new NodeRef("workspace://SpacesStore/document");
+	private static final NodeRef ELSEWHERE = new NodeRef("workspace://SpacesStore/elsewhere");
+
+	private NodeService nodeService;
+	private FolderQuotaService service;
+
+	@Before
+	public void setUp()
+	{
+		nodeService = mock(NodeService.class);
+		FolderUsageCalculator usage = mock(FolderUsageCalculator.class);
+		QuotaAncestorResolver resolver = mock(QuotaAncestorResolver.class);
+
+		when(usage.getParentFolderWithQuota(FOLDER)).thenReturn(QUOTA_FOLDER);
+		when(usage.getParentFolderWithQuota(DOCUMENT)).thenReturn(QUOTA_FOLDER);
+		when(resolver.getQuotaChain(QUOTA_FOLDER)).thenReturn(Arrays.asList(QUOTA_FOLDER, OUTER));
+		//900 left in the quota folder, 500 in the outer one
+		when(resolver.getQuotaLimit(QUOTA_FOLDER)).thenReturn(1000L);
+		when(usage.getStoredUsage(QUOTA_FOLDER)).thenReturn(100L);
+		when(resolver.getQuotaLimit(OUTER)).thenReturn(10000L);
+		when(usage.getStoredUsage(OUTER)).thenReturn(9500L);
+		when(nodeService.getProperty(DOCUMENT, ContentModel.PROP_CONTENT)).thenReturn(new ContentData(null, "text/plain", 400L, "UTF-8"));
+
+		service = new FolderQuotaService();
+		service.setNodeService(nodeService);
+		service.setFolderUsageCalculator(usage);
+		service.setQuotaAncestorResolver(resolver);
+	}
+
+	@Test
+	public void testNoQuota()
+	{
+		FolderQuotaService.QuotaCheck check = service.check(ELSEWHERE, Long.MAX_VALUE);
+
+		assertTrue(check.isAllowed());
+		assertNull(check.getQuotaFolder());
+	}
+
+	@Test
+	public void testTightestQuotaDecides()
+	{
+		FolderQuotaService.QuotaCheck check = service.check(FOLDER, 600L);
+
+		assertFalse(check.isAllowed());
+		assertEquals(OUTER, check.getQuotaFolder());
+		assertEquals(Long.valueOf(500L), check.getRemaining());
+		assertTrue(service.check(FOLDER, 500L).isAllowed());
+	}
+
+	@Test
+	public void testNewVersionOnlyCountsTheChange()
+	{
+		//600 bytes replacing 400 adds 200, which fits in the 500 left
+		assertTrue(service.check(DOCUMENT, 600L).isAllowed());
+		assertFalse(service.check(DOCUMENT, 901L).isAllowed());
+	}
+
+	@Test
+	public void testSmallerVersionIsAllowedOverQuota()
+	{
+		//already over quota, e.g. after the limit was lowered
+		FolderUsageCalculator usage = mock(FolderUsageCalculator.class);
+		QuotaAncestorResolver resolver = mock(QuotaAncestorResolver.class);
+		when(usage.getParentFolderWithQuota(FOLDER)).thenReturn(QUOTA_FOLDER);
+		when(usage.getParentFolderWithQuota(DOCUMENT)).thenReturn(QUOTA_FOLDER);
+		when(resolver.getQuotaChain(QUOTA_FOLDER)).thenReturn(Collections.singletonList(QUOTA_FOLDER));
+		when(resolver.getQuotaLimit(QUOTA_FOLDER)).thenReturn(1000L);
+		when(usage.getStoredUsage(QUOTA_FOLDER)).thenReturn(1200L);
+		service.setFolderUsageCalculator(usage);
+		service.setQuotaAncestorResolver(resolver);
+
+		assertTrue(service.check(DOCUMENT, 100L).isAllowed());
+		assertFalse(service.check(FOLDER, 1L).isAllowed());
+	}
+}
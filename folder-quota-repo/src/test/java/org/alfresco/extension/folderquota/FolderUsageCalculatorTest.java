@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of how the quota folder of a node is looked up
+ */
+package org.alfresco.extension.folderquota;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FolderUsageCalculatorTest
+{
+	private static final NodeRef OUTER = new NodeRef("workspace://SpacesStore/outer");
+	private static final NodeRef NESTED = new NodeRef("workspace://SpacesStore/nested");
+	private static final NodeRef DOCUMENT = new NodeRef("workspace://SpacesStore/document");
+
+	private NodeService nodeService;
+	private FolderQuotaStamper stamper;
+	private QuotaAncestorResolver resolver;
+	private FolderUsageCalculator usage;
+
+	@Before
+	public void setUp()
+	{
+		nodeService = mock(NodeService.class);
+		ServiceRegistry serviceRegistry = mock(ServiceRegistry.class);
+		when(serviceRegistry.getNodeService()).thenReturn(nodeService);
+		stamper = mock(FolderQuotaStamper.class);
+		resolver = mock(QuotaAncestorResolver.class);
+
+		//NESTED was stamped as part of OUTER before it got a quota of its own
+		when(nodeService.hasAspect(NESTED, FolderQuotaConstants.ASPECT_FQ_QUOTA)).thenReturn(true);
+		when(nodeService.getProperty(NESTED, FolderQuotaConstants.PROP_FQ_MANAGED_FOLDER)).thenReturn(OUTER);
+		when(nodeService.getProperty(DOCUMENT, FolderQuotaConstants.PROP_FQ_MANAGED_FOLDER)).thenReturn(NESTED);
+		when(resolver.getQuotaAncestor(NESTED)).thenReturn(NESTED);
+		when(resolver.getQuotaAncestor(DOCUMENT)).thenReturn(NESTED);
+
+		usage = new FolderUsageCalculator();
+		usage.setServiceRegistry(serviceRegistry);
+		usage.setFolderQuotaStamper(stamper);
+		usage.setQuotaAncestorResolver(resolver);
+	}
+
+	@Test
+	public void testNestedQuotaFolderAnswersForItself()
+	{
+		when(stamper.isRestampDone()).thenReturn(true);
+
+		assertEquals(NESTED, usage.getParentFolderWithQuota(NESTED));
+	}
+
+	@Test
+	public void testStampIsUsedOnceRestamped()
+	{
+		when(stamper.isRestampDone()).thenReturn(true);
+
+		assertEquals(NESTED, usage.getParentFolderWithQuota(DOCUMENT));
+		verify(resolver, never()).getQuotaAncestor(any(NodeRef.class));
+	}
+
+	@Test
+	public void testStampIsIgnoredUntilRestamped()
+	{
+		when(stamper.isRestampDone()).thenReturn(false);
+
+		assertEquals(NESTED, usage.getParentFolderWithQuota(NESTED));
+		assertEquals(NESTED, usage.getParentFolderWithQuota(DOCUMENT));
+		verify(nodeService, never()).getProperty(DOCUMENT, FolderQuotaConstants.PROP_FQ_MANAGED_FOLDER);
+	}
+}
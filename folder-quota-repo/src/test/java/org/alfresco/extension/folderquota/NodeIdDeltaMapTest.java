@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the primitive node id delta map
+ */
+package org.alfresco.extension.folderquota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.Test;
+
+public class NodeIdDeltaMapTest
+{
+	private static NodeRef folder(long nodeId)
+	{
+		return new NodeRef("workspace://SpacesStore/folder-" + nodeId);
+	}
+
+	@Test
+	public void testDeltasAreSummedPerNodeId()
+	{
+		NodeIdDeltaMap map = new NodeIdDeltaMap();
+		map.add(1L, 100L);
+		map.add(2L, 50L);
+		map.add(1L, -30L);
+
+		assertEquals(2, map.size());
+		assertEquals(70L, map.get(1L));
+		assertEquals(50L, map.get(2L));
+		assertEquals(0L, map.get(3L));
+	}
+
+	@Test
+	public void testGrowsPastTheExpectedSize()
+	{
+		NodeIdDeltaMap map = new NodeIdDeltaMap(4);
+		//sequential ids, as node ids mostly are, with a NodeRef for every other one
+		for (long id = 1; id <= 10000; id++)
+		{
+			map.add(id, id % 2 == 0 ? folder(id) : null, id);
+		}
+		for (long id = 1; id <= 10000; id++)
+		{
+			map.add(id, 1L);
+		}
+
+		assertEquals(10000, map.size());
+		for (long id = 1; id <= 10000; id++)
+		{
+			assertEquals(id + 1, map.get(id));
+		}
+		assertEquals(5000, map.toNodeRefMap().size());
+		assertEquals(101L, map.toNodeRefMap().get(folder(100)).longValue());
+	}
+
+	@Test
+	public void testNextVisitsEveryEntryOnce()
+	{
+		NodeIdDeltaMap map = new NodeIdDeltaMap();
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		for (long id = 1; id <= 100; id++)
+		{
+			map.add(id * 7919L, id);
+			expected.put(id * 7919L, id);
+		}
+
+		Map<Long, Long> visited = new HashMap<Long, Long>();
+		for (int slot = map.next(-1); slot >= 0; slot = map.next(slot))
+		{
+			assertNull(visited.put(map.nodeIdAt(slot), map.deltaAt(slot)));
+		}
+		assertEquals(expected, visited);
+	}
+
+	@Test
+	public void testNodeRefMapLeavesOutZeroTotalsAndMissingNodeRefs()
+	{
+		NodeIdDeltaMap map = new NodeIdDeltaMap();
+		map.add(1L, folder(1L), 100L);
+		//cancels out
+		map.add(2L, folder(2L), 100L);
+		map.add(2L, -100L);
+		//no NodeRef to write it with
+		map.add(3L, 100L);
+		//the NodeRef may come with a later delta
+		map.add(4L, 40L);
+		map.add(4L, folder(4L), 2L);
+
+		Map<NodeRef, Long> expected = new HashMap<NodeRef, Long>();
+		expected.put(folder(1L), 100L);
+		expected.put(folder(4L), 42L);
+		assertEquals(expected, map.toNodeRefMap());
+	}
+
+	@Test
+	public void testClear()
+	{
+		NodeIdDeltaMap map = new NodeIdDeltaMap();
+		map.add(1L, folder(1L), 100L);
+		map.clear();
+
+		assertTrue(map.isEmpty());
+		assertEquals(-1, map.next(-1));
+		assertEquals(0L, map.get(1L));
+		assertTrue(map.toNodeRefMap().isEmpty());
+
+		//and is usable again
+		map.add(1L, 5L);
+		assertEquals(5L, map.get(1L));
+		assertNull(map.nodeRefAt(map.next(-1)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNodeIdZero()
+	{
+		new NodeIdDeltaMap().add(0L, 100L);
+	}
+}
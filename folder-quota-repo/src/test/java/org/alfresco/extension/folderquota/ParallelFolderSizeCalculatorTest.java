@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the parallel sizing engine against an in-memory folder tree
+ */
+package org.alfresco.extension.folderquota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ParallelFolderSizeCalculatorTest
+{
+	private static final NodeRef ROOT = new NodeRef("workspace://SpacesStore/root");
+
+	private final Map<NodeRef, List<FileInfo>> children = new HashMap<NodeRef, List<FileInfo>>();
+	private final AtomicInteger listings = new AtomicInteger();
+	private volatile CountDownLatch listingGate;
+	private ParallelFolderSizeCalculator calculator;
+
+	/**
+	 * Keeps the sizes it is given, and the size of each batch
+	 */
+	private static class RecordingSubtreeSizeStore extends FolderSubtreeSizeStore
+	{
+		final Map<NodeRef, Long> sizes = new ConcurrentHashMap<NodeRef, Long>();
+		final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+		@Override
+		public boolean isEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public void setSizes(Map<NodeRef, Long> sizes)
+		{
+			batches.add(sizes.size());
+			this.sizes.putAll(sizes);
+		}
+	}
+
+	/**
+	 * Collects the calls made on an asynchronous calculation
+	 */
+	private class RecordingCallback implements ParallelFolderSizeCalculator.Callback
+	{
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicLong size = new AtomicLong(-1L);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		volatile int listingsAtStart = -1;
+
+		public void onStart(NodeRef folder)
+		{
+			listingsAtStart = listings.get();
+			started.countDown();
+		}
+
+		public void onSize(NodeRef folder, long size)
+		{
+			this.size.set(size);
+			done.countDown();
+		}
+
+		public void onFailure(NodeRef folder, Throwable e)
+		{
+			failure.set(e);
+			done.countDown();
+		}
+	}
+
+	@Before
+	public void setUp()
+	{
+		//three folders of 100 and 200 bytes, each with a subfolder holding 50 bytes
+		for (int i = 0; i < 3; i++)
+		{
+			NodeRef folder = addFolder(ROOT, "folder" + i);
+			addDocument(folder, "a" + i, 100L);
+			addDocument(folder, "b" + i, 200L);
+			NodeRef subFolder = addFolder(folder, "sub" + i);
+			addDocument(subFolder, "c" + i, 50L);
+		}
+
+		TransactionService transactionService = mock(TransactionService.class);
+		when(transactionService.getRetryingTransactionHelper()).thenReturn(new TestTransactionHelper());
+		FileFolderService fileFolderService = mock(FileFolderService.class, new Answer<Object>()
+		{
+			public Object answer(InvocationOnMock invocation) throws Throwable
+			{
+				if (!invocation.getMethod().getName().equals("list"))
+				{
+					throw new UnsupportedOperationException(invocation.getMethod().getName());
+				}
+				Object[] args = invocation.getArguments();
+				return list((NodeRef) args[0], (PagingRequest) args[5]);
+			}
+		});
+
+		calculator = new ParallelFolderSizeCalculator();
+		calculator.setTransactionService(transactionService);
+		calculator.setFileFolderService(fileFolderService);
+		calculator.setParallelism(2);
+		calculator.setPageSize(2);
+		calculator.setShutdownTimeout(10000L);
+		calculator.init();
+	}
+
+	@After
+	public void tearDown()
+	{
+		listingGate = null;
+		calculator.destroy();
+	}
+
+	private NodeRef addFolder(NodeRef parent, String name)
+	{
+		NodeRef folder = new NodeRef("workspace://SpacesStore/" + name);
+		FileInfo info = mock(FileInfo.class);
+		when(info.getNodeRef()).thenReturn(folder);
+		when(info.isFolder()).thenReturn(true);
+		getChildren(parent).add(info);
+		children.put(folder, new ArrayList<FileInfo>());
+		return folder;
+	}
+
+	private void addDocument(NodeRef parent, String name, long size)
+	{
+		FileInfo info = mock(FileInfo.class);
+		when(info.getNodeRef()).thenReturn(new NodeRef("workspace://SpacesStore/" + name));
+		when(info.isFolder()).thenReturn(false);
+		when(info.getContentData()).thenReturn(new ContentData(null, "text/plain", size, "UTF-8"));
+		getChildren(parent).add(info);
+	}
+
+	private List<FileInfo> getChildren(NodeRef folder)
+	{
+		List<FileInfo> list = children.get(folder);
+		if (list == null)
+		{
+			list = new ArrayList<FileInfo>();
+			children.put(folder, list);
+		}
+		return list;
+	}
+
+	private PagingResults<FileInfo> list(NodeRef folder, PagingRequest paging) throws InterruptedException
+	{
+		CountDownLatch gate = listingGate;
+		if (gate != null)
+		{
+			gate.await();
+		}
+		listings.incrementAndGet();
+		List<FileInfo> all = getChildren(folder);
+		int from = Math.min(paging.getSkipCount(), all.size());
+		int to = Math.min(from + paging.getMaxItems(), all.size());
+		final List<FileInfo> page = new ArrayList<FileInfo>(all.subList(from, to));
+		final boolean more = to < all.size();
+		final int total = all.size();
+		return new PagingResults<FileInfo>()
+		{
+			public List<FileInfo> getPage()
+			{
+				return page;
+			}
+
+			public boolean hasMoreItems()
+			{
+				return more;
+			}
+
+			public Pair<Integer, Integer> getTotalResultCount()
+			{
+				return new Pair<Integer, Integer>(total, total);
+			}
+
+			public String getQueryExecutionId()
+			{
+				return null;
+			}
+		};
+	}
+
+	@Test
+	public void testSizesSubtree()
+	{
+		assertEquals(1050L, calculator.calculateFolderSize(ROOT));
+	}
+
+	@Test
+	public void testStartIsCalledBeforeTheWalk() throws Exception
+	{
+		RecordingCallback callback = new RecordingCallback();
+
+		calculator.calculateFolderSizeAsync(ROOT, callback);
+
+		assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+		assertNull(callback.failure.get());
+		assertEquals(0, callback.listingsAtStart);
+		assertEquals(1050L, callback.size.get());
+	}
+
+	@Test
+	public void testSubtreeSizesAreStoredInBatches()
+	{
+		RecordingSubtreeSizeStore store = new RecordingSubtreeSizeStore();
+		calculator.setFolderSubtreeSizeStore(store);
+
+		calculator.calculateFolderSize(ROOT);
+
+		assertEquals(7, store.sizes.size());
+		assertEquals(Long.valueOf(1050L), store.sizes.get(ROOT));
+		assertEquals(Long.valueOf(350L), store.sizes.get(new NodeRef("workspace://SpacesStore/folder0")));
+		assertEquals(Long.valueOf(50L), store.sizes.get(new NodeRef("workspace://SpacesStore/sub2")));
+		for (int batch : store.batches)
+		{
+			assertTrue(batch <= 2);
+		}
+	}
+
+	@Test
+	public void testShutdownWaitsForSizingUnderWay() throws Exception
+	{
+		final CountDownLatch gate = new CountDownLatch(1);
+		listingGate = gate;
+		RecordingCallback callback = new RecordingCallback();
+		calculator.calculateFolderSizeAsync(ROOT, callback);
+		assertTrue(callback.started.await(10, TimeUnit.SECONDS));
+
+		new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(100L);
+				}
+				catch (InterruptedException e)
+				{
+					//released straight away
+				}
+				gate.countDown();
+			}
+		}.start();
+		calculator.destroy();
+
+		assertEquals(1050L, callback.size.get());
+	}
+}
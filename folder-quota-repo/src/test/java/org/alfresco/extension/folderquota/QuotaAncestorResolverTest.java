@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the quota ancestor cache and its counters
+ */
+package org.alfresco.extension.folderquota;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuotaAncestorResolverTest
+{
+	private static final NodeRef ROOT = new NodeRef("workspace://SpacesStore/root");
+	private static final NodeRef QUOTA_FOLDER = new NodeRef("workspace://SpacesStore/quota");
+	private static final int DEPTH = 5;
+
+	private NodeService nodeService;
+	private QuotaAncestorResolver resolver;
+
+	@Before
+	public void setUp()
+	{
+		//ROOT > QUOTA_FOLDER > folder-1 > ... > folder-5 > document
+		nodeService = mock(NodeService.class);
+		when(nodeService.exists(ROOT)).thenReturn(true);
+		child(ROOT, QUOTA_FOLDER);
+		when(nodeService.hasAspect(QUOTA_FOLDER, FolderQuotaConstants.ASPECT_FQ_QUOTA)).thenReturn(true);
+		NodeRef parent = QUOTA_FOLDER;
+		for (int i = 1; i <= DEPTH; i++)
+		{
+			child(parent, folder(i));
+			parent = folder(i);
+		}
+		child(parent, document());
+
+		resolver = new QuotaAncestorResolver();
+		resolver.setNodeService(nodeService);
+		resolver.setDictionaryService(mock(DictionaryService.class));
+		TestTransactions.begin();
+	}
+
+	@After
+	public void tearDown()
+	{
+		TestTransactions.rollback();
+	}
+
+	private static NodeRef folder(int i)
+	{
+		return new NodeRef("workspace://SpacesStore/folder-" + i);
+	}
+
+	private static NodeRef document()
+	{
+		return new NodeRef("workspace://SpacesStore/document");
+	}
+
+	private void child(NodeRef parent, NodeRef child)
+	{
+		when(nodeService.exists(child)).thenReturn(true);
+		when(nodeService.getPrimaryParent(child)).thenReturn(new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, parent, null, child));
+	}
+
+	@Test
+	public void testEachLookupIsOneHitOrOneMiss()
+	{
+		resolver.init();
+
+		assertEquals(QUOTA_FOLDER, resolver.getQuotaAncestor(document()));
+		//walked six levels, but it was still one lookup
+		assertEquals(1L, resolver.getMissCount());
+		assertEquals(0L, resolver.getHitCount());
+
+		assertEquals(QUOTA_FOLDER, resolver.getQuotaAncestor(document()));
+		assertEquals(QUOTA_FOLDER, resolver.getQuotaAncestor(folder(3)));
+		assertEquals(1L, resolver.getMissCount());
+		assertEquals(2L, resolver.getHitCount());
+		assertEquals(0L, resolver.getEvictionCount());
+	}
+
+	@Test
+	public void testEvictionsAreCounted()
+	{
+		resolver.setCacheSize(2);
+		resolver.init();
+
+		//the document, the five folders and the quota folder, in a cache of two; the walk
+		//stops at the quota folder so the root is not cached
+		assertEquals(QUOTA_FOLDER, resolver.getQuotaAncestor(document()));
+		assertEquals(DEPTH, resolver.getEvictionCount());
+		assertEquals(2, resolver.getCacheSize());
+
+		//the two kept are the last ones put, and a hit pushes nothing out
+		assertEquals(QUOTA_FOLDER, resolver.getQuotaAncestor(folder(1)));
+		assertEquals(1L, resolver.getHitCount());
+		assertEquals(DEPTH, resolver.getEvictionCount());
+	}
+
+	@Test
+	public void testLimitChangeKeepsTheLayoutGeneration()
+	{
+		resolver.init();
+		when(nodeService.getProperty(QUOTA_FOLDER, FolderQuotaConstants.PROP_FQ_SIZE_QUOTA)).thenReturn(100L, 200L);
+		assertEquals(Long.valueOf(100L), resolver.getQuotaLimit(QUOTA_FOLDER));
+		assertEquals(Long.valueOf(100L), resolver.getQuotaLimit(QUOTA_FOLDER));
+		//looking up the next quota folder out, above the root
+		assertEquals(1L, resolver.getMissCount());
+		String layout = resolver.getGeneration();
+
+		resolver.invalidateLimitChange();
+		TestTransactions.commit();
+		TestTransactions.begin();
+
+		assertEquals(Long.valueOf(200L), resolver.getQuotaLimit(QUOTA_FOLDER));
+		verify(nodeService, times(2)).getProperty(QUOTA_FOLDER, FolderQuotaConstants.PROP_FQ_SIZE_QUOTA);
+		//the stamps are still current, and the next quota folder out was not looked up again
+		assertEquals(layout, resolver.getGeneration());
+		assertEquals(1L, resolver.getMissCount());
+	}
+}
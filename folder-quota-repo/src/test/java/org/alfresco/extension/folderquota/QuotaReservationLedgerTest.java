@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of upload admission against the reservation ledger
+ */
+package org.alfresco.extension.folderquota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.alfresco.extension.folderquota.counter.QuotaCounterStore;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuotaReservationLedgerTest
+{
+	private static final NodeRef OUTER = new NodeRef("workspace://SpacesStore/outer");
+	private static final NodeRef QUOTA_FOLDER = new NodeRef("workspace://SpacesStore/quota");
+
+	private static final int THREADS = 16;
+	private static final int UPLOADS_PER_THREAD = 500;
+	private static final long UPLOAD = 1000L;
+	private static final long LIMIT = 200 * UPLOAD;
+
+	private MapCounterStore counterStore;
+	private QuotaReservationLedger ledger;
+
+	@Before
+	public void setUp()
+	{
+		counterStore = new MapCounterStore();
+		ledger = new QuotaReservationLedger();
+		ledger.setQuotaCounterStore(counterStore);
+	}
+
+	@After
+	public void tearDown()
+	{
+		TestTransactions.rollback();
+	}
+
+	@Test
+	public void testConcurrentUploadsNeverExceedTheQuota() throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger committed = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++)
+		{
+			threads[t] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						start.await();
+						for (int i = 0; i < UPLOADS_PER_THREAD; i++)
+						{
+							TestTransactions.begin();
+							boolean admitted = ledger.reserve(QUOTA_FOLDER, UPLOAD, LIMIT);
+							//committed usage is never over the quota, whatever is in flight
+							assertTrue(counterStore.getUsage(QUOTA_FOLDER) <= LIMIT);
+							if (admitted && ThreadLocalRandom.current().nextBoolean())
+							{
+								TestTransactions.commit();
+								committed.incrementAndGet();
+							}
+							else
+							{
+								TestTransactions.rollback();
+							}
+						}
+					}
+					catch (Throwable e)
+					{
+						failure.compareAndSet(null, e);
+						TestTransactions.rollback();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertNull(failure.get());
+		//rolled back uploads gave their space back, so the quota was filled exactly
+		assertEquals(LIMIT / UPLOAD, committed.get());
+		assertEquals(LIMIT, counterStore.getUsage(QUOTA_FOLDER));
+		assertEquals(0L, ledger.getReserved(QUOTA_FOLDER));
+		assertEquals(ledger.getReservationCount() - committed.get(), ledger.getReleaseCount());
+	}
+
+	@Test
+	public void testRollbackReleasesTheReservation()
+	{
+		TestTransactions.begin();
+		assertTrue(ledger.reserve(QUOTA_FOLDER, 600L, 1000L));
+		assertFalse(ledger.reserve(QUOTA_FOLDER, 600L, 1000L));
+		assertEquals(600L, ledger.getReserved(QUOTA_FOLDER));
+		TestTransactions.rollback();
+
+		assertEquals(0L, ledger.getReserved(QUOTA_FOLDER));
+		assertEquals(0L, counterStore.getUsage(QUOTA_FOLDER));
+		assertEquals(1L, ledger.getReleaseCount());
+		assertEquals(1L, ledger.getRejectionCount());
+	}
+
+	@Test
+	public void testCommitMovesTheReservationToTheCounterStore()
+	{
+		TestTransactions.begin();
+		assertTrue(ledger.reserve(QUOTA_FOLDER, 600L, 1000L));
+		ledger.adjust(QUOTA_FOLDER, -100L);
+		TestTransactions.commit();
+
+		assertEquals(0L, ledger.getReserved(QUOTA_FOLDER));
+		assertEquals(500L, ledger.getUsage(QUOTA_FOLDER));
+	}
+
+	@Test
+	public void testNestedQuotasAreReservedAllOrNothing()
+	{
+		List<NodeRef> chain = Arrays.asList(QUOTA_FOLDER, OUTER);
+		counterStore.add(OUTER, 900L);
+
+		TestTransactions.begin();
+		assertEquals(OUTER, ledger.reserve(chain, 200L, Arrays.asList(1000L, 1000L)));
+		assertEquals(0L, ledger.getReserved(QUOTA_FOLDER));
+		//an unlimited level is counted on commit without being checked
+		assertNull(ledger.reserve(chain, 200L, Arrays.asList(1000L, (Long) null)));
+		TestTransactions.commit();
+
+		assertEquals(200L, counterStore.getUsage(QUOTA_FOLDER));
+		assertEquals(1100L, counterStore.getUsage(OUTER));
+	}
+
+	@Test
+	public void testResetIsAppliedOnCommit()
+	{
+		counterStore.add(QUOTA_FOLDER, 700L);
+
+		TestTransactions.begin();
+		ledger.reset(QUOTA_FOLDER, 300L);
+		assertEquals(700L, ledger.getUsage(QUOTA_FOLDER));
+		TestTransactions.commit();
+
+		assertEquals(300L, ledger.getUsage(QUOTA_FOLDER));
+	}
+
+	/**
+	 * Counter store with nothing behind it, every folder starts empty
+	 */
+	private static class MapCounterStore implements QuotaCounterStore
+	{
+		private final ConcurrentMap<NodeRef, AtomicLong> usage = new ConcurrentHashMap<NodeRef, AtomicLong>();
+
+		public long getUsage(NodeRef quotaFolder)
+		{
+			return counter(quotaFolder).get();
+		}
+
+		public void add(NodeRef quotaFolder, long delta)
+		{
+			counter(quotaFolder).addAndGet(delta);
+		}
+
+		public void checkpointed(NodeRef quotaFolder, long delta)
+		{
+		}
+
+		public void reset(NodeRef quotaFolder, long size)
+		{
+			usage.put(quotaFolder, new AtomicLong(size));
+		}
+
+		public void invalidate(NodeRef quotaFolder)
+		{
+			usage.remove(quotaFolder);
+		}
+
+		public long getOtherServersDelta(NodeRef quotaFolder)
+		{
+			return 0L;
+		}
+
+		private AtomicLong counter(NodeRef quotaFolder)
+		{
+			AtomicLong counter = usage.get(quotaFolder);
+			if (counter == null)
+			{
+				usage.putIfAbsent(quotaFolder, new AtomicLong());
+				counter = usage.get(quotaFolder);
+			}
+			return counter;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Transaction helper that runs callbacks in thread-bound test transactions
+ */
+package org.alfresco.extension.folderquota;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Runs each callback in a {@link TestTransactions} transaction, joining one that is
+ * already active on the thread.  Nothing is retried.
+ */
+public class TestTransactionHelper extends RetryingTransactionHelper
+{
+	@Override
+	public <R> R doInTransaction(RetryingTransactionCallback<R> cb, boolean readOnly, boolean requiresNew)
+	{
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			return execute(cb);
+		}
+		TestTransactions.begin();
+		boolean committed = false;
+		try
+		{
+			R result = execute(cb);
+			TestTransactions.commit();
+			committed = true;
+			return result;
+		}
+		finally
+		{
+			if (!committed)
+			{
+				TestTransactions.rollback();
+			}
+		}
+	}
+
+	private static <R> R execute(RetryingTransactionCallback<R> cb)
+	{
+		try
+		{
+			return cb.execute();
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Throwable e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
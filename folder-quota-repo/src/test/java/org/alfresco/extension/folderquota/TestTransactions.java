@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Thread-bound transactions for tests that need AlfrescoTransactionSupport
+ */
+package org.alfresco.extension.folderquota;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+/**
+ * Transactions that are Spring transaction synchronizations with no resource behind
+ * them, so AlfrescoTransactionSupport resources and listeners work as they do in the
+ * repository: listeners run their afterCommit once {@link #commit()} is called.
+ */
+public final class TestTransactions
+{
+	private TestTransactions()
+	{
+	}
+
+	/**
+	 * Starts a transaction on this thread
+	 */
+	public static void begin()
+	{
+		TransactionSynchronizationManager.initSynchronization();
+		TransactionSynchronizationManager.setActualTransactionActive(true);
+	}
+
+	/**
+	 * Commits the transaction on this thread, running the listeners' afterCommit
+	 */
+	public static void commit()
+	{
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		TransactionSynchronizationUtils.triggerBeforeCommit(false);
+		TransactionSynchronizationUtils.triggerBeforeCompletion();
+		end();
+		TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+		TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_COMMITTED);
+		clearResources();
+	}
+
+	/**
+	 * Rolls back the transaction on this thread, if there still is one
+	 */
+	public static void rollback()
+	{
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			clearResources();
+			return;
+		}
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		TransactionSynchronizationUtils.triggerBeforeCompletion();
+		end();
+		TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_ROLLED_BACK);
+		clearResources();
+	}
+
+	private static void end()
+	{
+		TransactionSynchronizationManager.clearSynchronization();
+		TransactionSynchronizationManager.setActualTransactionActive(false);
+	}
+
+	/**
+	 * Transaction resources are normally unbound by the synchronization, anything left
+	 * would make the next transaction on the thread fail to bind its own
+	 */
+	private static void clearResources()
+	{
+		for (Object key : new ArrayList<Object>(TransactionSynchronizationManager.getResourceMap().keySet()))
+		{
+			TransactionSynchronizationManager.unbindResourceIfPossible(key);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the virtual thread executor and its fallback
+ */
+package org.alfresco.extension.folderquota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class VirtualThreadExecutorTest
+{
+	private static final int MAX_CONCURRENCY = 4;
+	private static final int TASKS = 200;
+
+	private VirtualThreadExecutor executor;
+
+	@After
+	public void tearDown()
+	{
+		if (executor != null)
+		{
+			executor.destroy();
+		}
+	}
+
+	private VirtualThreadExecutor start(boolean enabled)
+	{
+		executor = new VirtualThreadExecutor();
+		executor.setEnabled(enabled);
+		executor.setMaxConcurrency(MAX_CONCURRENCY);
+		executor.init();
+		return executor;
+	}
+
+	private static boolean jvmHasVirtualThreads()
+	{
+		try
+		{
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
+	@Test
+	public void testDisabledIsNotAvailable()
+	{
+		start(false);
+
+		assertFalse(executor.isAvailable());
+		//the permits are still there for callers that share the limit
+		executor.acquire();
+		assertEquals(1, executor.getActiveCount());
+		executor.release();
+		assertEquals(0, executor.getActiveCount());
+	}
+
+	@Test
+	public void testFallsBackWithoutVirtualThreads()
+	{
+		assumeFalse(jvmHasVirtualThreads());
+
+		assertFalse(start(true).isAvailable());
+	}
+
+	@Test
+	public void testPermitsCapTheTasksInATransaction() throws InterruptedException
+	{
+		assumeTrue(jvmHasVirtualThreads());
+		start(true);
+		assertTrue(executor.isAvailable());
+
+		final CountDownLatch done = new CountDownLatch(TASKS);
+		final AtomicInteger inTransaction = new AtomicInteger();
+		final AtomicInteger maxInTransaction = new AtomicInteger();
+		final AtomicReference<String> notVirtual = new AtomicReference<String>();
+		for (int i = 0; i < TASKS; i++)
+		{
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					if (!Thread.currentThread().getName().startsWith("FolderQuotaVirtual-"))
+					{
+						notVirtual.set(Thread.currentThread().getName());
+					}
+					executor.acquire();
+					try
+					{
+						int now = inTransaction.incrementAndGet();
+						int max;
+						while ((max = maxInTransaction.get()) < now && !maxInTransaction.compareAndSet(max, now))
+						{
+							// retry
+						}
+						Thread.sleep(2L);
+						inTransaction.decrementAndGet();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						executor.release();
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertNull(notVirtual.get());
+		assertEquals(MAX_CONCURRENCY, maxInTransaction.get());
+		assertEquals(0, executor.getActiveCount());
+		assertEquals(0, executor.getWaitingCount());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the per-folder delta counters
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.Test;
+
+public class FolderDeltaCountersTest
+{
+    private static final int FOLDERS = 50;
+
+    private static NodeRef folder(int i)
+    {
+        return new NodeRef("workspace://SpacesStore/folder-" + i);
+    }
+
+    @Test
+    public void testFolderBackAtZeroIsRemoved()
+    {
+        FolderDeltaCounters counters = new FolderDeltaCounters();
+        counters.add(folder(1), 100L);
+        counters.add(folder(2), 50L);
+        counters.add(folder(1), -100L);
+
+        assertEquals(1, counters.size());
+        assertEquals(0L, counters.get(folder(1)));
+        assertEquals(50L, counters.get(folder(2)));
+
+        counters.add(folder(1), 10L);
+        assertEquals(10L, counters.get(folder(1)));
+        assertEquals(60L, counters.getAbsoluteTotal());
+    }
+
+    @Test
+    public void testTakeAllEmptiesTheMap()
+    {
+        FolderDeltaCounters counters = new FolderDeltaCounters();
+        for (int i = 0; i < FOLDERS; i++)
+        {
+            counters.add(folder(i), i + 1);
+        }
+
+        Map<NodeRef, Long> changes = counters.takeAll();
+
+        assertEquals(FOLDERS, changes.size());
+        assertEquals(Long.valueOf(FOLDERS), changes.get(folder(FOLDERS - 1)));
+        assertEquals(0, counters.size());
+        assertEquals(0, counters.takeAll().size());
+    }
+
+    @Test
+    public void testNoDeltaLostWhileTaking() throws Exception
+    {
+        final FolderDeltaCounters counters = new FolderDeltaCounters();
+        final int threads = 8;
+        final int addsPerThread = 200000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (int t = 0; t < threads; t++)
+        {
+            final int offset = t;
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        //alternating signs take folders back to zero all the time
+                        for (int i = 0; i < addsPerThread; i++)
+                        {
+                            counters.add(folder((i + offset) % FOLDERS), i % 2 == 0 ? 3L : -2L);
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failed.set(true);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long taken = 0L;
+        start.countDown();
+        while (done.getCount() > 0)
+        {
+            for (long delta : counters.takeAll().values())
+            {
+                taken += delta;
+            }
+        }
+        for (long delta : counters.takeAll().values())
+        {
+            taken += delta;
+        }
+
+        assertEquals(false, failed.get());
+        assertEquals((long) threads * (addsPerThread / 2) * (3L - 2L), taken);
+        assertEquals(0, counters.size());
+    }
+}
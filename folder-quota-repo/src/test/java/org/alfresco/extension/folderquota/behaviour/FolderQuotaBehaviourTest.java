@@ -0,0 +1,284 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of how the behaviour records size changes within a transaction
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.extension.folderquota.FolderQuotaBulkIngest;
+import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.extension.folderquota.FolderQuotaStamper;
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.QuotaAncestorResolver;
+import org.alfresco.extension.folderquota.TestTransactions;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FolderQuotaBehaviourTest
+{
+    private static final NodeRef OUTER = new NodeRef("workspace://SpacesStore/outer");
+    private static final NodeRef QUOTA_FOLDER = new NodeRef("workspace://SpacesStore/quota");
+    private static final NodeRef OTHER_QUOTA_FOLDER = new NodeRef("workspace://SpacesStore/other-quota");
+    private static final NodeRef FOLDER_A = new NodeRef("workspace://SpacesStore/a");
+    private static final NodeRef FOLDER_B = new NodeRef("workspace://SpacesStore/b");
+    private static final NodeRef LARGE_FOLDER = new NodeRef("workspace://SpacesStore/large");
+    private static final ContentData CONTENT = new ContentData(null, "text/plain", 1024L, "UTF-8");
+
+    private NodeService nodeService;
+    private FolderUsageCalculator usage;
+    private QuotaAncestorResolver resolver;
+    private FolderQuotaStamper stamper;
+    private FolderSizeUpdateExecutor updateExecutor;
+    private FolderQuotaBehaviour behaviour;
+
+    @Before
+    public void setUp()
+    {
+        nodeService = mock(NodeService.class);
+        ServiceRegistry serviceRegistry = mock(ServiceRegistry.class);
+        when(serviceRegistry.getNodeService()).thenReturn(nodeService);
+        when(serviceRegistry.getDictionaryService()).thenReturn(mock(DictionaryService.class));
+
+        usage = mock(FolderUsageCalculator.class);
+        when(usage.getParentFolderWithQuota(any(NodeRef.class))).thenReturn(QUOTA_FOLDER);
+        when(usage.getParentFolderWithQuota(OTHER_QUOTA_FOLDER)).thenReturn(OTHER_QUOTA_FOLDER);
+        when(usage.getNodeId(OUTER)).thenReturn(1L);
+        when(usage.getNodeId(QUOTA_FOLDER)).thenReturn(2L);
+        when(usage.getNodeId(OTHER_QUOTA_FOLDER)).thenReturn(3L);
+        //sizing it would walk 100,000 documents
+        when(usage.getChangeSize(LARGE_FOLDER)).thenReturn(100000 * 1024L);
+
+        resolver = mock(QuotaAncestorResolver.class);
+        when(resolver.getQuotaChain(QUOTA_FOLDER)).thenReturn(Arrays.asList(QUOTA_FOLDER, OUTER));
+        when(resolver.getQuotaLimit(QUOTA_FOLDER)).thenReturn(Long.MAX_VALUE);
+        when(resolver.getQuotaChain(OTHER_QUOTA_FOLDER)).thenReturn(Arrays.asList(OTHER_QUOTA_FOLDER, OUTER));
+        when(resolver.getQuotaLimit(OUTER)).thenReturn(Long.MAX_VALUE);
+
+        updateExecutor = mock(FolderSizeUpdateExecutor.class);
+
+        behaviour = new FolderQuotaBehaviour();
+        behaviour.setServiceRegistry(serviceRegistry);
+        behaviour.setPolicyComponent(mock(PolicyComponent.class));
+        behaviour.setFolderUsageCalculator(usage);
+        behaviour.setQuotaAncestorResolver(resolver);
+        stamper = mock(FolderQuotaStamper.class);
+        behaviour.setFolderQuotaStamper(stamper);
+        behaviour.setUpdateExecutor(updateExecutor);
+        behaviour.setUseWriteBehind(false);
+        behaviour.init();
+    }
+
+    @After
+    public void tearDown()
+    {
+        TestTransactions.rollback();
+    }
+
+    private static NodeRef document(int i)
+    {
+        return new NodeRef("workspace://SpacesStore/document" + i);
+    }
+
+    private static ChildAssociationRef child(NodeRef parent, NodeRef child)
+    {
+        return new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, parent, null, child);
+    }
+
+    @Test
+    public void testBulkIngestStampsOnlyTheNodesWritten()
+    {
+        FolderQuotaBulkIngest bulkIngest = new FolderQuotaBulkIngest();
+        behaviour.setBulkIngest(bulkIngest);
+        when(resolver.getQuotaAncestor(FOLDER_A)).thenReturn(QUOTA_FOLDER);
+        int uploads = 100;
+        for (int i = 0; i < uploads; i++)
+        {
+            when(nodeService.exists(document(i))).thenReturn(true);
+            when(nodeService.getPrimaryParent(document(i))).thenReturn(child(FOLDER_A, document(i)));
+        }
+        //moved out again before commit, the move stamped it
+        when(nodeService.getPrimaryParent(document(0))).thenReturn(child(FOLDER_A, document(0)), child(FOLDER_B, document(0)));
+
+        TestTransactions.begin();
+        bulkIngest.begin();
+        for (int i = 0; i < uploads; i++)
+        {
+            behaviour.onContentPropertyUpdate(document(i), ContentModel.PROP_CONTENT, null, CONTENT);
+        }
+        TestTransactions.commit();
+
+        for (int i = 1; i < uploads; i++)
+        {
+            verify(stamper, times(1)).stamp(document(i), QUOTA_FOLDER);
+        }
+        verify(stamper, never()).stamp(document(0), QUOTA_FOLDER);
+        //the folder the batch went into is not walked again
+        verify(stamper, never()).enqueueSubtree(any(NodeRef.class));
+    }
+
+    @Test
+    public void testUploadsAreCoalescedPerQuotaFolder()
+    {
+        int uploads = 5000;
+        TestTransactions.begin();
+        for (int i = 0; i < uploads; i++)
+        {
+            behaviour.onContentPropertyUpdate(document(i), ContentModel.PROP_CONTENT, null, CONTENT);
+        }
+        TestTransactions.commit();
+
+        //one hand-off for the whole transaction, with one total per quota folder
+        Map<NodeRef, Long> expected = new HashMap<NodeRef, Long>();
+        expected.put(QUOTA_FOLDER, uploads * 1024L);
+        expected.put(OUTER, uploads * 1024L);
+        verify(updateExecutor, times(1)).submit(anyMapOf(NodeRef.class, Long.class));
+        verify(updateExecutor, times(1)).submit(expected);
+    }
+
+    @Test
+    public void testEachTransactionIsSubmittedOnce()
+    {
+        for (int txn = 0; txn < 3; txn++)
+        {
+            TestTransactions.begin();
+            for (int i = 0; i < 10; i++)
+            {
+                behaviour.onContentPropertyUpdate(document(txn * 10 + i), ContentModel.PROP_CONTENT, null, CONTENT);
+            }
+            TestTransactions.commit();
+        }
+
+        verify(updateExecutor, times(3)).submit(anyMapOf(NodeRef.class, Long.class));
+    }
+
+    @Test
+    public void testRolledBackUploadsAreNotSubmitted()
+    {
+        TestTransactions.begin();
+        behaviour.onContentPropertyUpdate(document(0), ContentModel.PROP_CONTENT, null, CONTENT);
+        TestTransactions.rollback();
+
+        verify(updateExecutor, times(0)).submit(anyMapOf(NodeRef.class, Long.class));
+    }
+
+    @Test
+    public void testRenameDoesNotSizeTheFolder()
+    {
+        TestTransactions.begin();
+        behaviour.onMoveNode(child(FOLDER_A, LARGE_FOLDER), child(FOLDER_A, LARGE_FOLDER));
+        TestTransactions.commit();
+
+        verify(usage, never()).getChangeSize(any(NodeRef.class));
+        verifyZeroInteractions(nodeService, resolver, stamper, updateExecutor);
+    }
+
+    @Test
+    public void testMoveWithinTheQuotaFolderDoesNotSizeTheFolder()
+    {
+        TestTransactions.begin();
+        behaviour.onMoveNode(child(FOLDER_A, LARGE_FOLDER), child(FOLDER_B, LARGE_FOLDER));
+        TestTransactions.commit();
+
+        verify(usage, never()).getChangeSize(any(NodeRef.class));
+        verify(usage, times(2)).getParentFolderWithQuota(any(NodeRef.class));
+        verifyZeroInteractions(nodeService, stamper, updateExecutor);
+    }
+
+    @Test
+    public void testMoveBetweenQuotaFoldersSizesTheFolderOnce()
+    {
+        TestTransactions.begin();
+        behaviour.onMoveNode(child(FOLDER_A, LARGE_FOLDER), child(OTHER_QUOTA_FOLDER, LARGE_FOLDER));
+        TestTransactions.commit();
+
+        verify(usage, times(1)).getChangeSize(any(NodeRef.class));
+        //the quota folder above both keeps its usage
+        Map<NodeRef, Long> expected = new HashMap<NodeRef, Long>();
+        expected.put(QUOTA_FOLDER, -100000 * 1024L);
+        expected.put(OTHER_QUOTA_FOLDER, 100000 * 1024L);
+        verify(updateExecutor, times(1)).submit(expected);
+    }
+
+    @Test
+    public void testNestedQuotaDropsTheOuterStamp()
+    {
+        //an existing folder inside QUOTA_FOLDER, stamped with it, gets a quota of its own
+        NodeRef nested = FOLDER_B;
+        when(nodeService.hasAspect(nested, FolderQuotaConstants.ASPECT_FQ_QUOTA)).thenReturn(true);
+
+        TestTransactions.begin();
+        behaviour.onAddAspect(nested, FolderQuotaConstants.ASPECT_FQ_QUOTA);
+        TestTransactions.commit();
+
+        verify(stamper, times(1)).stamp(nested, null);
+        verify(stamper, times(1)).enqueueSubtree(nested);
+    }
+
+    @Test
+    public void testMovedQuotaFolderIsNotStampedWithTheOuterQuota()
+    {
+        when(nodeService.hasAspect(LARGE_FOLDER, FolderQuotaConstants.ASPECT_FQ_QUOTA)).thenReturn(true);
+
+        TestTransactions.begin();
+        behaviour.onMoveNode(child(FOLDER_A, LARGE_FOLDER), child(OTHER_QUOTA_FOLDER, LARGE_FOLDER));
+        TestTransactions.commit();
+
+        verify(stamper, times(1)).stamp(LARGE_FOLDER, null);
+        verify(stamper, never()).stamp(LARGE_FOLDER, OTHER_QUOTA_FOLDER);
+    }
+
+    @Test
+    public void testLimitChangeKeepsTheStamps()
+    {
+        Map<QName, Serializable> before = Collections.<QName, Serializable>singletonMap(FolderQuotaConstants.PROP_FQ_SIZE_QUOTA, 1024L);
+        Map<QName, Serializable> after = Collections.<QName, Serializable>singletonMap(FolderQuotaConstants.PROP_FQ_SIZE_QUOTA, 2048L);
+
+        TestTransactions.begin();
+        behaviour.onUpdateProperties(QUOTA_FOLDER, before, after);
+        TestTransactions.commit();
+
+        verify(resolver, times(1)).invalidateLimitChange();
+        //a new layout generation would have every stamp treated as out of date
+        verify(resolver, never()).invalidateQuotaChange();
+        verifyZeroInteractions(stamper);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the in-memory ring buffer update queue
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.alfresco.extension.folderquota.SizeChange;
+import org.alfresco.extension.folderquota.TestTransactionHelper;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class FolderQuotaUpdateQueueInMemoryImplTest
+{
+    private static final String FOLDER_PREFIX = "workspace://SpacesStore/folder-";
+    private static final NodeRef DELETED = new NodeRef("workspace://SpacesStore/deleted");
+
+    private RecordingUsageCalculator usage;
+    private FolderQuotaUpdateQueueInMemoryImpl queue;
+
+    @Before
+    public void setUp()
+    {
+        //node id n is folder-n
+        NodeService nodeService = mock(NodeService.class, new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                String method = invocation.getMethod().getName();
+                NodeRef folder = (NodeRef) invocation.getArguments()[0];
+                if ("exists".equals(method))
+                {
+                    return !DELETED.equals(folder);
+                }
+                if ("getProperty".equals(method))
+                {
+                    return Long.valueOf(folder.toString().substring(FOLDER_PREFIX.length()));
+                }
+                throw new UnsupportedOperationException(method);
+            }
+        });
+        TransactionService transactionService = mock(TransactionService.class);
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(new TestTransactionHelper());
+        usage = new RecordingUsageCalculator();
+
+        queue = new FolderQuotaUpdateQueueInMemoryImpl();
+        queue.setFolderUsageCalculator(usage);
+        queue.setNodeService(nodeService);
+        queue.setTransactionService(transactionService);
+        //the ring buffer is shared by every instance, start from empty
+        queue.processAllEvents();
+        usage.idTotals.clear();
+        usage.pages = 0;
+    }
+
+    @After
+    public void tearDown()
+    {
+        usage.fail = false;
+        queue.processAllEvents();
+    }
+
+    private static NodeRef folder(long id)
+    {
+        return new NodeRef(FOLDER_PREFIX + id);
+    }
+
+    @Test
+    public void testEventsAreSummedPerFolder()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            queue.enqueueEvent(folder(1 + i % 4), 10L);
+            queue.enqueueEvent(new SizeChange(5L, -1L));
+        }
+        queue.enqueueEvent(DELETED, 10L);
+
+        assertEquals(200L, queue.getBacklog());
+        assertEquals(250L, queue.getPendingDelta(folder(1)));
+        assertEquals(-100L, queue.getPendingDelta(folder(5)));
+
+        queue.processAllEvents();
+
+        assertEquals(0L, queue.getBacklog());
+        assertEquals(5, usage.idTotals.size());
+        assertEquals(250L, usage.idTotals.get(1L).longValue());
+        assertEquals(-100L, usage.idTotals.get(5L).longValue());
+        //all in one pass
+        assertEquals(1, usage.pages);
+    }
+
+    @Test
+    public void testProcessEventsStopsAtMaxEvents()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            queue.enqueueEvent(new SizeChange(1L, 1L));
+        }
+
+        assertEquals(30, queue.processEvents(30));
+        assertEquals(70L, queue.getBacklog());
+        assertEquals(30L, usage.idTotals.get(1L).longValue());
+    }
+
+    @Test
+    public void testBufferWrapsAndGrows()
+    {
+        //move the head into the middle of the buffer, which holds 1024 events
+        for (int i = 0; i < 700; i++)
+        {
+            queue.enqueueEvent(new SizeChange(1L, 1L));
+        }
+        assertEquals(600, queue.processEvents(600));
+
+        //wraps round the end, then grows to take the rest
+        for (int i = 0; i < 5000; i++)
+        {
+            queue.enqueueEvent(new SizeChange(2L + i % 2, 1L));
+        }
+
+        assertEquals(5100L, queue.getBacklog());
+        assertEquals(100L, queue.getPendingDelta(folder(1)));
+        assertEquals(2500L, queue.getPendingDelta(folder(2)));
+        queue.processAllEvents();
+        assertEquals(700L, usage.idTotals.get(1L).longValue());
+        assertEquals(2500L, usage.idTotals.get(2L).longValue());
+        assertEquals(2500L, usage.idTotals.get(3L).longValue());
+    }
+
+    @Test
+    public void testFailedChangesAreQueuedAgainOncePerFolder()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            queue.enqueueEvent(new SizeChange(1L + i % 4, 10L));
+        }
+        usage.fail = true;
+
+        assertEquals(100, queue.processEvents(100));
+
+        assertEquals(4L, queue.getBacklog());
+        assertEquals(250L, queue.getPendingDelta(folder(1)));
+        assertTrue(usage.idTotals.isEmpty());
+
+        usage.fail = false;
+        queue.processAllEvents();
+        assertEquals(250L, usage.idTotals.get(4L).longValue());
+    }
+
+    @Test
+    public void testPendingDeltaFollowsTheDrain()
+    {
+        for (int i = 0; i < 1000; i++)
+        {
+            queue.enqueueEvent(new SizeChange(1L + i % 2, 3L));
+        }
+
+        queue.processEvents(400);
+        assertEquals(900L, queue.getPendingDelta(folder(1)));
+        assertEquals(900L, queue.getPendingDelta(folder(2)));
+
+        queue.processAllEvents();
+        assertEquals(0L, queue.getPendingDelta(folder(1)));
+        assertEquals(0L, queue.getPendingDelta(folder(2)));
+        assertEquals(1500L, usage.idTotals.get(1L).longValue());
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the journal update queue on a temporary directory
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.extension.folderquota.TestTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class FolderQuotaUpdateQueueJournalImplTest
+{
+    private static final String FOLDER_PREFIX = "workspace://SpacesStore/folder-";
+    private static final int RECORD_SIZE = 32;
+
+    private File dir;
+    private NodeService nodeService;
+    private TransactionService transactionService;
+    private AttributeService attributeService;
+    private RecordingUsageCalculator usage;
+    private final List<FolderQuotaUpdateQueueJournalImpl> journals = new ArrayList<FolderQuotaUpdateQueueJournalImpl>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("folderquota-journal").toFile();
+        //node id n is folder-n
+        nodeService = mock(NodeService.class, new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                String method = invocation.getMethod().getName();
+                Object[] args = invocation.getArguments();
+                if ("exists".equals(method))
+                {
+                    return true;
+                }
+                if ("getProperty".equals(method))
+                {
+                    return Long.valueOf(args[0].toString().substring(FOLDER_PREFIX.length()));
+                }
+                if ("getNodeRef".equals(method))
+                {
+                    return folder(((Long) args[0]).intValue());
+                }
+                throw new UnsupportedOperationException(method);
+            }
+        });
+        transactionService = mock(TransactionService.class);
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(new TestTransactionHelper());
+        final Map<List<Object>, Object> attributes = new HashMap<List<Object>, Object>();
+        attributeService = mock(AttributeService.class, new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                String method = invocation.getMethod().getName();
+                List<Object> args = new ArrayList<Object>();
+                for (Object arg : invocation.getArguments())
+                {
+                    //varargs may or may not have been expanded
+                    args.addAll(arg instanceof Serializable[] ? Arrays.asList((Object[]) arg) : Arrays.asList(arg));
+                }
+                if ("getAttribute".equals(method))
+                {
+                    return attributes.get(args);
+                }
+                if ("setAttribute".equals(method))
+                {
+                    attributes.put(args.subList(1, args.size()), args.get(0));
+                    return null;
+                }
+                throw new UnsupportedOperationException(method);
+            }
+        });
+        usage = new RecordingUsageCalculator();
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (FolderQuotaUpdateQueueJournalImpl journal : journals)
+        {
+            journal.destroy();
+        }
+        for (File file : dir.listFiles())
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private FolderQuotaUpdateQueueJournalImpl open(int segmentRecords)
+    {
+        FolderQuotaUpdateQueueJournalImpl journal = new FolderQuotaUpdateQueueJournalImpl();
+        journal.setNodeService(nodeService);
+        journal.setTransactionService(transactionService);
+        journal.setAttributeService(attributeService);
+        journal.setFolderUsageCalculator(usage);
+        journal.setDirectory(dir.getAbsolutePath());
+        journal.setSegmentSize(segmentRecords * RECORD_SIZE);
+        journal.setCommitInterval(1L);
+        journal.setPageSize(10);
+        journal.init();
+        journals.add(journal);
+        return journal;
+    }
+
+    /**
+     * Stops a journal as a shutdown would, leaving its files
+     */
+    private void close(FolderQuotaUpdateQueueJournalImpl journal)
+    {
+        journals.remove(journal);
+        journal.destroy();
+    }
+
+    private static NodeRef folder(int id)
+    {
+        return new NodeRef(FOLDER_PREFIX + id);
+    }
+
+    private List<String> segmentFiles()
+    {
+        List<String> names = new ArrayList<String>();
+        for (String name : dir.list())
+        {
+            if (name.endsWith(".seg"))
+            {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testDrainAppliesEveryEvent()
+    {
+        FolderQuotaUpdateQueueJournalImpl journal = open(1000);
+        for (int i = 0; i < 100; i++)
+        {
+            journal.enqueueEvent(folder(1 + i % 4), 10L);
+        }
+        assertEquals(100L, journal.getBacklog());
+        assertEquals(250L, journal.getPendingDelta(folder(1)));
+
+        journal.processAllEvents();
+
+        assertEquals(0L, journal.getBacklog());
+        assertEquals(0L, journal.getPendingDelta(folder(1)));
+        for (int i = 1; i <= 4; i++)
+        {
+            assertEquals(250L, usage.totals.get(folder(i)).longValue());
+        }
+        //ten events per transaction
+        assertEquals(10, usage.pages);
+    }
+
+    @Test
+    public void testUndrainedEventsAreReplayedAfterARestart()
+    {
+        FolderQuotaUpdateQueueJournalImpl journal = open(1000);
+        for (int i = 0; i < 100; i++)
+        {
+            journal.enqueueEvent(folder(1), 1L);
+        }
+        assertEquals(40, journal.processEvents(40));
+        close(journal);
+
+        journal = open(1000);
+        assertEquals(60L, journal.getBacklog());
+        journal.enqueueEvent(folder(1), 1000L);
+        journal.processAllEvents();
+
+        //the 40 applied before the restart are not applied again
+        assertEquals(1100L, usage.totals.get(folder(1)).longValue());
+        assertEquals(0L, journal.getBacklog());
+    }
+
+    @Test
+    public void testTornRecordEndsTheReplay() throws IOException
+    {
+        FolderQuotaUpdateQueueJournalImpl journal = open(1000);
+        for (int i = 0; i < 5; i++)
+        {
+            journal.enqueueEvent(folder(1), 1L);
+        }
+        close(journal);
+        //as if the server died part way through writing the fifth record
+        RandomAccessFile segment = new RandomAccessFile(new File(dir, segmentFiles().get(0)), "rw");
+        try
+        {
+            segment.seek(4 * RECORD_SIZE + 24);
+            segment.writeLong(0L);
+        }
+        finally
+        {
+            segment.close();
+        }
+
+        journal = open(1000);
+        assertEquals(4L, journal.getBacklog());
+        journal.processAllEvents();
+        assertEquals(4L, usage.totals.get(folder(1)).longValue());
+    }
+
+    @Test
+    public void testAppliedSegmentsAreDeleted()
+    {
+        FolderQuotaUpdateQueueJournalImpl journal = open(10);
+        for (int i = 0; i < 95; i++)
+        {
+            journal.enqueueEvent(folder(1), 1L);
+        }
+        assertEquals(10, segmentFiles().size());
+
+        journal.processAllEvents();
+
+        //only the active segment is kept
+        assertEquals(1, segmentFiles().size());
+        assertEquals(95L, usage.totals.get(folder(1)).longValue());
+
+        //and nothing is replayed from it
+        close(journal);
+        journal = open(10);
+        assertEquals(0L, journal.getBacklog());
+    }
+
+    @Test
+    public void testFailedPageIsRetriedOnTheNextRun()
+    {
+        FolderQuotaUpdateQueueJournalImpl journal = open(1000);
+        for (int i = 0; i < 25; i++)
+        {
+            journal.enqueueEvent(folder(1), 1L);
+        }
+        usage.fail = true;
+        assertEquals(0, journal.processEvents(100));
+        assertEquals(25L, journal.getBacklog());
+
+        usage.fail = false;
+        assertEquals(25, journal.processEvents(100));
+        assertEquals(25L, usage.totals.get(folder(1)).longValue());
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the AttributeService backed update queue
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.extension.folderquota.TestTransactionHelper;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class FolderQuotaUpdateQueuePersistentImplTest
+{
+    private static final Log logger = LogFactory.getLog(FolderQuotaUpdateQueuePersistentImplTest.class);
+
+    private static final int FOLDERS = 100;
+    private static final int EVENTS = 100000;
+    private static final int PAGE_SIZE = 500;
+
+    private Map<List<Serializable>, Serializable> attributes;
+    private AttributeStore store;
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+    private JobLockService jobLockService;
+    private RecordingUsageCalculator usage;
+
+    @Before
+    public void setUp()
+    {
+        attributes = new LinkedHashMap<List<Serializable>, Serializable>();
+        store = new AttributeStore(attributes);
+        attributeService = mock(AttributeService.class, store);
+        transactionService = mock(TransactionService.class);
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(new TestTransactionHelper());
+        jobLockService = mock(JobLockService.class);
+        usage = new RecordingUsageCalculator();
+    }
+
+    private FolderQuotaUpdateQueuePersistentImpl newQueue()
+    {
+        FolderQuotaUpdateQueuePersistentImpl queue = new FolderQuotaUpdateQueuePersistentImpl();
+        queue.setAttributeService(attributeService);
+        queue.setTransactionService(transactionService);
+        queue.setJobLockService(jobLockService);
+        queue.setFolderUsageCalculator(usage);
+        queue.setPageSize(PAGE_SIZE);
+        //long enough for every test to queue its events in a single slot
+        queue.setSlotLength(TimeUnit.DAYS.toMillis(1));
+        return queue;
+    }
+
+    private static NodeRef folder(int i)
+    {
+        return new NodeRef("workspace://SpacesStore/folder-" + i);
+    }
+
+    @Test
+    public void testDrainAppliesEveryEventOnce()
+    {
+        FolderQuotaUpdateQueuePersistentImpl queue = newQueue();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++)
+        {
+            queue.enqueueEvent(folder(i % FOLDERS), 10L);
+        }
+        long enqueued = System.nanoTime();
+        assertEquals(EVENTS, queue.getBacklog());
+        assertEquals(10L * EVENTS / FOLDERS, queue.getPendingDelta(folder(0)));
+
+        queue.processAllEvents();
+        long drained = System.nanoTime();
+
+        logger.info(String.format("Enqueued %s events at %.0f/s, drained at %.0f/s", EVENTS,
+                EVENTS / ((enqueued - start) / 1e9), EVENTS / ((drained - enqueued) / 1e9)));
+        assertEquals(0L, queue.getBacklog());
+        assertEquals(FOLDERS, usage.totals.size());
+        for (int i = 0; i < FOLDERS; i++)
+        {
+            assertEquals(10L * EVENTS / FOLDERS, usage.totals.get(folder(i)).longValue());
+        }
+        //applied and removed a page per transaction
+        assertEquals(EVENTS / PAGE_SIZE, usage.pages);
+    }
+
+    @Test
+    public void testProcessEventsStopsAtMaxEvents()
+    {
+        FolderQuotaUpdateQueuePersistentImpl queue = newQueue();
+        for (int i = 0; i < 2000; i++)
+        {
+            queue.enqueueEvent(folder(0), 1L);
+        }
+
+        assertEquals(1200, queue.processEvents(1200));
+        assertEquals(800L, queue.getBacklog());
+        assertEquals(1200L, usage.totals.get(folder(0)).longValue());
+        //two full pages and one of 200
+        assertEquals(3, usage.pages);
+    }
+
+    @Test
+    public void testEventsSurviveARestart()
+    {
+        FolderQuotaUpdateQueuePersistentImpl before = newQueue();
+        for (int i = 0; i < 1000; i++)
+        {
+            before.enqueueEvent(folder(0), 5L);
+        }
+
+        //the restarted server writes its events next to the ones still queued
+        FolderQuotaUpdateQueuePersistentImpl after = newQueue();
+        for (int i = 0; i < 1000; i++)
+        {
+            after.enqueueEvent(folder(0), 5L);
+        }
+
+        assertEquals(2000, queuedEvents());
+        assertEquals(10000L, after.getPendingDelta(folder(0)));
+        after.processAllEvents();
+        assertEquals(10000L, usage.totals.get(folder(0)).longValue());
+        assertEquals(0L, after.getBacklog());
+    }
+
+    @Test
+    public void testFailedPageIsLeftQueued()
+    {
+        FolderQuotaUpdateQueuePersistentImpl queue = newQueue();
+        for (int i = 0; i < 10; i++)
+        {
+            queue.enqueueEvent(folder(i), 1L);
+        }
+        usage.fail = true;
+
+        try
+        {
+            queue.processAllEvents();
+        }
+        catch (IllegalStateException e)
+        {
+            //expected
+        }
+
+        assertEquals(10L, queue.getBacklog());
+        assertTrue(usage.totals.isEmpty());
+    }
+
+    @Test
+    public void testEachDrainReadsTheQueueOnce()
+    {
+        FolderQuotaUpdateQueuePersistentImpl queue = newQueue();
+        queue.setScanSize(EVENTS);
+        for (int i = 0; i < EVENTS; i++)
+        {
+            queue.enqueueEvent(folder(i % FOLDERS), 10L);
+        }
+
+        store.rowsRead = 0;
+        queue.processAllEvents();
+
+        //every page used to read the whole queue again
+        assertEquals(EVENTS, store.rowsRead);
+        assertEquals(EVENTS / PAGE_SIZE, usage.pages);
+        assertEquals(0L, queue.getBacklog());
+    }
+
+    @Test
+    public void testBacklogIsRecordedByTheDrain()
+    {
+        FolderQuotaUpdateQueuePersistentImpl queue = newQueue();
+        for (int i = 0; i < 1000; i++)
+        {
+            queue.enqueueEvent(folder(0), 1L);
+        }
+        queue.processEvents(600);
+
+        store.rowsRead = 0;
+        assertEquals(400L, queue.getBacklog());
+        assertEquals(0, store.rowsRead);
+    }
+
+    @Test
+    public void testDrainedSlotsAreNotReadAgain() throws Exception
+    {
+        FolderQuotaUpdateQueuePersistentImpl queue = newQueue();
+        queue.setSlotLength(10L);
+        queue.setMaxTransactionAge(20L);
+        for (int i = 0; i < 10; i++)
+        {
+            queue.enqueueEvent(folder(0), 1L);
+            Thread.sleep(10L);
+        }
+
+        Thread.sleep(200L);
+        queue.processAllEvents();
+        assertEquals(10L, usage.totals.get(folder(0)).longValue());
+
+        //only the slots a transaction may still commit into are left to look at
+        store.queries = 0;
+        assertEquals(0L, queue.getPendingDelta(folder(0)));
+        assertTrue("queried " + store.queries + " slots", store.queries < 10);
+    }
+
+    @Test
+    public void testEventsQueuedBeforeSlotsAreDrained()
+    {
+        //the layout before slots: (namespace, quota folder, GUID)
+        for (int i = 0; i < 700; i++)
+        {
+            attributes.put(Arrays.<Serializable>asList("..FOLDER_QUOTA_UPDATE..", folder(0).toString(), "old-" + i), 2L);
+        }
+        FolderQuotaUpdateQueuePersistentImpl queue = newQueue();
+        queue.enqueueEvent(folder(0), 1L);
+
+        assertEquals(1401L, queue.getPendingDelta(folder(0)));
+        assertEquals(701L, queue.getBacklog());
+        queue.processAllEvents();
+
+        assertEquals(1401L, usage.totals.get(folder(0)).longValue());
+        assertEquals(0, queuedEvents());
+    }
+
+    /**
+     * @return number of events in the attribute table, leaving out the drain's own state
+     */
+    private int queuedEvents()
+    {
+        int count = 0;
+        for (List<Serializable> key : attributes.keySet())
+        {
+            if (key.size() == 3)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The attribute table, in insertion order.  Queries match on a key prefix and, like the
+     * AttributeService, read every matching row even once the callback has had enough.
+     */
+    private static class AttributeStore implements Answer<Object>
+    {
+        private final Map<List<Serializable>, Serializable> attributes;
+        private int rowsRead;
+        private int queries;
+
+        private AttributeStore(Map<List<Serializable>, Serializable> attributes)
+        {
+            this.attributes = attributes;
+        }
+
+        public Object answer(InvocationOnMock invocation) throws Throwable
+        {
+            String method = invocation.getMethod().getName();
+            Object[] args = invocation.getArguments();
+            if ("createAttribute".equals(method))
+            {
+                List<Serializable> key = keys(args, 1);
+                if (attributes.containsKey(key))
+                {
+                    throw new IllegalStateException("Duplicate attribute " + key);
+                }
+                attributes.put(key, (Serializable) args[0]);
+                return null;
+            }
+            if ("setAttribute".equals(method))
+            {
+                attributes.put(keys(args, 1), (Serializable) args[0]);
+                return null;
+            }
+            if ("getAttribute".equals(method))
+            {
+                return attributes.get(keys(args, 0));
+            }
+            if ("removeAttribute".equals(method))
+            {
+                attributes.remove(keys(args, 0));
+                return null;
+            }
+            if ("getAttributes".equals(method))
+            {
+                AttributeService.AttributeQueryCallback callback = (AttributeService.AttributeQueryCallback) args[0];
+                List<Serializable> prefix = keys(args, 1);
+                queries++;
+                boolean more = true;
+                long id = 0;
+                for (Map.Entry<List<Serializable>, Serializable> attribute : attributes.entrySet())
+                {
+                    id++;
+                    if (attribute.getKey().size() >= prefix.size() && attribute.getKey().subList(0, prefix.size()).equals(prefix))
+                    {
+                        rowsRead++;
+                        more = more && callback.handleAttribute(id, attribute.getValue(),
+                                attribute.getKey().toArray(new Serializable[attribute.getKey().size()]));
+                    }
+                }
+                return null;
+            }
+            throw new UnsupportedOperationException(method);
+        }
+
+        /**
+         * The keys from the given argument on, whether or not the varargs were expanded
+         */
+        private static List<Serializable> keys(Object[] args, int from)
+        {
+            List<Serializable> keys = new ArrayList<Serializable>();
+            for (int i = from; i < args.length; i++)
+            {
+                if (args[i] instanceof Serializable[])
+                {
+                    keys.addAll(Arrays.asList((Serializable[]) args[i]));
+                }
+                else
+                {
+                    keys.add((Serializable) args[i]);
+                }
+            }
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of how the update executor handles changes that fail to be written
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.SizeChange;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FolderSizeUpdateExecutorTest
+{
+    private static final NodeRef FOLDER = new NodeRef("workspace://SpacesStore/folder");
+    private static final Map<NodeRef, Long> CHANGES = Collections.singletonMap(FOLDER, 100L);
+
+    private static final int FOLDERS = 4;
+    private static final int SUBMITTERS = 8;
+    private static final int SUBMITS = 2000;
+
+    private FolderUsageCalculator usage;
+    private FolderQuotaUpdateQueue queue;
+
+    @Before
+    public void setUp()
+    {
+        usage = mock(FolderUsageCalculator.class);
+        queue = mock(FolderQuotaUpdateQueue.class);
+        when(queue.isTransactional()).thenReturn(false);
+    }
+
+    private FolderSizeUpdateExecutor start(String saturationPolicy)
+    {
+        return start(saturationPolicy, 1000);
+    }
+
+    private FolderSizeUpdateExecutor start(String saturationPolicy, int queueCapacity)
+    {
+        FolderSizeUpdateExecutor executor = new FolderSizeUpdateExecutor();
+        executor.setFolderUsageCalculator(usage);
+        executor.setFolderQuotaUpdateQueue(queue);
+        executor.setSaturationPolicy(saturationPolicy);
+        executor.setCorePoolSize(1);
+        executor.setMaximumPoolSize(1);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setKeepAliveTime(5000L);
+        executor.init();
+        return executor;
+    }
+
+    @Test
+    public void testWrittenChangesAreNotPending()
+    {
+        when(usage.applySizeChanges(CHANGES, 1)).thenReturn(Collections.<NodeRef, Long>emptyMap());
+        FolderSizeUpdateExecutor executor = start(FolderSizeUpdateExecutor.POLICY_COALESCE);
+
+        executor.submit(CHANGES);
+        executor.destroy();
+
+        assertEquals(1L, executor.getCompletedCount());
+        assertEquals(0L, executor.getPendingDelta(FOLDER));
+        verify(queue, never()).enqueueEvent(FOLDER, 100L);
+    }
+
+    @Test
+    public void testFailedChangesAreSpilledUnderCoalesce()
+    {
+        when(usage.applySizeChanges(CHANGES, 1)).thenReturn(CHANGES);
+        FolderSizeUpdateExecutor executor = start(FolderSizeUpdateExecutor.POLICY_COALESCE);
+
+        executor.submit(CHANGES);
+        executor.destroy();
+
+        assertEquals(1L, executor.getFailedCount());
+        assertEquals(1L, executor.getSpilledCount());
+        verify(queue, times(1)).enqueueEvent(FOLDER, 100L);
+        assertEquals(0L, executor.getPendingDelta(FOLDER));
+    }
+
+    @Test
+    public void testFailedChangesAreSpilledUnderCallerRuns()
+    {
+        when(usage.applySizeChanges(CHANGES, 1)).thenReturn(CHANGES);
+        FolderSizeUpdateExecutor executor = start(FolderSizeUpdateExecutor.POLICY_CALLER_RUNS);
+
+        executor.submit(CHANGES);
+        executor.destroy();
+
+        verify(queue, times(1)).enqueueEvent(FOLDER, 100L);
+    }
+
+    @Test
+    public void testChangesAreKeptWhenSpillFails()
+    {
+        when(usage.applySizeChanges(CHANGES, 1)).thenReturn(CHANGES);
+        doThrow(new IllegalStateException("queue unavailable")).when(queue).enqueueEvent(FOLDER, 100L);
+        FolderSizeUpdateExecutor executor = start(FolderSizeUpdateExecutor.POLICY_SPILL);
+
+        executor.submit(CHANGES);
+        executor.destroy();
+
+        //still counted as unwritten, so the reconciler does not mistake it for drift
+        assertEquals(100L, executor.getPendingDelta(FOLDER));
+        assertEquals(0L, executor.getSpilledCount());
+    }
+
+    @Test
+    public void testRetriedChangesAreWrittenOnceTheDatabaseRecovers()
+    {
+        when(usage.applySizeChanges(CHANGES, 1)).thenReturn(CHANGES, Collections.<NodeRef, Long>emptyMap());
+        doThrow(new IllegalStateException("queue unavailable")).when(queue).enqueueEvent(FOLDER, 100L);
+        FolderSizeUpdateExecutor executor = start(FolderSizeUpdateExecutor.POLICY_COALESCE);
+
+        executor.submit(CHANGES);
+        //shutting down flushes the coalesced retry
+        executor.destroy();
+
+        verify(usage, times(2)).applySizeChanges(CHANGES, 1);
+        assertEquals(0L, executor.getPendingDelta(FOLDER));
+    }
+
+    @Test
+    public void testFloodIsAccountedForUnderCoalesce() throws InterruptedException
+    {
+        flood(FolderSizeUpdateExecutor.POLICY_COALESCE);
+    }
+
+    @Test
+    public void testFloodIsAccountedForUnderCallerRuns() throws InterruptedException
+    {
+        flood(FolderSizeUpdateExecutor.POLICY_CALLER_RUNS);
+    }
+
+    @Test
+    public void testFloodIsAccountedForUnderSpill() throws InterruptedException
+    {
+        flood(FolderSizeUpdateExecutor.POLICY_SPILL);
+    }
+
+    /**
+     * Submits far more changes than a slow, sometimes failing database keeps up with, and
+     * checks that every byte is either written, spilled or still pending
+     */
+    private void flood(String saturationPolicy) throws InterruptedException
+    {
+        SlowUsageCalculator slowUsage = new SlowUsageCalculator();
+        RecordingQueue recordingQueue = new RecordingQueue();
+        usage = slowUsage;
+        queue = recordingQueue;
+        final FolderSizeUpdateExecutor executor = start(saturationPolicy, 10);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] submitters = new Thread[SUBMITTERS];
+        for (int t = 0; t < SUBMITTERS; t++)
+        {
+            submitters[t] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < SUBMITS; i++)
+                    {
+                        Map<NodeRef, Long> changes = new HashMap<NodeRef, Long>();
+                        changes.put(folder(i % FOLDERS), 10L);
+                        changes.put(folder((i + 1) % FOLDERS), -3L);
+                        executor.submit(changes);
+                    }
+                }
+            });
+            submitters[t].start();
+        }
+        start.countDown();
+        for (Thread submitter : submitters)
+        {
+            submitter.join();
+        }
+        executor.destroy();
+
+        assertEquals((long) SUBMITTERS * SUBMITS, executor.getSubmittedCount());
+        assertTrue(saturationPolicy, executor.getRejectedCount() > 0L);
+        for (int f = 0; f < FOLDERS; f++)
+        {
+            NodeRef folder = folder(f);
+            long total = (long) SUBMITTERS * SUBMITS / FOLDERS * 7L;
+            assertEquals(saturationPolicy, total,
+                    slowUsage.applied(folder) + recordingQueue.spilled(folder) + executor.getPendingDelta(folder));
+        }
+    }
+
+    private static NodeRef folder(int i)
+    {
+        return new NodeRef("workspace://SpacesStore/folder-" + i);
+    }
+
+    private static long get(ConcurrentMap<NodeRef, AtomicLong> totals, NodeRef folder)
+    {
+        AtomicLong total = totals.get(folder);
+        return total == null ? 0L : total.get();
+    }
+
+    private static void add(ConcurrentMap<NodeRef, AtomicLong> totals, NodeRef folder, long delta)
+    {
+        totals.putIfAbsent(folder, new AtomicLong());
+        totals.get(folder).addAndGet(delta);
+    }
+
+    /**
+     * Takes 50 microseconds a write and fails every tenth one
+     */
+    private static class SlowUsageCalculator extends FolderUsageCalculator
+    {
+        private final ConcurrentMap<NodeRef, AtomicLong> applied = new ConcurrentHashMap<NodeRef, AtomicLong>();
+        private final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public Map<NodeRef, Long> applySizeChanges(Map<NodeRef, Long> changes, int batchSize)
+        {
+            LockSupport.parkNanos(50000L);
+            if (writes.incrementAndGet() % 10 == 0)
+            {
+                return changes;
+            }
+            for (Map.Entry<NodeRef, Long> change : changes.entrySet())
+            {
+                add(applied, change.getKey(), change.getValue());
+            }
+            return Collections.emptyMap();
+        }
+
+        long applied(NodeRef folder)
+        {
+            return get(applied, folder);
+        }
+    }
+
+    /**
+     * Non-transactional queue that only sums what is spilled to it
+     */
+    private static class RecordingQueue implements FolderQuotaUpdateQueue
+    {
+        private final ConcurrentMap<NodeRef, AtomicLong> spilled = new ConcurrentHashMap<NodeRef, AtomicLong>();
+
+        public void enqueueEvent(NodeRef nodeWithQuota, long sizeChange)
+        {
+            add(spilled, nodeWithQuota, sizeChange);
+        }
+
+        public void enqueueEvent(SizeChange change)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isTransactional()
+        {
+            return false;
+        }
+
+        public void processAllEvents()
+        {
+        }
+
+        public int processEvents(int maxEvents)
+        {
+            return 0;
+        }
+
+        public long getBacklog()
+        {
+            return 0L;
+        }
+
+        public long getPendingDelta(NodeRef nodeWithQuota)
+        {
+            return get(spilled, nodeWithQuota);
+        }
+
+        long spilled(NodeRef folder)
+        {
+            return get(spilled, folder);
+        }
+    }
+}
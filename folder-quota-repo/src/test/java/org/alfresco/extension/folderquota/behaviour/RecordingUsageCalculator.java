@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Usage calculator stand-in for the update queue tests
+ */
+package org.alfresco.extension.folderquota.behaviour;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.extension.folderquota.FolderUsageCalculator;
+import org.alfresco.extension.folderquota.NodeIdDeltaMap;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Sums the changes it is asked to apply, by NodeRef or by node id as the queue hands
+ * them over, and counts the pages that had any
+ */
+class RecordingUsageCalculator extends FolderUsageCalculator
+{
+    final Map<NodeRef, Long> totals = new HashMap<NodeRef, Long>();
+    final Map<Long, Long> idTotals = new HashMap<Long, Long>();
+    int pages;
+    boolean fail;
+
+    @Override
+    public int applySizeChangesInTransaction(Iterable<Map.Entry<NodeRef, Long>> changes)
+    {
+        if (fail)
+        {
+            throw new IllegalStateException("database unavailable");
+        }
+        int count = 0;
+        for (Map.Entry<NodeRef, Long> change : changes)
+        {
+            Long total = totals.get(change.getKey());
+            totals.put(change.getKey(), total == null ? change.getValue() : total + change.getValue());
+            count++;
+        }
+        if (count > 0)
+        {
+            pages++;
+        }
+        return count;
+    }
+
+    @Override
+    public NodeIdDeltaMap applySizeChanges(NodeIdDeltaMap changes, int batchSize)
+    {
+        if (fail)
+        {
+            return changes;
+        }
+        for (int slot = changes.next(-1); slot >= 0; slot = changes.next(slot))
+        {
+            Long total = idTotals.get(changes.nodeIdAt(slot));
+            idTotals.put(changes.nodeIdAt(slot), total == null ? changes.deltaAt(slot) : total + changes.deltaAt(slot));
+        }
+        pages++;
+        return new NodeIdDeltaMap();
+    }
+}
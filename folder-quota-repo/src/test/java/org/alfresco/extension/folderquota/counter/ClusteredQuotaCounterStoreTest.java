@@ -0,0 +1,337 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of counters shared between servers through a stand-in for the clustered cache
+ */
+package org.alfresco.extension.folderquota.counter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ClusteredQuotaCounterStoreTest
+{
+	private static final NodeRef FOLDER = new NodeRef("workspace://SpacesStore/folder");
+
+	private final AtomicLong stored = new AtomicLong(1000L);
+	private NodeService nodeService;
+	private SharedCache cache;
+
+	/**
+	 * Stands in for the clustered cache, values are copied in and out as they would be
+	 * when sent between servers
+	 */
+	private static class SharedCache implements SimpleCache<Serializable, Serializable>
+	{
+		private final ConcurrentHashMap<Serializable, byte[]> entries = new ConcurrentHashMap<Serializable, byte[]>();
+
+		public boolean contains(Serializable key)
+		{
+			return entries.containsKey(key);
+		}
+
+		public Collection<Serializable> getKeys()
+		{
+			return entries.keySet();
+		}
+
+		public Serializable get(Serializable key)
+		{
+			byte[] bytes = entries.get(key);
+			if (bytes == null)
+			{
+				return null;
+			}
+			try
+			{
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+				return (Serializable) in.readObject();
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void put(Serializable key, Serializable value)
+		{
+			try
+			{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(value);
+				out.close();
+				entries.put(key, bytes.toByteArray());
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void remove(Serializable key)
+		{
+			entries.remove(key);
+		}
+
+		public void clear()
+		{
+			entries.clear();
+		}
+	}
+
+	@Before
+	public void setUp()
+	{
+		nodeService = mock(NodeService.class);
+		when(nodeService.getProperty(FOLDER, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT)).thenAnswer(new Answer<Serializable>()
+		{
+			public Serializable answer(InvocationOnMock invocation) throws Throwable
+			{
+				return stored.get();
+			}
+		});
+		cache = new SharedCache();
+	}
+
+	private ClusteredQuotaCounterStore server(String serverId)
+	{
+		ClusteredQuotaCounterStore store = new ClusteredQuotaCounterStore();
+		store.setNodeService(nodeService);
+		store.setCache(cache);
+		store.setServerId(serverId);
+		return store;
+	}
+
+	@Test
+	public void testCountersConvergeUnderConcurrentLoad() throws Exception
+	{
+		final int threadsPerServer = 4;
+		final int changesPerThread = 2000;
+		final List<ClusteredQuotaCounterStore> servers = new ArrayList<ClusteredQuotaCounterStore>();
+		for (int i = 0; i < 3; i++)
+		{
+			servers.add(server("server" + i));
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final ClusteredQuotaCounterStore server : servers)
+		{
+			for (int i = 0; i < threadsPerServer; i++)
+			{
+				final boolean writer = i % 2 == 0;
+				Thread thread = new Thread()
+				{
+					public void run()
+					{
+						try
+						{
+							start.await();
+						}
+						catch (InterruptedException e)
+						{
+							return;
+						}
+						for (int j = 0; j < changesPerThread; j++)
+						{
+							server.add(FOLDER, 10L);
+							if (writer)
+							{
+								//half the changes reach fq:sizeCurrent while the others publish
+								stored.addAndGet(10L);
+								server.checkpointed(FOLDER, 10L);
+							}
+							if (j % 100 == 0)
+							{
+								server.publish();
+							}
+						}
+					}
+				};
+				thread.start();
+				threads.add(thread);
+			}
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		for (ClusteredQuotaCounterStore server : servers)
+		{
+			server.publish();
+		}
+		for (ClusteredQuotaCounterStore server : servers)
+		{
+			server.publish();
+		}
+		long expected = 1000L + servers.size() * threadsPerServer * changesPerThread * 10L;
+		for (ClusteredQuotaCounterStore server : servers)
+		{
+			assertEquals(expected, server.getUsage(FOLDER));
+		}
+	}
+
+	@Test
+	public void testOtherServersAreSeenOncePublished()
+	{
+		ClusteredQuotaCounterStore a = server("a");
+		ClusteredQuotaCounterStore b = server("b");
+
+		a.add(FOLDER, 500L);
+		assertEquals(1500L, a.getUsage(FOLDER));
+		assertEquals(1000L, b.getUsage(FOLDER));
+
+		a.publish();
+		b.publish();
+		assertEquals(1500L, b.getUsage(FOLDER));
+	}
+
+	@Test
+	public void testStoppedServerIsDropped() throws Exception
+	{
+		ClusteredQuotaCounterStore a = server("a");
+		ClusteredQuotaCounterStore b = server("b");
+		b.setServerTimeout(0L);
+
+		a.add(FOLDER, 500L);
+		a.publish();
+		b.publish();
+		assertEquals(1500L, b.getUsage(FOLDER));
+
+		//a stops publishing
+		Thread.sleep(10L);
+		b.publish();
+		assertEquals(1000L, b.getUsage(FOLDER));
+		assertNull(cache.get("..server..|a"));
+	}
+
+	@Test
+	public void testRestartReplacesPublishedChanges()
+	{
+		ClusteredQuotaCounterStore a = server("a");
+		ClusteredQuotaCounterStore b = server("b");
+
+		a.add(FOLDER, 500L);
+		a.publish();
+		b.publish();
+		assertEquals(1500L, b.getUsage(FOLDER));
+
+		ClusteredQuotaCounterStore restarted = server("a");
+		restarted.publish();
+		b.publish();
+		assertEquals(1000L, b.getUsage(FOLDER));
+	}
+
+	@Test
+	public void testWrittenChangesAreDropped()
+	{
+		ClusteredQuotaCounterStore a = server("a");
+
+		a.add(FOLDER, 100L);
+		assertEquals(1, a.getFolderCount());
+		stored.addAndGet(100L);
+		a.checkpointed(FOLDER, 100L);
+
+		assertEquals(0, a.getFolderCount());
+		assertEquals(1100L, a.getUsage(FOLDER));
+	}
+
+	@Test
+	public void testResetKeepsRecalculatedSize()
+	{
+		ClusteredQuotaCounterStore a = server("a");
+
+		a.add(FOLDER, 100L);
+		//recalculated, the change is already in fq:sizeCurrent
+		stored.set(1100L);
+		a.reset(FOLDER, 1100L);
+		assertEquals(1100L, a.getUsage(FOLDER));
+
+		//the change is written again on top of the recalculated size
+		stored.addAndGet(100L);
+		a.checkpointed(FOLDER, 100L);
+		assertEquals(1100L, a.getUsage(FOLDER));
+	}
+
+	@Test
+	public void testInvalidateForgetsChanges()
+	{
+		ClusteredQuotaCounterStore a = server("a");
+		ClusteredQuotaCounterStore b = server("b");
+
+		a.add(FOLDER, 100L);
+		a.invalidate(FOLDER);
+		a.publish();
+		b.publish();
+
+		assertEquals(1000L, a.getUsage(FOLDER));
+		assertEquals(1000L, b.getUsage(FOLDER));
+		assertEquals(0, a.getFolderCount());
+	}
+
+	@Test
+	public void testOtherServersDeltaLeavesOutThisServer()
+	{
+		ClusteredQuotaCounterStore a = server("a");
+		ClusteredQuotaCounterStore b = server("b");
+		a.add(FOLDER, 300L);
+		b.add(FOLDER, 50L);
+		a.publish();
+		b.publish();
+		a.publish();
+
+		//what the reconciler adds to this server's own pending changes
+		assertEquals(50L, a.getOtherServersDelta(FOLDER));
+		assertEquals(300L, b.getOtherServersDelta(FOLDER));
+		assertEquals(1350L, a.getUsage(FOLDER));
+
+		b.checkpointed(FOLDER, 50L);
+		b.publish();
+		a.publish();
+		assertEquals(0L, a.getOtherServersDelta(FOLDER));
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * In-memory H2 database for the tests of the SQL maps
+ */
+package org.alfresco.extension.folderquota.db;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ibatis.builder.xml.XMLMapperBuilder;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.h2.jdbcx.JdbcDataSource;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * A fresh in-memory H2 database with the module's SQL map loaded, with the statements
+ * for H2 unless told otherwise.  Scripts are run the
+ * way the schema bootstrap runs them: comment lines are dropped, ${TRUE} and ${FALSE} are
+ * replaced and statements end with a semicolon.  An alf_applied_patch table is created
+ * up front so the scripts can record themselves.
+ */
+class EmbeddedDatabase
+{
+    private static final String MODULE_PATH = "alfresco/module/folder-quota-repo/";
+    private static final String SQL_MAP = MODULE_PATH + "ibatis/folder-quota-SqlMap.xml";
+    private static final String SCRIPT_PATH = MODULE_PATH + "dbscripts/org.hibernate.dialect.H2Dialect/";
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final JdbcDataSource dataSource;
+    private final SqlSessionTemplate template;
+
+    EmbeddedDatabase() throws Exception
+    {
+        this("h2");
+    }
+
+    /**
+     * @param databaseId the database the SQL map's statements are picked for, null for
+     * one without statements of its own
+     */
+    EmbeddedDatabase(String databaseId) throws Exception
+    {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:folderquota" + COUNT.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+
+        Configuration configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.setDatabaseId(databaseId);
+        InputStream in = getClass().getClassLoader().getResourceAsStream(SQL_MAP);
+        try
+        {
+            new XMLMapperBuilder(in, configuration, SQL_MAP, configuration.getSqlFragments()).parse();
+        }
+        finally
+        {
+            in.close();
+        }
+        template = new SqlSessionTemplate(new SqlSessionFactoryBuilder().build(configuration));
+
+        execute("create table alf_applied_patch (id varchar(64) not null primary key, description varchar(1024),"
+                + " fixes_from_schema integer, fixes_to_schema integer, applied_to_schema integer, target_schema integer,"
+                + " applied_on_date timestamp, applied_to_server varchar(64), was_executed boolean, succeeded boolean,"
+                + " report varchar(1024))");
+    }
+
+    SqlSessionTemplate getTemplate()
+    {
+        return template;
+    }
+
+    /**
+     * Runs one of the module's H2 scripts
+     *
+     * @param name file name under the H2 dbscripts folder
+     */
+    void runScript(String name) throws Exception
+    {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(SCRIPT_PATH + name);
+        StringBuilder sql = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (!line.trim().startsWith("--"))
+                {
+                    sql.append(line).append('\n');
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        for (String statement : sql.toString().replace("${TRUE}", "TRUE").replace("${FALSE}", "FALSE").split(";"))
+        {
+            if (statement.trim().length() > 0)
+            {
+                execute(statement);
+            }
+        }
+    }
+
+    void execute(String sql) throws SQLException
+    {
+        Connection connection = dataSource.getConnection();
+        try
+        {
+            Statement statement = connection.createStatement();
+            statement.execute(sql);
+            statement.close();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /**
+     * @param sql a query returning a single number
+     * @return the number, or null if the query returned no rows
+     */
+    Long queryForLong(String sql) throws SQLException
+    {
+        Connection connection = dataSource.getConnection();
+        try
+        {
+            Statement statement = connection.createStatement();
+            ResultSet results = statement.executeQuery(sql);
+            Long value = results.next() ? results.getLong(1) : null;
+            statement.close();
+            return value;
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    void shutdown() throws SQLException
+    {
+        execute("shutdown");
+    }
+}
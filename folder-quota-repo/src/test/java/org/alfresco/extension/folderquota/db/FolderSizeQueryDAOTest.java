@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the aggregate subtree size query against an embedded database
+ */
+package org.alfresco.extension.folderquota.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link FolderSizeQueryDAO} against H2, on the few columns of the Alfresco tables
+ * the query reads
+ */
+public class FolderSizeQueryDAOTest
+{
+    private static final long CONTAINS = 1L;
+    private static final long RENDITION = 2L;
+    private static final long CONTENT = 3L;
+
+    private static final NodeRef FOLDER = new NodeRef("workspace://SpacesStore/folder");
+    private static final NodeRef SUBFOLDER = new NodeRef("workspace://SpacesStore/subfolder");
+    private static final NodeRef EMPTY = new NodeRef("workspace://SpacesStore/empty");
+
+    private EmbeddedDatabase database;
+    private NodeService nodeService;
+    private QNameDAO qnameDAO;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        nodeService = mock(NodeService.class);
+        when(nodeService.getProperty(FOLDER, ContentModel.PROP_NODE_DBID)).thenReturn(1L);
+        when(nodeService.getProperty(SUBFOLDER, ContentModel.PROP_NODE_DBID)).thenReturn(3L);
+        when(nodeService.getProperty(EMPTY, ContentModel.PROP_NODE_DBID)).thenReturn(9L);
+        qnameDAO = mock(QNameDAO.class);
+        when(qnameDAO.getQName(ContentModel.ASSOC_CONTAINS)).thenReturn(new Pair<Long, QName>(CONTAINS, ContentModel.ASSOC_CONTAINS));
+        when(qnameDAO.getQName(ContentModel.PROP_CONTENT)).thenReturn(new Pair<Long, QName>(CONTENT, ContentModel.PROP_CONTENT));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        database.shutdown();
+    }
+
+    private FolderSizeQueryDAO createDAO(String databaseId) throws Exception
+    {
+        database = new EmbeddedDatabase(databaseId);
+        database.execute("create table alf_child_assoc (parent_node_id bigint, child_node_id bigint, type_qname_id bigint, is_primary boolean)");
+        database.execute("create table alf_node_properties (node_id bigint, qname_id bigint, long_value bigint)");
+        database.execute("create table alf_content_data (id bigint, content_url_id bigint)");
+        database.execute("create table alf_content_url (id bigint, content_size bigint)");
+
+        FolderSizeQueryDAO dao = new FolderSizeQueryDAO();
+        dao.setSqlSessionTemplate(database.getTemplate());
+        dao.setNodeService(nodeService);
+        dao.setQnameDAO(qnameDAO);
+        return dao;
+    }
+
+    /**
+     * folder 1 holds document 2 and folder 3, folder 3 holds documents 4 and 5.  Document 6
+     * is only a secondary child of folder 1 and node 7 is a rendition of document 2.
+     */
+    private void createTree() throws Exception
+    {
+        child(1, 2, CONTAINS, true);
+        child(1, 3, CONTAINS, true);
+        child(3, 4, CONTAINS, true);
+        child(3, 5, CONTAINS, true);
+        child(1, 6, CONTAINS, false);
+        child(2, 7, RENDITION, true);
+        content(2, 100);
+        content(4, 50);
+        content(5, 25);
+        content(6, 1000);
+        content(7, 500);
+    }
+
+    private void child(long parent, long child, long type, boolean primary) throws Exception
+    {
+        database.execute("insert into alf_child_assoc values (" + parent + ", " + child + ", " + type + ", " + primary + ")");
+    }
+
+    private void content(long node, long size) throws Exception
+    {
+        database.execute("insert into alf_content_url values (" + node + ", " + size + ")");
+        database.execute("insert into alf_content_data values (" + node + ", " + node + ")");
+        database.execute("insert into alf_node_properties values (" + node + ", " + CONTENT + ", " + node + ")");
+    }
+
+    @Test
+    public void testSumsPrimaryContainedContent() throws Exception
+    {
+        FolderSizeQueryDAO dao = createDAO("h2");
+        createTree();
+
+        assertTrue(dao.isSupported());
+        assertEquals(175L, dao.getSubtreeContentSize(FOLDER));
+        assertEquals(75L, dao.getSubtreeContentSize(SUBFOLDER));
+        assertEquals(0L, dao.getSubtreeContentSize(EMPTY));
+    }
+
+    @Test
+    public void testNothingStoredYet() throws Exception
+    {
+        FolderSizeQueryDAO dao = createDAO("h2");
+        when(qnameDAO.getQName(ContentModel.PROP_CONTENT)).thenReturn(null);
+
+        assertEquals(0L, dao.getSubtreeContentSize(FOLDER));
+    }
+
+    @Test
+    public void testUnsupportedDatabaseHasNoQuery() throws Exception
+    {
+        FolderSizeQueryDAO dao = createDAO(null);
+
+        assertFalse(dao.isSupported());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the stored subtree sizes against an embedded database
+ */
+package org.alfresco.extension.folderquota.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link FolderSubtreeSizeDAO} against H2, with the table created by the module's
+ * schema script
+ */
+public class FolderSubtreeSizeDAOTest
+{
+    private static final NodeRef FOLDER = new NodeRef("workspace://SpacesStore/folder");
+
+    private EmbeddedDatabase database;
+    private FolderSubtreeSizeDAO dao;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        database = new EmbeddedDatabase();
+        database.runScript("fq-subtree-size.sql");
+
+        NodeService nodeService = mock(NodeService.class);
+        when(nodeService.getProperty(FOLDER, ContentModel.PROP_NODE_DBID)).thenReturn(10L);
+
+        dao = new FolderSubtreeSizeDAO();
+        dao.setSqlSessionTemplate(database.getTemplate());
+        dao.setNodeService(nodeService);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        database.shutdown();
+    }
+
+    @Test
+    public void testAddWithoutSizeIsDropped()
+    {
+        assertFalse(dao.add(FOLDER, 10L));
+        assertNull(dao.getSize(FOLDER));
+    }
+
+    @Test
+    public void testSetThenAdd()
+    {
+        dao.set(FOLDER, 100L);
+        assertTrue(dao.add(FOLDER, 25L));
+        assertTrue(dao.add(FOLDER, -5L));
+
+        assertEquals(Long.valueOf(120L), dao.getSize(FOLDER));
+    }
+
+    @Test
+    public void testSetReplacesSize()
+    {
+        dao.set(FOLDER, 100L);
+        dao.set(FOLDER, 7L);
+
+        assertEquals(Long.valueOf(7L), dao.getSize(FOLDER));
+    }
+
+    @Test
+    public void testRemove()
+    {
+        dao.set(FOLDER, 100L);
+        dao.remove(FOLDER);
+
+        assertNull(dao.getSize(FOLDER));
+        assertFalse(dao.add(FOLDER, 1L));
+    }
+
+    @Test
+    public void testConcurrentAddsAreNotLost() throws Exception
+    {
+        dao.set(FOLDER, 0L);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int writer = 0; writer < 8; writer++)
+            {
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    public Void call()
+                    {
+                        for (int i = 0; i < 250; i++)
+                        {
+                            dao.add(FOLDER, 3L);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures)
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        assertEquals(Long.valueOf(8 * 250 * 3L), dao.getSize(FOLDER));
+    }
+}
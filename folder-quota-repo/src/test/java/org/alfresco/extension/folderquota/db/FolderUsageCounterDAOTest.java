@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Tests of the usage counters against an embedded database
+ */
+package org.alfresco.extension.folderquota.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.extension.folderquota.FolderQuotaConstants;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link FolderUsageCounterDAO} against H2, with the table created by the module's
+ * schema script
+ */
+public class FolderUsageCounterDAOTest
+{
+    private static final NodeRef FOLDER = new NodeRef("workspace://SpacesStore/folder");
+    private static final NodeRef OTHER_FOLDER = new NodeRef("workspace://SpacesStore/other");
+
+    private EmbeddedDatabase database;
+    private NodeService nodeService;
+    private FolderUsageCounterDAO dao;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        database = new EmbeddedDatabase();
+        database.runScript("fq-usage-counter.sql");
+
+        nodeService = mock(NodeService.class);
+        when(nodeService.getProperty(FOLDER, ContentModel.PROP_NODE_DBID)).thenReturn(10L);
+        when(nodeService.getProperty(FOLDER, FolderQuotaConstants.PROP_FQ_SIZE_CURRENT)).thenReturn(1000L);
+        when(nodeService.getProperty(OTHER_FOLDER, ContentModel.PROP_NODE_DBID)).thenReturn(20L);
+
+        dao = new FolderUsageCounterDAO();
+        dao.setSqlSessionTemplate(database.getTemplate());
+        dao.setNodeService(nodeService);
+        dao.setEnabled(true);
+        dao.setShardCount(4);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        database.shutdown();
+    }
+
+    @Test
+    public void testScriptRecordsPatch() throws Exception
+    {
+        assertEquals(Long.valueOf(1L), database.queryForLong(
+                "select count(*) from alf_applied_patch where id = 'patch.db-folderquota-UsageCounterTable' and succeeded = TRUE"));
+    }
+
+    @Test
+    public void testFirstChangeSeedsFromSizeCurrent() throws Exception
+    {
+        dao.add(FOLDER, 24L);
+
+        assertEquals(1024L, dao.getUsage(FOLDER));
+        assertEquals(Long.valueOf(4L), database.queryForLong("select count(*) from fq_usage_counter where folder_id = 10"));
+    }
+
+    @Test
+    public void testChangesAreSummedAcrossShards()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            dao.add(FOLDER, 10L);
+        }
+        dao.add(FOLDER, -500L);
+
+        assertEquals(1500L, dao.getUsage(FOLDER));
+    }
+
+    @Test
+    public void testRaisedShardCountKeepsTotal() throws Exception
+    {
+        dao.add(FOLDER, 0L);
+        dao.setShardCount(16);
+        for (int i = 0; i < 50; i++)
+        {
+            dao.add(FOLDER, 2L);
+        }
+
+        assertEquals(1100L, dao.getUsage(FOLDER));
+    }
+
+    @Test
+    public void testSetReplacesCounters() throws Exception
+    {
+        dao.add(FOLDER, 300L);
+        dao.set(FOLDER, 42L);
+
+        assertEquals(42L, dao.getUsage(FOLDER));
+        assertEquals(Long.valueOf(4L), database.queryForLong("select count(*) from fq_usage_counter where folder_id = 10"));
+    }
+
+    @Test
+    public void testRemoveFallsBackToSizeCurrent()
+    {
+        dao.add(FOLDER, 300L);
+        dao.remove(10L);
+
+        assertEquals(1000L, dao.getUsage(FOLDER));
+    }
+
+    @Test
+    public void testDisabledReadsSizeCurrent()
+    {
+        dao.add(FOLDER, 300L);
+        dao.setEnabled(false);
+
+        assertEquals(1000L, dao.getUsage(FOLDER));
+    }
+
+    @Test
+    public void testTotalsArePagedInNodeIdOrder()
+    {
+        dao.add(FOLDER, 1L);
+        dao.set(OTHER_FOLDER, 7L);
+
+        List<Map<String, Object>> first = dao.getTotals(0L, 1);
+        assertEquals(1, first.size());
+        assertEquals(10L, ((Number) first.get(0).get("folderId")).longValue());
+        assertEquals(1001L, ((Number) first.get(0).get("total")).longValue());
+
+        List<Map<String, Object>> second = dao.getTotals(10L, 1);
+        assertEquals(1, second.size());
+        assertEquals(20L, ((Number) second.get(0).get("folderId")).longValue());
+        assertEquals(7L, ((Number) second.get(0).get("total")).longValue());
+
+        assertEquals(0, dao.getTotals(20L, 1).size());
+    }
+}
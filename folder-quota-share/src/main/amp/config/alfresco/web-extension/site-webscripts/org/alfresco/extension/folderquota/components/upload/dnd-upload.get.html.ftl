@@ -0,0 +1,4 @@
+<#-- Adds the folder quota pre-upload check to the drag and drop uploader -->
+<@markup id="folder-quota-js" target="js" action="after">
+   <@script src="${url.context}/res/folder-quota/components/upload/quota-check.js" group="upload"/>
+</@markup>
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ *
+ * Checks each drag and drop upload against folder quotas before any bytes are sent.
+ * The repository is asked (GET folder-quota/check) whether the file fits; a file that
+ * does not is failed straight away, anything else (including a failed check) is
+ * uploaded as normal and still admitted by the repository when it is written.  A new
+ * version is checked against the document it updates, so only the change in size counts.
+ */
+(function()
+{
+   if (!Alfresco.DNDUpload)
+   {
+      return;
+   }
+
+   var $html = Alfresco.util.encodeHTML,
+      startUpload = Alfresco.DNDUpload.prototype._startUpload;
+
+   Alfresco.DNDUpload.prototype._startUpload = function FolderQuota_DNDUpload__startUpload(fileInfo)
+   {
+      var data = fileInfo.uploadData || {},
+         file = data.filedata,
+         nodeRef = data.updateNodeRef || data.destination || (this.showConfig ? this.showConfig.destination : null);
+
+      if (fileInfo.folderQuotaChecked || !file || !file.size || !nodeRef)
+      {
+         return startUpload.apply(this, arguments);
+      }
+      fileInfo.folderQuotaChecked = true;
+
+      var me = this,
+         args = arguments,
+         proceed = function()
+         {
+            startUpload.apply(me, args);
+         };
+
+      Alfresco.util.Ajax.jsonGet(
+      {
+         url: Alfresco.constants.PROXY_URI + "folder-quota/check?nodeRef=" + encodeURIComponent(nodeRef) + "&size=" + file.size,
+         successCallback:
+         {
+            fn: function(response)
+            {
+               var check = response.json;
+               if (check && check.allowed === false)
+               {
+                  this._folderQuotaDenied(fileInfo, check);
+               }
+               else
+               {
+                  proceed();
+               }
+            },
+            scope: this
+         },
+         failureCallback:
+         {
+            fn: proceed,
+            scope: this
+         }
+      });
+   };
+
+   /**
+    * Marks a file as failed without uploading it
+    */
+   Alfresco.DNDUpload.prototype._folderQuotaDenied = function FolderQuota_DNDUpload__folderQuotaDenied(fileInfo, check)
+   {
+      var message = this.msg("folder-quota.upload.denied", fileInfo.fileName, Alfresco.util.formatFileSize(check.remaining));
+
+      fileInfo.state = this.STATE_FAILURE;
+      if (fileInfo.fileSizeElement)
+      {
+         fileInfo.fileSizeElement.innerHTML = $html(message);
+      }
+      if (typeof this.noOfFailedUploads === "number")
+      {
+         this.noOfFailedUploads++;
+      }
+      if (typeof this._adjustGuiIfFinished === "function")
+      {
+         this._adjustGuiIfFinished();
+      }
+      Alfresco.util.PopupManager.displayPrompt(
+      {
+         title: this.msg("folder-quota.upload.denied.title"),
+         text: message
+      });
+   };
+})();